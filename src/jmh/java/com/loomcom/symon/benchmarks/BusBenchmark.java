@@ -0,0 +1,61 @@
+package com.loomcom.symon.benchmarks;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.machines.SymonMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Bus.read() and Bus.write() on the Symon machine's memory map.
+ * Scores are in bus accesses per microsecond.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BusBenchmark {
+
+    private static final int ACCESSES = 4096;
+
+    private Bus bus;
+
+    // Addresses spread over RAM and ROM
+    private final int[] readAddresses = new int[ACCESSES];
+
+    // Addresses in RAM only
+    private final int[] writeAddresses = new int[ACCESSES];
+
+    @Setup
+    public void setUp() throws Exception {
+        bus = new SymonMachine().getBus();
+
+        Random random = new Random(6502);
+        for (int i = 0; i < ACCESSES; i++) {
+            int address = random.nextInt(0xc000);
+            readAddresses[i] = (i % 4 == 0) ? 0xc000 + (address & 0x3fff) : address & 0x7fff;
+            writeAddresses[i] = address & 0x7fff;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public int read() throws Exception {
+        int sum = 0;
+        for (int address : readAddresses) {
+            sum += bus.read(address, true);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public void write() throws Exception {
+        for (int i = 0; i < ACCESSES; i++) {
+            bus.write(writeAddresses[i], i & 0xff);
+        }
+    }
+}
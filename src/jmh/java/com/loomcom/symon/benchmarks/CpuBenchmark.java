@@ -0,0 +1,105 @@
+package com.loomcom.symon.benchmarks;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.InstructionTable;
+import com.loomcom.symon.devices.Memory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Cpu.step() on small endless loops that stress different parts of
+ * the core. Scores are in instructions per microsecond, i.e. MIPS.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CpuBenchmark {
+
+    private static final int STEPS = 10000;
+
+    public enum Program {
+        // Decimal mode ADC and SBC, immediate and zero page
+        DECIMAL(0xf8,              // $0200  SED
+                0x18,              // $0201  CLC
+                0xa9, 0x15,        // $0202  LDA #$15
+                0x69, 0x27,        // $0204  ADC #$27
+                0x65, 0x10,        // $0206  ADC $10
+                0x38,              // $0208  SEC
+                0xe9, 0x09,        // $0209  SBC #$09
+                0xe5, 0x11,        // $020B  SBC $11
+                0x4c, 0x01, 0x02), // $020D  JMP $0201
+
+        // Taken and untaken conditional branches
+        BRANCHES(0xa2, 0x00,       // $0200  LDX #$00
+                 0xca,             // $0202  DEX
+                 0xd0, 0xfd,       // $0203  BNE $0202
+                 0xc8,             // $0205  INY
+                 0x10, 0xf8,       // $0206  BPL $0200
+                 0x30, 0xf6),      // $0208  BMI $0200
+
+        // Indexed and indirect addressing modes
+        INDEXED(0xa2, 0x00,        // $0200  LDX #$00
+                0xbd, 0x00, 0x10,  // $0202  LDA $1000,X
+                0x79, 0x00, 0x11,  // $0205  ADC $1100,Y
+                0x9d, 0x00, 0x20,  // $0208  STA $2000,X
+                0xb5, 0x40,        // $020B  LDA $40,X
+                0x91, 0x80,        // $020D  STA ($80),Y
+                0xa1, 0x90,        // $020F  LDA ($90,X)
+                0xc8,              // $0211  INY
+                0xe8,              // $0212  INX
+                0xd0, 0xed,        // $0213  BNE $0202
+                0x4c, 0x00, 0x02); // $0215  JMP $0200
+
+        private final int[] code;
+
+        Program(int... code) {
+            this.code = code;
+        }
+    }
+
+    @Param
+    public Program program;
+
+    @Param
+    public Cpu.Core core;
+
+    @Param({"NMOS_6502", "CMOS_6502"})
+    public InstructionTable.CpuBehavior behavior;
+
+    private Cpu cpu;
+
+    @Setup
+    public void setUp() throws Exception {
+        Bus bus = new Bus(0x0000, 0xffff);
+        cpu = new Cpu(behavior);
+        cpu.setCore(core);
+        cpu.setUnthrottled(true);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+
+        // Pointer used by STA ($80),Y
+        bus.write(0x80, 0x00);
+        bus.write(0x81, 0x30);
+
+        bus.write(Cpu.RST_VECTOR_L, Bus.DEFAULT_LOAD_ADDRESS & 0xff);
+        bus.write(Cpu.RST_VECTOR_H, Bus.DEFAULT_LOAD_ADDRESS >>> 8);
+        cpu.reset();
+        bus.loadProgram(program.code);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STEPS)
+    public int step() throws Exception {
+        // Count retired instructions, as the JIT core may run a whole block per step
+        long end = cpu.getCpuState().stepCounter + STEPS;
+        while (cpu.getCpuState().stepCounter < end) {
+            cpu.step();
+        }
+        return cpu.getAccumulator();
+    }
+}
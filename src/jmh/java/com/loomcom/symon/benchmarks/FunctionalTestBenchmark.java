@@ -0,0 +1,45 @@
+package com.loomcom.symon.benchmarks;
+
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.FunctionalTestProgram;
+import com.loomcom.symon.HeadlessRunner;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs Klaus Dormann's functional tests from start to finish, failing if
+ * a test does not trap at its success address. This must be run from the
+ * project directory, where the samples live.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FunctionalTestBenchmark {
+
+    @Param
+    public FunctionalTestProgram program;
+
+    @Param
+    public Cpu.Core core;
+
+    private HeadlessRunner runner;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws Exception {
+        runner = program.prepare(core);
+    }
+
+    @Benchmark
+    public long run() throws Exception {
+        runner.run();
+        int pc = runner.getMachine().getCpu().getProgramCounter();
+        if (pc != program.getSuccessAddress()) {
+            throw new IllegalStateException(program + " failed: " + runner.getSummary("TRAP"));
+        }
+        return runner.getCycleCount();
+    }
+}
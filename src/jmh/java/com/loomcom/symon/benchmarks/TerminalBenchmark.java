@@ -0,0 +1,42 @@
+package com.loomcom.symon.benchmarks;
+
+import com.loomcom.symon.jterminal.vt100.Vt100TerminalModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Vt100TerminalModel.print() on a large block of console output,
+ * such as a BASIC program listing with some cursor movement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TerminalBenchmark {
+
+    private Vt100TerminalModel model;
+    private String text;
+
+    @Setup
+    public void setUp() {
+        model = new Vt100TerminalModel(80, 25);
+
+        StringBuilder sb = new StringBuilder();
+        for (int line = 10; line <= 20000; line += 10) {
+            sb.append(line).append(" PRINT \"THE QUICK BROWN FOX JUMPS OVER THE LAZY DOG\";I\r\n");
+            if (line % 1000 == 0) {
+                sb.append("\u001b[H\u001b[2J");
+            }
+        }
+        text = sb.toString();
+    }
+
+    @Benchmark
+    public Vt100TerminalModel print() {
+        model.print(text);
+        return model;
+    }
+}
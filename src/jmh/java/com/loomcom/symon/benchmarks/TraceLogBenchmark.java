@@ -0,0 +1,44 @@
+package com.loomcom.symon.benchmarks;
+
+import com.loomcom.symon.CpuState;
+import com.loomcom.symon.util.TraceBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of appending a CPU state to the trace log, which the
+ * simulator does after every instruction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraceLogBenchmark {
+
+    // Same length as the trace log window keeps
+    private static final int TRACE_LENGTH = 50000;
+
+    private TraceBuffer traceBuffer;
+    private CpuState state;
+
+    @Setup
+    public void setUp() {
+        traceBuffer = new TraceBuffer(TRACE_LENGTH);
+        state = new CpuState();
+        state.ir = 0xad;
+        state.args[0] = 0x00;
+        state.args[1] = 0x10;
+        state.instSize = 3;
+    }
+
+    @Benchmark
+    public void append() {
+        state.lastPc = state.pc;
+        state.pc = (state.pc + 3) & 0xffff;
+        state.stepCounter++;
+        traceBuffer.append(state);
+    }
+}
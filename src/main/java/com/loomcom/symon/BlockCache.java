@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A cache of predecoded basic blocks for the block execution core.
+ * <p>
+ * A block is a straight run of instructions starting at a given address
+ * and ending with the first instruction that may transfer control: a
+ * branch, jump, call, return, BRK, or an opcode that traps. Each
+ * instruction is stored with its operands, its pre-resolved dispatch
+ * table handler and its base cycle count, so running a cached block needs
+ * no opcode fetch, size lookup or operand reads.
+ * <p>
+ * Only code in pages the {@link Bus} maps directly to plain memory is
+ * cached, so decoding never touches an I/O device. Every block is
+ * registered with the pages it covers, and the bus reports writes to
+ * those pages so that any block containing the written address is
+ * dropped. Self-modifying code therefore sees its own writes.
+ */
+final class BlockCache {
+
+    /* Longest block, in instructions */
+    static final int MAX_BLOCK_LENGTH = 64;
+
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGES = 0x10000 >>> PAGE_SHIFT;
+
+    /**
+     * One predecoded basic block.
+     */
+    static final class Block {
+        /* Address of the first instruction, and the address just past the last */
+        final int start;
+        final int end;
+        final int length;
+
+        /* Per-instruction decode, indexed by position in the block */
+        final int[] pcs;
+        final int[] opcodes;
+        final int[] sizes;
+        final int[] lo;
+        final int[] hi;
+        final int[] clocks;
+        final DispatchTable.Handler[] handlers;
+
+        /* Sum of the base cycle counts, without branch or page penalties */
+        final int cycles;
+
+        /* Cleared when the block is invalidated by a write */
+        boolean valid = true;
+
+        /* Times the JIT core has entered the block, and its compiled code */
+        int entries;
+        Recompiler.CompiledCode code;
+
+        Block(int start, int end, int length, int[] pcs, int[] opcodes, int[] sizes,
+              int[] lo, int[] hi, int[] clocks, DispatchTable.Handler[] handlers) {
+            this.start = start;
+            this.end = end;
+            this.length = length;
+            this.pcs = pcs;
+            this.opcodes = opcodes;
+            this.sizes = sizes;
+            this.lo = lo;
+            this.hi = hi;
+            this.clocks = clocks;
+            this.handlers = handlers;
+
+            int total = 0;
+            for (int i = 0; i < length; i++) {
+                total += clocks[i];
+            }
+            this.cycles = total;
+        }
+
+        /**
+         * @return true if the given address lies within the block's bytes.
+         */
+        boolean covers(int address) {
+            return address >= start && address < end;
+        }
+    }
+
+    private final Bus bus;
+    private final DispatchTable.Handler[] handlers;
+    private final int[] instructionClocks;
+
+    private final Block[] blocks = new Block[0x10000];
+
+    /* Blocks covering each page. A page is flagged while it has any. */
+    private final List<Block>[] pageBlocks;
+    final boolean[] codePages = new boolean[PAGES];
+
+    /* Decoding space, copied to size once a block is complete */
+    private final int[] scratchPcs = new int[MAX_BLOCK_LENGTH];
+    private final int[] scratchOpcodes = new int[MAX_BLOCK_LENGTH];
+    private final int[] scratchSizes = new int[MAX_BLOCK_LENGTH];
+    private final int[] scratchLo = new int[MAX_BLOCK_LENGTH];
+    private final int[] scratchHi = new int[MAX_BLOCK_LENGTH];
+    private final int[] scratchClocks = new int[MAX_BLOCK_LENGTH];
+    private final DispatchTable.Handler[] scratchHandlers = new DispatchTable.Handler[MAX_BLOCK_LENGTH];
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BlockCache(Bus bus, DispatchTable.Handler[] handlers, int[] instructionClocks) {
+        this.bus = bus;
+        this.handlers = handlers;
+        this.instructionClocks = instructionClocks;
+        this.pageBlocks = new List[PAGES];
+    }
+
+    /**
+     * Return the block starting at the given address, decoding it on first
+     * use.
+     *
+     * @return The block, or null if the code at the address is not in
+     *         plain memory and cannot be cached.
+     */
+    Block lookup(int address) throws MemoryAccessException {
+        Block block = blocks[address];
+        if (block == null) {
+            block = decode(address);
+            if (block != null) {
+                add(block);
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Drop every block that contains the given address. Called by the bus
+     * on writes to a flagged page.
+     */
+    void invalidate(int address) {
+        int page = address >>> PAGE_SHIFT;
+        List<Block> list = pageBlocks[page];
+        if (list == null) {
+            return;
+        }
+
+        Iterator<Block> it = list.iterator();
+        while (it.hasNext()) {
+            Block block = it.next();
+            if (!block.valid) {
+                // Already dropped through another page it covers
+                it.remove();
+            } else if (block.covers(address)) {
+                block.valid = false;
+                blocks[block.start] = null;
+                it.remove();
+            }
+        }
+
+        if (list.isEmpty()) {
+            codePages[page] = false;
+        }
+    }
+
+    /**
+     * Drop every block that covers any part of the given page. Called by
+     * the bus when a page changes other than by a write through it.
+     */
+    void invalidatePage(int page) {
+        List<Block> list = pageBlocks[page];
+        if (list != null) {
+            for (Block block : list) {
+                if (block.valid) {
+                    block.valid = false;
+                    blocks[block.start] = null;
+                }
+            }
+            list.clear();
+        }
+        codePages[page] = false;
+    }
+
+    /**
+     * Drop every block.
+     */
+    void clear() {
+        for (int page = 0; page < PAGES; page++) {
+            List<Block> list = pageBlocks[page];
+            if (list != null) {
+                for (Block block : list) {
+                    block.valid = false;
+                    blocks[block.start] = null;
+                }
+                list.clear();
+            }
+            codePages[page] = false;
+        }
+    }
+
+    /**
+     * @return The number of cached blocks.
+     */
+    int size() {
+        int count = 0;
+        for (Block block : blocks) {
+            if (block != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void add(Block block) {
+        blocks[block.start] = block;
+        for (int page = block.start >>> PAGE_SHIFT; page <= (block.end - 1) >>> PAGE_SHIFT; page++) {
+            if (pageBlocks[page] == null) {
+                pageBlocks[page] = new ArrayList<Block>();
+            }
+            pageBlocks[page].add(block);
+            codePages[page] = true;
+        }
+    }
+
+    private Block decode(int start) throws MemoryAccessException {
+        int[] pcs = scratchPcs;
+        int[] opcodes = scratchOpcodes;
+        int[] sizes = scratchSizes;
+        int[] lo = scratchLo;
+        int[] hi = scratchHi;
+        int[] clocks = scratchClocks;
+        DispatchTable.Handler[] decoded = scratchHandlers;
+
+        int address = start;
+        int n = 0;
+        while (n < MAX_BLOCK_LENGTH && bus.isPlainMemory(address)) {
+            int opcode = bus.read(address, false);
+            int size = InstructionTable.instructionSizes[opcode];
+            int last = address + size - 1;
+            if (last > 0xffff || !bus.isPlainMemory(last)) {
+                break;
+            }
+
+            pcs[n] = address;
+            opcodes[n] = opcode;
+            sizes[n] = size;
+            lo[n] = size > 1 ? bus.read(address + 1, false) : 0;
+            hi[n] = size > 2 ? bus.read(address + 2, false) : 0;
+            clocks[n] = instructionClocks[opcode];
+            decoded[n] = handlers[opcode];
+            address += size;
+            n++;
+
+            if (endsBlock(opcode)) {
+                break;
+            }
+        }
+
+        if (n == 0) {
+            return null;
+        }
+        return new Block(start, address, n, Arrays.copyOf(pcs, n), Arrays.copyOf(opcodes, n),
+                         Arrays.copyOf(sizes, n), Arrays.copyOf(lo, n), Arrays.copyOf(hi, n),
+                         Arrays.copyOf(clocks, n), Arrays.copyOf(decoded, n));
+    }
+
+    private boolean endsBlock(int opcode) {
+        switch (InstructionTable.instructionModes[opcode]) {
+            case REL:
+            case ZPR:
+                return true;
+            default:
+                break;
+        }
+        switch (opcode) {
+            case 0x00: // BRK
+            case 0x20: // JSR
+            case 0x40: // RTI
+            case 0x4c: // JMP
+            case 0x60: // RTS
+            case 0x6c: // JMP (ind)
+            case 0x7c: // JMP (ind,X)
+            case 0xcb: // WAI
+            case 0xdb: // STP
+                return true;
+            default:
+                return handlers[opcode] == DispatchTable.TRAP;
+        }
+    }
+}
@@ -4,81 +4,311 @@ import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.util.Utils;
 
 import javax.swing.table.AbstractTableModel;
-import java.util.ArrayList;
-import java.util.TreeSet;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Breakpoints extends AbstractTableModel {
 
 	private static final long serialVersionUID = 330673324190303190L;
-	private TreeSet<Integer> breakpoints;
+
+    /* A condition clause, such as "A == $10" or "HITS >= 3" */
+    private static final Pattern CLAUSE =
+            Pattern.compile("\\s*(A|X|Y|SP|S|P|HITS)\\s*(==|=|!=|<=|>=|<|>)\\s*(\\S+)\\s*");
+
+    /**
+     * An extra test for a breakpoint, made only when the program counter
+     * reaches its address.
+     */
+    public interface Condition {
+        /**
+         * @param state The CPU state, about to execute the instruction at the breakpoint
+         * @param hits  The number of times the breakpoint has been reached, including this one
+         * @return True if the simulator should stop.
+         */
+        boolean test(CpuState state, long hits);
+    }
+
+    /* The value a condition clause compares */
+    private interface Operand {
+        long get(CpuState state, long hits);
+    }
+
+    private static final class Breakpoint {
+        final int address;
+        final String conditionText;
+        final Condition condition;
+        long hits;
+
+        Breakpoint(int address, String conditionText, Condition condition) {
+            this.address = address;
+            this.conditionText = conditionText;
+            this.condition = condition;
+        }
+    }
+
+    /* One flag per address, tested before every instruction */
+    private final boolean[] addresses = new boolean[0x10000];
+
+    /* The breakpoints in address order, one per table row. Replaced, never modified. */
+    private volatile Breakpoint[] rows = new Breakpoint[0];
+
     private Simulator simulator;
 
     public Breakpoints(Simulator simulator) {
-        this.breakpoints = new TreeSet<>();
         this.simulator = simulator;
     }
 
     public boolean contains(int address) {
-        return this.breakpoints.contains(address);
+        return addresses[address & 0xffff];
+    }
+
+    /**
+     * Check whether the CPU has reached a breakpoint, and if it has a
+     * condition, whether the condition holds. Only addresses with a
+     * breakpoint cost more than an array lookup.
+     *
+     * @return True if the simulator should stop before the next instruction.
+     */
+    public boolean isHit(CpuState state) {
+        if (!addresses[state.pc]) {
+            return false;
+        }
+        Breakpoint b = find(rows, state.pc);
+        if (b == null) {
+            // Removed since the flag was read
+            return false;
+        }
+        b.hits++;
+        return b.condition == null || b.condition.test(state, b.hits);
+    }
+
+    /**
+     * Like {@link #isHit(CpuState)}, but without counting a hit, for
+     * searching back through history. A HITS condition sees the count
+     * as it stands.
+     */
+    public boolean wouldStop(CpuState state) {
+        if (!addresses[state.pc]) {
+            return false;
+        }
+        Breakpoint b = find(rows, state.pc);
+        return b != null && (b.condition == null || b.condition.test(state, b.hits));
     }
 
     public void addBreakpoint(int address) {
-        this.breakpoints .add(address);
-        fireTableDataChanged();
+        addBreakpoint(address, null);
     }
 
-    public void removeBreakpoint(int address) {
-        this.breakpoints.remove(address);
+    /**
+     * Add a breakpoint, replacing any already at the address.
+     *
+     * @param address   The address
+     * @param condition A condition, as accepted by {@link #parseCondition(String)},
+     *                  or null or empty to always stop.
+     * @throws IllegalArgumentException if the condition can't be parsed.
+     */
+    public synchronized void addBreakpoint(int address, String condition) {
+        address &= 0xffff;
+        String text = condition == null ? "" : condition.trim();
+        Breakpoint b = new Breakpoint(address, text, text.isEmpty() ? null : parseCondition(text));
+
+        Breakpoint[] current = rows;
+        int index = indexOf(current, address);
+        Breakpoint[] updated;
+        if (index >= 0) {
+            updated = current.clone();
+            updated[index] = b;
+        } else {
+            int insertAt = -(index + 1);
+            updated = new Breakpoint[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, insertAt);
+            updated[insertAt] = b;
+            System.arraycopy(current, insertAt, updated, insertAt + 1, current.length - insertAt);
+        }
+        rows = updated;
+        addresses[address] = true;
         fireTableDataChanged();
     }
 
-    public void removeBreakpointAtIndex(int index) {
-        if (index < 0) {
+    public synchronized void removeBreakpoint(int address) {
+        int index = indexOf(rows, address & 0xffff);
+        if (index >= 0) {
+            removeRow(index);
+        }
+    }
+
+    public synchronized void removeBreakpointAtIndex(int index) {
+        if (index < 0 || index >= rows.length) {
             return;
         }
+        removeRow(index);
+    }
 
-        ArrayList<Integer> values = new ArrayList<>(breakpoints);
-        int value = values.get(index);
-        this.breakpoints.remove(value);
+    private void removeRow(int index) {
+        Breakpoint[] current = rows;
+        addresses[current[index].address] = false;
+        Breakpoint[] updated = new Breakpoint[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        rows = updated;
         fireTableDataChanged();
     }
 
+    /**
+     * Start counting hits afresh for every breakpoint.
+     */
+    public void resetHitCounts() {
+        for (Breakpoint b : rows) {
+            b.hits = 0;
+        }
+    }
+
     public void refresh() {
         fireTableDataChanged();
     }
 
+    /**
+     * Compile a breakpoint condition. A condition is one or more clauses
+     * joined by <code>&amp;&amp;</code>, each comparing a register (A, X,
+     * Y, SP or P) or the breakpoint's hit count (HITS) with a number, for
+     * example <code>A == $0D &amp;&amp; HITS &gt;= 3</code>. Numbers are
+     * decimal, or hexadecimal with a leading '$' or '0x'.
+     *
+     * @throws IllegalArgumentException if the condition can't be parsed.
+     */
+    public static Condition parseCondition(String text) {
+        Condition result = null;
+        for (String clause : text.split("&&")) {
+            final Condition c = parseClause(clause);
+            if (result == null) {
+                result = c;
+            } else {
+                final Condition previous = result;
+                result = (s, hits) -> previous.test(s, hits) && c.test(s, hits);
+            }
+        }
+        return result;
+    }
+
+    private static Condition parseClause(String clause) {
+        Matcher m = CLAUSE.matcher(clause.toUpperCase(Locale.ENGLISH));
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Can't parse breakpoint condition '" + clause.trim() + "'");
+        }
+
+        final Operand operand;
+        switch (m.group(1)) {
+            case "A":
+                operand = (s, hits) -> s.a;
+                break;
+            case "X":
+                operand = (s, hits) -> s.x;
+                break;
+            case "Y":
+                operand = (s, hits) -> s.y;
+                break;
+            case "S":
+            case "SP":
+                operand = (s, hits) -> s.sp;
+                break;
+            case "P":
+                operand = (s, hits) -> s.getStatusFlag();
+                break;
+            default:
+                operand = (s, hits) -> hits;
+                break;
+        }
+
+        final long value;
+        try {
+            value = HeadlessRunner.parseNumber(m.group(3));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Can't parse number '" + m.group(3) + "'", ex);
+        }
+
+        switch (m.group(2)) {
+            case "!=":
+                return (s, hits) -> operand.get(s, hits) != value;
+            case "<":
+                return (s, hits) -> operand.get(s, hits) < value;
+            case "<=":
+                return (s, hits) -> operand.get(s, hits) <= value;
+            case ">":
+                return (s, hits) -> operand.get(s, hits) > value;
+            case ">=":
+                return (s, hits) -> operand.get(s, hits) >= value;
+            default:
+                return (s, hits) -> operand.get(s, hits) == value;
+        }
+    }
+
+    private static Breakpoint find(Breakpoint[] rows, int address) {
+        int index = indexOf(rows, address);
+        return index >= 0 ? rows[index] : null;
+    }
+
+    /*
+     * Binary search for the row with the given address.
+     *
+     * @return The row's index, or (-(insertion point) - 1) if there is none.
+     */
+    private static int indexOf(Breakpoint[] rows, int address) {
+        int low = 0;
+        int high = rows.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midAddress = rows[mid].address;
+            if (midAddress < address) {
+                low = mid + 1;
+            } else if (midAddress > address) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
     @Override
     public String getColumnName(int index) {
         if (index == 0) {
             return "Address";
-        } else {
+        } else if (index == 1) {
             return "Inst";
+        } else {
+            return "Condition";
         }
     }
 
     @Override
     public int getRowCount() {
-        return breakpoints.size();
+        return rows.length;
     }
 
     @Override
     public int getColumnCount() {
-        return 2;
+        return 3;
     }
 
     @Override
     public Object getValueAt(int rowIndex, int columnIndex) {
-        ArrayList<Integer> values = new ArrayList<>(breakpoints);
+        Breakpoint[] current = rows;
+        if (rowIndex < 0 || rowIndex >= current.length) {
+            return null;
+        }
+        Breakpoint b = current[rowIndex];
 
         if (columnIndex == 0) {
-            return "$" + Utils.wordToHex(values.get(rowIndex));
+            return "$" + Utils.wordToHex(b.address);
         } else if (columnIndex == 1) {
-            int address = values.get(rowIndex);
             try {
-                return simulator.disassembleOpAtAddress(address);
+                return simulator.disassembleOpAtAddress(b.address);
             } catch (MemoryAccessException ex) {
                 return "???";
             }
+        } else if (columnIndex == 2) {
+            return b.conditionText;
         } else {
             return null;
         }
@@ -24,6 +24,7 @@
 package com.loomcom.symon;
 
 import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
@@ -57,6 +58,37 @@ public class Bus {
     // an array for quick lookup of adresses, brute-force style
     private Device[] deviceAddressArray;
 
+    // Page table for direct access to plain memory, one entry per 256 byte
+    // page. A page maps straight to one of a Memory's pages only if the
+    // whole page belongs to that Memory; other pages, and writes to ROM or
+    // to pages shared copy-on-write, go through the device.
+    private static final int PAGE_SHIFT = Memory.PAGE_SHIFT;
+    private static final int PAGE_SIZE  = Memory.PAGE_SIZE;
+    private static final int PAGE_MASK  = PAGE_SIZE - 1;
+
+    private byte[][] readPages;
+    private byte[][] writePages;
+    // The Memory each mapped page belongs to
+    private Memory[] pageMemories;
+
+    // Predecoded code of the block execution core, told about writes to
+    // the pages it has cached code from
+    private BlockCache codeCache;
+
+    // Told the old value of every byte of memory written, while recording
+    private History history;
+
+    // While the CPU checks whether a loop is idle, the write page table is
+    // swapped for an empty one so that every write takes the slow path,
+    // where it is noted if it changes anything. See watchForChanges().
+    private byte[][] watchedWritePages;
+    // Also set by deviceChanged() from the UI and console threads
+    private volatile boolean watchedChange;
+
+    // Told about every access, while profiling. No page is mapped then, so
+    // that every access takes the slow path and is counted there.
+    private Profiler profiler;
+
 
     public Bus(int size) {
         this(0, size - 1);
@@ -88,6 +120,78 @@ public class Bus {
             }
         }
 
+        buildPageTable();
+    }
+
+    private void buildPageTable() {
+        if (codeCache != null) {
+            codeCache.clear();
+        }
+        watchedWritePages = null;
+        watchedChange = true;
+
+        int pages = (this.endAddress >>> PAGE_SHIFT) + 1;
+        readPages = new byte[pages][];
+        writePages = new byte[pages][];
+        pageMemories = new Memory[pages];
+
+        for (int page = 0; page < pages; page++) {
+            int first = page << PAGE_SHIFT;
+            int last = first + PAGE_SIZE - 1;
+            if (first < this.startAddress || last > this.endAddress) {
+                continue;
+            }
+
+            Device device = deviceAddressArray[first - this.startAddress];
+            if (!(device instanceof Memory) || (device.startAddress() & PAGE_MASK) != 0) {
+                continue;
+            }
+
+            boolean wholePage = true;
+            for (int address = first + 1; address <= last; ++address) {
+                if (deviceAddressArray[address - this.startAddress] != device) {
+                    wholePage = false;
+                    break;
+                }
+            }
+
+            if (wholePage) {
+                pageMemories[page] = (Memory) device;
+                mapPage(page);
+            }
+        }
+    }
+
+    private void mapPage(int page) {
+        if (profiler != null) {
+            return;
+        }
+        Memory memory = pageMemories[page];
+        int index = page - (memory.startAddress() >>> PAGE_SHIFT);
+        byte[] backing = memory.getPage(index);
+        readPages[page] = backing;
+
+        byte[][] pages = watchedWritePages != null ? watchedWritePages : writePages;
+        pages[page] = (memory.isReadOnly() || memory.isPageShared(index)) ? null : backing;
+    }
+
+    /**
+     * Called by a Memory on the bus when it replaces one of its pages,
+     * starts or stops sharing it, or writes it other than through the bus,
+     * so that the page table and any code decoded from it can follow.
+     *
+     * @param memory The memory
+     * @param index  The page, counting from the start of the memory
+     */
+    public void pageChanged(Memory memory, int index) {
+        int page = (memory.startAddress() >>> PAGE_SHIFT) + index;
+        if (pageMemories != null && page < pageMemories.length && pageMemories[page] == memory) {
+            mapPage(page);
+        }
+        BlockCache cache = codeCache;
+        if (cache != null && cache.codePages[page]) {
+            cache.invalidatePage(page);
+        }
     }
 
     /**
@@ -168,11 +272,91 @@ public class Bus {
         return true;
     }
 
+    /**
+     * @return true if the page holding the address is mapped straight to
+     * plain memory, so reading it has no side effects.
+     */
+    boolean isPlainMemory(int address) {
+        if (pageMemories == null) {
+            return false;
+        }
+        // Not readPages, which are left empty while profiling
+        int page = address >>> PAGE_SHIFT;
+        Memory memory = pageMemories[page];
+        return memory != null && memory.getPage(page - (memory.startAddress() >>> PAGE_SHIFT)) != null;
+    }
+
+    void setCodeCache(BlockCache codeCache) {
+        this.codeCache = codeCache;
+    }
+
+    void setHistory(History history) {
+        this.history = history;
+    }
+
+    void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        if (deviceAddressArray != null) {
+            buildPageTable();
+        }
+    }
+
+    /**
+     * Start noting whether the CPU does anything observable: a write that
+     * changes memory, any write to a device, or a read of a device
+     * register that isn't stable. Calling this again starts afresh.
+     */
+    void watchForChanges() {
+        if (watchedWritePages == null) {
+            watchedWritePages = writePages;
+            writePages = new byte[watchedWritePages.length][];
+        }
+        watchedChange = false;
+    }
+
+    /**
+     * @return true if something observable has happened since
+     * watchForChanges(), or the bus isn't being watched.
+     */
+    boolean hasChanged() {
+        return watchedChange || watchedWritePages == null;
+    }
+
+    /**
+     * Note that a device has changed other than through a CPU access, for
+     * example when an event fires or the host gives it input, so that a
+     * loop that read it before the change is not taken for idle.
+     */
+    public void deviceChanged() {
+        watchedChange = true;
+    }
+
+    void stopWatching() {
+        if (watchedWritePages != null) {
+            writePages = watchedWritePages;
+            watchedWritePages = null;
+        }
+    }
+
     public int read(int address, boolean cpuAccess) throws MemoryAccessException {
+        int page = address >>> PAGE_SHIFT;
+        byte[] memory = readPages[page];
+        if (memory != null) {
+            return memory[address & PAGE_MASK] & 0xff;
+        }
+
+        Profiler p = profiler;
+        if (p != null && cpuAccess) {
+            p.countRead(address);
+        }
+
         Device d = deviceAddressArray[address - this.startAddress];
         if (d != null) {
             MemoryRange range = d.getMemoryRange();
             int devAddr = address - range.startAddress();
+            if (cpuAccess && watchedWritePages != null && !d.isStableRead(devAddr)) {
+                watchedChange = true;
+            }
             return d.read(devAddr, cpuAccess) & 0xff;
         }
 
@@ -180,17 +364,80 @@ public class Bus {
     }
 
     public void write(int address, int value) throws MemoryAccessException {
+        int page = address >>> PAGE_SHIFT;
+        byte[] memory = writePages[page];
+        if (memory != null) {
+            int index = address & PAGE_MASK;
+            History h = history;
+            if (h != null) {
+                h.recordWrite(address, memory[index]);
+            }
+            memory[index] = (byte) value;
+            BlockCache cache = codeCache;
+            if (cache != null && cache.codePages[page]) {
+                cache.invalidate(address);
+            }
+            return;
+        }
+
+        Profiler p = profiler;
+        if (p != null) {
+            p.countWrite(address);
+        }
+
+        if (watchedWritePages != null && watchedWrite(page, address, value)) {
+            return;
+        }
+
         Device d = deviceAddressArray[address - this.startAddress];
         if (d != null) {
             MemoryRange range = d.getMemoryRange();
             int devAddr = address - range.startAddress();
+            History h = history;
+            if (h != null && d instanceof Memory && !((Memory) d).isReadOnly()) {
+                h.recordWrite(address, d.read(devAddr, false));
+            }
             d.write(devAddr, value);
+            // Such as the first write to a page shared copy-on-write
+            BlockCache cache = codeCache;
+            if (cache != null && cache.codePages[page]) {
+                cache.invalidate(address);
+            }
             return;
         }
 
         throw new MemoryAccessException("Bus write failed. No device at address " + String.format("$%04X", address));
     }
 
+    /*
+     * Write to plain memory while the bus is watched, noting whether the
+     * value changes.
+     *
+     * @return false if the address isn't plain memory, and the write must
+     *         go to the device.
+     */
+    private boolean watchedWrite(int page, int address, int value) {
+        byte[] memory = watchedWritePages[page];
+        if (memory == null) {
+            watchedChange = true;
+            return false;
+        }
+        int index = address & PAGE_MASK;
+        if (memory[index] != (byte) value) {
+            watchedChange = true;
+            History h = history;
+            if (h != null) {
+                h.recordWrite(address, memory[index]);
+            }
+            memory[index] = (byte) value;
+            BlockCache cache = codeCache;
+            if (cache != null && cache.codePages[page]) {
+                cache.invalidate(address);
+            }
+        }
+        return true;
+    }
+
     public void assertIrq() {
         if (cpu != null) {
             cpu.assertIrq();
@@ -24,12 +24,12 @@
 package com.loomcom.symon;
 
 import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.exceptions.SnapshotException;
 import com.loomcom.symon.util.Utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,22 +66,133 @@ public class Cpu implements InstructionTable {
 
     public static final long DEFAULT_CLOCK_PERIOD_IN_NS = 1000;
 
+    /**
+     * The available instruction execution cores. SWITCH decodes every
+     * instruction through the addressing mode and opcode switches in
+     * {@link #executeSwitch()}, TABLE dispatches through a table of
+     * handlers pre-built for the current {@link CpuBehavior}. BLOCK uses
+     * the same handlers, but runs code in plain memory from a cache of
+     * predecoded basic blocks instead of fetching it from the bus. JIT
+     * works like BLOCK, but compiles hot blocks to JVM bytecode and runs
+     * each of them in a single {@link #step()}.
+     */
+    public enum Core {
+        SWITCH,
+        TABLE,
+        BLOCK,
+        JIT
+    }
+
+    // Cycles taken to enter an IRQ or NMI handler
+    public static final int INTERRUPT_CYCLES = 7;
+
+    /* Extra cycle rules, see extraCycles() */
+    private static final int PENALTY_ABSOLUTE_X = 1;
+    private static final int PENALTY_ABSOLUTE_Y = 2;
+    private static final int PENALTY_INDIRECT_Y = 3;
+    private static final int PENALTY_INDEX_MASK = 3;
+    private static final int PENALTY_DECIMAL    = 4;
+
+    // System property naming the default execution core, e.g. -Dsymon.core=table
+    public static final String CORE_PROPERTY = "symon.core";
+
+    // Length of a throttling slice. Instructions run at full speed until a
+    // slice worth of simulated time has passed, then the CPU sleeps until the
+    // wall clock catches up.
+    public static final long THROTTLE_SLICE_NS = 1000000;
+
+    // If the simulation falls further behind the wall clock than this (for
+    // example after being paused), give up on catching up and start afresh.
+    private static final long MAX_THROTTLE_LAG_NS = 20000000;
+
+    // Longest loop, in instructions, that idle loop detection will follow
+    static final int MAX_IDLE_LOOP_STEPS = 64;
+
+    // Bytes written by saveState()
+    static final int SAVED_STATE_SIZE = 1 + 11 * 4 + 6 + 2 * 8;
+
     /* Simulated clock speed (default is 1MHz) */
     private long clockPeriodInNs = DEFAULT_CLOCK_PERIOD_IN_NS;
 
+    /* If true, run as fast as possible without sampling the wall clock */
+    private boolean unthrottled = false;
+
     /* Simulated behavior */
     private CpuBehavior behavior;
 
+    /* Base cycle counts, extra cycle rules and decimal N/Z values for the current behavior */
+    private int[] instructionClocks;
+    private byte[] penalties;
+    private int[] decimalNz;
+
+    /* 1 if the last (Zero Page),Y address crossed a page, else 0 */
+    private int indirectYCarry;
+
+    /* Device events, driven by the cycle counter */
+    private final Scheduler scheduler = new Scheduler();
+
+    /* Execution core */
+    private Core core;
+
+    /* Opcode handlers for the table core, or null when using the switch core */
+    private DispatchTable.Handler[] dispatchTable;
+
+    /* Predecoded blocks for the block core, or null when using another core */
+    private BlockCache blockCache;
+    /* The block being run, and the position of the next instruction in it */
+    private BlockCache.Block block;
+    private int blockIndex;
+
+    /* Compiles hot blocks for the JIT core, or null when using another core */
+    private Recompiler recompiler;
+    /* If true, the JIT core runs one instruction per step, like the others */
+    private boolean singleStepping = false;
+    /* Flags, by address, of where the JIT core must end a step, or null */
+    private boolean[] stopAddresses;
+    /* Most instructions a compiled block may run in one step, see step(int) */
+    private int maxBlockSteps = Integer.MAX_VALUE;
+    /* Instructions run by the last compiled block */
+    private int lastBlockSteps;
+
     /* The Bus */
-    private Bus bus;
+    Bus bus;
 
     /* The CPU state */
-    private final CpuState state = new CpuState();
+    final CpuState state = new CpuState();
 
-    /* start time of op execution, needed for speed simulation */
-    private long opBeginTime;
-    
-    private Map<String, String> debugMap = new HashMap<String, String>();
+    /* Debug symbols, resolved lazily by address */
+    private final SymbolTable symbolTable = new SymbolTable();
+
+    /* Counts where time is spent, or null when not profiling */
+    private Profiler profiler;
+
+    /* Wall clock time at the start of the current throttling slice */
+    private long sliceStartTime;
+
+    /* Cycles executed so far in the current throttling slice */
+    private long sliceCycles;
+
+    /*
+     * Idle loop detection, see checkIdleLoop(). The loop is identified by
+     * a backward jump, from idleLoopFrom to idleLoopTo, and the registers
+     * and counters are recorded each time it is taken.
+     */
+    private int idleLoopFrom = -1;
+    private int idleLoopTo;
+    private long idleLoopSteps;
+    private long idleLoopCycles;
+    private int idleA, idleX, idleY, idleSp, idleStatus;
+    /* True while the bus watches an iteration of the loop */
+    private boolean idleProbe;
+    /* True if the last step completed an iteration of an idle loop */
+    private boolean idle;
+    private long idleIterationCycles;
+    private long idleIterationSteps;
+    /* If false, idle loops are detected but never skipped */
+    private boolean idleSkipping = true;
+
+    /* The thread parked in awaitInterrupt(), if any */
+    private volatile Thread sleeper;
 
     /**
      * Construct a new CPU.
@@ -91,14 +202,38 @@ public class Cpu implements InstructionTable {
     }
 
     public Cpu(CpuBehavior behavior) {
-        this.behavior = behavior;
+        this.state.symbols = symbolTable;
+        this.core = defaultCore();
+        setBehavior(behavior);
+    }
+
+    /**
+     * @return The execution core named by the symon.core system property,
+     *         or the switch core if the property is unset or unknown.
+     */
+    public static Core defaultCore() {
+        String name = System.getProperty(CORE_PROPERTY);
+        if (name == null) {
+            return Core.SWITCH;
+        }
+        try {
+            return Core.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            logger.warn("Unknown execution core '{}', using {}.", name, Core.SWITCH);
+            return Core.SWITCH;
+        }
     }
 
     /**
      * Set the bus reference for this CPU.
      */
     public void setBus(Bus bus) {
+        forgetIdleLoop();
         this.bus = bus;
+        if (bus != null && profiler != null) {
+            bus.setProfiler(profiler);
+        }
+        attachBlockCache();
     }
 
     /**
@@ -110,12 +245,41 @@ public class Cpu implements InstructionTable {
 
     public void setBehavior(CpuBehavior behavior) {
         this.behavior = behavior;
+        this.instructionClocks = behavior.isNmos() ? instructionClocksNmos : instructionClocksCmos;
+        this.penalties = buildPenalties(behavior);
+        this.decimalNz = DecimalTables.nzTable(behavior);
+        setCore(core);
     }
 
     public CpuBehavior getBehavior() {
         return behavior;
     }
 
+    public void setCore(Core core) {
+        this.core = core;
+        this.dispatchTable = (core == Core.SWITCH) ? null : DispatchTable.forBehavior(behavior);
+        attachBlockCache();
+    }
+
+    public Core getCore() {
+        return core;
+    }
+
+    /*
+     * Give the block core a fresh cache, built for the current behavior,
+     * and point the bus at it so that writes to cached code invalidate it.
+     */
+    private void attachBlockCache() {
+        boolean blocks = (core == Core.BLOCK || core == Core.JIT || profiler != null) && bus != null;
+        DispatchTable.Handler[] handlers = (dispatchTable != null) ? dispatchTable : DispatchTable.forBehavior(behavior);
+        blockCache = blocks ? new BlockCache(bus, handlers, instructionClocks) : null;
+        recompiler = (blocks && core == Core.JIT && profiler == null) ? new Recompiler(penalties) : null;
+        block = null;
+        if (bus != null) {
+            bus.setCodeCache(blockCache);
+        }
+    }
+
     /**
      * Reset the CPU to known initial values.
      */
@@ -133,56 +297,165 @@ public class Cpu implements InstructionTable {
 
         // Clear status register bits.
         state.carryFlag = false;
-        state.zeroFlag = false;
         state.irqDisableFlag = false;
         state.decimalModeFlag = false;
         state.breakFlag = false;
         state.overflowFlag = false;
-        state.negativeFlag = false;
+        state.nz = CpuState.NZ_CLEAR;
 
         state.irqAsserted = false;
 
+        // Restart the clock after WAI or STP.
+        state.waiting = false;
+        state.stopped = false;
+
         // Clear illegal opcode trap.
         state.opTrap = false;
 
-        // Reset step counter
+        // Reset step and cycle counters, keeping any pending device events
+        // the same distance into the future.
+        scheduler.rebase(-state.cycleCounter);
         state.stepCounter = 0L;
+        state.cycleCounter = 0L;
+        if (profiler != null) {
+            profiler.sync(0L, 0L);
+        }
+
+        // Forget any predecoded code, in case memory was changed behind
+        // the bus's back.
+        if (blockCache != null) {
+            blockCache.clear();
+            block = null;
+        }
 
         // Reset registers.
         state.a = 0;
         state.x = 0;
         state.y = 0;
 
-        peekAhead();
+        forgetIdleLoop();
     }
 
+    /**
+     * Step the given number of times. A compiled block on the JIT core
+     * counts as the instructions it runs, and is only run if they are no
+     * more than the steps left, so that this runs the same instructions on
+     * every core.
+     */
     public void step(int num) throws MemoryAccessException {
-        for (int i = 0; i < num; i++) {
-            step();
+        int left = num;
+        try {
+            while (left > 0) {
+                maxBlockSteps = left;
+                lastBlockSteps = 0;
+                step();
+                left -= Math.max(1, lastBlockSteps);
+            }
+        } finally {
+            maxBlockSteps = Integer.MAX_VALUE;
         }
     }
     
+    /**
+     * @param address The address of the symbol, in hexadecimal
+     * @param symbol  The symbol name
+     */
     public void addDebugSymbol(String address, String symbol) {
-    	debugMap.put(address,  symbol);
+        addDebugSymbol(Integer.parseInt(address, 16), symbol);
     }
-    
+
+    public void addDebugSymbol(int address, String symbol) {
+        symbolTable.put(address, symbol);
+    }
+
     public void clearDebugSymbols() {
-    	debugMap.clear();
+        symbolTable.clear();
+    }
+
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    /**
+     * Start counting where time is spent, or stop if the profiler is null.
+     * While profiling, instructions are fetched from the block core's
+     * cache whichever core is in use, so that only the program's own reads
+     * are counted, and the JIT core doesn't compile blocks, so that every
+     * instruction is counted. Without a profiler nothing is counted.
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        if (profiler != null) {
+            profiler.sync(state.stepCounter, state.cycleCounter);
+        }
+        if (bus != null) {
+            bus.setProfiler(profiler);
+        }
+        attachBlockCache();
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * @param singleStepping If true, each step runs a single instruction
+     *                       even on the JIT core, which otherwise runs a
+     *                       whole compiled block per step. Set this while
+     *                       every instruction needs to be seen, as when
+     *                       debugging or tracing.
+     */
+    public void setSingleStepping(boolean singleStepping) {
+        this.singleStepping = singleStepping;
+    }
+
+    public boolean isSingleStepping() {
+        return singleStepping;
+    }
+
+    /**
+     * Name the addresses, such as breakpoints, at which a step must end.
+     * The JIT core interprets any compiled block that would run through
+     * one of them, so that the next step starts there just as it does on
+     * the other cores. The array is shared rather than copied, so changes
+     * to it apply from the next block.
+     *
+     * @param stopAddresses Flags indexed by address, or null for none.
+     */
+    public void setStopAddresses(boolean[] stopAddresses) {
+        this.stopAddresses = stopAddresses;
+    }
+
+    /**
+     * @param idleSkipping If false, idle loops are run through an
+     *                     iteration at a time instead of being skipped to
+     *                     the next device event, so that every step runs
+     *                     exactly one instruction (or one block on the JIT
+     *                     core).
+     */
+    public void setIdleSkipping(boolean idleSkipping) {
+        this.idleSkipping = idleSkipping;
+    }
+
+    public boolean isIdleSkipping() {
+        return idleSkipping;
     }
 
     /**
      * Performs an individual instruction cycle.
      */
     public void step() throws MemoryAccessException {
-        opBeginTime = System.nanoTime();
+        if ((state.waiting || state.stopped) && !wakeUp()) {
+            Profiler p = profiler;
+            if (p != null) {
+                // Time spent waiting belongs to the WAI or STP
+                p.countInstruction(state.lastPc, state.stepCounter, state.cycleCounter);
+            }
+            return;
+        }
 
         // Store the address from which the IR was read, for debugging
-        //TODO hide this stuff in CpuState
         state.lastPc = state.pc;
-        String lastPcSymbol = debugMap.get(Utils.wordToHex(state.lastPc));
-        if (lastPcSymbol == null)
-        	lastPcSymbol = "";
-        state.lastPcSymbol = lastPcSymbol;
 
         // Check for Interrupts before doing anything else.
         // This will set the PC and jump to the interrupt vector.
@@ -192,25 +465,425 @@ public class Cpu implements InstructionTable {
             handleIrq(state.pc);
         }
 
-        // Fetch memory location for this instruction.
-        state.ir = bus.read(state.pc, true);
-        int irAddressMode = (state.ir >> 2) & 0x07;  // Bits 3-5 of IR:  [ | | |X|X|X| | ]
-        int irOpMode = state.ir & 0x03;              // Bits 6-7 of IR:  [ | | | | | |X|X]
+        if (recompiler != null && !singleStepping && runCompiledBlock()) {
+            return;
+        }
 
-        incrementPC();
+        int pc = state.pc;
+        DispatchTable.Handler handler = null;
+        if (blockCache != null) {
+            handler = fetchFromBlock();
+        }
 
-        clearOpTrap();
+        if (handler == null) {
+            // Fetch memory location for this instruction.
+            state.ir = bus.read(state.pc, true);
 
-        // Decode the instruction and operands
-        state.instSize = Cpu.instructionSizes[state.ir];
-        for (int i = 0; i < state.instSize - 1; i++) {
-            state.args[i] = bus.read(state.pc, true);
-            // Increment PC after reading
             incrementPC();
+
+            clearOpTrap();
+
+            // Decode the instruction and operands
+            state.instSize = Cpu.instructionSizes[state.ir];
+            for (int i = 0; i < state.instSize - 1; i++) {
+                state.args[i] = bus.read(state.pc, true);
+                // Increment PC after reading
+                incrementPC();
+            }
         }
 
         state.stepCounter++;
 
+        if (handler != null) {
+            handler.execute(this, state.args[0], state.args[1]);
+        } else if (dispatchTable != null) {
+            dispatchTable[state.ir].execute(this, state.args[0], state.args[1]);
+        } else {
+            executeSwitch();
+        }
+
+        int clockSteps = instructionClocks[state.ir];
+        int penalty = penalties[state.ir];
+        if (penalty != 0) {
+            clockSteps += extraCycles(penalty, state.args[0]);
+        }
+        state.cycleCounter += clockSteps;
+
+        Profiler p = profiler;
+        if (p != null) {
+            p.countInstruction(pc, state.stepCounter, state.cycleCounter);
+        }
+
+        finishStep(clockSteps);
+    }
+
+    /*
+     * Skip over idle loops, run device events that have come due, and keep
+     * to the clock rate.
+     */
+    private void finishStep(long clockSteps) throws MemoryAccessException {
+        idle = false;
+        if (state.pc <= state.lastPc) {
+            clockSteps += checkIdleLoop();
+        } else if (idleProbe && state.stepCounter - idleLoopSteps > MAX_IDLE_LOOP_STEPS) {
+            stopIdleProbe();
+        }
+
+        // Only call out to devices once their next event is due.
+        if (state.cycleCounter >= scheduler.getNextEventCycle()) {
+            scheduler.runDue(state.cycleCounter);
+            // A device may have changed under the loop, perhaps after the
+            // loop read it, so the next iteration must prove it idle again
+            idle = false;
+            if (bus != null) {
+                bus.deviceChanged();
+            }
+        }
+
+        if (!unthrottled) {
+            throttle(clockSteps);
+        }
+    }
+
+    /*
+     * Called after a jump or branch backwards, or a return. Watches for a
+     * loop that does nothing but wait, such as a branch to itself or a
+     * loop polling a device status register, so that the time it would
+     * spend spinning can be skipped.
+     *
+     * The first jump taken twice in a row with the same registers anchors
+     * the loop. The bus then watches the next iteration; if it returns to
+     * the anchor with the same registers again, having left memory and
+     * devices untouched and read nothing but memory and stable device
+     * registers, every further iteration will be identical until a device
+     * event fires or the host changes a device. The iteration is idle,
+     * and whole iterations are skipped up to the next scheduled event, or
+     * in throttled mode up to the end of the throttling slice so the CPU
+     * sleeps instead of spinning. With nothing scheduled and no throttle
+     * nothing is skipped, but isIdle() tells the caller it may wait for
+     * input.
+     *
+     * @return The number of cycles skipped.
+     */
+    private long checkIdleLoop() {
+        long steps = state.stepCounter - idleLoopSteps;
+        if (state.lastPc != idleLoopFrom || state.pc != idleLoopTo) {
+            // Another jump in the loop, or a different loop once the
+            // current one has gone stale.
+            if (steps > MAX_IDLE_LOOP_STEPS || idleLoopFrom < 0) {
+                stopIdleProbe();
+                anchorIdleLoop();
+            }
+            return 0;
+        }
+
+        boolean same = steps <= MAX_IDLE_LOOP_STEPS &&
+                       state.a == idleA && state.x == idleX && state.y == idleY &&
+                       state.sp == idleSp && state.getStatusFlag() == idleStatus &&
+                       !state.nmiAsserted && !(state.irqAsserted && !state.irqDisableFlag);
+        if (!same || (idleProbe && bus.hasChanged())) {
+            stopIdleProbe();
+            anchorIdleLoop();
+            return 0;
+        }
+
+        if (!idleProbe) {
+            idleProbe = true;
+            bus.watchForChanges();
+            anchorIdleLoop();
+            return 0;
+        }
+
+        idle = true;
+        idleIterationCycles = state.cycleCounter - idleLoopCycles;
+        idleIterationSteps = steps;
+        bus.watchForChanges();
+
+        long target = scheduler.getNextEventCycle();
+        if (!unthrottled) {
+            target = Math.min(target, state.cycleCounter + THROTTLE_SLICE_NS / clockPeriodInNs);
+        }
+        long skipped = 0;
+        if (idleSkipping && target != Long.MAX_VALUE && target > state.cycleCounter) {
+            // As many whole iterations as fit before the target. The rest
+            // are stepped through, so that an event lands on exactly the
+            // instruction it would have without skipping.
+            long iterations = (target - state.cycleCounter) / idleIterationCycles;
+            skipped = skipIdleIterations(iterations);
+        }
+        anchorIdleLoop();
+        return skipped;
+    }
+
+    /*
+     * Called in place of a step while WAI or STP has stopped the CPU. WAI
+     * ends as soon as an interrupt is asserted. A masked IRQ still ends
+     * it, and execution simply carries on after the WAI. Until then no
+     * instructions run, but time passes to the next device event, or in
+     * throttled mode to the end of the throttling slice, and isIdle()
+     * tells the caller it may wait.
+     *
+     * @return true if the CPU is running again.
+     */
+    private boolean wakeUp() throws MemoryAccessException {
+        if (state.waiting && (state.nmiAsserted || state.irqAsserted)) {
+            state.waiting = false;
+            return true;
+        }
+
+        long target = scheduler.getNextEventCycle();
+        if (!unthrottled) {
+            target = Math.min(target, state.cycleCounter + THROTTLE_SLICE_NS / clockPeriodInNs);
+        }
+        long skipped = 0;
+        if (target != Long.MAX_VALUE && target > state.cycleCounter) {
+            skipped = target - state.cycleCounter;
+            state.cycleCounter = target;
+        }
+
+        if (state.cycleCounter >= scheduler.getNextEventCycle()) {
+            scheduler.runDue(state.cycleCounter);
+        }
+        idle = state.stopped || !(state.nmiAsserted || state.irqAsserted);
+
+        if (!unthrottled) {
+            throttle(skipped);
+        }
+        return false;
+    }
+
+    private void anchorIdleLoop() {
+        idleLoopFrom = state.lastPc;
+        idleLoopTo = state.pc;
+        idleLoopSteps = state.stepCounter;
+        idleLoopCycles = state.cycleCounter;
+        idleA = state.a;
+        idleX = state.x;
+        idleY = state.y;
+        idleSp = state.sp;
+        idleStatus = state.getStatusFlag();
+    }
+
+    private void stopIdleProbe() {
+        if (idleProbe) {
+            bus.stopWatching();
+            idleProbe = false;
+        }
+    }
+
+    private void forgetIdleLoop() {
+        stopIdleProbe();
+        idle = false;
+        idleLoopFrom = -1;
+    }
+
+    private long skipIdleIterations(long iterations) {
+        long cycles = iterations * idleIterationCycles;
+        state.cycleCounter += cycles;
+        state.stepCounter += iterations * idleIterationSteps;
+        return cycles;
+    }
+
+    /**
+     * @return True if the last step completed an iteration of a loop that
+     * can't make progress until a device event fires or the host changes a
+     * device, for example by delivering input. Also true while the CPU
+     * waits for an interrupt after WAI, or has been stopped by STP.
+     */
+    public boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * @return True if a WAI instruction is waiting for an interrupt.
+     */
+    public boolean isWaitingForInterrupt() {
+        return state.waiting;
+    }
+
+    /**
+     * @return True if an STP instruction has stopped the CPU until reset.
+     */
+    public boolean isStopped() {
+        return state.stopped;
+    }
+
+    /**
+     * Park the calling thread while the CPU is idle, until an interrupt is
+     * asserted, the thread is interrupted, or the timeout passes. Returns
+     * at once if an interrupt is already asserted.
+     *
+     * @param timeoutNs The longest time to wait, in nanoseconds
+     */
+    public void awaitInterrupt(long timeoutNs) {
+        sleeper = Thread.currentThread();
+        try {
+            if (!state.nmiAsserted && !state.irqAsserted) {
+                LockSupport.parkNanos(this, timeoutNs);
+            }
+        } finally {
+            sleeper = null;
+        }
+    }
+
+    private void wakeSleeper() {
+        Thread t = sleeper;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Skip whole iterations of the idle loop the CPU is in, as if it had
+     * run them, or let time pass while WAI or STP has stopped it. Useful when the host knows nothing will change, such as
+     * when input has run out. Does nothing unless {@link #isIdle()}, and
+     * never skips past the next scheduled device event.
+     *
+     * @param maxCycles The most cycles to skip
+     * @return The number of cycles skipped.
+     */
+    public long skipIdleCycles(long maxCycles) {
+        if (!idle) {
+            return 0;
+        }
+        maxCycles = Math.min(maxCycles, scheduler.getNextEventCycle() - state.cycleCounter);
+        if (maxCycles <= 0) {
+            return 0;
+        }
+        if (state.waiting || state.stopped) {
+            state.cycleCounter += maxCycles;
+            return maxCycles;
+        }
+        long skipped = skipIdleIterations(maxCycles / idleIterationCycles);
+        idleLoopSteps = state.stepCounter;
+        idleLoopCycles = state.cycleCounter;
+        return skipped;
+    }
+
+    /*
+     * Take the next instruction from the current predecoded block, or from
+     * the block starting at the PC if execution has left it. Leaves the CPU
+     * in the same state as fetching and decoding from the bus would.
+     *
+     * @return The instruction's handler, or null if the code at the PC
+     *         cannot be cached and must be fetched from the bus.
+     */
+    private DispatchTable.Handler fetchFromBlock() throws MemoryAccessException {
+        BlockCache.Block b = block;
+        int i = blockIndex;
+        if (b == null || i >= b.length || !b.valid || b.pcs[i] != state.pc) {
+            b = blockCache.lookup(state.pc);
+            block = b;
+            if (b == null) {
+                return null;
+            }
+            i = 0;
+        }
+        blockIndex = i + 1;
+
+        int size = b.sizes[i];
+        state.ir = b.opcodes[i];
+        state.instSize = size;
+        if (size > 1) {
+            state.args[0] = b.lo[i];
+            if (size > 2) {
+                state.args[1] = b.hi[i];
+            }
+        }
+        state.pc = (state.pc + size) & 0xffff;
+        clearOpTrap();
+        return b.handlers[i];
+    }
+
+    /*
+     * On reaching the start of a block, count the entry, compile the block
+     * once it is hot, and run it if it has been compiled. Afterwards the
+     * CPU state describes the last instruction of the block, as though it
+     * had been stepped through an instruction at a time.
+     *
+     * The block is interpreted instead if it passes a stop address, or if
+     * a device event may fall due before its last instruction, so that
+     * every step that would end at either does, or if it is longer than
+     * the steps step(int) has left. The compiled code itself
+     * leaves early if an interrupt is asserted or enabled part way.
+     *
+     * @return true if a compiled block was run.
+     */
+    private boolean runCompiledBlock() throws MemoryAccessException {
+        BlockCache.Block b = block;
+        if (b != null && blockIndex < b.length && b.valid && b.pcs[blockIndex] == state.pc) {
+            // Part way through an interpreted block
+            return false;
+        }
+
+        b = blockCache.lookup(state.pc);
+        block = b;
+        blockIndex = 0;
+        if (b == null) {
+            return false;
+        }
+        if (b.code == null) {
+            if (++b.entries != Recompiler.COMPILE_THRESHOLD) {
+                return false;
+            }
+            b.code = recompiler.compile(b);
+            if (b.code == null) {
+                return false;
+            }
+        }
+        // At most two extra cycles for each instruction
+        if (b.length > maxBlockSteps ||
+                state.cycleCounter + b.cycles + 2 * b.length >= scheduler.getNextEventCycle() ||
+                passesStopAddress(b)) {
+            return false;
+        }
+
+        long startCycles = state.cycleCounter;
+        clearOpTrap();
+        int executed = b.code.run(this, state, bus);
+
+        int last = executed - 1;
+        state.lastPc = b.pcs[last];
+        state.ir = b.opcodes[last];
+        state.instSize = b.sizes[last];
+        if (state.instSize > 1) {
+            state.args[0] = b.lo[last];
+            if (state.instSize > 2) {
+                state.args[1] = b.hi[last];
+            }
+        }
+        state.stepCounter += executed;
+        lastBlockSteps = executed;
+        block = null;
+
+        finishStep(state.cycleCounter - startCycles);
+        return true;
+    }
+
+    /*
+     * @return true if an instruction after the first in the block is at a
+     *         stop address.
+     */
+    private boolean passesStopAddress(BlockCache.Block b) {
+        boolean[] stops = stopAddresses;
+        if (stops != null) {
+            for (int i = 1; i < b.length; i++) {
+                if (stops[b.pcs[i]]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode the addressing mode and execute the instruction in the IR,
+     * whose operands have already been read into the args.
+     */
+    private void executeSwitch() throws MemoryAccessException {
+        int irAddressMode = (state.ir >> 2) & 0x07;  // Bits 3-5 of IR:  [ | | |X|X|X| | ]
+        int irOpMode = state.ir & 0x03;              // Bits 6-7 of IR:  [ | | | | | |X|X]
+
         // Get the data from the effective address (if any)
         int effectiveAddress = 0;
         int tmp; // Temporary storage
@@ -283,9 +956,7 @@ public class Cpu implements InstructionTable {
                         effectiveAddress = Utils.address(state.args[0], state.args[1]);
                         break;
                     case 4: // (Zero Page),Y
-                        tmp = Utils.address(bus.read(state.args[0], true),
-                                      bus.read((state.args[0] + 1) & 0xff, true));
-                        effectiveAddress = (tmp + state.y) & 0xffff;
+                        effectiveAddress = indirectYAddress(state.args[0]);
                         break;
                     case 5: // Zero Page,X
                         effectiveAddress = zpxAddress(state.args[0]);
@@ -313,7 +984,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0x10: // BPL - Branch if Positive - Relative
                 if (!getNegativeFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0x18: // CLC - Clear Carry Flag - Implied
@@ -329,7 +1000,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0x30: // BMI - Branch if Minus - Relative
                 if (getNegativeFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0x38: // SEC - Set Carry Flag - Implied
@@ -346,7 +1017,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0x50: // BVC - Branch if Overflow Clear - Relative
                 if (!getOverflowFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0x58: // CLI - Clear Interrupt Disable - Implied
@@ -369,7 +1040,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0x70: // BVS - Branch if Overflow Set - Relative
                 if (getOverflowFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0x78: // SEI - Set Interrupt Disable - Implied
@@ -384,7 +1055,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0x80: // 65C02 BRA - Branch Always
                 if (behavior.isCmos()) {
-                        state.pc = relAddress(state.args[0]);
+                        branch(state.args[0]);
                 }
                 break;
             case 0x88: // DEY - Decrement Y Register - Implied
@@ -397,7 +1068,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0x90: // BCC - Branch if Carry Clear - Relative
                 if (!getCarryFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0x98: // TYA - Transfer Y to Accumulator - Implied
@@ -417,7 +1088,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0xb0: // BCS - Branch if Carry Set - Relative
                 if (getCarryFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0xb8: // CLV - Clear Overflow Flag - Implied
@@ -437,18 +1108,32 @@ public class Cpu implements InstructionTable {
                 break;
             case 0xd0: // BNE - Branch if Not Equal to Zero - Relative
                 if (!getZeroFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0xd8: // CLD - Clear Decimal Mode - Implied
                 clearDecimalModeFlag();
                 break;
+            case 0xcb: // 65C02 WAI - Wait for Interrupt
+                if (behavior.isNmos()) {
+                    setOpTrap();
+                    break;
+                }
+                state.waiting = true;
+                break;
             case 0xda: // 65C02 PHX - Push X to stack
                 if (behavior.isNmos()) {
                     break;
                 }
                 stackPush(state.x);
                 break;
+            case 0xdb: // 65C02 STP - Stop the clock
+                if (behavior.isNmos()) {
+                    setOpTrap();
+                    break;
+                }
+                state.stopped = true;
+                break;
             case 0xe8: // INX - Increment X Register - Implied
                 state.x = ++state.x & 0xff;
                 setArithmeticFlags(state.x);
@@ -458,7 +1143,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0xf0: // BEQ - Branch if Equal to Zero - Relative
                 if (getZeroFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0xf8: // SED - Set Decimal Flag - Implied
@@ -556,8 +1241,7 @@ public class Cpu implements InstructionTable {
             case 0x2c: // Absolute
             case 0x3c: // Absolute,X
                 tmp = bus.read(effectiveAddress, true);
-                setZeroFlag((state.a & tmp) == 0);
-                setNegativeFlag((tmp & 0x80) != 0);
+                state.nz = (tmp & 0x80) << 1 | (state.a & tmp);
                 setOverflowFlag((tmp & 0x40) != 0);
                 break;
 
@@ -1032,7 +1716,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 0) == 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1042,7 +1726,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 1) == 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1052,7 +1736,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 2) == 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1062,7 +1746,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 3) == 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1072,7 +1756,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 4) == 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1083,7 +1767,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 5) == 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1093,7 +1777,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 6) == 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1103,7 +1787,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 7) == 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1115,7 +1799,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 0) > 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1125,7 +1809,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 1) > 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1135,7 +1819,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 2) > 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1145,7 +1829,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 3) > 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1156,7 +1840,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 4) > 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1167,7 +1851,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 5) > 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1177,7 +1861,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 6) > 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1187,7 +1871,7 @@ public class Cpu implements InstructionTable {
                 }
                 tmp = bus.read(effectiveAddress, true);
                 if ((tmp & 1 << 7) > 0) {
-                    state.pc = relAddress(state.args[1]);
+                    branch(state.args[1]);
                 }
                 break;
 
@@ -1198,47 +1882,21 @@ public class Cpu implements InstructionTable {
                 setOpTrap();
                 break;
         }
-
-        step_peripherals();
-        
-        delayLoop(state.ir);
-
-        // Peek ahead to the next insturction and arguments
-        peekAhead();
     }
     
-    List<StepListener> stepListeners = new ArrayList<StepListener>();
-    
-    private void step_peripherals() {
-    	for (StepListener listener : stepListeners) {
-    		listener.step();
-    	}
-    }
-    
-    public void registerStepListener(StepListener listener) {
-    	stepListeners.add(listener);
-    }
-
-    private void peekAhead() throws MemoryAccessException {
-        state.nextIr = bus.read(state.pc, true);
-        int nextInstSize = Cpu.instructionSizes[state.nextIr];
-        for (int i = 1; i < nextInstSize; i++) {
-            int nextRead = (state.pc + i) % bus.endAddress();
-            state.nextArgs[i-1] = bus.read(nextRead, true);
-        }
-    }
-
-    private void handleBrk(int returnPc) throws MemoryAccessException {
+    void handleBrk(int returnPc) throws MemoryAccessException {
         handleInterrupt(returnPc, IRQ_VECTOR_L, IRQ_VECTOR_H, true);
         clearIrq();
     }
 
     private void handleIrq(int returnPc) throws MemoryAccessException {
+        state.cycleCounter += INTERRUPT_CYCLES;
         handleInterrupt(returnPc, IRQ_VECTOR_L, IRQ_VECTOR_H, false);
         clearIrq();
     }
 
     private void handleNmi() throws MemoryAccessException {
+        state.cycleCounter += INTERRUPT_CYCLES;
         handleInterrupt(state.pc, NMI_VECTOR_L, NMI_VECTOR_H, false);
         clearNmi();
     }
@@ -1286,7 +1944,7 @@ public class Cpu implements InstructionTable {
      * @param operand The operand
      * @return The sum of the accumulator and the operand
      */
-    private int adc(int acc, int operand) {
+    int adc(int acc, int operand) {
         int result = (operand & 0xff) + (acc & 0xff) + getCarryBit();
         int carry6 = (operand & 0x7f) + (acc & 0x7f) + getCarryBit();
         setCarryFlag((result & 0x100) != 0);
@@ -1297,27 +1955,14 @@ public class Cpu implements InstructionTable {
     }
 
     /**
-     * Add with Carry (BCD).
+     * Add with Carry (BCD), looked up in a precomputed table.
      */
-
-    private int adcDecimal(int acc, int operand) {
-        int l, h, result;
-        l = (acc & 0x0f) + (operand & 0x0f) + getCarryBit();
-        if ((l & 0xff) > 9) l += 6;
-        h = (acc >> 4) + (operand >> 4) + (l > 15 ? 1 : 0);
-        if ((h & 0xff) > 9) h += 6;
-        result = (l & 0x0f) | (h << 4);
-        result &= 0xff;
-        setCarryFlag(h > 15);
-        setZeroFlag(result == 0);
-        setOverflowFlag(false); // BCD never sets overflow flag
-
-        if (behavior.isNmos()) {
-                setNegativeFlag(false); // BCD is never negative on NMOS 6502
-        }
-        else {
-            state.negativeFlag = (result & 0x80) != 0; // N Flag is valid on CMOS 6502/65816
-        }
+    int adcDecimal(int acc, int operand) {
+        int entry = DecimalTables.adc(state.carryFlag, acc, operand);
+        int result = entry & 0xff;
+        state.carryFlag = (entry & DecimalTables.CARRY) != 0;
+        state.overflowFlag = false; // BCD never sets overflow flag
+        state.nz = decimalNz[result]; // BCD is never negative on NMOS 6502
         return result;
     }
 
@@ -1326,7 +1971,7 @@ public class Cpu implements InstructionTable {
      * one's complement of the operand.  This lets the N, V, C, and Z
      * flags work out nicely without any additional logic.
      */
-    private int sbc(int acc, int operand) {
+    int sbc(int acc, int operand) {
         int result;
         result = adc(acc, ~operand);
         setArithmeticFlags(result);
@@ -1334,46 +1979,34 @@ public class Cpu implements InstructionTable {
     }
 
     /**
-     * Subtract with Carry, BCD mode.
+     * Subtract with Carry, BCD mode, looked up in a precomputed table.
      */
-    private int sbcDecimal(int acc, int operand) {
-        int l, h, result;
-        l = (acc & 0x0f) - (operand & 0x0f) - (state.carryFlag ? 0 : 1);
-        if ((l & 0x10) != 0) l -= 6;
-        h = (acc >> 4) - (operand >> 4) - ((l & 0x10) != 0 ? 1 : 0);
-        if ((h & 0x10) != 0) h -= 6;
-        result = (l & 0x0f) | (h << 4) & 0xff;
-        setCarryFlag((h & 0xff) < 15);
-        setZeroFlag(result == 0);
-        setOverflowFlag(false); // BCD never sets overflow flag
-
-        if (behavior.isNmos()) {
-                setNegativeFlag(false); // BCD is never negative on NMOS 6502
-        }
-        else {
-            state.negativeFlag = (result & 0x80) != 0; // N Flag is valid on CMOS 6502/65816
-        }
-        return (result & 0xff);
+    int sbcDecimal(int acc, int operand) {
+        int entry = DecimalTables.sbc(state.carryFlag, acc, operand);
+        int result = entry & 0xff;
+        state.carryFlag = (entry & DecimalTables.CARRY) != 0;
+        state.overflowFlag = false; // BCD never sets overflow flag
+        state.nz = decimalNz[result]; // BCD is never negative on NMOS 6502
+        return result;
     }
 
     /**
      * Compare two values, and set carry, zero, and negative flags
      * appropriately.
      */
-    private void cmp(int reg, int operand) {
+    void cmp(int reg, int operand) {
         int tmp = (reg - operand) & 0xff;
         setCarryFlag(reg >= operand);
-        setZeroFlag(tmp == 0);
-        setNegativeFlag((tmp & 0x80) != 0); // Negative bit set
+        state.nz = tmp;
     }
 
     /**
      * Set the Negative and Zero flags based on the current value of the
-     * register operand.
+     * register operand. The flags themselves are only worked out when
+     * something reads them.
      */
-    private void setArithmeticFlags(int reg) {
-        state.zeroFlag = (reg == 0);
-        state.negativeFlag = (reg & 0x80) != 0;
+    void setArithmeticFlags(int reg) {
+        state.nz = reg;
     }
 
     /**
@@ -1383,7 +2016,7 @@ public class Cpu implements InstructionTable {
      * @param m The value to shift left.
      * @return the left shifted value (m * 2).
      */
-    private int asl(int m) {
+    int asl(int m) {
         setCarryFlag((m & 0x80) != 0);
         return (m << 1) & 0xff;
     }
@@ -1392,7 +2025,7 @@ public class Cpu implements InstructionTable {
      * Shifts the given value right by one bit, filling with zeros,
      * and sets the carry flag to the low bit of the initial value.
      */
-    private int lsr(int m) {
+    int lsr(int m) {
         setCarryFlag((m & 0x01) != 0);
         return (m & 0xff) >>> 1;
     }
@@ -1402,7 +2035,7 @@ public class Cpu implements InstructionTable {
      * of the carry flag, and setting the carry flag to the original value
      * of bit 7.
      */
-    private int rol(int m) {
+    int rol(int m) {
         int result = ((m << 1) | getCarryBit()) & 0xff;
         setCarryFlag((m & 0x80) != 0);
         return result;
@@ -1413,7 +2046,7 @@ public class Cpu implements InstructionTable {
      * of the carry flag, and setting the carry flag to the original value
      * of bit 1.
      */
-    private int ror(int m) {
+    int ror(int m) {
         int result = ((m >>> 1) | (getCarryBit() << 7)) & 0xff;
         setCarryFlag((m & 0x01) != 0);
         return result;
@@ -1427,6 +2060,63 @@ public class Cpu implements InstructionTable {
         this.clockPeriodInNs = clockPeriodInNs;
     }
 
+    public long getClockPeriodInNs() {
+        return clockPeriodInNs;
+    }
+
+    /**
+     * @param unthrottled If true, run as fast as possible. The simulated clock
+     *                    period is ignored, but cycles are still counted.
+     */
+    public void setUnthrottled(boolean unthrottled) {
+        logger.debug("Setting unthrottled execution to {}.", unthrottled);
+        this.unthrottled = unthrottled;
+    }
+
+    public boolean isUnthrottled() {
+        return unthrottled;
+    }
+
+    /**
+     * @return The number of clock cycles executed since the last reset.
+     */
+    public long getCycleCount() {
+        return state.cycleCounter;
+    }
+
+    /**
+     * @return The scheduler on which devices register events against this
+     * CPU's cycle counter.
+     */
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Convert a span of wall clock time into simulated clock cycles at the
+     * current clock period, rounding up.
+     *
+     * @param ns The duration in nanoseconds
+     * @return The number of cycles that take at least that long
+     */
+    public long nanosToCycles(long ns) {
+        return (ns + clockPeriodInNs - 1) / clockPeriodInNs;
+    }
+
+    /**
+     * Compute the effective clock rate achieved over a run.
+     *
+     * @param cycles    Number of cycles executed
+     * @param elapsedNs Wall clock time taken, in nanoseconds
+     * @return The effective clock rate in MHz
+     */
+    public static double effectiveMhz(long cycles, long elapsedNs) {
+        if (elapsedNs <= 0) {
+            return 0;
+        }
+        return (cycles * 1000.0) / elapsedNs;
+    }
+
     /**
      * Return the current Cpu State.
      *
@@ -1436,26 +2126,115 @@ public class Cpu implements InstructionTable {
         return state;
     }
 
+    /**
+     * @return The number of bytes written by saveState().
+     */
+    public int getStateSize() {
+        return SAVED_STATE_SIZE;
+    }
+
+    /**
+     * Write the CPU's behavior and state to a machine snapshot.
+     */
+    public void saveState(ByteBuffer out) {
+        out.put((byte) behavior.ordinal());
+        out.putInt(state.a);
+        out.putInt(state.x);
+        out.putInt(state.y);
+        out.putInt(state.sp);
+        out.putInt(state.pc);
+        out.putInt(state.ir);
+        out.putInt(state.args[0]);
+        out.putInt(state.args[1]);
+        out.putInt(state.instSize);
+        out.putInt(state.lastPc);
+        out.putInt(state.nz);
+        out.put((byte) (state.opTrap ? 1 : 0));
+        out.put((byte) (state.irqAsserted ? 1 : 0));
+        out.put((byte) (state.nmiAsserted ? 1 : 0));
+        out.put((byte) (state.waiting ? 1 : 0));
+        out.put((byte) (state.stopped ? 1 : 0));
+        out.put((byte) state.getStatusFlag());
+        out.putLong(state.stepCounter);
+        out.putLong(state.cycleCounter);
+    }
+
+    /**
+     * Check a CPU saved by {@link #saveState(ByteBuffer)} before anything
+     * is restored.
+     *
+     * @throws SnapshotException if it could not be restored
+     */
+    public void checkState(ByteBuffer in) throws SnapshotException {
+        int savedBehavior = in.get(in.position());
+        if (savedBehavior < 0 || savedBehavior >= CpuBehavior.values().length) {
+            throw new SnapshotException("Snapshot has unknown CPU behavior " + savedBehavior + ".");
+        }
+    }
+
+    /**
+     * Restore a CPU saved by {@link #saveState(ByteBuffer)}, already
+     * through {@link #checkState(ByteBuffer)}. Memory may
+     * have changed behind the bus's back, so any predecoded code is
+     * forgotten. Device events are left to the devices to restore.
+     */
+    public void restoreState(ByteBuffer in) {
+        CpuBehavior savedBehavior = CpuBehavior.values()[in.get()];
+        if (savedBehavior != behavior) {
+            setBehavior(savedBehavior);
+        }
+        state.a = in.getInt();
+        state.x = in.getInt();
+        state.y = in.getInt();
+        state.sp = in.getInt();
+        state.pc = in.getInt();
+        state.ir = in.getInt();
+        state.args[0] = in.getInt();
+        state.args[1] = in.getInt();
+        state.instSize = in.getInt();
+        state.lastPc = in.getInt();
+        int nz = in.getInt();
+        state.opTrap = in.get() != 0;
+        state.irqAsserted = in.get() != 0;
+        state.nmiAsserted = in.get() != 0;
+        state.waiting = in.get() != 0;
+        state.stopped = in.get() != 0;
+        setProcessorStatus(in.get() & 0xff);
+        // Keep the exact lazy flags, not just the N and Z they decode to
+        state.nz = nz;
+        state.stepCounter = in.getLong();
+        state.cycleCounter = in.getLong();
+        if (profiler != null) {
+            profiler.sync(state.stepCounter, state.cycleCounter);
+        }
+
+        if (blockCache != null) {
+            blockCache.clear();
+            block = null;
+        }
+        forgetIdleLoop();
+    }
+
     /**
      * @return the negative flag
      */
     public boolean getNegativeFlag() {
-        return state.negativeFlag;
+        return state.getNegativeFlag();
     }
 
     /**
      * @param negativeFlag the negative flag to set
      */
     public void setNegativeFlag(boolean negativeFlag) {
-        state.negativeFlag = negativeFlag;
+        state.setNegativeFlag(negativeFlag);
     }
 
     public void setNegativeFlag() {
-        state.negativeFlag = true;
+        state.setNegativeFlag(true);
     }
 
     public void clearNegativeFlag() {
-        state.negativeFlag = false;
+        state.setNegativeFlag(false);
     }
 
     /**
@@ -1497,28 +2276,28 @@ public class Cpu implements InstructionTable {
      * @return the zero flag
      */
     public boolean getZeroFlag() {
-        return state.zeroFlag;
+        return state.getZeroFlag();
     }
 
     /**
      * @param zeroFlag the zero flag to set
      */
     public void setZeroFlag(boolean zeroFlag) {
-        state.zeroFlag = zeroFlag;
+        state.setZeroFlag(zeroFlag);
     }
 
     /**
      * Sets the Zero Flag
      */
     public void setZeroFlag() {
-        state.zeroFlag = true;
+        state.setZeroFlag(true);
     }
 
     /**
      * Clears the Zero Flag
      */
     public void clearZeroFlag() {
-        state.zeroFlag = false;
+        state.setZeroFlag(false);
     }
 
     /**
@@ -1651,14 +2430,6 @@ public class Cpu implements InstructionTable {
 
     public void setProgramCounter(int addr) {
         state.pc = addr;
-
-        // As a side-effect of setting the program counter,
-        // we want to peek ahead at the next state.
-        try {
-            peekAhead();
-        } catch (MemoryAccessException ex) {
-            logger.error("Could not peek ahead at next instruction state.");
-        }
     }
 
     public int getStackPointer() {
@@ -1682,11 +2453,6 @@ public class Cpu implements InstructionTable {
         else
             clearCarryFlag();
 
-        if ((value & P_ZERO) != 0)
-            setZeroFlag();
-        else
-            clearZeroFlag();
-
         if ((value & P_IRQ_DISABLE) != 0)
             setIrqDisableFlag();
         else
@@ -1707,10 +2473,7 @@ public class Cpu implements InstructionTable {
         else
             clearOverflowFlag();
 
-        if ((value & P_NEGATIVE) != 0)
-            setNegativeFlag();
-        else
-            clearNegativeFlag();
+        state.setNZFlags((value & P_NEGATIVE) != 0, (value & P_ZERO) != 0);
     }
 
     public String getAccumulatorStatus() {
@@ -1742,6 +2505,7 @@ public class Cpu implements InstructionTable {
      */
     public void assertIrq() {
        state.irqAsserted = true;
+       wakeSleeper();
     }
 
     /**
@@ -1756,6 +2520,7 @@ public class Cpu implements InstructionTable {
      */
     public void assertNmi() {
         state.nmiAsserted = true;
+        wakeSleeper();
     }
 
     /**
@@ -1844,6 +2609,31 @@ public class Cpu implements InstructionTable {
         return (zp + state.y) & 0xff;
     }
 
+    /**
+     * Given a single byte, compute the (Zero Page,X) indirect address.
+     */
+    int xIndirectAddress(int zp) throws MemoryAccessException {
+        int pointer = (zp + state.x) & 0xff;
+        return Utils.address(bus.read(pointer, true), bus.read(pointer + 1, true));
+    }
+
+    /**
+     * Given a single byte, compute the (Zero Page),Y indirect address.
+     */
+    int indirectYAddress(int zp) throws MemoryAccessException {
+        int base = Utils.address(bus.read(zp, true), bus.read((zp + 1) & 0xff, true));
+        // Noted for extraCycles(), rather than reading the pointer again
+        indirectYCarry = ((base & 0xff) + state.y) >>> 8;
+        return (base + state.y) & 0xffff;
+    }
+
+    /**
+     * Given a single byte, compute the 65C02 (Zero Page) indirect address.
+     */
+    int zpIndirectAddress(int zp) throws MemoryAccessException {
+        return Utils.address(bus.read(zp, true), bus.read((zp + 1) & 0xff, true));
+    }
+
     /**
      * Given a single byte, compute the offset address.
      */
@@ -1852,29 +2642,103 @@ public class Cpu implements InstructionTable {
         return (state.pc + (byte) offset) & 0xffff;
     }
 
+    /**
+     * Take a relative branch, charging one extra cycle for the branch and
+     * another if the target is on a different page from the next instruction.
+     */
+    void branch(int offset) {
+        int target = relAddress(offset);
+        state.cycleCounter += ((target ^ state.pc) & 0xff00) == 0 ? 1 : 2;
+        state.pc = target;
+    }
+
+    /*
+     * Extra cycles taken by the instruction just executed beyond its base
+     * count: one for an indexed read that crosses a page boundary, and on
+     * the 65C02 one for ADC and SBC in decimal mode, given the rule for its
+     * opcode and its first operand byte. Branch penalties are charged by
+     * branch().
+     */
+    int extraCycles(int penalty, int lo) {
+        int extra = 0;
+        switch (penalty & PENALTY_INDEX_MASK) {
+            case PENALTY_ABSOLUTE_X:
+                extra = (lo + state.x) >>> 8;
+                break;
+            case PENALTY_ABSOLUTE_Y:
+                extra = (lo + state.y) >>> 8;
+                break;
+            case PENALTY_INDIRECT_Y:
+                extra = indirectYCarry;
+                break;
+        }
+        if ((penalty & PENALTY_DECIMAL) != 0 && state.decimalModeFlag) {
+            extra++;
+        }
+        return extra;
+    }
+
     /*
-     * Perform a busy-loop until the instruction should complete on the wall clock
+     * Build the table of extra cycle rules for each opcode.
      */
-    private void delayLoop(int opcode) {
-        final int clockSteps;
+    private static byte[] buildPenalties(CpuBehavior behavior) {
+        byte[] p = new byte[256];
+
+        // ORA, AND, EOR, ADC, LDA, CMP, SBC with (zp),Y, abs,Y and abs,X
+        for (int op = 0x11; op <= 0xf1; op += 0x20) {
+            if (op != 0x91) { // STA
+                p[op] = PENALTY_INDIRECT_Y;
+                p[op + 8] = PENALTY_ABSOLUTE_Y;
+                p[op + 12] = PENALTY_ABSOLUTE_X;
+            }
+        }
+        p[0xbc] = PENALTY_ABSOLUTE_X; // LDY abs,X
+        p[0xbe] = PENALTY_ABSOLUTE_Y; // LDX abs,Y
+        p[0x3c] = PENALTY_ABSOLUTE_X; // BIT abs,X
 
-        if (behavior.isNmos()) {
-            clockSteps = Cpu.instructionClocksNmos[0xff & opcode];
-        } else {
-            clockSteps = Cpu.instructionClocksCmos[0xff & opcode];
+        if (behavior.isCmos()) {
+            // ASL, ROL, LSR, ROR abs,X only take their seventh cycle when
+            // crossing a page on the 65C02.
+            p[0x1e] = PENALTY_ABSOLUTE_X;
+            p[0x3e] = PENALTY_ABSOLUTE_X;
+            p[0x5e] = PENALTY_ABSOLUTE_X;
+            p[0x7e] = PENALTY_ABSOLUTE_X;
+
+            for (int op : new int[] {0x61, 0x65, 0x69, 0x6d, 0x71, 0x72, 0x75, 0x79, 0x7d,
+                                     0xe1, 0xe5, 0xe9, 0xed, 0xf1, 0xf2, 0xf5, 0xf9, 0xfd}) {
+                p[op] |= PENALTY_DECIMAL;
+            }
         }
+        return p;
+    }
 
-        if (clockSteps == 0) {
-            logger.warn("Opcode {} has clock step of 0!", String.format("0x%02x", opcode));
+    /*
+     * Account for the cycles of the instruction just executed. Once a full
+     * slice of simulated time has been executed, sleep until the wall clock
+     * catches up with it.
+     */
+    private void throttle(long clockSteps) {
+        sliceCycles += clockSteps;
+
+        long sliceNs = sliceCycles * clockPeriodInNs;
+        if (sliceNs < THROTTLE_SLICE_NS) {
             return;
         }
 
-        long interval = clockSteps * clockPeriodInNs;
-        long end;
+        long target = sliceStartTime + sliceNs;
+        long remaining = target - System.nanoTime();
 
-        do {
-            end = System.nanoTime();
-        } while (opBeginTime + interval >= end);
+        if (remaining < -MAX_THROTTLE_LAG_NS) {
+            sliceStartTime = System.nanoTime();
+        } else {
+            while (remaining > 0) {
+                LockSupport.parkNanos(remaining);
+                remaining = target - System.nanoTime();
+            }
+            sliceStartTime = target;
+        }
+
+        sliceCycles = 0;
     }
 
     /**
@@ -1939,23 +2803,32 @@ public class Cpu implements InstructionTable {
      * Return a formatted string representing the next instruction and
      * operands to be executed.
      *
+     * The instruction is read from the bus only when asked for, so that
+     * stepping the CPU doesn't pay for a display nobody may be looking at.
+     *
      * @return A string representing the mnemonic and operands of the instruction
      */
     public String disassembleNextOp() {
-        return Cpu.disassembleOp(state.nextIr, state.nextArgs);
+        try {
+            return disassembleOpAtAddress(state.pc);
+        } catch (MemoryAccessException ex) {
+            return "???";
+        }
     }
 
     /**
+     * Disassemble the instruction at an address. Memory is read without
+     * the side effects a CPU read would have on I/O devices.
+     *
      * @param address Address to disassemble
      * @return String containing the disassembled instruction and operands.
      */
     public String disassembleOpAtAddress(int address) throws MemoryAccessException {
-        int opCode = bus.read(address, true);
+        int opCode = bus.read(address, false);
         int args[] = new int[2];
         int size = Cpu.instructionSizes[opCode];
         for (int i = 1; i < size; i++) {
-            int nextRead = (address + i) % bus.endAddress();
-            args[i-1] = bus.read(nextRead, true);
+            args[i-1] = bus.read((address + i) & 0xffff, false);
         }
 
         return disassembleOp(opCode, args);
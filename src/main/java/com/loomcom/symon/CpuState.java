@@ -36,28 +36,49 @@ public class CpuState {
      */
     public int ir;
 
-    /**
-     * Peek-Ahead to next IR
-     */
-    public int nextIr;
     public int[] args = new int[2];
-    public int[] nextArgs = new int[2];
     public int instSize;
     public boolean opTrap;
     public boolean irqAsserted;
     public boolean nmiAsserted;
     public int lastPc;
-    public String lastPcSymbol;
+
+    /**
+     * Set by the 65C02 WAI instruction until an interrupt is asserted.
+     */
+    public boolean waiting;
+
+    /**
+     * Set by the 65C02 STP instruction until the CPU is reset.
+     */
+    public boolean stopped;
+
+    /**
+     * Debug symbols used to label trace output. Shared, not copied.
+     */
+    public SymbolTable symbols;
 
     /* Status Flag Register bits */
     public boolean carryFlag;
-    public boolean negativeFlag;
-    public boolean zeroFlag;
     public boolean irqDisableFlag;
     public boolean decimalModeFlag;
     public boolean breakFlag;
     public boolean overflowFlag;
+
+    /**
+     * The Negative and Zero flags, kept as the last result that set them
+     * so that the flags are only worked out when something reads them.
+     * Z is set when the low byte is zero, and N when bit 7 or
+     * NZ_NEGATIVE is set. Instructions store their 8-bit result here.
+     */
+    public int nz = NZ_CLEAR;
+
+    /* Encodings of nz */
+    public static final int NZ_NEGATIVE = 0x100;
+    public static final int NZ_CLEAR = 0x01;
+
     public long stepCounter = 0L;
+    public long cycleCounter = 0L;
 
     public CpuState() {}
 
@@ -76,24 +97,23 @@ public class CpuState {
         this.sp = s.sp;
         this.pc = s.pc;
         this.ir = s.ir;
-        this.nextIr = s.nextIr;
         this.lastPc = s.lastPc;
-        this.lastPcSymbol = s.lastPcSymbol;
+        this.symbols = s.symbols;
         this.args[0] = s.args[0];
         this.args[1] = s.args[1];
-        this.nextArgs[0] = s.nextArgs[0];
-        this.nextArgs[1] = s.nextArgs[1];
         this.instSize = s.instSize;
         this.opTrap = s.opTrap;
         this.irqAsserted = s.irqAsserted;
+        this.waiting = s.waiting;
+        this.stopped = s.stopped;
         this.carryFlag = s.carryFlag;
-        this.negativeFlag = s.negativeFlag;
-        this.zeroFlag = s.zeroFlag;
+        this.nz = s.nz;
         this.irqDisableFlag = s.irqDisableFlag;
         this.decimalModeFlag = s.decimalModeFlag;
         this.breakFlag = s.breakFlag;
         this.overflowFlag = s.overflowFlag;
         this.stepCounter = s.stepCounter;
+        this.cycleCounter = s.cycleCounter;
     }
 
     /**
@@ -121,7 +141,7 @@ public class CpuState {
         if (carryFlag) {
             status |= Cpu.P_CARRY;
         }
-        if (zeroFlag) {
+        if (getZeroFlag()) {
             status |= Cpu.P_ZERO;
         }
         if (irqDisableFlag) {
@@ -136,13 +156,45 @@ public class CpuState {
         if (overflowFlag) {
             status |= Cpu.P_OVERFLOW;
         }
-        if (negativeFlag) {
+        if (getNegativeFlag()) {
             status |= Cpu.P_NEGATIVE;
         }
         return status;
     }
 
+    public boolean getNegativeFlag() {
+        return (nz & (NZ_NEGATIVE | 0x80)) != 0;
+    }
+
+    public boolean getZeroFlag() {
+        return (nz & 0xff) == 0;
+    }
+
+    public void setNegativeFlag(boolean negativeFlag) {
+        setNZFlags(negativeFlag, getZeroFlag());
+    }
+
+    public void setZeroFlag(boolean zeroFlag) {
+        setNZFlags(getNegativeFlag(), zeroFlag);
+    }
+
+    /**
+     * Set the Negative and Zero flags independently of each other, as BIT
+     * and PLP do.
+     */
+    public void setNZFlags(boolean negativeFlag, boolean zeroFlag) {
+        nz = (negativeFlag ? NZ_NEGATIVE : 0) | (zeroFlag ? 0 : NZ_CLEAR);
+    }
+
+    /**
+     * @return The debug symbol at the address of the last instruction, or an empty string.
+     */
+    public String getLastPcSymbol() {
+        return symbols == null ? "" : symbols.get(lastPc);
+    }
+
     public String getInstructionByteStatus() {
+        String lastPcSymbol = getLastPcSymbol();
         switch (Cpu.instructionSizes[ir]) {
             case 0:
             case 1:
@@ -166,13 +218,13 @@ public class CpuState {
      * @return A string representing the current status register state.
      */
     public String getProcessorStatusString() {
-        return "[" + (negativeFlag ? 'N' : '.') +
+        return "[" + (getNegativeFlag() ? 'N' : '.') +
                 (overflowFlag ? 'V' : '.') +
                 "-" +
                 (breakFlag ? 'B' : '.') +
                 (decimalModeFlag ? 'D' : '.') +
                 (irqDisableFlag ? 'I' : '.') +
-                (zeroFlag ? 'Z' : '.') +
+                (getZeroFlag() ? 'Z' : '.') +
                 (carryFlag ? 'C' : '.') +
                 "]";
     }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+/**
+ * Precomputed results of ADC and SBC in decimal mode.
+ * <p>
+ * The add and subtract tables are indexed by the carry flag, the
+ * accumulator and the operand, and hold the 8-bit result with the carry
+ * out in bit 8. They cover every operand, not only valid BCD, and come
+ * out the same on the NMOS and CMOS parts. Where the two differ is the
+ * negative flag, which the NMOS 6502 always clears in decimal mode, so
+ * each behavior has its own table mapping a decimal result to the value
+ * to keep for the lazily evaluated N and Z flags.
+ */
+final class DecimalTables {
+
+    static final int CARRY = 0x100;
+
+    private static final char[] ADC = new char[2 * 256 * 256];
+    private static final char[] SBC = new char[2 * 256 * 256];
+
+    private static final int[] NZ_NMOS = new int[256];
+    private static final int[] NZ_CMOS = new int[256];
+
+    static {
+        for (int carry = 0; carry < 2; carry++) {
+            for (int acc = 0; acc < 256; acc++) {
+                for (int operand = 0; operand < 256; operand++) {
+                    int i = index(carry != 0, acc, operand);
+                    ADC[i] = (char) add(carry, acc, operand);
+                    SBC[i] = (char) subtract(carry, acc, operand);
+                }
+            }
+        }
+        for (int result = 0; result < 256; result++) {
+            NZ_NMOS[result] = result == 0 ? 0 : CpuState.NZ_CLEAR;
+            NZ_CMOS[result] = result;
+        }
+    }
+
+    private DecimalTables() {}
+
+    static int index(boolean carry, int acc, int operand) {
+        return (carry ? 0x10000 : 0) | acc << 8 | operand;
+    }
+
+    static int adc(boolean carry, int acc, int operand) {
+        return ADC[index(carry, acc, operand)];
+    }
+
+    static int sbc(boolean carry, int acc, int operand) {
+        return SBC[index(carry, acc, operand)];
+    }
+
+    /**
+     * @return The table of N and Z values for decimal results on a CPU.
+     */
+    static int[] nzTable(InstructionTable.CpuBehavior behavior) {
+        return behavior.isNmos() ? NZ_NMOS : NZ_CMOS;
+    }
+
+    /*
+     * BCD addition, one nibble at a time.
+     */
+    private static int add(int carry, int acc, int operand) {
+        int l, h;
+        l = (acc & 0x0f) + (operand & 0x0f) + carry;
+        if ((l & 0xff) > 9) l += 6;
+        h = (acc >> 4) + (operand >> 4) + (l > 15 ? 1 : 0);
+        if ((h & 0xff) > 9) h += 6;
+        return ((l & 0x0f) | (h << 4)) & 0xff | (h > 15 ? CARRY : 0);
+    }
+
+    /*
+     * BCD subtraction, one nibble at a time.
+     */
+    private static int subtract(int carry, int acc, int operand) {
+        int l, h;
+        l = (acc & 0x0f) - (operand & 0x0f) - (1 - carry);
+        if ((l & 0x10) != 0) l -= 6;
+        h = (acc >> 4) - (operand >> 4) - ((l & 0x10) != 0 ? 1 : 0);
+        if ((h & 0x10) != 0) h -= 6;
+        return ((l & 0x0f) | (h << 4) & 0xff) | ((h & 0xff) < 15 ? CARRY : 0);
+    }
+}
@@ -0,0 +1,1520 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.util.Utils;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Pre-built opcode dispatch tables for the table-driven execution core.
+ * <p>
+ * Each opcode is bound to a small handler that performs both the
+ * effective address computation and the operation itself, so no
+ * addressing mode decoding happens at run time. Whether an opcode is
+ * available at all is decided once, when the table for a given
+ * {@link InstructionTable.CpuBehavior} is built: 65C02 instructions are
+ * bound to NOPs on NMOS parts, exactly as the switch core treats them,
+ * and undefined opcodes trap.
+ * <p>
+ * Handlers are called after the opcode and its operands have been fetched
+ * and the program counter advanced past them.
+ */
+final class DispatchTable {
+
+    /**
+     * Executes one instruction.
+     */
+    interface Handler {
+        /**
+         * @param cpu The CPU executing the instruction
+         * @param lo  The first operand byte, if any
+         * @param hi  The second operand byte, if any
+         */
+        void execute(Cpu cpu, int lo, int hi) throws MemoryAccessException;
+    }
+
+    /* Bound to every opcode that traps */
+    static final Handler TRAP = DispatchTable::trap;
+
+    private static final Map<InstructionTable.CpuBehavior, Handler[]> tables =
+            new EnumMap<InstructionTable.CpuBehavior, Handler[]>(InstructionTable.CpuBehavior.class);
+
+    private DispatchTable() {}
+
+    /**
+     * Return the dispatch table for the given behavior. Tables are built
+     * on first use and shared, since handlers are stateless.
+     */
+    static synchronized Handler[] forBehavior(InstructionTable.CpuBehavior behavior) {
+        Handler[] table = tables.get(behavior);
+        if (table == null) {
+            table = build(behavior);
+            tables.put(behavior, table);
+        }
+        return table;
+    }
+
+    private static Handler[] build(InstructionTable.CpuBehavior behavior) {
+        final boolean cmos = behavior.isCmos();
+        Handler[] t = new Handler[256];
+        Arrays.fill(t, TRAP);
+
+        t[0x00] = DispatchTable::brk;
+        t[0x01] = DispatchTable::oraIndexedIndirect;
+        t[0x05] = DispatchTable::oraZeroPage;
+        t[0x06] = DispatchTable::aslZeroPage;
+        t[0x08] = DispatchTable::php;
+        t[0x09] = DispatchTable::oraImmediate;
+        t[0x0a] = DispatchTable::aslAccumulator;
+        t[0x0d] = DispatchTable::oraAbsolute;
+        t[0x0e] = DispatchTable::aslAbsolute;
+        t[0x10] = DispatchTable::bpl;
+        t[0x11] = DispatchTable::oraIndirectIndexed;
+        t[0x15] = DispatchTable::oraZeroPageX;
+        t[0x16] = DispatchTable::aslZeroPageX;
+        t[0x18] = DispatchTable::clc;
+        t[0x19] = DispatchTable::oraAbsoluteY;
+        t[0x1d] = DispatchTable::oraAbsoluteX;
+        t[0x1e] = DispatchTable::aslAbsoluteX;
+        t[0x20] = DispatchTable::jsr;
+        t[0x21] = DispatchTable::andIndexedIndirect;
+        t[0x24] = DispatchTable::bitZeroPage;
+        t[0x25] = DispatchTable::andZeroPage;
+        t[0x26] = DispatchTable::rolZeroPage;
+        t[0x28] = DispatchTable::plp;
+        t[0x29] = DispatchTable::andImmediate;
+        t[0x2a] = DispatchTable::rolAccumulator;
+        t[0x2c] = DispatchTable::bitAbsolute;
+        t[0x2d] = DispatchTable::andAbsolute;
+        t[0x2e] = DispatchTable::rolAbsolute;
+        t[0x30] = DispatchTable::bmi;
+        t[0x31] = DispatchTable::andIndirectIndexed;
+        t[0x35] = DispatchTable::andZeroPageX;
+        t[0x36] = DispatchTable::rolZeroPageX;
+        t[0x38] = DispatchTable::sec;
+        t[0x39] = DispatchTable::andAbsoluteY;
+        t[0x3c] = DispatchTable::bitAbsoluteX;
+        t[0x3d] = DispatchTable::andAbsoluteX;
+        t[0x3e] = DispatchTable::rolAbsoluteX;
+        t[0x40] = DispatchTable::rti;
+        t[0x41] = DispatchTable::eorIndexedIndirect;
+        t[0x45] = DispatchTable::eorZeroPage;
+        t[0x46] = DispatchTable::lsrZeroPage;
+        t[0x48] = DispatchTable::pha;
+        t[0x49] = DispatchTable::eorImmediate;
+        t[0x4a] = DispatchTable::lsrAccumulator;
+        t[0x4c] = DispatchTable::jmpAbsolute;
+        t[0x4d] = DispatchTable::eorAbsolute;
+        t[0x4e] = DispatchTable::lsrAbsolute;
+        t[0x50] = DispatchTable::bvc;
+        t[0x51] = DispatchTable::eorIndirectIndexed;
+        t[0x55] = DispatchTable::eorZeroPageX;
+        t[0x56] = DispatchTable::lsrZeroPageX;
+        t[0x58] = DispatchTable::cli;
+        t[0x59] = DispatchTable::eorAbsoluteY;
+        t[0x5d] = DispatchTable::eorAbsoluteX;
+        t[0x5e] = DispatchTable::lsrAbsoluteX;
+        t[0x60] = DispatchTable::rts;
+        t[0x61] = DispatchTable::adcIndexedIndirect;
+        t[0x65] = DispatchTable::adcZeroPage;
+        t[0x66] = DispatchTable::rorZeroPage;
+        t[0x68] = DispatchTable::pla;
+        t[0x69] = DispatchTable::adcImmediate;
+        t[0x6a] = DispatchTable::rorAccumulator;
+        t[0x6d] = DispatchTable::adcAbsolute;
+        t[0x6e] = DispatchTable::rorAbsolute;
+        t[0x70] = DispatchTable::bvs;
+        t[0x71] = DispatchTable::adcIndirectIndexed;
+        t[0x75] = DispatchTable::adcZeroPageX;
+        t[0x76] = DispatchTable::rorZeroPageX;
+        t[0x78] = DispatchTable::sei;
+        t[0x79] = DispatchTable::adcAbsoluteY;
+        t[0x7d] = DispatchTable::adcAbsoluteX;
+        t[0x7e] = DispatchTable::rorAbsoluteX;
+        t[0x81] = DispatchTable::staIndexedIndirect;
+        t[0x84] = DispatchTable::styZeroPage;
+        t[0x85] = DispatchTable::staZeroPage;
+        t[0x86] = DispatchTable::stxZeroPage;
+        t[0x88] = DispatchTable::dey;
+        t[0x89] = DispatchTable::bitImmediate;
+        t[0x8a] = DispatchTable::txa;
+        t[0x8c] = DispatchTable::styAbsolute;
+        t[0x8d] = DispatchTable::staAbsolute;
+        t[0x8e] = DispatchTable::stxAbsolute;
+        t[0x90] = DispatchTable::bcc;
+        t[0x91] = DispatchTable::staIndirectIndexed;
+        t[0x94] = DispatchTable::styZeroPageX;
+        t[0x95] = DispatchTable::staZeroPageX;
+        t[0x96] = DispatchTable::stxZeroPageY;
+        t[0x98] = DispatchTable::tya;
+        t[0x99] = DispatchTable::staAbsoluteY;
+        t[0x9a] = DispatchTable::txs;
+        t[0x9d] = DispatchTable::staAbsoluteX;
+        t[0xa0] = DispatchTable::ldyImmediate;
+        t[0xa1] = DispatchTable::ldaIndexedIndirect;
+        t[0xa2] = DispatchTable::ldxImmediate;
+        t[0xa4] = DispatchTable::ldyZeroPage;
+        t[0xa5] = DispatchTable::ldaZeroPage;
+        t[0xa6] = DispatchTable::ldxZeroPage;
+        t[0xa8] = DispatchTable::tay;
+        t[0xa9] = DispatchTable::ldaImmediate;
+        t[0xaa] = DispatchTable::tax;
+        t[0xac] = DispatchTable::ldyAbsolute;
+        t[0xad] = DispatchTable::ldaAbsolute;
+        t[0xae] = DispatchTable::ldxAbsolute;
+        t[0xb0] = DispatchTable::bcs;
+        t[0xb1] = DispatchTable::ldaIndirectIndexed;
+        t[0xb4] = DispatchTable::ldyZeroPageX;
+        t[0xb5] = DispatchTable::ldaZeroPageX;
+        t[0xb6] = DispatchTable::ldxZeroPageY;
+        t[0xb8] = DispatchTable::clv;
+        t[0xb9] = DispatchTable::ldaAbsoluteY;
+        t[0xba] = DispatchTable::tsx;
+        t[0xbc] = DispatchTable::ldyAbsoluteX;
+        t[0xbd] = DispatchTable::ldaAbsoluteX;
+        t[0xbe] = DispatchTable::ldxAbsoluteY;
+        t[0xc0] = DispatchTable::cpyImmediate;
+        t[0xc1] = DispatchTable::cmpIndexedIndirect;
+        t[0xc4] = DispatchTable::cpyZeroPage;
+        t[0xc5] = DispatchTable::cmpZeroPage;
+        t[0xc6] = DispatchTable::decZeroPage;
+        t[0xc8] = DispatchTable::iny;
+        t[0xc9] = DispatchTable::cmpImmediate;
+        t[0xca] = DispatchTable::dex;
+        t[0xcc] = DispatchTable::cpyAbsolute;
+        t[0xcd] = DispatchTable::cmpAbsolute;
+        t[0xce] = DispatchTable::decAbsolute;
+        t[0xd0] = DispatchTable::bne;
+        t[0xd1] = DispatchTable::cmpIndirectIndexed;
+        t[0xd5] = DispatchTable::cmpZeroPageX;
+        t[0xd6] = DispatchTable::decZeroPageX;
+        t[0xd8] = DispatchTable::cld;
+        t[0xd9] = DispatchTable::cmpAbsoluteY;
+        t[0xdd] = DispatchTable::cmpAbsoluteX;
+        t[0xde] = DispatchTable::decAbsoluteX;
+        t[0xe0] = DispatchTable::cpxImmediate;
+        t[0xe1] = DispatchTable::sbcIndexedIndirect;
+        t[0xe4] = DispatchTable::cpxZeroPage;
+        t[0xe5] = DispatchTable::sbcZeroPage;
+        t[0xe6] = DispatchTable::incZeroPage;
+        t[0xe8] = DispatchTable::inx;
+        t[0xe9] = DispatchTable::sbcImmediate;
+        t[0xea] = DispatchTable::nop;
+        t[0xec] = DispatchTable::cpxAbsolute;
+        t[0xed] = DispatchTable::sbcAbsolute;
+        t[0xee] = DispatchTable::incAbsolute;
+        t[0xf0] = DispatchTable::beq;
+        t[0xf1] = DispatchTable::sbcIndirectIndexed;
+        t[0xf5] = DispatchTable::sbcZeroPageX;
+        t[0xf6] = DispatchTable::incZeroPageX;
+        t[0xf8] = DispatchTable::sed;
+        t[0xf9] = DispatchTable::sbcAbsoluteY;
+        t[0xfd] = DispatchTable::sbcAbsoluteX;
+        t[0xfe] = DispatchTable::incAbsoluteX;
+        t[0x6c] = cmos ? DispatchTable::jmpIndirect : DispatchTable::jmpIndirectNmos;
+
+        // 65C02 instructions. The NMOS parts treat these as NOPs.
+        t[0x04] = cmos ? DispatchTable::tsbZeroPage : DispatchTable::nop;
+        t[0x0c] = cmos ? DispatchTable::tsbAbsolute : DispatchTable::nop;
+        t[0x12] = cmos ? DispatchTable::oraZeroPageIndirect : DispatchTable::nop;
+        t[0x14] = cmos ? DispatchTable::trbZeroPage : DispatchTable::nop;
+        t[0x1a] = cmos ? DispatchTable::incAccumulator : DispatchTable::nop;
+        t[0x1c] = cmos ? DispatchTable::trbAbsolute : DispatchTable::nop;
+        t[0x32] = cmos ? DispatchTable::andZeroPageIndirect : DispatchTable::nop;
+        t[0x34] = cmos ? DispatchTable::bitZeroPageX : DispatchTable::nop;
+        t[0x3a] = cmos ? DispatchTable::decAccumulator : DispatchTable::nop;
+        t[0x52] = cmos ? DispatchTable::eorZeroPageIndirect : DispatchTable::nop;
+        t[0x5a] = cmos ? DispatchTable::phy : DispatchTable::nop;
+        t[0x64] = cmos ? DispatchTable::stzZeroPage : DispatchTable::nop;
+        t[0x72] = cmos ? DispatchTable::adcZeroPageIndirect : DispatchTable::nop;
+        t[0x74] = cmos ? DispatchTable::stzZeroPageX : DispatchTable::nop;
+        t[0x7a] = cmos ? DispatchTable::ply : DispatchTable::nop;
+        t[0x7c] = cmos ? DispatchTable::jmpAbsoluteIndexedIndirect : DispatchTable::nop;
+        t[0x80] = cmos ? DispatchTable::bra : DispatchTable::nop;
+        t[0x92] = cmos ? DispatchTable::staZeroPageIndirect : DispatchTable::nop;
+        t[0x9c] = cmos ? DispatchTable::stzAbsolute : DispatchTable::nop;
+        t[0x9e] = cmos ? DispatchTable::stzAbsoluteX : DispatchTable::nop;
+        t[0xb2] = cmos ? DispatchTable::ldaZeroPageIndirect : DispatchTable::nop;
+        t[0xd2] = cmos ? DispatchTable::cmpZeroPageIndirect : DispatchTable::nop;
+        t[0xcb] = cmos ? DispatchTable::wai : TRAP;
+        t[0xda] = cmos ? DispatchTable::phx : DispatchTable::nop;
+        t[0xdb] = cmos ? DispatchTable::stp : TRAP;
+        t[0xf2] = cmos ? DispatchTable::sbcZeroPageIndirect : DispatchTable::nop;
+        t[0xfa] = cmos ? DispatchTable::plx : DispatchTable::nop;
+
+        // 65C02 RMB, SMB, BBR and BBS, one opcode per bit
+        for (int bit = 0; bit < 8; bit++) {
+            final int mask = 1 << bit;
+            t[0x07 | bit << 4] = cmos ? (c, lo, hi) -> rmb(c, lo, mask) : DispatchTable::nop;
+            t[0x87 | bit << 4] = cmos ? (c, lo, hi) -> smb(c, lo, mask) : DispatchTable::nop;
+            t[0x0f | bit << 4] = cmos ? (c, lo, hi) -> bbr(c, lo, hi, mask) : DispatchTable::nop;
+            t[0x8f | bit << 4] = cmos ? (c, lo, hi) -> bbs(c, lo, hi, mask) : DispatchTable::nop;
+        }
+
+        return t;
+    }
+
+    private static void trap(Cpu c, int lo, int hi) {
+        c.setOpTrap();
+    }
+
+    /** ORA - Logical Inclusive Or ***********************************************/
+
+    private static void oraImmediate(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a |= lo;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void oraIndexedIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xIndirectAddress(lo), true);
+        s.a |= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void oraZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        s.a |= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void oraAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        s.a |= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void oraIndirectIndexed(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.indirectYAddress(lo), true);
+        s.a |= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void oraZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpxAddress(lo), true);
+        s.a |= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void oraAbsoluteY(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.yAddress(lo, hi), true);
+        s.a |= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void oraAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xAddress(lo, hi), true);
+        s.a |= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void oraZeroPageIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpIndirectAddress(lo), true);
+        s.a |= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    /** AND - Logical AND ********************************************************/
+
+    private static void andImmediate(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a &= lo;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void andIndexedIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xIndirectAddress(lo), true);
+        s.a &= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void andZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        s.a &= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void andAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        s.a &= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void andIndirectIndexed(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.indirectYAddress(lo), true);
+        s.a &= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void andZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpxAddress(lo), true);
+        s.a &= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void andAbsoluteY(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.yAddress(lo, hi), true);
+        s.a &= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void andAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xAddress(lo, hi), true);
+        s.a &= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void andZeroPageIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpIndirectAddress(lo), true);
+        s.a &= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    /** EOR - Exclusive OR *******************************************************/
+
+    private static void eorImmediate(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a ^= lo;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void eorIndexedIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xIndirectAddress(lo), true);
+        s.a ^= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void eorZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        s.a ^= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void eorAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        s.a ^= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void eorIndirectIndexed(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.indirectYAddress(lo), true);
+        s.a ^= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void eorZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpxAddress(lo), true);
+        s.a ^= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void eorAbsoluteY(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.yAddress(lo, hi), true);
+        s.a ^= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void eorAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xAddress(lo, hi), true);
+        s.a ^= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void eorZeroPageIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpIndirectAddress(lo), true);
+        s.a ^= m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    /** ADC - Add with Carry *****************************************************/
+
+    private static void adcImmediate(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        if (s.decimalModeFlag) {
+            s.a = c.adcDecimal(s.a, lo);
+        } else {
+            s.a = c.adc(s.a, lo);
+        }
+    }
+
+    private static void adcIndexedIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xIndirectAddress(lo), true);
+        if (s.decimalModeFlag) {
+            s.a = c.adcDecimal(s.a, m);
+        } else {
+            s.a = c.adc(s.a, m);
+        }
+    }
+
+    private static void adcZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        if (s.decimalModeFlag) {
+            s.a = c.adcDecimal(s.a, m);
+        } else {
+            s.a = c.adc(s.a, m);
+        }
+    }
+
+    private static void adcAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        if (s.decimalModeFlag) {
+            s.a = c.adcDecimal(s.a, m);
+        } else {
+            s.a = c.adc(s.a, m);
+        }
+    }
+
+    private static void adcIndirectIndexed(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.indirectYAddress(lo), true);
+        if (s.decimalModeFlag) {
+            s.a = c.adcDecimal(s.a, m);
+        } else {
+            s.a = c.adc(s.a, m);
+        }
+    }
+
+    private static void adcZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpxAddress(lo), true);
+        if (s.decimalModeFlag) {
+            s.a = c.adcDecimal(s.a, m);
+        } else {
+            s.a = c.adc(s.a, m);
+        }
+    }
+
+    private static void adcAbsoluteY(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.yAddress(lo, hi), true);
+        if (s.decimalModeFlag) {
+            s.a = c.adcDecimal(s.a, m);
+        } else {
+            s.a = c.adc(s.a, m);
+        }
+    }
+
+    private static void adcAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xAddress(lo, hi), true);
+        if (s.decimalModeFlag) {
+            s.a = c.adcDecimal(s.a, m);
+        } else {
+            s.a = c.adc(s.a, m);
+        }
+    }
+
+    private static void adcZeroPageIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpIndirectAddress(lo), true);
+        if (s.decimalModeFlag) {
+            s.a = c.adcDecimal(s.a, m);
+        } else {
+            s.a = c.adc(s.a, m);
+        }
+    }
+
+    /** LDA - Load Accumulator ***************************************************/
+
+    private static void ldaImmediate(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a = lo;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void ldaIndexedIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xIndirectAddress(lo), true);
+        s.a = m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void ldaZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        s.a = m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void ldaAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        s.a = m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void ldaIndirectIndexed(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.indirectYAddress(lo), true);
+        s.a = m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void ldaZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpxAddress(lo), true);
+        s.a = m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void ldaAbsoluteY(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.yAddress(lo, hi), true);
+        s.a = m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void ldaAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xAddress(lo, hi), true);
+        s.a = m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void ldaZeroPageIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpIndirectAddress(lo), true);
+        s.a = m;
+        c.setArithmeticFlags(s.a);
+    }
+
+    /** CMP - Compare Accumulator ************************************************/
+
+    private static void cmpImmediate(Cpu c, int lo, int hi) {
+        c.cmp(c.state.a, lo);
+    }
+
+    private static void cmpIndexedIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xIndirectAddress(lo), true);
+        c.cmp(s.a, m);
+    }
+
+    private static void cmpZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        c.cmp(s.a, m);
+    }
+
+    private static void cmpAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        c.cmp(s.a, m);
+    }
+
+    private static void cmpIndirectIndexed(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.indirectYAddress(lo), true);
+        c.cmp(s.a, m);
+    }
+
+    private static void cmpZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpxAddress(lo), true);
+        c.cmp(s.a, m);
+    }
+
+    private static void cmpAbsoluteY(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.yAddress(lo, hi), true);
+        c.cmp(s.a, m);
+    }
+
+    private static void cmpAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xAddress(lo, hi), true);
+        c.cmp(s.a, m);
+    }
+
+    private static void cmpZeroPageIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpIndirectAddress(lo), true);
+        c.cmp(s.a, m);
+    }
+
+    /** SBC - Subtract with Carry (Borrow) ***************************************/
+
+    private static void sbcImmediate(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        if (s.decimalModeFlag) {
+            s.a = c.sbcDecimal(s.a, lo);
+        } else {
+            s.a = c.sbc(s.a, lo);
+        }
+    }
+
+    private static void sbcIndexedIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xIndirectAddress(lo), true);
+        if (s.decimalModeFlag) {
+            s.a = c.sbcDecimal(s.a, m);
+        } else {
+            s.a = c.sbc(s.a, m);
+        }
+    }
+
+    private static void sbcZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        if (s.decimalModeFlag) {
+            s.a = c.sbcDecimal(s.a, m);
+        } else {
+            s.a = c.sbc(s.a, m);
+        }
+    }
+
+    private static void sbcAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        if (s.decimalModeFlag) {
+            s.a = c.sbcDecimal(s.a, m);
+        } else {
+            s.a = c.sbc(s.a, m);
+        }
+    }
+
+    private static void sbcIndirectIndexed(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.indirectYAddress(lo), true);
+        if (s.decimalModeFlag) {
+            s.a = c.sbcDecimal(s.a, m);
+        } else {
+            s.a = c.sbc(s.a, m);
+        }
+    }
+
+    private static void sbcZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpxAddress(lo), true);
+        if (s.decimalModeFlag) {
+            s.a = c.sbcDecimal(s.a, m);
+        } else {
+            s.a = c.sbc(s.a, m);
+        }
+    }
+
+    private static void sbcAbsoluteY(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.yAddress(lo, hi), true);
+        if (s.decimalModeFlag) {
+            s.a = c.sbcDecimal(s.a, m);
+        } else {
+            s.a = c.sbc(s.a, m);
+        }
+    }
+
+    private static void sbcAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xAddress(lo, hi), true);
+        if (s.decimalModeFlag) {
+            s.a = c.sbcDecimal(s.a, m);
+        } else {
+            s.a = c.sbc(s.a, m);
+        }
+    }
+
+    private static void sbcZeroPageIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpIndirectAddress(lo), true);
+        if (s.decimalModeFlag) {
+            s.a = c.sbcDecimal(s.a, m);
+        } else {
+            s.a = c.sbc(s.a, m);
+        }
+    }
+
+    /** LDY - Load Y Register ****************************************************/
+
+    private static void ldyImmediate(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.y = lo;
+        c.setArithmeticFlags(s.y);
+    }
+
+    private static void ldyZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        s.y = m;
+        c.setArithmeticFlags(s.y);
+    }
+
+    private static void ldyAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        s.y = m;
+        c.setArithmeticFlags(s.y);
+    }
+
+    private static void ldyZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpxAddress(lo), true);
+        s.y = m;
+        c.setArithmeticFlags(s.y);
+    }
+
+    private static void ldyAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xAddress(lo, hi), true);
+        s.y = m;
+        c.setArithmeticFlags(s.y);
+    }
+
+    /** LDX - Load X Register ****************************************************/
+
+    private static void ldxImmediate(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.x = lo;
+        c.setArithmeticFlags(s.x);
+    }
+
+    private static void ldxZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        s.x = m;
+        c.setArithmeticFlags(s.x);
+    }
+
+    private static void ldxAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        s.x = m;
+        c.setArithmeticFlags(s.x);
+    }
+
+    private static void ldxZeroPageY(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpyAddress(lo), true);
+        s.x = m;
+        c.setArithmeticFlags(s.x);
+    }
+
+    private static void ldxAbsoluteY(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.yAddress(lo, hi), true);
+        s.x = m;
+        c.setArithmeticFlags(s.x);
+    }
+
+    /** CPY - Compare Y Register *************************************************/
+
+    private static void cpyImmediate(Cpu c, int lo, int hi) {
+        c.cmp(c.state.y, lo);
+    }
+
+    private static void cpyZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        c.cmp(s.y, m);
+    }
+
+    private static void cpyAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        c.cmp(s.y, m);
+    }
+
+    /** CPX - Compare X Register *************************************************/
+
+    private static void cpxImmediate(Cpu c, int lo, int hi) {
+        c.cmp(c.state.x, lo);
+    }
+
+    private static void cpxZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        c.cmp(s.x, m);
+    }
+
+    private static void cpxAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        c.cmp(s.x, m);
+    }
+
+    /** BIT - Bit Test ***********************************************************/
+
+    private static void bitZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(lo, true);
+        s.nz = (m & 0x80) << 1 | (s.a & m);
+        s.overflowFlag = (m & 0x40) != 0;
+    }
+
+    private static void bitAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(Utils.address(lo, hi), true);
+        s.nz = (m & 0x80) << 1 | (s.a & m);
+        s.overflowFlag = (m & 0x40) != 0;
+    }
+
+    private static void bitAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.xAddress(lo, hi), true);
+        s.nz = (m & 0x80) << 1 | (s.a & m);
+        s.overflowFlag = (m & 0x40) != 0;
+    }
+
+    private static void bitZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int m = c.bus.read(c.zpxAddress(lo), true);
+        s.nz = (m & 0x80) << 1 | (s.a & m);
+        s.overflowFlag = (m & 0x40) != 0;
+    }
+
+    private static void bitImmediate(Cpu c, int lo, int hi) {
+        c.state.setZeroFlag((c.state.a & lo) == 0);
+    }
+
+    /** STA - Store Accumulator **************************************************/
+
+    private static void staIndexedIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(c.xIndirectAddress(lo), c.state.a);
+    }
+
+    private static void staZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(lo, c.state.a);
+    }
+
+    private static void staAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(Utils.address(lo, hi), c.state.a);
+    }
+
+    private static void staIndirectIndexed(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(c.indirectYAddress(lo), c.state.a);
+    }
+
+    private static void staZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(c.zpxAddress(lo), c.state.a);
+    }
+
+    private static void staAbsoluteY(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(c.yAddress(lo, hi), c.state.a);
+    }
+
+    private static void staAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(c.xAddress(lo, hi), c.state.a);
+    }
+
+    private static void staZeroPageIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(c.zpIndirectAddress(lo), c.state.a);
+    }
+
+    /** STY - Store Y Register ***************************************************/
+
+    private static void styZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(lo, c.state.y);
+    }
+
+    private static void styAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(Utils.address(lo, hi), c.state.y);
+    }
+
+    private static void styZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(c.zpxAddress(lo), c.state.y);
+    }
+
+    /** STX - Store X Register ***************************************************/
+
+    private static void stxZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(lo, c.state.x);
+    }
+
+    private static void stxAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(Utils.address(lo, hi), c.state.x);
+    }
+
+    private static void stxZeroPageY(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(c.zpyAddress(lo), c.state.x);
+    }
+
+    /** STZ - 65C02 Store Zero ***************************************************/
+
+    private static void stzZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(lo, 0);
+    }
+
+    private static void stzZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(c.zpxAddress(lo), 0);
+    }
+
+    private static void stzAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(Utils.address(lo, hi), 0);
+    }
+
+    private static void stzAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.bus.write(c.xAddress(lo, hi), 0);
+    }
+
+    /** ASL - Arithmetic Shift Left **********************************************/
+
+    private static void aslAccumulator(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a = c.asl(s.a);
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void aslZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = lo;
+        int m = c.asl(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void aslAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = Utils.address(lo, hi);
+        int m = c.asl(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void aslZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.zpxAddress(lo);
+        int m = c.asl(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void aslAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.xAddress(lo, hi);
+        int m = c.asl(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    /** ROL - Rotate Left ********************************************************/
+
+    private static void rolAccumulator(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a = c.rol(s.a);
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void rolZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = lo;
+        int m = c.rol(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void rolAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = Utils.address(lo, hi);
+        int m = c.rol(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void rolZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.zpxAddress(lo);
+        int m = c.rol(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void rolAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.xAddress(lo, hi);
+        int m = c.rol(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    /** LSR - Logical Shift Right ************************************************/
+
+    private static void lsrAccumulator(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a = c.lsr(s.a);
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void lsrZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = lo;
+        int m = c.lsr(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void lsrAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = Utils.address(lo, hi);
+        int m = c.lsr(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void lsrZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.zpxAddress(lo);
+        int m = c.lsr(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void lsrAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.xAddress(lo, hi);
+        int m = c.lsr(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    /** ROR - Rotate Right *******************************************************/
+
+    private static void rorAccumulator(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a = c.ror(s.a);
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void rorZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = lo;
+        int m = c.ror(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void rorAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = Utils.address(lo, hi);
+        int m = c.ror(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void rorZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.zpxAddress(lo);
+        int m = c.ror(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void rorAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.xAddress(lo, hi);
+        int m = c.ror(c.bus.read(ea, true));
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    /** DEC - Decrement **********************************************************/
+
+    private static void decAccumulator(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a = (s.a - 1) & 0xff;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void decZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = lo;
+        int m = (c.bus.read(ea, true) - 1) & 0xff;
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void decAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = Utils.address(lo, hi);
+        int m = (c.bus.read(ea, true) - 1) & 0xff;
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void decZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.zpxAddress(lo);
+        int m = (c.bus.read(ea, true) - 1) & 0xff;
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void decAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.xAddress(lo, hi);
+        int m = (c.bus.read(ea, true) - 1) & 0xff;
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    /** INC - Increment **********************************************************/
+
+    private static void incAccumulator(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a = (s.a + 1) & 0xff;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void incZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = lo;
+        int m = (c.bus.read(ea, true) + 1) & 0xff;
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void incAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = Utils.address(lo, hi);
+        int m = (c.bus.read(ea, true) + 1) & 0xff;
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void incZeroPageX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.zpxAddress(lo);
+        int m = (c.bus.read(ea, true) + 1) & 0xff;
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    private static void incAbsoluteX(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int ea = c.xAddress(lo, hi);
+        int m = (c.bus.read(ea, true) + 1) & 0xff;
+        c.bus.write(ea, m);
+        c.setArithmeticFlags(m);
+    }
+
+    /** TRB - 65C02 Test and Reset Bit *******************************************/
+
+    private static void trbZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int ea = lo;
+        int m = c.bus.read(ea, true);
+        s.setZeroFlag((s.a & m) == 0);
+        c.bus.write(ea, (m & ~s.a) & 0xff);
+    }
+
+    private static void trbAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int ea = Utils.address(lo, hi);
+        int m = c.bus.read(ea, true);
+        s.setZeroFlag((s.a & m) == 0);
+        c.bus.write(ea, (m & ~s.a) & 0xff);
+    }
+
+    /** TSB - 65C02 Test and Set Bit *********************************************/
+
+    private static void tsbZeroPage(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int ea = lo;
+        int m = c.bus.read(ea, true);
+        s.setZeroFlag((s.a & m) == 0);
+        c.bus.write(ea, (m | s.a) & 0xff);
+    }
+
+    private static void tsbAbsolute(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int ea = Utils.address(lo, hi);
+        int m = c.bus.read(ea, true);
+        s.setZeroFlag((s.a & m) == 0);
+        c.bus.write(ea, (m | s.a) & 0xff);
+    }
+
+    /** Implied, Relative and Jumps **********************************************/
+
+    private static void brk(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.handleBrk(c.state.pc + 1);
+    }
+
+    private static void php(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        // Break flag is always set in the stack value.
+        c.stackPush(s.getStatusFlag() | 0x10);
+    }
+
+    private static void bpl(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        if (!s.getNegativeFlag()) {
+            c.branch(lo);
+        }
+    }
+
+    private static void clc(Cpu c, int lo, int hi) {
+        c.state.carryFlag = false;
+    }
+
+    private static void jsr(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        c.stackPush((s.pc - 1 >> 8) & 0xff); // PC high byte
+        c.stackPush(s.pc - 1 & 0xff);        // PC low byte
+        s.pc = Utils.address(lo, hi);
+    }
+
+    private static void plp(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.setProcessorStatus(c.stackPop());
+    }
+
+    private static void bmi(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        if (s.getNegativeFlag()) {
+            c.branch(lo);
+        }
+    }
+
+    private static void sec(Cpu c, int lo, int hi) {
+        c.state.carryFlag = true;
+    }
+
+    private static void rti(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.setProcessorStatus(c.stackPop());
+        int pcl = c.stackPop();
+        int pch = c.stackPop();
+        c.setProgramCounter(Utils.address(pcl, pch));
+    }
+
+    private static void pha(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.stackPush(c.state.a);
+    }
+
+    private static void bvc(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        if (!s.overflowFlag) {
+            c.branch(lo);
+        }
+    }
+
+    private static void cli(Cpu c, int lo, int hi) {
+        c.state.irqDisableFlag = false;
+    }
+
+    private static void phy(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.stackPush(c.state.y);
+    }
+
+    private static void rts(Cpu c, int lo, int hi) throws MemoryAccessException {
+        int pcl = c.stackPop();
+        int pch = c.stackPop();
+        c.setProgramCounter((Utils.address(pcl, pch) + 1) & 0xffff);
+    }
+
+    private static void pla(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        s.a = c.stackPop();
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void bvs(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        if (s.overflowFlag) {
+            c.branch(lo);
+        }
+    }
+
+    private static void sei(Cpu c, int lo, int hi) {
+        c.state.irqDisableFlag = true;
+    }
+
+    private static void ply(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        s.y = c.stackPop();
+        c.setArithmeticFlags(s.y);
+    }
+
+    private static void bra(Cpu c, int lo, int hi) {
+        c.branch(lo);
+    }
+
+    private static void dey(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.y = (s.y - 1) & 0xff;
+        c.setArithmeticFlags(s.y);
+    }
+
+    private static void txa(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a = s.x;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void bcc(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        if (!s.carryFlag) {
+            c.branch(lo);
+        }
+    }
+
+    private static void tya(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.a = s.y;
+        c.setArithmeticFlags(s.a);
+    }
+
+    private static void txs(Cpu c, int lo, int hi) {
+        c.state.sp = c.state.x;
+    }
+
+    private static void tay(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.y = s.a;
+        c.setArithmeticFlags(s.y);
+    }
+
+    private static void tax(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.x = s.a;
+        c.setArithmeticFlags(s.x);
+    }
+
+    private static void bcs(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        if (s.carryFlag) {
+            c.branch(lo);
+        }
+    }
+
+    private static void clv(Cpu c, int lo, int hi) {
+        c.state.overflowFlag = false;
+    }
+
+    private static void tsx(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.x = s.sp;
+        c.setArithmeticFlags(s.x);
+    }
+
+    private static void iny(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.y = (s.y + 1) & 0xff;
+        c.setArithmeticFlags(s.y);
+    }
+
+    private static void dex(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.x = (s.x - 1) & 0xff;
+        c.setArithmeticFlags(s.x);
+    }
+
+    private static void bne(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        if (!s.getZeroFlag()) {
+            c.branch(lo);
+        }
+    }
+
+    private static void cld(Cpu c, int lo, int hi) {
+        c.state.decimalModeFlag = false;
+    }
+
+    private static void phx(Cpu c, int lo, int hi) throws MemoryAccessException {
+        c.stackPush(c.state.x);
+    }
+
+    private static void wai(Cpu c, int lo, int hi) {
+        c.state.waiting = true;
+    }
+
+    private static void stp(Cpu c, int lo, int hi) {
+        c.state.stopped = true;
+    }
+
+    private static void nop(Cpu c, int lo, int hi) {
+        // Do nothing.
+    }
+
+    private static void inx(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        s.x = (s.x + 1) & 0xff;
+        c.setArithmeticFlags(s.x);
+    }
+
+    private static void beq(Cpu c, int lo, int hi) {
+        CpuState s = c.state;
+        if (s.getZeroFlag()) {
+            c.branch(lo);
+        }
+    }
+
+    private static void sed(Cpu c, int lo, int hi) {
+        c.state.decimalModeFlag = true;
+    }
+
+    private static void plx(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        s.x = c.stackPop();
+        c.setArithmeticFlags(s.x);
+    }
+
+    private static void jmpAbsolute(Cpu c, int lo, int hi) {
+        c.state.pc = Utils.address(lo, hi);
+    }
+
+    private static void jmpIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int pointer = Utils.address(lo, hi);
+        s.pc = Utils.address(c.bus.read(pointer, true), c.bus.read(pointer + 1, true));
+    }
+
+    private static void jmpIndirectNmos(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        // The NMOS 6502 does not carry into the high byte when the pointer
+        // straddles a page boundary.
+        int pointer = Utils.address(lo, hi);
+        int pointerHi = (lo == 0xff) ? Utils.address(0x00, hi) : pointer + 1;
+        s.pc = Utils.address(c.bus.read(pointer, true), c.bus.read(pointerHi, true));
+    }
+
+    private static void jmpAbsoluteIndexedIndirect(Cpu c, int lo, int hi) throws MemoryAccessException {
+        CpuState s = c.state;
+        int pointer = (Utils.address(lo, hi) + s.x) & 0xffff;
+        s.pc = Utils.address(c.bus.read(pointer, true), c.bus.read(pointer + 1, true));
+    }
+
+    private static void rmb(Cpu c, int zp, int mask) throws MemoryAccessException {
+        c.bus.write(zp, c.bus.read(zp, true) & ~mask & 0xff);
+    }
+
+    private static void smb(Cpu c, int zp, int mask) throws MemoryAccessException {
+        c.bus.write(zp, c.bus.read(zp, true) | mask);
+    }
+
+    private static void bbr(Cpu c, int zp, int offset, int mask) throws MemoryAccessException {
+        if ((c.bus.read(zp, true) & mask) == 0) {
+            c.branch(offset);
+        }
+    }
+
+    private static void bbs(Cpu c, int zp, int offset, int mask) throws MemoryAccessException {
+        if ((c.bus.read(zp, true) & mask) != 0) {
+            c.branch(offset);
+        }
+    }
+}
@@ -0,0 +1,623 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.exceptions.SymonException;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.MachineFactory;
+import com.loomcom.symon.util.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a simulated machine without any user interface.
+ * <p/>
+ * The CPU is stepped in a tight loop until a cycle budget is used up, the
+ * program counter reaches a stop address, a BRK or 65C02 STP is executed,
+ * or (if asked to) the program traps itself in a jump or branch to its own address, as
+ * self-checking test programs do when they finish or fail. Output
+ * written to the machine's ACIA is copied to an output stream (normally
+ * stdout), and bytes read from an input stream (normally stdin) are fed to
+ * the ACIA's receive register.
+ * <p/>
+ * When that input is recorded, the run can be repeated exactly, without
+ * it, by replaying the recording. A run can also be profiled, to find
+ * where the program spends its time.
+ */
+public class HeadlessRunner {
+
+    private final static Logger logger = LoggerFactory.getLogger(HeadlessRunner.class.getName());
+
+    // If true, swap LF for CR on input, as the Simulator does when pasting.
+    private static final boolean SWAP_CR_AND_LF = true;
+
+    // How long to wait for input at a time while the CPU is idle
+    private static final long IDLE_INPUT_WAIT_MS = 10;
+
+    public enum StopReason {
+        CYCLE_LIMIT,
+        STOP_ADDRESS,
+        BREAK,
+        TRAP,
+        HALT
+    }
+
+    private final Machine machine;
+
+    /* Maximum number of cycles to run, or 0 to run without limit */
+    private long maxCycles = 0;
+
+    /* Address at which to stop, or -1 for none */
+    private int stopAddress = -1;
+
+    private boolean haltOnBreak = Preferences.DEFAULT_HALT_ON_BREAK;
+
+    /* If true, stop when an instruction leaves the program counter unchanged */
+    private boolean stopOnTrap = false;
+
+    private OutputStream output;
+
+    private final BlockingQueue<Integer> inputQueue = new LinkedBlockingQueue<>();
+
+    /* True until the input stream, if any, has been read to the end */
+    private volatile boolean inputOpen = false;
+
+    /* Input given to the machine, if it is being recorded */
+    private InputLog inputLog;
+
+    /* Where the program spends its time, if it is being profiled */
+    private Profiler profiler;
+
+    private long instructionCount;
+    private long cycleCount;
+    private long elapsedNanos;
+
+    public HeadlessRunner(Machine machine) {
+        this.machine = machine;
+    }
+
+    public void setMaxCycles(long maxCycles) {
+        this.maxCycles = maxCycles;
+    }
+
+    public void setStopAddress(int stopAddress) {
+        this.stopAddress = stopAddress;
+    }
+
+    public void setHaltOnBreak(boolean haltOnBreak) {
+        this.haltOnBreak = haltOnBreak;
+    }
+
+    public void setStopOnTrap(boolean stopOnTrap) {
+        this.stopOnTrap = stopOnTrap;
+    }
+
+    /**
+     * Set the stream that ACIA output is written to.
+     */
+    public void setOutput(OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Start a daemon thread that copies the given stream into the ACIA's
+     * receive queue, one byte at a time.
+     */
+    public void setInput(final InputStream input) {
+        inputOpen = true;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int b;
+                    while ((b = input.read()) != -1) {
+                        inputQueue.add(b);
+                    }
+                } catch (IOException ex) {
+                    logger.error("Error reading headless input", ex);
+                } finally {
+                    inputOpen = false;
+                }
+            }
+        }, "headless-input");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Start recording the input given to the machine from its current
+     * state, for replayRecording() to repeat.
+     */
+    public void startRecording() {
+        inputLog = InputLog.record(machine.getBus());
+    }
+
+    /**
+     * Stop recording input and write the recording to a file.
+     */
+    public void saveRecording(File recordingFile) throws IOException {
+        inputLog.stop();
+        try (FileChannel channel = FileChannel.open(recordingFile.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            inputLog.writeTo(channel);
+        }
+        inputLog = null;
+        logger.info("Saved input recording to {}", recordingFile);
+    }
+
+    /**
+     * Restore the machine to where a recording started, and have the
+     * recorded input given to it again as it runs.
+     *
+     * @return The recording.
+     */
+    public InputLog replayRecording(File recordingFile) throws IOException, SymonException {
+        InputLog log;
+        try (FileChannel channel = FileChannel.open(recordingFile.toPath(), StandardOpenOption.READ)) {
+            log = InputLog.readFrom(channel);
+        }
+        log.replay(machine.getBus());
+        return log;
+    }
+
+    /**
+     * Load debug symbols output by CC65, to name the routines in a profile.
+     */
+    public void loadSymbols(File symbolFile) throws IOException {
+        machine.getCpu().getSymbolTable().load(symbolFile);
+        logger.info("Loaded debug symbols from {}", symbolFile);
+    }
+
+    /**
+     * Start counting where the program spends its time, from here on.
+     */
+    public void startProfiling() {
+        profiler = new Profiler();
+        machine.getCpu().setProfiler(profiler);
+    }
+
+    /**
+     * Stop profiling and write a report of the hot spots found to a file.
+     */
+    public void saveProfile(File reportFile) throws IOException {
+        machine.getCpu().setProfiler(null);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8))) {
+            profiler.writeReport(out, machine.getCpu().getSymbolTable(), Profiler.DEFAULT_REPORT_LENGTH);
+        }
+        profiler = null;
+        logger.info("Saved profile to {}", reportFile);
+    }
+
+    public Machine getMachine() {
+        return machine;
+    }
+
+    /**
+     * @return The number of instructions executed by the last call to <code>run()</code>.
+     */
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+
+    /**
+     * @return The number of cycles executed by the last call to <code>run()</code>.
+     */
+    public long getCycleCount() {
+        return cycleCount;
+    }
+
+    /**
+     * @return The wall clock time taken by the last call to <code>run()</code>.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Describe the outcome of the last run.
+     *
+     * @param result The stop reason, or the error that ended the run
+     */
+    public String getSummary(String result) {
+        return "Stopped (" + result + ") at $" + Utils.wordToHex(machine.getCpu().getProgramCounter()) +
+               " after " + instructionCount + " instructions, " + cycleCount + " cycles, " +
+               (elapsedNanos / 1000000) + " ms (" +
+               String.format("%.2f", Cpu.effectiveMhz(cycleCount, elapsedNanos)) + " MHz effective)";
+    }
+
+    /**
+     * Load a ROM image into the machine's ROM address space.
+     */
+    public void loadRom(File romFile) throws IOException, SymonException {
+        if (machine.getRom() == null) {
+            throw new SymonException("Machine " + machine.getName() + " does not have a ROM.");
+        }
+        Memory rom = Memory.makeROM(machine.getRomBase(), machine.getRomBase() + machine.getRomSize() - 1, romFile);
+        machine.setRom(rom);
+    }
+
+    /**
+     * Load a program image into memory at the given address.
+     */
+    public void loadProgram(File programFile, int loadAddress) throws IOException, MemoryAccessException {
+        byte[] program = Files.readAllBytes(programFile.toPath());
+        Bus bus = machine.getBus();
+        for (int i = 0; i < program.length; i++) {
+            bus.write(loadAddress + i, program[i] & 0xff);
+        }
+        logger.info("Loaded {} bytes at address 0x{}", program.length, Integer.toString(loadAddress, 16));
+    }
+
+    /**
+     * Restore the machine from a snapshot file written by saveSnapshot().
+     */
+    public void restoreSnapshot(File snapshotFile) throws IOException, SymonException {
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            Snapshot.readFrom(channel).restore(machine.getBus());
+        }
+    }
+
+    /**
+     * Save a snapshot of the whole machine to a file.
+     */
+    public void saveSnapshot(File snapshotFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Snapshot.take(machine.getBus()).writeTo(channel);
+        }
+        logger.info("Saved snapshot to {}", snapshotFile);
+    }
+
+    /**
+     * Run the machine until one of the stop conditions is met.
+     *
+     * @return The reason the run stopped.
+     */
+    public StopReason run() throws MemoryAccessException, IOException {
+        Cpu cpu = machine.getCpu();
+        Acia acia = machine.getAcia();
+        long startCycles = cpu.getCycleCount();
+        long startTime = System.nanoTime();
+
+        instructionCount = 0;
+        cycleCount = 0;
+
+        try {
+            return runLoop(cpu, acia, startCycles);
+        } finally {
+            elapsedNanos = System.nanoTime() - startTime;
+        }
+    }
+
+    private StopReason runLoop(Cpu cpu, Acia acia, long startCycles) throws MemoryAccessException, IOException {
+        long startSteps = cpu.getCpuState().stepCounter;
+        if (stopAddress >= 0) {
+            // A step may run a whole compiled block on the JIT core, but
+            // never one that passes the stop address
+            boolean[] stops = new boolean[0x10000];
+            stops[stopAddress & 0xffff] = true;
+            cpu.setStopAddresses(stops);
+        } else {
+            cpu.setStopAddresses(null);
+        }
+        while (true) {
+            cpu.step();
+
+            boolean sent = false;
+            boolean offered = false;
+            if (acia != null) {
+                if (acia.hasTxChar() && output != null) {
+                    output.write(acia.txRead(true));
+                    output.flush();
+                    sent = true;
+                }
+                // Only offer input once the guest has polled the ACIA, or is
+                // waiting for it to interrupt, so that characters are not
+                // lost to the ROM's ACIA initialization.
+                if (!acia.hasRxChar() && (acia.isStatusPolled() || cpu.isWaitingForInterrupt())) {
+                    offered = true;
+                    Integer ch = inputQueue.poll();
+                    // Taking output may be what the CPU was waiting for
+                    if (ch == null && !sent && cpu.isIdle()) {
+                        ch = waitForInput(cpu, startCycles);
+                    }
+                    if (ch != null) {
+                        if (SWAP_CR_AND_LF && ch == 0x0a) {
+                            ch = 0x0d;
+                        }
+                        if (inputLog != null) {
+                            inputLog.recordRx(ch);
+                        }
+                        acia.rxWrite(ch);
+                    }
+                }
+            }
+            // Nothing else the runner does can end a WAI
+            if (!offered && !sent && cpu.isWaitingForInterrupt() && cpu.isIdle()) {
+                skipToCycleLimit(cpu, startCycles);
+            }
+            // Counted after any idle cycles were skipped
+            instructionCount = cpu.getCpuState().stepCounter - startSteps;
+            cycleCount = cpu.getCycleCount() - startCycles;
+
+            if (cpu.isStopped()) {
+                return StopReason.HALT;
+            }
+            if (haltOnBreak && cpu.getInstruction() == 0x00) {
+                return StopReason.BREAK;
+            }
+            if (cpu.getProgramCounter() == stopAddress) {
+                return StopReason.STOP_ADDRESS;
+            }
+            if (stopOnTrap && cpu.getProgramCounter() == cpu.getCpuState().lastPc) {
+                return StopReason.TRAP;
+            }
+            if (maxCycles > 0 && cycleCount >= maxCycles) {
+                return StopReason.CYCLE_LIMIT;
+            }
+        }
+    }
+
+    /*
+     * The CPU is idling, waiting for input that hasn't arrived. Rather than
+     * spin, wait for more input if there may be some, or else skip straight
+     * to the cycle limit, since nothing will happen before it.
+     */
+    private Integer waitForInput(Cpu cpu, long startCycles) {
+        if (inputOpen) {
+            try {
+                return inputQueue.poll(IDLE_INPUT_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        if (inputQueue.isEmpty()) {
+            skipToCycleLimit(cpu, startCycles);
+        }
+        return inputQueue.poll();
+    }
+
+    /*
+     * Let the idle CPU skip to the cycle limit. If there is none, and no
+     * device event to run, wait a while for an interrupt instead of
+     * spinning.
+     */
+    private void skipToCycleLimit(Cpu cpu, long startCycles) {
+        if (maxCycles > 0) {
+            cpu.skipIdleCycles(maxCycles - (cpu.getCycleCount() - startCycles));
+        } else if (cpu.getScheduler().getNextEventCycle() == Long.MAX_VALUE) {
+            cpu.awaitInterrupt(TimeUnit.MILLISECONDS.toNanos(IDLE_INPUT_WAIT_MS));
+        }
+    }
+
+    /**
+     * Parse an address or count. Hexadecimal values may be given with a
+     * leading '$' or '0x'.
+     */
+    static long parseNumber(String value) {
+        String v = value.trim().toLowerCase(Locale.ENGLISH);
+        if (v.startsWith("$")) {
+            return Long.parseLong(v.substring(1), 16);
+        } else if (v.startsWith("0x")) {
+            return Long.parseLong(v.substring(2), 16);
+        }
+        return Long.parseLong(v);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: symon -headless [-machine <name>] [-rom <file>] [-program <file>]\n" +
+                           "                      [-load <address>] [-start <address>] [-cycles <count>]\n" +
+                           "                      [-stop <address>] [-nobreak] [-trap] [-cpu <6502|65c02>]\n" +
+                           "                      [-restore <file>] [-save <file>]\n" +
+                           "                      [-record <file>] [-replay <file>]\n" +
+                           "                      [-symbols <file>] [-profile <file>]");
+    }
+
+    /**
+     * Entry point for headless runs.
+     *
+     * @param args Program arguments
+     * @return The process exit status.
+     */
+    public static int main(String[] args) throws Exception {
+        String machineName = MachineFactory.MachineEnum.SYMON.getCmdLine();
+        File romFile = null;
+        File programFile = null;
+        int loadAddress = Preferences.DEFAULT_PROGRAM_LOAD_ADDRESS;
+        int startAddress = -1;
+        long maxCycles = 0;
+        int stopAddress = -1;
+        boolean haltOnBreak = Preferences.DEFAULT_HALT_ON_BREAK;
+        boolean stopOnTrap = false;
+        InstructionTable.CpuBehavior behavior = null;
+        File restoreFile = null;
+        File saveFile = null;
+        File recordFile = null;
+        File replayFile = null;
+        File symbolFile = null;
+        File profileFile = null;
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String arg = args[i].toLowerCase(Locale.ENGLISH);
+                boolean hasValue = (i + 1) < args.length;
+                if (arg.equals("-headless")) {
+                    continue;
+                } else if (arg.equals("-nobreak")) {
+                    haltOnBreak = false;
+                } else if (arg.equals("-trap")) {
+                    stopOnTrap = true;
+                } else if (!hasValue) {
+                    usage();
+                    return 2;
+                } else if (arg.equals("-machine")) {
+                    machineName = args[++i].trim().toLowerCase(Locale.ENGLISH);
+                } else if (arg.equals("-rom")) {
+                    romFile = new File(args[++i]);
+                } else if (arg.equals("-program")) {
+                    programFile = new File(args[++i]);
+                } else if (arg.equals("-load")) {
+                    loadAddress = (int) parseNumber(args[++i]);
+                } else if (arg.equals("-start")) {
+                    startAddress = (int) parseNumber(args[++i]);
+                } else if (arg.equals("-cycles")) {
+                    maxCycles = parseNumber(args[++i]);
+                } else if (arg.equals("-stop")) {
+                    stopAddress = (int) parseNumber(args[++i]);
+                } else if (arg.equals("-restore")) {
+                    restoreFile = new File(args[++i]);
+                } else if (arg.equals("-save")) {
+                    saveFile = new File(args[++i]);
+                } else if (arg.equals("-record")) {
+                    recordFile = new File(args[++i]);
+                } else if (arg.equals("-replay")) {
+                    replayFile = new File(args[++i]);
+                } else if (arg.equals("-symbols")) {
+                    symbolFile = new File(args[++i]);
+                } else if (arg.equals("-profile")) {
+                    profileFile = new File(args[++i]);
+                } else if (arg.equals("-cpu")) {
+                    String cpuName = args[++i].trim().toLowerCase(Locale.ENGLISH);
+                    if (cpuName.equals("6502")) {
+                        behavior = InstructionTable.CpuBehavior.NMOS_6502;
+                    } else if (cpuName.equals("65c02")) {
+                        behavior = InstructionTable.CpuBehavior.CMOS_6502;
+                    } else {
+                        usage();
+                        return 2;
+                    }
+                } else {
+                    usage();
+                    return 2;
+                }
+            }
+        } catch (NumberFormatException ex) {
+            usage();
+            return 2;
+        }
+
+        MachineFactory.MachineEnum machineType = MachineFactory.MachineEnum.fromString(machineName);
+        if (machineType == null) {
+            System.err.println("Unknown machine: " + machineName);
+            return 2;
+        }
+
+        HeadlessRunner runner = new HeadlessRunner(MachineFactory.createMachine(machineType));
+        Cpu cpu = runner.getMachine().getCpu();
+        if (behavior != null) {
+            cpu.setBehavior(behavior);
+        }
+
+        if (romFile != null) {
+            runner.loadRom(romFile);
+        }
+        if (symbolFile != null) {
+            runner.loadSymbols(symbolFile);
+        }
+        if (programFile != null) {
+            runner.loadProgram(programFile, loadAddress);
+        }
+
+        cpu.reset();
+        if (startAddress >= 0) {
+            cpu.setProgramCounter(startAddress);
+        } else if (programFile != null) {
+            cpu.setProgramCounter(loadAddress);
+        }
+        if (restoreFile != null) {
+            runner.restoreSnapshot(restoreFile);
+        }
+        boolean finished = false;
+        if (replayFile != null) {
+            InputLog log = runner.replayRecording(replayFile);
+            // Stop where the recording did, unless asked otherwise
+            if (maxCycles == 0) {
+                maxCycles = log.getEndCycle() - cpu.getCycleCount();
+                // Zero would mean no limit, but the recording is already over
+                finished = maxCycles <= 0;
+            }
+        }
+
+        // Run as fast as the host allows.
+        cpu.setUnthrottled(true);
+
+        runner.setMaxCycles(maxCycles);
+        runner.setStopAddress(stopAddress);
+        runner.setHaltOnBreak(haltOnBreak);
+        runner.setStopOnTrap(stopOnTrap);
+        runner.setOutput(System.out);
+        // A replay gets all of its input from the recording
+        if (replayFile == null) {
+            runner.setInput(System.in);
+        }
+        if (recordFile != null) {
+            runner.startRecording();
+        }
+        if (profileFile != null) {
+            runner.startProfiling();
+        }
+
+        String result;
+        int status = 0;
+        try {
+            result = (finished ? StopReason.CYCLE_LIMIT : runner.run()).toString();
+        } catch (MemoryAccessException ex) {
+            result = ex.getMessage();
+            status = 1;
+        }
+
+        System.out.flush();
+        System.err.println(runner.getSummary(result));
+        if (recordFile != null) {
+            runner.saveRecording(recordFile);
+        }
+        if (profileFile != null) {
+            runner.saveProfile(profileFile);
+        }
+        if (saveFile != null && status == 0) {
+            runner.saveSnapshot(saveFile);
+        }
+        return status;
+    }
+}
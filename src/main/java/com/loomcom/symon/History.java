@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A record of the recent past of a machine, so that the debugger can step
+ * backwards. Every so many cycles the history takes a keyframe of the CPU
+ * and of every device except memory, which is small. In between, the bus
+ * notes the old value of every byte of memory written, in a journal.
+ * <p/>
+ * To go back to an earlier instruction, the journal is undone to the
+ * nearest keyframe before it, the keyframe is restored, and the machine
+ * runs forward again to the instruction wanted. Input from outside the
+ * machine that arrived in the meantime is not replayed, so the machine
+ * may take a different path if it reads the console between the keyframe
+ * and the instruction.
+ * <p/>
+ * The journal is a ring of ints, so recording a write costs a couple of
+ * stores. When it fills, the oldest keyframes are forgotten.
+ */
+public class History {
+
+    // Cycles between keyframes
+    public static final long DEFAULT_KEYFRAME_INTERVAL = 100000;
+
+    // Writes that the journal holds, a power of two
+    public static final int DEFAULT_JOURNAL_SIZE = 1 << 20;
+
+    private static final class Keyframe {
+        final long step;
+        final long cycle;
+        final long journalPosition;
+        final byte[] state;
+
+        Keyframe(long step, long cycle, long journalPosition, byte[] state) {
+            this.step = step;
+            this.cycle = cycle;
+            this.journalPosition = journalPosition;
+            this.state = state;
+        }
+    }
+
+    private final Bus bus;
+    private final Cpu cpu;
+    private final long keyframeInterval;
+
+    // Each entry is (address << 8 | old value). Positions count every
+    // write ever recorded, and are masked to index the ring.
+    private final int[] journal;
+    private final int journalMask;
+    private long journalStart;
+    private long journalEnd;
+
+    private final ArrayDeque<Keyframe> keyframes = new ArrayDeque<>();
+
+    // Devices saved in keyframes, and the bytes they need
+    private List<Device> devices;
+    private int stateSize;
+
+    private boolean recording;
+
+    public History(Bus bus) {
+        this(bus, DEFAULT_KEYFRAME_INTERVAL, DEFAULT_JOURNAL_SIZE);
+    }
+
+    /**
+     * @param keyframeInterval Cycles between keyframes. Going back costs
+     *                         up to this many cycles of running forward.
+     * @param journalSize      The number of memory writes to remember,
+     *                         which must be a power of two.
+     */
+    public History(Bus bus, long keyframeInterval, int journalSize) {
+        if (Integer.bitCount(journalSize) != 1) {
+            throw new IllegalArgumentException("Journal size must be a power of two.");
+        }
+        this.bus = bus;
+        this.cpu = bus.getCpu();
+        this.keyframeInterval = keyframeInterval;
+        this.journal = new int[journalSize];
+        this.journalMask = journalSize - 1;
+        clear();
+    }
+
+    /**
+     * Start recording. Call {@link #checkpoint()} before each step.
+     */
+    public void start() {
+        recording = true;
+        bus.setHistory(this);
+    }
+
+    public void stop() {
+        recording = false;
+        bus.setHistory(null);
+        clear();
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Forget everything recorded so far. Call this whenever memory or
+     * devices change other than by running the CPU, such as on reset or
+     * when a ROM is loaded.
+     */
+    public void clear() {
+        keyframes.clear();
+        journalStart = journalEnd = 0;
+
+        devices = new ArrayList<>();
+        stateSize = cpu.getStateSize();
+        for (Device device : bus.getDevices()) {
+            if (!(device instanceof Memory)) {
+                devices.add(device);
+                stateSize += device.getStateSize();
+            }
+        }
+    }
+
+    /**
+     * Take a keyframe if one is due. Must be called between instructions.
+     */
+    public void checkpoint() {
+        Keyframe newest = keyframes.peekLast();
+        if (newest == null || cpu.getCycleCount() - newest.cycle >= keyframeInterval) {
+            takeKeyframe();
+        }
+    }
+
+    /**
+     * Called by the bus before a byte of memory is written.
+     */
+    void recordWrite(int address, int oldValue) {
+        if (journalEnd - journalStart == journal.length) {
+            forgetOldestKeyframe();
+        }
+        journal[(int) (journalEnd++ & journalMask)] = address << 8 | (oldValue & 0xff);
+    }
+
+    /**
+     * @return The earliest step the machine can go back to, or -1 if
+     *         nothing has been recorded.
+     */
+    public long getEarliestStep() {
+        Keyframe oldest = keyframes.peekFirst();
+        return oldest == null ? -1 : oldest.step;
+    }
+
+    /**
+     * Go back a number of instructions.
+     *
+     * @return False if not that much history was recorded, in which case
+     *         the machine goes back as far as it can.
+     */
+    public boolean stepBack(int steps) throws MemoryAccessException {
+        long target = cpu.getCpuState().stepCounter - steps;
+        long earliest = getEarliestStep();
+        if (earliest < 0) {
+            return false;
+        }
+        rewindTo(Math.max(target, earliest));
+        return target >= earliest;
+    }
+
+    /**
+     * Go back to the most recent instruction before this one at which the
+     * test holds, such as a breakpoint.
+     *
+     * @return False if there was no such instruction in the history, in
+     *         which case the machine is left at the earliest step recorded.
+     */
+    public boolean runBackUntil(Predicate<CpuState> test) throws MemoryAccessException {
+        long limit = cpu.getCpuState().stepCounter;
+        while (!keyframes.isEmpty()) {
+            // Search forward from the latest keyframe, then the one before
+            Keyframe keyframe = keyframes.peekLast();
+            restore(keyframe);
+            if (keyframe.step < limit) {
+                long found = replayTo(limit, test);
+                if (found >= 0) {
+                    rewindTo(found);
+                    return true;
+                }
+                restore(keyframe);
+            }
+            if (keyframes.size() == 1) {
+                return false;
+            }
+            limit = keyframe.step;
+            keyframes.pollLast();
+        }
+        return false;
+    }
+
+    /**
+     * Return the machine to the start of the given step, which must not
+     * be earlier than getEarliestStep().
+     */
+    public void rewindTo(long step) throws MemoryAccessException {
+        Keyframe keyframe = null;
+        Iterator<Keyframe> newest = keyframes.descendingIterator();
+        while (newest.hasNext()) {
+            keyframe = newest.next();
+            if (keyframe.step <= step) {
+                break;
+            }
+        }
+        if (keyframe == null || keyframe.step > step) {
+            throw new IllegalArgumentException("Step " + step + " is before the start of the history.");
+        }
+
+        restore(keyframe);
+        replayTo(step, null);
+    }
+
+    private void takeKeyframe() {
+        ByteBuffer out = ByteBuffer.allocate(stateSize);
+        cpu.saveState(out);
+        for (Device device : devices) {
+            device.saveState(out);
+        }
+        CpuState state = cpu.getCpuState();
+        keyframes.addLast(new Keyframe(state.stepCounter, state.cycleCounter, journalEnd, out.array()));
+    }
+
+    private void forgetOldestKeyframe() {
+        keyframes.pollFirst();
+        Keyframe oldest = keyframes.peekFirst();
+        // With no keyframe left the journal is no use, until the next checkpoint
+        journalStart = oldest == null ? journalEnd : oldest.journalPosition;
+    }
+
+    /*
+     * Undo memory writes back to a keyframe, then restore the CPU and the
+     * devices saved in it. Later keyframes are forgotten.
+     */
+    private void restore(Keyframe keyframe) throws MemoryAccessException {
+        bus.setHistory(null);
+        try {
+            for (long position = journalEnd - 1; position >= keyframe.journalPosition; position--) {
+                int entry = journal[(int) (position & journalMask)];
+                bus.write(entry >>> 8, entry & 0xff);
+            }
+        } finally {
+            bus.setHistory(recording ? this : null);
+        }
+        journalEnd = keyframe.journalPosition;
+
+        Iterator<Keyframe> newest = keyframes.descendingIterator();
+        while (newest.hasNext() && newest.next() != keyframe) {
+            newest.remove();
+        }
+
+        // The CPU first, since devices schedule events against its cycle counter
+        ByteBuffer in = ByteBuffer.wrap(keyframe.state);
+        cpu.restoreState(in);
+        for (Device device : devices) {
+            device.restoreState(in);
+        }
+    }
+
+    /*
+     * Run forward to the given step, recording as usual. The JIT core is
+     * made to run one instruction per step, keeping its compiled blocks,
+     * and idle loops are stepped through rather than skipped, so that the
+     * replay stops on exactly the given step. There is no need to keep to
+     * the simulated clock speed.
+     *
+     * @return The last step at which the test held, or -1 if it never did.
+     */
+    private long replayTo(long step, Predicate<CpuState> test) throws MemoryAccessException {
+        CpuState state = cpu.getCpuState();
+        boolean singleStepping = cpu.isSingleStepping();
+        boolean idleSkipping = cpu.isIdleSkipping();
+        boolean unthrottled = cpu.isUnthrottled();
+        cpu.setSingleStepping(true);
+        cpu.setIdleSkipping(false);
+        if (!unthrottled) {
+            cpu.setUnthrottled(true);
+        }
+
+        long found = -1;
+        try {
+            while (state.stepCounter < step) {
+                if (test != null && test.test(state)) {
+                    found = state.stepCounter;
+                }
+                long steps = state.stepCounter;
+                long cycles = state.cycleCounter;
+                checkpoint();
+                cpu.step();
+                if (state.stepCounter == steps && state.cycleCounter == cycles) {
+                    // Stopped, and going nowhere
+                    break;
+                }
+            }
+        } finally {
+            if (!unthrottled) {
+                cpu.setUnthrottled(false);
+            }
+            cpu.setIdleSkipping(idleSkipping);
+            cpu.setSingleStepping(singleStepping);
+        }
+        return found;
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.SdController;
+import com.loomcom.symon.exceptions.SnapshotException;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A record of everything that reached a machine from outside while it ran,
+ * each with the CPU cycle at which it arrived: characters received by the
+ * ACIA, interrupts asserted by hand, sectors read from the SD card image,
+ * and changes to the simulated clock speed, which sets how many cycles the
+ * ACIA takes over a character. Along with a snapshot of the machine when recording started, this
+ * is enough to run the machine again to exactly the same result, as fast
+ * as the host allows, without any of the original input.
+ * <p/>
+ * Input must be given to the machine between instructions, and recorded
+ * at the same time, for it to be replayed at the same point. Replay
+ * delivers it from an event on the CPU's scheduler, which idle loops never
+ * skip past. The JIT core runs a whole compiled block in a step, so input
+ * could only be given between blocks, and which blocks are compiled isn't
+ * part of a snapshot, so both recording and replay use the block core in
+ * its place. Output is taken from the
+ * ACIA as soon as it is offered, after every step, as both the simulator
+ * and the headless runner do.
+ * <p/>
+ * The format is a versioned binary blob:
+ * <pre>
+ *   int    MAGIC, "SYMI"
+ *   int    VERSION
+ *   long   cycle at which recording started
+ *   long   cycle at which recording stopped
+ *   long   CPU clock period in nanoseconds when recording started
+ *   int    length of snapshot, then the snapshot, see Snapshot
+ *   for each event:
+ *     varint cycles since the previous event (or the snapshot)
+ *     byte   kind, then for RX the character, for SECTOR an int
+ *            position and SECTOR_SIZE bytes of data, or for CLOCK the
+ *            long clock period in nanoseconds
+ * </pre>
+ * All values are big-endian; varints are unsigned LEB128.
+ */
+public class InputLog {
+
+    static final int MAGIC = 0x53594d49;
+    static final int VERSION = 2;
+
+    // Kinds of event
+    private static final byte RX = 1;
+    private static final byte NMI = 2;
+    private static final byte IRQ = 3;
+    private static final byte SECTOR = 4;
+    private static final byte CLOCK = 5;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4;
+
+    private final Snapshot start;
+    private final long startCycle;
+    private final long clockPeriodInNs;
+    private ByteBuffer events;
+    private long lastCycle;
+    private long endCycle = -1;
+
+    // While recording
+    private Bus bus;
+    private Cpu.Core core;
+    private final List<SdController> sdControllers = new ArrayList<>();
+    private final List<SdController.SectorSource> sectorSources = new ArrayList<>();
+
+    private InputLog(Snapshot start, long startCycle, long clockPeriodInNs, ByteBuffer events) {
+        this.start = start;
+        this.startCycle = startCycle;
+        this.clockPeriodInNs = clockPeriodInNs;
+        this.events = events;
+        this.lastCycle = startCycle;
+    }
+
+    /**
+     * Start recording a machine from its current state. The machine should
+     * be stopped while this runs. Reads from any SD card are recorded
+     * automatically; other input must be recorded as it is given.
+     */
+    public static InputLog record(Bus bus) {
+        Cpu cpu = bus.getCpu();
+        InputLog log = new InputLog(Snapshot.take(bus), cpu.getCycleCount(), cpu.getClockPeriodInNs(),
+                                    ByteBuffer.allocate(1024));
+        log.bus = bus;
+        log.core = bus.getCpu().getCore();
+        if (log.core == Cpu.Core.JIT) {
+            bus.getCpu().setCore(Cpu.Core.BLOCK);
+        }
+        for (Device device : bus.getDevices()) {
+            if (device instanceof SdController) {
+                SdController sd = (SdController) device;
+                SdController.SectorSource source = sd.getSectorSource();
+                sd.setSectorSource((position, sector) -> {
+                    source.readSector(position, sector);
+                    log.recordSector(position, sector);
+                });
+                log.sdControllers.add(sd);
+                log.sectorSources.add(source);
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Note that the ACIA has been given a character.
+     */
+    public void recordRx(int data) {
+        begin(RX, 1).put((byte) data);
+    }
+
+    /**
+     * Note that an NMI has been asserted from outside the machine.
+     */
+    public void recordNmi() {
+        begin(NMI, 0);
+    }
+
+    /**
+     * Note that an IRQ has been asserted from outside the machine.
+     */
+    public void recordIrq() {
+        begin(IRQ, 0);
+    }
+
+    /**
+     * Note that the CPU's clock period is about to be changed. Device
+     * timings, such as the ACIA's, are in cycles worked out from it.
+     */
+    public void recordClockPeriod(long clockPeriodInNs) {
+        begin(CLOCK, 8).putLong(clockPeriodInNs);
+    }
+
+    private void recordSector(int position, byte[] sector) {
+        begin(SECTOR, 4 + sector.length).putInt(position).put(sector);
+    }
+
+    /*
+     * Start an event at the current cycle, making room for its payload.
+     */
+    private ByteBuffer begin(byte kind, int payload) {
+        if (bus == null) {
+            throw new IllegalStateException("Not recording.");
+        }
+        long cycle = bus.getCpu().getCycleCount();
+        if (events.remaining() < 10 + 1 + payload) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(events.capacity() * 2, events.position() + 11 + payload));
+            events.flip();
+            larger.put(events);
+            events = larger;
+        }
+
+        long delta = cycle - lastCycle;
+        while ((delta & ~0x7fL) != 0) {
+            events.put((byte) ((delta & 0x7f) | 0x80));
+            delta >>>= 7;
+        }
+        events.put((byte) delta);
+        events.put(kind);
+        lastCycle = cycle;
+        return events;
+    }
+
+    /**
+     * Stop recording. SD card reads go straight to the card again.
+     */
+    public void stop() {
+        if (bus == null) {
+            return;
+        }
+        for (int i = 0; i < sdControllers.size(); i++) {
+            sdControllers.get(i).setSectorSource(sectorSources.get(i));
+        }
+        sdControllers.clear();
+        sectorSources.clear();
+        endCycle = bus.getCpu().getCycleCount();
+        if (core == Cpu.Core.JIT) {
+            bus.getCpu().setCore(core);
+        }
+        bus = null;
+    }
+
+    public boolean isRecording() {
+        return bus != null;
+    }
+
+    /**
+     * @return The cycle at which recording started.
+     */
+    public long getStartCycle() {
+        return startCycle;
+    }
+
+    /**
+     * @return The cycle at which recording stopped, or -1 while recording.
+     */
+    public long getEndCycle() {
+        return endCycle;
+    }
+
+    /**
+     * Restore the machine to where recording started, at the clock speed
+     * it had then, and have the recorded input delivered to it again as it
+     * runs. The bus must hold the same devices as the one recorded. A CPU
+     * using the JIT core is switched to the block core.
+     *
+     * @throws SnapshotException if the log doesn't match the machine.
+     */
+    public void replay(Bus bus) throws SnapshotException {
+        Player player = new Player(bus, readEvents());
+        start.restore(bus);
+        bus.getCpu().setClockPeriodInNs(clockPeriodInNs);
+        if (bus.getCpu().getCore() == Cpu.Core.JIT) {
+            bus.getCpu().setCore(Cpu.Core.BLOCK);
+        }
+        for (SdController sd : player.sdControllers) {
+            sd.setSectorSource(player);
+        }
+        player.scheduleNext();
+    }
+
+    /*
+     * Decode every event, so that a truncated log is found before anything
+     * is changed.
+     */
+    private List<Event> readEvents() throws SnapshotException {
+        List<Event> list = new ArrayList<>();
+        ByteBuffer in = events.duplicate();
+        in.flip();
+        long cycle = startCycle;
+        try {
+            while (in.hasRemaining()) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = in.get();
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0 && shift < 64);
+                cycle += delta;
+
+                Event event = new Event(cycle, in.get());
+                switch (event.kind) {
+                    case RX:
+                        event.data = in.get() & 0xff;
+                        break;
+                    case NMI:
+                    case IRQ:
+                        break;
+                    case SECTOR:
+                        event.data = in.getInt();
+                        event.sector = new byte[SdController.SECTOR_SIZE];
+                        in.get(event.sector);
+                        break;
+                    case CLOCK:
+                        event.clockPeriodInNs = in.getLong();
+                        if (event.clockPeriodInNs <= 0) {
+                            throw new SnapshotException("Bad clock period " + event.clockPeriodInNs + ".");
+                        }
+                        break;
+                    default:
+                        throw new SnapshotException("Unknown input event " + event.kind + ".");
+                }
+                list.add(event);
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new SnapshotException("Input log is truncated.");
+        }
+        return list;
+    }
+
+    private static final class Event {
+        final long cycle;
+        final byte kind;
+        int data;
+        byte[] sector;
+        long clockPeriodInNs;
+
+        Event(long cycle, byte kind) {
+            this.cycle = cycle;
+            this.kind = kind;
+        }
+    }
+
+    /*
+     * Delivers recorded input as the CPU reaches the cycle it arrived at,
+     * and hands recorded sectors to the SD card as the guest reads them.
+     */
+    private static final class Player extends Scheduler.Event implements SdController.SectorSource {
+        private final Bus bus;
+        private final Acia acia;
+        private final List<SdController> sdControllers = new ArrayList<>();
+        private final List<Event> timed = new ArrayList<>();
+        private final List<Event> sectors = new ArrayList<>();
+        private int nextTimed;
+        private int nextSector;
+
+        Player(Bus bus, List<Event> events) {
+            this.bus = bus;
+            Acia found = null;
+            for (Device device : bus.getDevices()) {
+                if (device instanceof Acia && found == null) {
+                    found = (Acia) device;
+                } else if (device instanceof SdController) {
+                    sdControllers.add((SdController) device);
+                }
+            }
+            this.acia = found;
+            for (Event event : events) {
+                (event.kind == SECTOR ? sectors : timed).add(event);
+            }
+        }
+
+        void scheduleNext() {
+            if (nextTimed < timed.size()) {
+                bus.getCpu().getScheduler().schedule(this, timed.get(nextTimed).cycle);
+            }
+        }
+
+        @Override
+        public void fire(long cycle) {
+            while (nextTimed < timed.size() && timed.get(nextTimed).cycle <= cycle) {
+                Event event = timed.get(nextTimed++);
+                switch (event.kind) {
+                    case RX:
+                        if (acia != null) {
+                            acia.rxWrite(event.data);
+                        }
+                        break;
+                    case NMI:
+                        bus.assertNmi();
+                        break;
+                    case CLOCK:
+                        bus.getCpu().setClockPeriodInNs(event.clockPeriodInNs);
+                        break;
+                    default:
+                        bus.assertIrq();
+                        break;
+                }
+            }
+            scheduleNext();
+        }
+
+        @Override
+        public void readSector(int position, byte[] sector) throws IOException {
+            if (nextSector >= sectors.size()) {
+                throw new IOException("No more sectors were recorded.");
+            }
+            Event event = sectors.get(nextSector++);
+            if (event.data != position) {
+                throw new IOException("Replay read sector at " + position + ", but " + event.data + " was recorded.");
+            }
+            System.arraycopy(event.sector, 0, sector, 0, sector.length);
+        }
+    }
+
+    /**
+     * Write the log to a channel, such as a file. Recording must have
+     * stopped.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        if (isRecording()) {
+            throw new IllegalStateException("Still recording.");
+        }
+        ByteBuffer snapshot = start.asReadOnlyBuffer();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(startCycle);
+        header.putLong(endCycle);
+        header.putLong(clockPeriodInNs);
+        header.putInt(snapshot.remaining());
+        header.flip();
+
+        ByteBuffer body = events.duplicate();
+        body.flip();
+        for (ByteBuffer out : new ByteBuffer[] {header, snapshot, body}) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+    }
+
+    /**
+     * Read a log written by {@link #writeTo(WritableByteChannel)},
+     * consuming the rest of the channel.
+     *
+     * @throws SnapshotException if the data is not an input log this version can read.
+     */
+    public static InputLog readFrom(ReadableByteChannel channel) throws IOException, SnapshotException {
+        ByteBuffer in = ByteBuffer.allocate(0x10000 + 0x1000);
+        while (channel.read(in) != -1) {
+            if (!in.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+        }
+        in.flip();
+
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) {
+            throw new SnapshotException("Not an input log.");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new SnapshotException("Unsupported input log version " + version + ".");
+        }
+        long startCycle = in.getLong();
+        long endCycle = in.getLong();
+        long clockPeriodInNs = in.getLong();
+        if (clockPeriodInNs <= 0) {
+            throw new SnapshotException("Bad clock period " + clockPeriodInNs + ".");
+        }
+        int snapshotSize = in.getInt();
+        if (snapshotSize < 0 || snapshotSize > in.remaining()) {
+            throw new SnapshotException("Input log is truncated.");
+        }
+
+        ByteBuffer snapshot = in.slice();
+        snapshot.limit(snapshotSize);
+        in.position(in.position() + snapshotSize);
+        Snapshot start = Snapshot.fromBuffer(snapshot);
+
+        // Events are appended at the position, as while recording
+        ByteBuffer events = ByteBuffer.allocate(in.remaining());
+        events.put(in);
+        InputLog log = new InputLog(start, startCycle, clockPeriodInNs, events);
+        log.endCycle = endCycle;
+        return log;
+    }
+}
@@ -38,11 +38,17 @@ public class Main {
     
      /**
      * Main entry point to the simulator. Creates a simulator and shows the main
-     * window.
+     * window. With <code>-headless</code>, runs the machine without a UI instead.
      *
      * @param args Program arguments
      */
     public static void main(String args[]) throws Exception {
+        for (String arg : args) {
+            if (arg.toLowerCase(Locale.ENGLISH).equals("-headless")) {
+                System.exit(HeadlessRunner.main(args));
+            }
+        }
+
         Machine machineInstance = null;
         for(int i = 0; i < args.length; ++i) {
             String arg = args[i].toLowerCase(Locale.ENGLISH);
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.Utils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts where a running program spends its time: the instructions
+ * executed and cycles spent at each address, and the number of times each
+ * address is read and written by the CPU.
+ * <p/>
+ * Attach a profiler with {@link Cpu#setProfiler(Profiler)}. Counting is an
+ * array update or two per instruction and per access, and nothing at
+ * all is counted, or costs anything, while no profiler is attached. The
+ * CPU's counters are sampled after every instruction, and what has passed
+ * since the last sample is credited to the instruction, so cycles spent
+ * entering an interrupt are credited to the first instruction of its
+ * handler, and idle loop iterations skipped by the CPU to the first
+ * instruction of the loop. Time spent waiting after WAI or STP is credited
+ * to that instruction.
+ */
+public class Profiler {
+
+    private static final int ADDRESS_SPACE = 0x10000;
+
+    /* Entries listed in each section of a report, unless asked otherwise */
+    public static final int DEFAULT_REPORT_LENGTH = 25;
+
+    private final long[] instructions = new long[ADDRESS_SPACE];
+    private final long[] cycles = new long[ADDRESS_SPACE];
+    private final long[] reads = new long[ADDRESS_SPACE];
+    private final long[] writes = new long[ADDRESS_SPACE];
+
+    // The CPU's counters when last sampled
+    private long lastSteps;
+    private long lastCycles;
+
+    /**
+     * Take the CPU's counters as the point counting starts from, for
+     * example when the profiler is attached or the CPU is restored.
+     */
+    void sync(long steps, long cycles) {
+        lastSteps = steps;
+        lastCycles = cycles;
+    }
+
+    /**
+     * Credit everything since the last sample to an instruction.
+     */
+    void countInstruction(int pc, long steps, long cycles) {
+        this.instructions[pc] += steps - lastSteps;
+        this.cycles[pc] += cycles - lastCycles;
+        lastSteps = steps;
+        lastCycles = cycles;
+    }
+
+    void countRead(int address) {
+        reads[address]++;
+    }
+
+    void countWrite(int address) {
+        writes[address]++;
+    }
+
+    /**
+     * Start counting afresh.
+     */
+    public void clear() {
+        Arrays.fill(instructions, 0);
+        Arrays.fill(cycles, 0);
+        Arrays.fill(reads, 0);
+        Arrays.fill(writes, 0);
+    }
+
+    public long getInstructions(int address) {
+        return instructions[address & 0xffff];
+    }
+
+    public long getCycles(int address) {
+        return cycles[address & 0xffff];
+    }
+
+    public long getReads(int address) {
+        return reads[address & 0xffff];
+    }
+
+    public long getWrites(int address) {
+        return writes[address & 0xffff];
+    }
+
+    public long getTotalInstructions() {
+        return sum(instructions);
+    }
+
+    public long getTotalCycles() {
+        return sum(cycles);
+    }
+
+    /**
+     * Total the cycles spent in each routine, taking a routine to be
+     * everything from one debug symbol up to the next. Code below the
+     * first symbol is totalled under address $0000.
+     *
+     * @return Cycles per routine, indexed by the routine's address.
+     */
+    public long[] getRoutineCycles(SymbolTable symbols) {
+        return byRoutine(cycles, symbols);
+    }
+
+    private static long[] byRoutine(long[] counts, SymbolTable symbols) {
+        long[] routines = new long[ADDRESS_SPACE];
+        int routine = 0;
+        for (int address = 0; address < ADDRESS_SPACE; address++) {
+            if (symbols.contains(address)) {
+                routine = address;
+            }
+            routines[routine] += counts[address];
+        }
+        return routines;
+    }
+
+    /**
+     * Write a report of the hot spots found: the routines and instructions
+     * that took the most cycles, and the most read and written addresses,
+     * each named after the nearest debug symbol at or below it.
+     *
+     * @param out     Where to write the report
+     * @param symbols Debug symbols, which may be empty
+     * @param limit   The most entries to list in each section
+     */
+    public void writeReport(PrintWriter out, SymbolTable symbols, int limit) {
+        long totalCycles = getTotalCycles();
+        out.printf("Profile of %d instructions, %d cycles%n", getTotalInstructions(), totalCycles);
+
+        if (symbols.size() > 0) {
+            long[] routines = byRoutine(cycles, symbols);
+            long[] routineInstructions = byRoutine(instructions, symbols);
+            out.printf("%nRoutines by cycles:%n");
+            out.printf("  %-24s %14s %7s %14s%n", "Routine", "Cycles", "%", "Instructions");
+            for (int address : top(routines, limit)) {
+                out.printf("  %-24s %14d %6.2f%% %14d%n", name(symbols, address), routines[address],
+                           percent(routines[address], totalCycles), routineInstructions[address]);
+            }
+        }
+
+        out.printf("%nInstructions by cycles:%n");
+        out.printf("  %-24s %14s %7s %14s%n", "Address", "Cycles", "%", "Executed");
+        for (int address : top(cycles, limit)) {
+            out.printf("  %-24s %14d %6.2f%% %14d%n", name(symbols, address), cycles[address],
+                       percent(cycles[address], totalCycles), instructions[address]);
+        }
+
+        out.printf("%nMost read:%n");
+        out.printf("  %-24s %14s%n", "Address", "Reads");
+        for (int address : top(reads, limit)) {
+            out.printf("  %-24s %14d%n", name(symbols, address), reads[address]);
+        }
+
+        out.printf("%nMost written:%n");
+        out.printf("  %-24s %14s%n", "Address", "Writes");
+        for (int address : top(writes, limit)) {
+            out.printf("  %-24s %14d%n", name(symbols, address), writes[address]);
+        }
+        out.flush();
+    }
+
+    /*
+     * The address in hex, and as an offset from the nearest symbol at or
+     * below it, if there is one.
+     */
+    private static String name(SymbolTable symbols, int address) {
+        String hex = "$" + Utils.wordToHex(address);
+        for (int base = address; base >= 0 && address - base < 0x100; base--) {
+            if (symbols.contains(base)) {
+                String symbol = symbols.get(base);
+                return base == address ? hex + " " + symbol : hex + " " + symbol + "+" + (address - base);
+            }
+        }
+        return hex;
+    }
+
+    /*
+     * The addresses of the largest non-zero counts, largest first.
+     */
+    private static List<Integer> top(long[] counts, int limit) {
+        List<Integer> addresses = new ArrayList<>();
+        for (int address = 0; address < counts.length; address++) {
+            if (counts[address] != 0) {
+                addresses.add(address);
+            }
+        }
+        addresses.sort((a, b) -> Long.compare(counts[b], counts[a]));
+        return addresses.subList(0, Math.min(limit, addresses.size()));
+    }
+
+    private static double percent(long count, long total) {
+        return total == 0 ? 0.0 : 100.0 * count / total;
+    }
+
+    private static long sum(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,701 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.util.ClassFileWriter;
+import com.loomcom.symon.util.ClassFileWriter.Label;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.loomcom.symon.util.ClassFileWriter.*;
+
+/**
+ * Translates hot basic blocks into JVM bytecode for the JIT execution core.
+ * <p>
+ * Each compiled block becomes a small class whose {@code run} method
+ * executes the whole block: the A, X and Y registers are held in locals,
+ * operands and addresses are constants, and memory is accessed through
+ * {@link Bus#read} and {@link Bus#write}, whose plain memory fast path the
+ * JVM inlines. Common loads, stores, logic, compares, register transfers,
+ * increments and branches are translated directly; any other instruction
+ * calls its dispatch table handler, with the registers written back to
+ * the CPU state around the call. The cycle count is brought up to date
+ * before any instruction that accesses memory, so that a device sees the
+ * same count it would under the interpreter.
+ * <p>
+ * After every instruction that may write memory, the code checks that
+ * its own block is still valid, and if not leaves at the next instruction
+ * so the interpreter can pick up the modified code. It leaves in the same
+ * way if an interrupt has become due, so that it is taken where it would
+ * be by the interpreter. Device events are run between blocks, and the CPU
+ * interprets a block instead of running its compiled code if an event may
+ * fall due part way through.
+ * <p>
+ * Each generated class is defined by a class loader of its own, so that
+ * it is unloaded once its block is dropped from the cache, when the block
+ * is overwritten or the CPU changes core, behavior or bus. The number of
+ * compiled blocks alive at once, across all CPUs, is capped; past the cap
+ * blocks are interpreted until some of the others have been collected.
+ */
+final class Recompiler {
+
+    private final static Logger logger = LoggerFactory.getLogger(Recompiler.class.getName());
+
+    /**
+     * Executes a compiled block. Generated classes extend this from outside
+     * the package, since they have their own class loaders, so it is public
+     * and gives them what they need of the block and the CPU.
+     */
+    public abstract static class CompiledCode {
+        private BlockCache.Block block;
+
+        /**
+         * @param cpu   The CPU to run the block on
+         * @param state Its state
+         * @param bus   Its bus
+         * @return The number of instructions executed.
+         */
+        public abstract int run(Cpu cpu, CpuState state, Bus bus) throws MemoryAccessException;
+
+        /**
+         * @return true if the block is still valid and no interrupt is due.
+         */
+        protected final boolean canContinue(CpuState state) {
+            return block.valid && !state.nmiAsserted && !(state.irqAsserted && !state.irqDisableFlag);
+        }
+
+        /**
+         * Run the dispatch table handler of an instruction in the block.
+         */
+        protected final void execute(int index, Cpu cpu, int lo, int hi) throws MemoryAccessException {
+            block.handlers[index].execute(cpu, lo, hi);
+        }
+
+        protected final int extraCycles(Cpu cpu, int penalty, int lo) {
+            return cpu.extraCycles(penalty, lo);
+        }
+    }
+
+    /*
+     * Defines a single generated class, and is collected along with it.
+     */
+    private static final class BlockLoader extends ClassLoader {
+        BlockLoader() {
+            super(Recompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] code) {
+            return defineClass(name.replace('/', '.'), code, 0, code.length);
+        }
+    }
+
+    /* Times a block is entered before it is compiled */
+    static final int COMPILE_THRESHOLD = 256;
+
+    /* Most compiled blocks alive at once, across all CPUs */
+    static final int MAX_COMPILED_BLOCKS = 4096;
+
+    /* Compiled blocks not yet collected, and whether the cap has been reported */
+    private static final AtomicInteger live = new AtomicInteger();
+    private static final AtomicBoolean capped = new AtomicBoolean();
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private static final String CPU = "com/loomcom/symon/Cpu";
+    private static final String STATE = "com/loomcom/symon/CpuState";
+    private static final String BUS = "com/loomcom/symon/Bus";
+    private static final String CODE = "com/loomcom/symon/Recompiler$CompiledCode";
+
+    private static final String CPU_DESC = "L" + CPU + ";";
+    private static final String STATE_DESC = "L" + STATE + ";";
+
+    /* Arguments and locals of the generated run method */
+    private static final int THIS = 0;
+    private static final int CPU_ARG = 1;
+    private static final int S = 2;
+    private static final int BUS_LOCAL = 3;
+    private static final int A = 4;
+    private static final int X = 5;
+    private static final int Y = 6;
+    private static final int EXTRA_CYCLES = 7;
+    private static final int T = 8;
+    private static final int T2 = 9;
+    private static final int MAX_LOCALS = 10;
+    private static final int MAX_STACK = 12;
+
+    /* Addressing modes of directly translated instructions */
+    private enum Mode { IMM, ZP, ZPX, ZPY, ABS, ABX, ABY, INY, IMP }
+
+    /* Operations of directly translated instructions */
+    private enum Op { LDA, LDX, LDY, STA, STX, STY, ORA, AND, EOR, CMP, CPX, CPY,
+                      TAX, TAY, TXA, TYA, INX, INY, DEX, DEY, CLC, SEC, CLV, NOP }
+
+    private static final Op[] ops = new Op[256];
+    private static final Mode[] modes = new Mode[256];
+
+    static {
+        direct(Op.LDA, Mode.IMM, 0xa9, Mode.ZP, 0xa5, Mode.ZPX, 0xb5, Mode.ABS, 0xad,
+               Mode.ABX, 0xbd, Mode.ABY, 0xb9, Mode.INY, 0xb1);
+        direct(Op.LDX, Mode.IMM, 0xa2, Mode.ZP, 0xa6, Mode.ZPY, 0xb6, Mode.ABS, 0xae, Mode.ABY, 0xbe);
+        direct(Op.LDY, Mode.IMM, 0xa0, Mode.ZP, 0xa4, Mode.ZPX, 0xb4, Mode.ABS, 0xac, Mode.ABX, 0xbc);
+        direct(Op.STA, Mode.ZP, 0x85, Mode.ZPX, 0x95, Mode.ABS, 0x8d, Mode.ABX, 0x9d,
+               Mode.ABY, 0x99, Mode.INY, 0x91);
+        direct(Op.STX, Mode.ZP, 0x86, Mode.ZPY, 0x96, Mode.ABS, 0x8e);
+        direct(Op.STY, Mode.ZP, 0x84, Mode.ZPX, 0x94, Mode.ABS, 0x8c);
+        direct(Op.ORA, Mode.IMM, 0x09, Mode.ZP, 0x05, Mode.ZPX, 0x15, Mode.ABS, 0x0d,
+               Mode.ABX, 0x1d, Mode.ABY, 0x19, Mode.INY, 0x11);
+        direct(Op.AND, Mode.IMM, 0x29, Mode.ZP, 0x25, Mode.ZPX, 0x35, Mode.ABS, 0x2d,
+               Mode.ABX, 0x3d, Mode.ABY, 0x39, Mode.INY, 0x31);
+        direct(Op.EOR, Mode.IMM, 0x49, Mode.ZP, 0x45, Mode.ZPX, 0x55, Mode.ABS, 0x4d,
+               Mode.ABX, 0x5d, Mode.ABY, 0x59, Mode.INY, 0x51);
+        direct(Op.CMP, Mode.IMM, 0xc9, Mode.ZP, 0xc5, Mode.ZPX, 0xd5, Mode.ABS, 0xcd,
+               Mode.ABX, 0xdd, Mode.ABY, 0xd9, Mode.INY, 0xd1);
+        direct(Op.CPX, Mode.IMM, 0xe0, Mode.ZP, 0xe4, Mode.ABS, 0xec);
+        direct(Op.CPY, Mode.IMM, 0xc0, Mode.ZP, 0xc4, Mode.ABS, 0xcc);
+        direct(Op.TAX, Mode.IMP, 0xaa);
+        direct(Op.TAY, Mode.IMP, 0xa8);
+        direct(Op.TXA, Mode.IMP, 0x8a);
+        direct(Op.TYA, Mode.IMP, 0x98);
+        direct(Op.INX, Mode.IMP, 0xe8);
+        direct(Op.INY, Mode.IMP, 0xc8);
+        direct(Op.DEX, Mode.IMP, 0xca);
+        direct(Op.DEY, Mode.IMP, 0x88);
+        direct(Op.CLC, Mode.IMP, 0x18);
+        direct(Op.SEC, Mode.IMP, 0x38);
+        direct(Op.CLV, Mode.IMP, 0xb8);
+        direct(Op.NOP, Mode.IMP, 0xea);
+    }
+
+    private static void direct(Op op, Object... modesAndOpcodes) {
+        for (int i = 0; i < modesAndOpcodes.length; i += 2) {
+            int opcode = (Integer) modesAndOpcodes[i + 1];
+            ops[opcode] = op;
+            modes[opcode] = (Mode) modesAndOpcodes[i];
+        }
+    }
+
+    private final byte[] penalties;
+    private int compiled = 0;
+    private static int classCounter = 0;
+
+    /**
+     * @param penalties The CPU's extra cycle rules, indexed by opcode
+     */
+    Recompiler(byte[] penalties) {
+        this.penalties = penalties;
+    }
+
+    /**
+     * @return The number of blocks compiled so far.
+     */
+    int getCompiledCount() {
+        return compiled;
+    }
+
+    /**
+     * @return The number of compiled blocks, from all recompilers, that
+     *         have not yet been collected.
+     */
+    static int getLiveCount() {
+        return live.get();
+    }
+
+    /**
+     * Compile a block.
+     *
+     * @return The compiled code, or null if too many compiled blocks are
+     *         alive. The block's entry count is then reset, so that it is
+     *         tried again once it has run as many times again.
+     */
+    CompiledCode compile(BlockCache.Block block) {
+        if (live.incrementAndGet() > MAX_COMPILED_BLOCKS) {
+            live.decrementAndGet();
+            block.entries = 0;
+            if (capped.compareAndSet(false, true)) {
+                logger.warn("{} compiled blocks in use, interpreting others until some are freed.",
+                            MAX_COMPILED_BLOCKS);
+            }
+            return null;
+        }
+
+        String name = "com/loomcom/symon/compiled/Block$" + String.format("%04X", block.start) +
+                      "$" + nextClassNumber();
+        try {
+            Class<?> cls = new BlockLoader().define(name, generate(name, block));
+            CompiledCode code = (CompiledCode) cls.getDeclaredConstructor().newInstance();
+            code.block = block;
+            // The class and its loader go when the code does
+            cleaner.register(code, live::decrementAndGet);
+            compiled++;
+            return code;
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            live.decrementAndGet();
+            // A bug in the generator, not in the guest program. Keep
+            // interpreting rather than fail.
+            logger.error("Unable to compile block at $" + String.format("%04X", block.start), ex);
+            return null;
+        }
+    }
+
+    private static synchronized int nextClassNumber() {
+        return classCounter++;
+    }
+
+    /* Code generation ***********************************************************/
+
+    byte[] generate(String name, BlockCache.Block block) {
+        ClassFileWriter cw = new ClassFileWriter(ACC_PUBLIC | ACC_FINAL, name, CODE);
+
+        ClassFileWriter.Code init = cw.addMethod(ACC_PUBLIC, "<init>", "()V", 1, 1);
+        init.aload(0);
+        init.invokespecial(CODE, "<init>", "()V");
+        init.op(RETURN);
+
+        ClassFileWriter.Code c = cw.addMethod(ACC_PUBLIC, "run", "(" + CPU_DESC + STATE_DESC + "L" + BUS + ";)I",
+                                              MAX_STACK, MAX_LOCALS);
+        new BlockGenerator(c, block).generate();
+        return cw.toByteArray();
+    }
+
+    /*
+     * Emits the run method for one block.
+     */
+    private class BlockGenerator {
+        private final ClassFileWriter.Code c;
+        private final BlockCache.Block block;
+
+        /* Base cycles of the instructions emitted so far, including the current one */
+        private int staticCycles = 0;
+        /* Base cycles already added to the CPU's cycle count */
+        private int flushedCycles = 0;
+        /* True if the extra cycles local may be non-zero */
+        private boolean extraPending = false;
+
+        BlockGenerator(ClassFileWriter.Code c, BlockCache.Block block) {
+            this.c = c;
+            this.block = block;
+        }
+
+        void generate() {
+            loadRegister(A, "a");
+            loadRegister(X, "x");
+            loadRegister(Y, "y");
+            c.iconst(0);
+            c.istore(EXTRA_CYCLES);
+
+            int last = block.length - 1;
+            for (int i = 0; i <= last; i++) {
+                int opcode = block.opcodes[i];
+                int next = (block.pcs[i] + block.sizes[i]) & 0xffff;
+                staticCycles += block.clocks[i];
+
+                if (isBranch(opcode)) {
+                    // Branches only ever end a block
+                    branch(i, opcode, next);
+                } else if (opcode == 0x4c && i == last) {
+                    exit(i + 1, (block.hi[i] << 8) | block.lo[i], 0);
+                } else if (ops[opcode] != null) {
+                    direct(i, opcode);
+                    if (i == last) {
+                        exit(i + 1, next, 0);
+                    } else if (ops[opcode] == Op.STA || ops[opcode] == Op.STX || ops[opcode] == Op.STY) {
+                        checkValid(i + 1, next);
+                    }
+                } else {
+                    callHandler(i, opcode, next);
+                    if (i == last) {
+                        // The handler has set the PC
+                        exit(i + 1, -1, 0);
+                    } else {
+                        checkValid(i + 1, next);
+                    }
+                }
+            }
+        }
+
+        private boolean isBranch(int opcode) {
+            return (opcode & 0x1f) == 0x10;
+        }
+
+        private void loadRegister(int local, String field) {
+            c.aload(S);
+            c.getfield(STATE, field, "I");
+            c.istore(local);
+        }
+
+        private void storeRegister(int local, String field) {
+            c.aload(S);
+            c.iload(local);
+            c.putfield(STATE, field, "I");
+        }
+
+        private void spill() {
+            storeRegister(A, "a");
+            storeRegister(X, "x");
+            storeRegister(Y, "y");
+        }
+
+        /*
+         * Write back the registers, set the PC (unless pc is negative, when
+         * it has already been set), account for the cycles of the
+         * instructions executed, and return their count.
+         */
+        private void exit(int executed, int pc, int bonusCycles) {
+            spill();
+            if (pc >= 0) {
+                c.aload(S);
+                c.iconst(pc);
+                c.putfield(STATE, "pc", "I");
+            }
+            c.aload(S);
+            c.op(DUP);
+            c.getfield(STATE, "cycleCounter", "J");
+            c.iload(EXTRA_CYCLES);
+            c.iconst(staticCycles + bonusCycles - flushedCycles);
+            c.op(IADD);
+            c.op(I2L);
+            c.op(LADD);
+            c.putfield(STATE, "cycleCounter", "J");
+            c.iconst(executed);
+            c.op(IRETURN);
+        }
+
+        /*
+         * Before an instruction that accesses memory, which may be a device,
+         * bring the CPU's cycle count up to the start of the instruction,
+         * where the interpreter would have it. Exit adds only the rest.
+         */
+        private void syncCycles(int i) {
+            int pending = staticCycles - block.clocks[i] - flushedCycles;
+            if (pending == 0 && !extraPending) {
+                return;
+            }
+            c.aload(S);
+            c.op(DUP);
+            c.getfield(STATE, "cycleCounter", "J");
+            c.iconst(pending);
+            if (extraPending) {
+                c.iload(EXTRA_CYCLES);
+                c.op(IADD);
+            }
+            c.op(I2L);
+            c.op(LADD);
+            c.putfield(STATE, "cycleCounter", "J");
+            if (extraPending) {
+                c.iconst(0);
+                c.istore(EXTRA_CYCLES);
+                extraPending = false;
+            }
+            flushedCycles += pending;
+        }
+
+        /*
+         * Leave the block if a write has invalidated it, or if an interrupt
+         * is now due, so that it is taken before the next instruction.
+         */
+        private void checkValid(int executed, int next) {
+            Label ok = c.newLabel();
+            c.aload(THIS);
+            c.aload(S);
+            c.invokevirtual(CODE, "canContinue", "(" + STATE_DESC + ")Z");
+            c.jump(IFNE, ok);
+            exit(executed, next, 0);
+            c.mark(ok);
+        }
+
+        private void branch(int i, int opcode, int next) {
+            int target = (next + (byte) block.lo[i]) & 0xffff;
+            // Bit 5 of the opcode says whether to branch on the flag set or clear
+            boolean branchIfSet = (opcode & 0x20) != 0;
+
+            // Leave a value on the stack that is non-zero when the flag is set
+            c.aload(S);
+            switch (opcode >> 6) {
+                case 0:
+                    c.getfield(STATE, "nz", "I");
+                    c.iconst(CpuState.NZ_NEGATIVE | 0x80);
+                    c.op(IAND);
+                    break;
+                case 1:
+                    c.getfield(STATE, "overflowFlag", "Z");
+                    break;
+                case 2:
+                    c.getfield(STATE, "carryFlag", "Z");
+                    break;
+                default:
+                    // The zero flag is set when the low byte is zero
+                    c.getfield(STATE, "nz", "I");
+                    c.iconst(0xff);
+                    c.op(IAND);
+                    branchIfSet = !branchIfSet;
+                    break;
+            }
+
+            Label notTaken = c.newLabel();
+            c.jump(branchIfSet ? IFEQ : IFNE, notTaken);
+            exit(i + 1, target, ((target ^ next) & 0xff00) == 0 ? 1 : 2);
+            c.mark(notTaken);
+            exit(i + 1, next, 0);
+        }
+
+        private void callHandler(int i, int opcode, int next) {
+            syncCycles(i);
+            spill();
+            c.aload(S);
+            c.iconst(next);
+            c.putfield(STATE, "pc", "I");
+
+            c.aload(THIS);
+            c.iconst(i);
+            c.aload(CPU_ARG);
+            c.iconst(block.lo[i]);
+            c.iconst(block.hi[i]);
+            c.invokevirtual(CODE, "execute", "(I" + CPU_DESC + "II)V");
+
+            loadRegister(A, "a");
+            loadRegister(X, "x");
+            loadRegister(Y, "y");
+
+            int penalty = penalties[opcode];
+            if (penalty != 0) {
+                c.iload(EXTRA_CYCLES);
+                c.aload(THIS);
+                c.aload(CPU_ARG);
+                c.iconst(penalty);
+                c.iconst(block.lo[i]);
+                c.invokevirtual(CODE, "extraCycles", "(" + CPU_DESC + "II)I");
+                c.op(IADD);
+                c.istore(EXTRA_CYCLES);
+                extraPending = true;
+            }
+        }
+
+        private void direct(int i, int opcode) {
+            Op op = ops[opcode];
+            Mode mode = modes[opcode];
+            int lo = block.lo[i];
+            int hi = block.hi[i];
+            boolean penalty = penalties[opcode] != 0;
+            if (mode != Mode.IMM && mode != Mode.IMP) {
+                syncCycles(i);
+            }
+
+            switch (op) {
+                case LDA: load(mode, lo, hi, penalty); c.istore(A); setNZ(A); break;
+                case LDX: load(mode, lo, hi, penalty); c.istore(X); setNZ(X); break;
+                case LDY: load(mode, lo, hi, penalty); c.istore(Y); setNZ(Y); break;
+                case STA: store(mode, lo, hi, A); break;
+                case STX: store(mode, lo, hi, X); break;
+                case STY: store(mode, lo, hi, Y); break;
+                case ORA: logic(mode, lo, hi, penalty, IOR); break;
+                case AND: logic(mode, lo, hi, penalty, IAND); break;
+                case EOR: logic(mode, lo, hi, penalty, IXOR); break;
+                case CMP: compare(mode, lo, hi, penalty, A); break;
+                case CPX: compare(mode, lo, hi, penalty, X); break;
+                case CPY: compare(mode, lo, hi, penalty, Y); break;
+                case TAX: transfer(A, X); break;
+                case TAY: transfer(A, Y); break;
+                case TXA: transfer(X, A); break;
+                case TYA: transfer(Y, A); break;
+                case INX: increment(X, 1); break;
+                case INY: increment(Y, 1); break;
+                case DEX: increment(X, -1); break;
+                case DEY: increment(Y, -1); break;
+                case CLC: setFlag("carryFlag", 0); break;
+                case SEC: setFlag("carryFlag", 1); break;
+                case CLV: setFlag("overflowFlag", 0); break;
+                case NOP: break;
+            }
+        }
+
+        /*
+         * Leave the effective address of a memory operand in T, adding any
+         * page crossing penalty to the extra cycles.
+         */
+        private void address(Mode mode, int lo, int hi, boolean penalty) {
+            switch (mode) {
+                case ZP:
+                    c.iconst(lo);
+                    break;
+                case ABS:
+                    c.iconst((hi << 8) | lo);
+                    break;
+                case ZPX:
+                case ZPY:
+                    c.iconst(lo);
+                    c.iload(mode == Mode.ZPX ? X : Y);
+                    c.op(IADD);
+                    c.iconst(0xff);
+                    c.op(IAND);
+                    break;
+                case ABX:
+                case ABY:
+                    if (penalty) {
+                        pageCrossing(lo, mode == Mode.ABX ? X : Y);
+                    }
+                    c.iconst((hi << 8) | lo);
+                    c.iload(mode == Mode.ABX ? X : Y);
+                    c.op(IADD);
+                    c.iconst(0xffff);
+                    c.op(IAND);
+                    break;
+                case INY:
+                    // Pointer low byte into T2, then the full base address
+                    read(lo);
+                    c.istore(T2);
+                    read((lo + 1) & 0xff);
+                    c.iconst(8);
+                    c.op(ISHL);
+                    c.iload(T2);
+                    c.op(IOR);
+                    c.iload(Y);
+                    c.op(IADD);
+                    c.iconst(0xffff);
+                    c.op(IAND);
+                    if (penalty) {
+                        c.iload(EXTRA_CYCLES);
+                        c.iload(T2);
+                        c.iload(Y);
+                        c.op(IADD);
+                        c.iconst(8);
+                        c.op(IUSHR);
+                        c.op(IADD);
+                        c.istore(EXTRA_CYCLES);
+                        extraPending = true;
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException(mode.toString());
+            }
+            c.istore(T);
+        }
+
+        private void pageCrossing(int lo, int index) {
+            c.iload(EXTRA_CYCLES);
+            c.iconst(lo);
+            c.iload(index);
+            c.op(IADD);
+            c.iconst(8);
+            c.op(IUSHR);
+            c.op(IADD);
+            c.istore(EXTRA_CYCLES);
+            extraPending = true;
+        }
+
+        /* Push the byte at a constant address */
+        private void read(int address) {
+            c.aload(BUS_LOCAL);
+            c.iconst(address);
+            c.iconst(1);
+            c.invokevirtual(BUS, "read", "(IZ)I");
+        }
+
+        /* Push the operand value */
+        private void load(Mode mode, int lo, int hi, boolean penalty) {
+            if (mode == Mode.IMM) {
+                c.iconst(lo);
+                return;
+            }
+            address(mode, lo, hi, penalty);
+            c.aload(BUS_LOCAL);
+            c.iload(T);
+            c.iconst(1);
+            c.invokevirtual(BUS, "read", "(IZ)I");
+        }
+
+        private void store(Mode mode, int lo, int hi, int register) {
+            address(mode, lo, hi, false);
+            c.aload(BUS_LOCAL);
+            c.iload(T);
+            c.iload(register);
+            c.invokevirtual(BUS, "write", "(II)V");
+        }
+
+        private void logic(Mode mode, int lo, int hi, boolean penalty, int opcode) {
+            c.iload(A);
+            load(mode, lo, hi, penalty);
+            c.op(opcode);
+            c.istore(A);
+            setNZ(A);
+        }
+
+        private void compare(Mode mode, int lo, int hi, boolean penalty, int register) {
+            load(mode, lo, hi, penalty);
+            c.istore(T2);
+            // Carry is set if register >= operand, i.e. the difference is not negative
+            c.aload(S);
+            c.iload(register);
+            c.iload(T2);
+            c.op(ISUB);
+            c.iconst(31);
+            c.op(IUSHR);
+            c.iconst(1);
+            c.op(IXOR);
+            c.putfield(STATE, "carryFlag", "Z");
+            c.iload(register);
+            c.iload(T2);
+            c.op(ISUB);
+            c.iconst(0xff);
+            c.op(IAND);
+            c.istore(T2);
+            setNZ(T2);
+        }
+
+        private void transfer(int from, int to) {
+            c.iload(from);
+            c.istore(to);
+            setNZ(to);
+        }
+
+        private void increment(int register, int delta) {
+            c.iload(register);
+            c.iconst(delta);
+            c.op(IADD);
+            c.iconst(0xff);
+            c.op(IAND);
+            c.istore(register);
+            setNZ(register);
+        }
+
+        private void setFlag(String flag, int value) {
+            c.aload(S);
+            c.iconst(value);
+            c.putfield(STATE, flag, "Z");
+        }
+
+        /*
+         * Set the zero and negative flags from a byte value.
+         */
+        private void setNZ(int local) {
+            c.aload(S);
+            c.iload(local);
+            c.putfield(STATE, "nz", "I");
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import java.util.Arrays;
+
+/**
+ * Schedules device events against the simulated clock. Devices ask to be
+ * woken at a given CPU cycle, and the CPU only calls out to the scheduler
+ * once the earliest pending event is due, so idle devices cost nothing
+ * per instruction.
+ *
+ * Events are kept in a binary min-heap ordered by cycle. Events due on the
+ * same cycle fire in the order they were scheduled, so a run is entirely
+ * deterministic for a given program and input. Each event remembers where
+ * it is in the heap, so moving or cancelling it takes O(log n) time.
+ */
+public class Scheduler {
+
+    /**
+     * A callback to be run when the simulated clock reaches a given cycle.
+     * An event may be pending in only one scheduler at a time.
+     */
+    public abstract static class Event {
+        /* Where the event is in its scheduler's heap, or -1 if not pending */
+        private int heapIndex = -1;
+
+        /**
+         * @param cycle The cycle count at which the event actually fired,
+         *              which may be slightly later than the cycle it was
+         *              scheduled for, as events are only run between
+         *              instructions.
+         */
+        public abstract void fire(long cycle);
+    }
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private Event[] events = new Event[INITIAL_CAPACITY];
+    private long[] cycles = new long[INITIAL_CAPACITY];
+    private long[] sequence = new long[INITIAL_CAPACITY];
+    private int size = 0;
+    private long nextSequence = 0;
+
+    /* Cycle of the earliest pending event, cached for the CPU's fast path */
+    private long nextEventCycle = Long.MAX_VALUE;
+
+    /**
+     * Schedule an event to fire once the cycle counter reaches the given
+     * cycle. An event may only be pending once; scheduling an event that is
+     * already pending moves it to the new cycle.
+     *
+     * @param event The event to fire
+     * @param cycle The cycle at which to fire it
+     */
+    public void schedule(Event event, long cycle) {
+        if (event == null) {
+            throw new IllegalArgumentException("Event must not be null");
+        }
+
+        int i = indexOf(event);
+        if (i >= 0) {
+            // Move it, keeping its place among events due on the same cycle
+            // as if it had just been scheduled
+            cycles[i] = cycle;
+            sequence[i] = nextSequence++;
+            siftDown(i);
+            siftUp(event.heapIndex);
+            nextEventCycle = cycles[0];
+            return;
+        }
+        if (event.heapIndex >= 0) {
+            throw new IllegalArgumentException("Event is pending in another scheduler");
+        }
+
+        if (size == events.length) {
+            int capacity = size * 2;
+            events = Arrays.copyOf(events, capacity);
+            cycles = Arrays.copyOf(cycles, capacity);
+            sequence = Arrays.copyOf(sequence, capacity);
+        }
+
+        events[size] = event;
+        cycles[size] = cycle;
+        sequence[size] = nextSequence++;
+        event.heapIndex = size;
+        siftUp(size++);
+
+        nextEventCycle = cycles[0];
+    }
+
+    /**
+     * Remove an event if it is pending.
+     *
+     * @return true if the event was pending.
+     */
+    public boolean cancel(Event event) {
+        int i = indexOf(event);
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    /**
+     * @return true if the given event is waiting to fire.
+     */
+    public boolean isScheduled(Event event) {
+        return indexOf(event) >= 0;
+    }
+
+    /**
+     * @return The cycle at which the given event will fire, or -1 if it is
+     * not pending.
+     */
+    public long getScheduledCycle(Event event) {
+        int i = indexOf(event);
+        return i < 0 ? -1 : cycles[i];
+    }
+
+    /**
+     * @return The cycle of the earliest pending event, or Long.MAX_VALUE if
+     * nothing is scheduled.
+     */
+    public long getNextEventCycle() {
+        return nextEventCycle;
+    }
+
+    /**
+     * @return The number of pending events.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Fire, in order, every event due at or before the given cycle. Events
+     * may schedule further events from their callbacks; any of those that
+     * are already due fire in the same call.
+     *
+     * @param now The current cycle count
+     */
+    public void runDue(long now) {
+        while (size > 0 && cycles[0] <= now) {
+            Event event = events[0];
+            removeAt(0);
+            event.fire(now);
+        }
+    }
+
+    /**
+     * Shift every pending event by the given number of cycles. Used when
+     * the cycle counter itself is reset, so that pending events keep their
+     * distance from the present.
+     */
+    public void rebase(long delta) {
+        for (int i = 0; i < size; i++) {
+            cycles[i] += delta;
+        }
+        // A uniform shift preserves the heap order.
+        nextEventCycle = size > 0 ? cycles[0] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Drop every pending event.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            events[i].heapIndex = -1;
+        }
+        Arrays.fill(events, 0, size, null);
+        size = 0;
+        nextEventCycle = Long.MAX_VALUE;
+    }
+
+    private int indexOf(Event event) {
+        int i = event.heapIndex;
+        return (i >= 0 && i < size && events[i] == event) ? i : -1;
+    }
+
+    private void removeAt(int i) {
+        events[i].heapIndex = -1;
+        size--;
+        if (i != size) {
+            move(size, i);
+            siftDown(i);
+            siftUp(i);
+        }
+        events[size] = null;
+        nextEventCycle = size > 0 ? cycles[0] : Long.MAX_VALUE;
+    }
+
+    private boolean before(int i, int j) {
+        return cycles[i] < cycles[j] || (cycles[i] == cycles[j] && sequence[i] < sequence[j]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && before(child + 1, child)) {
+                child++;
+            }
+            if (!before(child, i)) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void move(int from, int to) {
+        events[to] = events[from];
+        events[to].heapIndex = to;
+        cycles[to] = cycles[from];
+        sequence[to] = sequence[from];
+    }
+
+    private void swap(int i, int j) {
+        Event e = events[i];
+        events[i] = events[j];
+        events[j] = e;
+        events[i].heapIndex = i;
+        events[j].heapIndex = j;
+        long c = cycles[i];
+        cycles[i] = cycles[j];
+        cycles[j] = c;
+        long s = sequence[i];
+        sequence[i] = sequence[j];
+        sequence[j] = s;
+    }
+}
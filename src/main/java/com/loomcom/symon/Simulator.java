@@ -35,13 +35,14 @@ import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.Queue;
-import java.util.Scanner;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.swing.AbstractAction;
@@ -96,6 +97,7 @@ public class Simulator {
     private static final int CONSOLE_BORDER_WIDTH = 10;
 
     // Clock periods, in NS, for each speed. 0MHz, 1MHz, 2MHz, 3MHz, 4MHz, 5MHz, 6MHz, 7MHz, 8MHz.
+    // Speed 0 runs the CPU unthrottled.
     private static final long[] CLOCK_PERIODS = {0, 1000, 500, 333, 250, 200, 167, 143, 125};
 
     // Since it is very expensive to update the UI with Swing's Event Dispatch Thread, we can't afford
@@ -109,6 +111,10 @@ public class Simulator {
     //
     private static final int MAX_STEPS_BETWEEN_UPDATES = 20000;
 
+    // How long to sleep between steps when running unthrottled, and the CPU
+    // is idle waiting for a key press. An interrupt ends the sleep early.
+    private static final long IDLE_WAIT_NS = 1000000;
+
     // The simulated machine
     private Machine machine;
 
@@ -153,6 +159,8 @@ public class Simulator {
 
     private JButton runStopButton;
     private JButton stepButton;
+    private JButton stepBackButton;
+    private JButton runBackButton;
     private final JComboBox<String> stepCountBox = new JComboBox<String>(STEPS);;
 
     private JFileChooser fileChooser;
@@ -160,6 +168,29 @@ public class Simulator {
 
     private Breakpoints breakpoints;
 
+    /**
+     * The recent past of the machine, for stepping backwards.
+     */
+    private final History history;
+
+    /**
+     * Input from outside the machine while recording, or null. Changed only
+     * while the simulator is stopped.
+     */
+    private InputLog inputLog;
+    private File inputLogFile;
+
+    /* Counts where the program spends its time, while profiling. Only
+     * started or stopped while the simulator is stopped. */
+    private Profiler profiler;
+
+    /* Interrupts asked for with the buttons, asserted before the next step */
+    private volatile boolean nmiRequested;
+    private volatile boolean irqRequested;
+
+    /* A clock period chosen from the Speed menu, set before the next step, or 0 */
+    private volatile long clockPeriodRequested;
+
     private final Object commandMonitorObject = new Object();
 
     private MainCommand command = MainCommand.NONE;
@@ -181,11 +212,16 @@ public class Simulator {
         this.breakpoints = new Breakpoints(this);
 
         this.machine = machineInstance;
+        // Every instruction is traced, checkpointed and checked against the
+        // breakpoints, so the JIT core may not run whole blocks in a step.
+        machine.getCpu().setSingleStepping(true);
 
         // Initialize final fields in the constructor.
         this.traceLog = new TraceLog();
         this.memoryWindow = new MemoryWindow(machine.getBus());
         this.breakpointsWindow = new BreakpointsWindow(breakpoints, mainWindow);
+        this.history = new History(machine.getBus());
+        history.start();
 
         if (machine.getCrtc() != null) {
             videoWindow = new VideoWindow(machine.getCrtc(), 2, 2);
@@ -223,6 +259,10 @@ public class Simulator {
 
         runStopButton = new JButton("Run");
         stepButton = new JButton("Step");
+        stepBackButton = new JButton("Back");
+        stepBackButton.setToolTipText("Step backwards through recent history");
+        runBackButton = new JButton("Run Back");
+        runBackButton.setToolTipText("Run backwards to the previous breakpoint");
         JButton softResetButton = new JButton("Soft Reset");
         JButton hardResetButton = new JButton("Hard Reset");
         JButton pasteButton = new JButton("Paste");
@@ -245,6 +285,8 @@ public class Simulator {
         buttonContainer.add(runStopButton);
         buttonContainer.add(stepButton);
         buttonContainer.add(stepCountBox);
+        buttonContainer.add(stepBackButton);
+        buttonContainer.add(runBackButton);
         buttonContainer.add(softResetButton);
         buttonContainer.add(hardResetButton);
         buttonContainer.add(pasteButton);
@@ -279,6 +321,20 @@ public class Simulator {
             }
         });
 
+        stepBackButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent actionEvent) {
+                Simulator.this.handleStepBack(stepsPerClick);
+            }
+        });
+
+        runBackButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent actionEvent) {
+                Simulator.this.handleRunBack();
+            }
+        });
+
         softResetButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent actionEvent) {
@@ -308,14 +364,14 @@ public class Simulator {
         assertNmi.addActionListener(new ActionListener() {
         	@Override
         	public void actionPerformed(ActionEvent actionEvent) {
-        		Simulator.this.machine.getBus().assertNmi();
+        		nmiRequested = true;
         	}
         });
         
         assertIrq.addActionListener(new ActionListener() {
         	@Override
         	public void actionPerformed(ActionEvent actionEvent) {
-        		Simulator.this.machine.getBus().assertIrq();
+        		irqRequested = true;
         	}
         });
 
@@ -372,12 +428,16 @@ public class Simulator {
 
         try {
             logger.debug("Reset requested. Resetting CPU.");
+            // A reset can't be replayed, so the recording ends here.
+            stopRecordingInput();
             // Reset CPU
             machine.getCpu().reset();
             // Clear the console.
             console.reset();
             // Reset the trace log.
             traceLog.reset();
+            // Count breakpoint hits afresh.
+            breakpoints.resetHitCounts();
             // If we're doing a cold reset, clear the memory.
             if (isColdReset) {
             	for (Memory mem : machine.getRam()) {
@@ -386,6 +446,8 @@ public class Simulator {
                     }
             	}
             }
+            // Memory and devices have changed behind the history's back.
+            history.clear();
             // Update status.
             updateVisibleState();
         } catch (MemoryAccessException ex) {
@@ -408,20 +470,77 @@ public class Simulator {
         }
     }
 
+    /**
+     * Go back the requested number of steps, as far as the recorded
+     * history allows, and immediately refresh the UI.
+     */
+    private void handleStepBack(int numSteps) {
+        try {
+            if (!history.stepBack(numSteps)) {
+                logger.info("Reached the start of the recorded history.");
+            }
+            updateVisibleState();
+        } catch (SymonException ex) {
+            logger.error("Exception during simulator step back", ex);
+        }
+    }
+
+    /**
+     * Go back to the last time a breakpoint was reached, and immediately
+     * refresh the UI.
+     */
+    private void handleRunBack() {
+        try {
+            if (!history.runBackUntil(breakpoints::wouldStop)) {
+                logger.info("No breakpoint reached in the recorded history.");
+            }
+            updateVisibleState();
+        } catch (SymonException ex) {
+            logger.error("Exception during simulator run back", ex);
+        }
+    }
+
     /**
      * Perform a single step of the simulated system.
      */
     private void step() throws MemoryAccessException {
+        // Take interrupts and input between instructions, where they can be recorded
+        if (nmiRequested) {
+            nmiRequested = false;
+            if (inputLog != null) {
+                inputLog.recordNmi();
+            }
+            machine.getBus().assertNmi();
+        }
+        if (irqRequested) {
+            irqRequested = false;
+            if (inputLog != null) {
+                inputLog.recordIrq();
+            }
+            machine.getBus().assertIrq();
+        }
+        long clockPeriod = clockPeriodRequested;
+        if (clockPeriod != 0) {
+            clockPeriodRequested = 0;
+            if (inputLog != null) {
+                inputLog.recordClockPeriod(clockPeriod);
+            }
+            machine.getCpu().setClockPeriodInNs(clockPeriod);
+        }
+
+        history.checkpoint();
         machine.getCpu().step();
 
         traceLog.append(machine.getCpu().getCpuState());
 
         // Read from the ACIA and immediately update the console if there's
         // output ready.
+        boolean printed = false;
         if (machine.getAcia() != null && machine.getAcia().hasTxChar()) {
             // This is thread-safe
             console.print(Character.toString((char) machine.getAcia().txRead(true)));
             console.repaint();
+            printed = true;
         }
         
         if (machine.getAcia() != null) {
@@ -434,12 +553,14 @@ public class Simulator {
                 	if (SWAP_CR_AND_LF && ch == 0x0a) {
                         ch = 0x0d;
                 	}
-                	machine.getAcia().rxWrite((int) ch.charValue());
+                	receive((int) ch.charValue());
                 } else {
         	        // If a key has been pressed, fill the ACIA.
         	        try {
         	            if (console.hasInput()) {
-        	                machine.getAcia().rxWrite((int) console.readInputChar());
+        	                receive(console.readInputChar());
+        	            } else if (!printed && isWaitingForInput()) {
+        	                machine.getCpu().awaitInterrupt(IDLE_WAIT_NS);
         	            }
         	        } catch (FifoUnderrunException ex) {
         	            logger.error("Console type-ahead buffer underrun!");
@@ -465,6 +586,80 @@ public class Simulator {
         }
     }
 
+    /**
+     * Give the ACIA a character from the console, recording it if input
+     * is being recorded.
+     */
+    private void receive(int ch) {
+        if (inputLog != null) {
+            inputLog.recordRx(ch);
+        }
+        machine.getAcia().rxWrite(ch);
+    }
+
+    /**
+     * Start recording input from outside the machine, to be written to
+     * the given file when recording stops. The simulator must be stopped.
+     */
+    private void startRecordingInput(File file) {
+        inputLog = InputLog.record(machine.getBus());
+        inputLogFile = file;
+        logger.info("Recording input to `{}'", file.getName());
+    }
+
+    /**
+     * Stop recording input, if it is being recorded, and write the
+     * recording out. The simulator must be stopped.
+     */
+    private void stopRecordingInput() {
+        if (inputLog == null) {
+            return;
+        }
+        inputLog.stop();
+        try (FileChannel channel = FileChannel.open(inputLogFile.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            inputLog.writeTo(channel);
+            logger.info("Recorded input to `{}'", inputLogFile.getName());
+        } catch (IOException ex) {
+            logger.error("Unable to write input recording: {}", ex.getMessage());
+            JOptionPane.showMessageDialog(mainWindow, ex.getMessage(), "Failure", JOptionPane.ERROR_MESSAGE);
+        }
+        inputLog = null;
+        inputLogFile = null;
+        menuBar.inputRecordingDidChange();
+    }
+
+    /**
+     * Stop profiling, and write a report of the hot spots found to a file
+     * chosen by the user. The simulator must be stopped.
+     */
+    private void stopProfiling() {
+        Cpu cpu = machine.getCpu();
+        cpu.setProfiler(null);
+        if (fileChooser.showSaveDialog(mainWindow) == JFileChooser.APPROVE_OPTION) {
+            File reportFile = fileChooser.getSelectedFile();
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8))) {
+                profiler.writeReport(out, cpu.getSymbolTable(), Profiler.DEFAULT_REPORT_LENGTH);
+                logger.info("Saved profile to `{}'", reportFile.getName());
+            } catch (IOException ex) {
+                logger.error("Unable to write profile: {}", ex.getMessage());
+                JOptionPane.showMessageDialog(mainWindow, ex.getMessage(), "Failure", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+        profiler = null;
+    }
+
+    /**
+     * @return True if the CPU is running unthrottled, but has nothing to do
+     * until a key is pressed. A throttled CPU sleeps through idle loops by
+     * itself.
+     */
+    private boolean isWaitingForInput() {
+        Cpu cpu = machine.getCpu();
+        return cpu.isIdle() && cpu.isUnthrottled() &&
+               cpu.getScheduler().getNextEventCycle() == Long.MAX_VALUE;
+    }
+
     /**
      * Load a program into memory at the simulatorDidStart address.
      */
@@ -483,6 +678,9 @@ public class Simulator {
         // Reset the stack program counter
         machine.getCpu().setProgramCounter(preferences.getProgramStartAddress());
 
+        history.clear();
+        stopRecordingInput();
+
         // Immediately update the UI.
         updateVisibleState();
     }
@@ -493,6 +691,9 @@ public class Simulator {
     class RunLoop extends Thread {
         private boolean isRunning = false;
 
+        /* Read from the preferences once per run, rather than on every step */
+        private boolean haltOnBreak;
+
         public boolean isRunning() {
             return isRunning;
         }
@@ -504,6 +705,10 @@ public class Simulator {
         public void run() {
             logger.debug("Starting main run loop.");
             isRunning = true;
+            haltOnBreak = preferences.getHaltOnBreak();
+
+            long startCycles = machine.getCpu().getCycleCount();
+            long startTime = System.nanoTime();
 
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
@@ -511,6 +716,8 @@ public class Simulator {
                     // Don't allow step while the simulator is running
                     stepButton.setEnabled(false);
                     stepCountBox.setEnabled(false);
+                    stepBackButton.setEnabled(false);
+                    runBackButton.setEnabled(false);
                     menuBar.simulatorDidStart();
                     // Toggle the state of the run button
                     runStopButton.setText("Stop");
@@ -525,6 +732,11 @@ public class Simulator {
                 logger.error("Exception in main simulator run thread. Exiting run.", ex);
             }
 
+            long cycles = machine.getCpu().getCycleCount() - startCycles;
+            long elapsedNs = System.nanoTime() - startTime;
+            logger.info("Ran {} cycles in {} ms ({} MHz effective).", cycles, elapsedNs / 1000000,
+                        String.format("%.2f", Cpu.effectiveMhz(cycles, elapsedNs)));
+
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
                 public void run() {
@@ -533,6 +745,8 @@ public class Simulator {
                     runStopButton.setText("Run");
                     stepButton.setEnabled(true);
                     stepCountBox.setEnabled(true);
+                    stepBackButton.setEnabled(true);
+                    runBackButton.setEnabled(true);
                     if (traceLog.isVisible()) {
                         traceLog.refresh();
                     }
@@ -548,9 +762,10 @@ public class Simulator {
          * @return True if the run loop should proceed to the next step.
          */
         private boolean shouldContinue() {
-            return !breakpoints.contains(machine.getCpu().getProgramCounter()) &&
-                    isRunning &&
-                    !(preferences.getHaltOnBreak() && machine.getCpu().getInstruction() == 0x00);
+            Cpu cpu = machine.getCpu();
+            return isRunning &&
+                    !breakpoints.isHit(cpu.getCpuState()) &&
+                    !(haltOnBreak && cpu.getInstruction() == 0x00);
         }
     }
 
@@ -581,15 +796,7 @@ public class Simulator {
                                     Integer.toString(machine.getMemorySize(), 16) +
                                     " bytes)");
                         } else {
-                            byte[] program = new byte[(int) fileSize];
-                            int i = 0;
-                            FileInputStream fis = new FileInputStream(f);
-                            BufferedInputStream bis = new BufferedInputStream(fis);
-                            DataInputStream dis = new DataInputStream(bis);
-                            while (dis.available() != 0) {
-                                program[i++] = dis.readByte();
-                            }
-                            dis.close();
+                            byte[] program = Files.readAllBytes(f.toPath());
 
                             // Now load the program at the starting address.
                             loadProgram(program, preferences.getProgramStartAddress());
@@ -643,22 +850,8 @@ public class Simulator {
                             throw new IOException("Debug file empty");
                         }
 
-                        
-                        try (Scanner scanner = new Scanner(debugFile)) {
-	                        while (scanner.hasNextLine()) {
-	                        	String line = scanner.nextLine();
-	                        	//TODO I'm sure this parsing needs to be more robust, but i don't see any doc on the format
-	                        	String[] lineParts = line.split(" ");
-	                        	if (lineParts.length != 3)
-	                        		throw new IOException("Format of debug file unrecognized for line: " + line);
-	                        	
-	                        	String address = lineParts[1];
-	                        	address = address.substring(2);
-	                        	String symbol = lineParts[2];
-	                        	machine.getCpu().addDebugSymbol(address, symbol);
-	                        }
-                        }
-                        
+                        machine.getCpu().getSymbolTable().load(debugFile);
+
                         logger.info("Debug file '{}' loaded.", debugFile.getName());
                         
                         // TODO: "Don't Show Again" checkbox
@@ -704,6 +897,8 @@ public class Simulator {
 
                         // Now, reset
                         machine.getCpu().reset();
+                        history.clear();
+                        stopRecordingInput();
 
                         updateVisibleState();
 
@@ -734,6 +929,46 @@ public class Simulator {
         }
     }
 
+    class RecordInputAction extends AbstractAction {
+
+		private static final long serialVersionUID = 6120583921443701926L;
+
+		public RecordInputAction() {
+            super("Record Input...", null);
+            putValue(SHORT_DESCRIPTION, "Record input to the machine, to be replayed headless");
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            if (inputLog != null) {
+                stopRecordingInput();
+            } else if (fileChooser.showSaveDialog(mainWindow) == JFileChooser.APPROVE_OPTION) {
+                startRecordingInput(fileChooser.getSelectedFile());
+            }
+            menuBar.inputRecordingDidChange();
+        }
+    }
+
+    class ProfileAction extends AbstractAction {
+
+		private static final long serialVersionUID = -4409436017281924458L;
+
+		public ProfileAction() {
+            super("Profile Execution", null);
+            putValue(SHORT_DESCRIPTION, "Count where the program spends its time, and save a report when done");
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            if (profiler != null) {
+                stopProfiling();
+            } else {
+                profiler = new Profiler();
+                machine.getCpu().setProfiler(profiler);
+                logger.info("Profiling execution");
+            }
+            menuBar.profilingDidChange();
+        }
+    }
+
     class ShowPrefsAction extends AbstractAction {
 
 		private static final long serialVersionUID = 8341506830066378667L;
@@ -825,18 +1060,28 @@ public class Simulator {
 		private int speed;
 
         public SetSpeedAction(int speed) {
-            super(Integer.toString(speed) + " MHz", null);
+            super(speed == 0 ? "Unthrottled" : Integer.toString(speed) + " MHz", null);
             this.speed = speed;
-            putValue(SHORT_DESCRIPTION, "Set simulated speed to " + speed + " MHz.");
+            if (speed == 0) {
+                putValue(SHORT_DESCRIPTION, "Run the simulator as fast as possible.");
+            } else {
+                putValue(SHORT_DESCRIPTION, "Set simulated speed to " + speed + " MHz.");
+            }
         }
 
         @Override
         public void actionPerformed(ActionEvent actionEvent) {
-            if (speed < 1 || speed > CLOCK_PERIODS.length - 1) {
+            if (speed < 0 || speed > CLOCK_PERIODS.length - 1) {
                 return;
             }
 
-            machine.getCpu().setClockPeriodInNs(CLOCK_PERIODS[speed]);
+            if (speed == 0) {
+                machine.getCpu().setUnthrottled(true);
+            } else {
+                machine.getCpu().setUnthrottled(false);
+                // Device timings depend on it, so it changes between steps
+                clockPeriodRequested = CLOCK_PERIODS[speed];
+            }
         }
     }
 
@@ -944,6 +1189,8 @@ public class Simulator {
 		// Menu Items
         private JMenuItem loadProgramItem;
         private JMenuItem loadRomItem;
+        private JCheckBoxMenuItem recordInputItem;
+        private JCheckBoxMenuItem profileItem;
 
         /**
          * Create a new SimulatorMenu instance.
@@ -960,6 +1207,8 @@ public class Simulator {
             if (loadRomItem != null) {
                 loadRomItem.setEnabled(false);
             }
+            recordInputItem.setEnabled(false);
+            profileItem.setEnabled(false);
         }
 
         /**
@@ -970,6 +1219,22 @@ public class Simulator {
             if (loadRomItem != null) {
                 loadRomItem.setEnabled(true);
             }
+            recordInputItem.setEnabled(true);
+            profileItem.setEnabled(true);
+        }
+
+        /**
+         * Show whether input is being recorded.
+         */
+        public void inputRecordingDidChange() {
+            recordInputItem.setSelected(inputLog != null);
+        }
+
+        /**
+         * Show whether execution is being profiled.
+         */
+        public void profilingDidChange() {
+            profileItem.setSelected(profiler != null);
         }
 
         private void initMenu() {
@@ -992,6 +1257,9 @@ public class Simulator {
             JMenuItem loadDebugItem = new JMenuItem(new LoadDebugAction());
             fileMenu.add(loadDebugItem);
 
+            recordInputItem = new JCheckBoxMenuItem(new RecordInputAction());
+            fileMenu.add(recordInputItem);
+
             JMenuItem prefsItem = new JMenuItem(new ShowPrefsAction());
             fileMenu.add(prefsItem);
 
@@ -1079,6 +1347,7 @@ public class Simulator {
             makeSpeedMenuItem(2, speedSubMenu, speedGroup);
             makeSpeedMenuItem(4, speedSubMenu, speedGroup);
             makeSpeedMenuItem(8, speedSubMenu, speedGroup);
+            makeSpeedMenuItem(0, speedSubMenu, speedGroup);
 
             simulatorMenu.add(speedSubMenu);
             simulatorMenu.add(cpuTypeMenu);
@@ -1094,6 +1363,10 @@ public class Simulator {
             });
             simulatorMenu.add(showBreakpoints);
 
+            // "Profile Execution"
+            profileItem = new JCheckBoxMenuItem(new ProfileAction());
+            simulatorMenu.add(profileItem);
+
             add(simulatorMenu);
         }
 
@@ -1107,14 +1380,14 @@ public class Simulator {
         }
 
         private void makeSpeedMenuItem(int speed, JMenu subMenu, ButtonGroup group) {
-            if (speed < 1 || speed > CLOCK_PERIODS.length - 1) {
+            if (speed < 0 || speed > CLOCK_PERIODS.length - 1) {
                 return;
             }
 
             Action action = new SetSpeedAction(speed);
 
             JCheckBoxMenuItem item = new JCheckBoxMenuItem(action);
-            item.setSelected(CLOCK_PERIODS[speed] == Cpu.DEFAULT_CLOCK_PERIOD_IN_NS);
+            item.setSelected(speed > 0 && CLOCK_PERIODS[speed] == Cpu.DEFAULT_CLOCK_PERIOD_IN_NS);
             subMenu.add(item);
             group.add(item);
         }
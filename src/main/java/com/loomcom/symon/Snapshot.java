@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.exceptions.SnapshotException;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The complete state of a machine at one instant: the CPU, the contents
+ * of every memory device, and the registers of every other device on its
+ * bus. A snapshot can be restored any number of times, for example to
+ * return a test to the point where a ROM has finished booting without
+ * booting it again, and can be written to and read from a file.
+ * <p/>
+ * The format is a versioned binary blob:
+ * <pre>
+ *   int    MAGIC, "SYMN"
+ *   int    VERSION
+ *   byte[] CPU state, see Cpu.saveState()
+ *   int    number of devices
+ *   for each device, in bus order:
+ *     short  length of class name, then the name in UTF-8
+ *     int    start address
+ *     int    end address
+ *     int    length of state, then the state, see Device.saveState()
+ * </pre>
+ * All values are big-endian.
+ */
+public class Snapshot {
+
+    static final int MAGIC = 0x53594d4e;
+    static final int VERSION = 1;
+
+    private final ByteBuffer data;
+
+    private Snapshot(ByteBuffer data) {
+        this.data = data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Take a snapshot of the CPU and devices on a bus. The machine should
+     * be stopped while this runs.
+     */
+    public static Snapshot take(Bus bus) {
+        List<Device> devices = new ArrayList<>(bus.getDevices());
+        List<byte[]> names = new ArrayList<>(devices.size());
+
+        int capacity = 4 + 4 + Cpu.SAVED_STATE_SIZE + 4;
+        for (Device device : devices) {
+            byte[] name = device.getClass().getName().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            capacity += 2 + name.length + 4 + 4 + 4 + device.getStateSize();
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(capacity);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        bus.getCpu().saveState(out);
+        out.putInt(devices.size());
+        for (int i = 0; i < devices.size(); i++) {
+            Device device = devices.get(i);
+            out.putShort((short) names.get(i).length);
+            out.put(names.get(i));
+            out.putInt(device.startAddress());
+            out.putInt(device.endAddress());
+
+            int lengthPosition = out.position();
+            out.putInt(0);
+            device.saveState(out);
+            out.putInt(lengthPosition, out.position() - lengthPosition - 4);
+        }
+
+        out.flip();
+        return new Snapshot(out);
+    }
+
+    /**
+     * Return the CPU and devices on a bus to the state they were in when
+     * the snapshot was taken. The bus must hold the same kinds of devices
+     * at the same addresses as the one the snapshot was taken of. Nothing
+     * is changed if it doesn't.
+     *
+     * @throws SnapshotException if the snapshot doesn't match the machine.
+     */
+    public void restore(Bus bus) throws SnapshotException {
+        List<Device> devices = new ArrayList<>(bus.getDevices());
+
+        // Check every device before changing anything
+        ByteBuffer in = data.duplicate();
+        readHeader(in);
+        try {
+            bus.getCpu().checkState(in);
+            in.position(in.position() + Cpu.SAVED_STATE_SIZE);
+            if (in.getInt() != devices.size()) {
+                throw new SnapshotException("Snapshot was taken of a machine with different devices.");
+            }
+            for (Device device : devices) {
+                checkDevice(in, device);
+                int length = in.getInt();
+                if (length != device.getStateSize()) {
+                    throw new SnapshotException("Snapshot of " + device + " is the wrong size.");
+                }
+                ByteBuffer state = in.slice();
+                state.limit(length);
+                device.checkState(state);
+                in.position(in.position() + length);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+            throw new SnapshotException("Snapshot is truncated.");
+        }
+
+        in = data.duplicate();
+        readHeader(in);
+        // The CPU's cycle counter first, since devices schedule events against it
+        bus.getCpu().restoreState(in);
+        in.getInt();
+        for (Device device : devices) {
+            checkDevice(in, device);
+            int length = in.getInt();
+            int end = in.position() + length;
+            device.restoreState(in);
+            in.position(end);
+        }
+    }
+
+    /**
+     * @return The size of the snapshot in bytes.
+     */
+    public int size() {
+        return data.limit();
+    }
+
+    /**
+     * @return A read-only buffer holding the snapshot, as written by writeTo().
+     */
+    ByteBuffer asReadOnlyBuffer() {
+        return data.duplicate();
+    }
+
+    /**
+     * Wrap the bytes of a snapshot held in a buffer, which must not change.
+     *
+     * @throws SnapshotException if the data is not a snapshot this version can read.
+     */
+    static Snapshot fromBuffer(ByteBuffer in) throws SnapshotException {
+        readHeader(in.duplicate());
+        return new Snapshot(in);
+    }
+
+    /**
+     * Write the snapshot to a channel, such as a file.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer out = data.duplicate();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    /**
+     * Read a snapshot written by {@link #writeTo(WritableByteChannel)},
+     * consuming the rest of the channel.
+     *
+     * @throws SnapshotException if the data is not a snapshot this version can read.
+     */
+    public static Snapshot readFrom(ReadableByteChannel channel) throws IOException, SnapshotException {
+        ByteBuffer in = ByteBuffer.allocate(0x10000 + 0x1000);
+        while (channel.read(in) != -1) {
+            if (!in.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+        }
+        in.flip();
+
+        return fromBuffer(in);
+    }
+
+    private static void readHeader(ByteBuffer in) throws SnapshotException {
+        if (in.remaining() < 8 || in.getInt() != MAGIC) {
+            throw new SnapshotException("Not a machine snapshot.");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new SnapshotException("Unsupported snapshot version " + version + ".");
+        }
+    }
+
+    private static void checkDevice(ByteBuffer in, Device device) throws SnapshotException {
+        byte[] name = new byte[in.getShort()];
+        in.get(name);
+        int start = in.getInt();
+        int end = in.getInt();
+        if (!device.getClass().getName().equals(new String(name, StandardCharsets.UTF_8)) ||
+            start != device.startAddress() || end != device.endAddress()) {
+            throw new SnapshotException("Snapshot was taken of a machine with different devices.");
+        }
+    }
+}
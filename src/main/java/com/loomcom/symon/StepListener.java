@@ -1,5 +0,0 @@
-package com.loomcom.symon;
-
-public interface StepListener {
-	public void step();
-}
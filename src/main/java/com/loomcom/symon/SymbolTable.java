@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Scanner;
+
+/**
+ * Debug symbols, indexed directly by 16-bit address.
+ * <p/>
+ * Lookups are a single array access, so symbols can be resolved lazily
+ * whenever a trace line or the UI needs one, without any allocation.
+ */
+public class SymbolTable {
+
+    private static final int ADDRESS_SPACE = 0x10000;
+
+    private final String[] symbols = new String[ADDRESS_SPACE];
+
+    private int size = 0;
+
+    public void put(int address, String symbol) {
+        int index = address & 0xffff;
+        if (symbols[index] == null) {
+            size++;
+        }
+        symbols[index] = symbol;
+    }
+
+    /**
+     * @return The symbol at the given address, or an empty string if there is none.
+     */
+    public String get(int address) {
+        String symbol = symbols[address & 0xffff];
+        return symbol == null ? "" : symbol;
+    }
+
+    public boolean contains(int address) {
+        return symbols[address & 0xffff] != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(symbols, null);
+        size = 0;
+    }
+
+    /**
+     * Add the symbols in a debug file output by CC65, one
+     * "al 00XXXX .symbol" line per symbol.
+     *
+     * @throws IOException if the file can't be read or a line isn't understood.
+     */
+    public void load(File file) throws IOException {
+        try (Scanner scanner = new Scanner(file)) {
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine();
+                String[] lineParts = line.split(" ");
+                if (lineParts.length != 3) {
+                    throw new IOException("Format of debug file unrecognized for line: " + line);
+                }
+
+                try {
+                    put(Integer.parseInt(lineParts[1].substring(2), 16), lineParts[2]);
+                } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                    throw new IOException("Format of debug file unrecognized for line: " + line);
+                }
+            }
+        }
+    }
+}
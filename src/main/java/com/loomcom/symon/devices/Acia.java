@@ -23,8 +23,12 @@
 
 package com.loomcom.symon.devices;
 
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.Scheduler;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.nio.ByteBuffer;
 
 /**
  * Abstract base class for ACIAS such as the 6551 and 6580
@@ -44,11 +48,34 @@ public abstract class Acia extends Device {
     boolean overrun = false;
     boolean interrupt = false;
 
-    long lastTxWrite   = 0;
-    long lastRxRead    = 0;
     int  baudRate      = 0;
     long baudRateDelay = 0;
 
+    /**
+     * Set while a character is still being shifted in or out at the
+     * simulated baud rate. Cleared by events on the CPU's scheduler.
+     */
+    boolean rxBusy = false;
+    boolean txBusy = false;
+
+    private final Scheduler.Event rxDone = new Scheduler.Event() {
+        @Override
+        public void fire(long cycle) {
+            synchronized (Acia.this) {
+                rxBusy = false;
+            }
+        }
+    };
+
+    private final Scheduler.Event txDone = new Scheduler.Event() {
+        @Override
+        public void fire(long cycle) {
+            synchronized (Acia.this) {
+                txBusy = false;
+            }
+        }
+    };
+
     /**
      * Read/Write buffers
      */
@@ -58,6 +85,12 @@ public abstract class Acia extends Device {
     boolean rxFull  = false;
     boolean txEmpty = true;
 
+    /**
+     * Set when the CPU reads the status register, cleared when a new
+     * character is received.
+     */
+    boolean statusPolled = false;
+
 
     public Acia(int address, int size, String name) throws MemoryRangeException {
         super(address, address + size - 1, name);
@@ -80,6 +113,37 @@ public abstract class Acia extends Device {
         }
     }
 
+    /*
+     * Mark the receiver or transmitter busy for one character time, if
+     * there is a CPU to time it against. Without one, e.g. when the ACIA
+     * is not attached to a bus, there is no delay.
+     */
+    private boolean startCharacterTime(Scheduler.Event done) {
+        Bus bus = getBus();
+        Cpu cpu = (bus == null) ? null : bus.getCpu();
+        if (cpu == null || baudRateDelay == 0) {
+            return false;
+        }
+        cpu.getScheduler().schedule(done, cpu.getCycleCount() + cpu.nanosToCycles(baudRateDelay));
+        return true;
+    }
+
+    /**
+     * @return true if the receive register holds a character the CPU has
+     * not yet read, and a full character time has passed since the last read.
+     */
+    boolean isRxReady() {
+        return rxFull && !rxBusy;
+    }
+
+    /**
+     * @return true if the transmit register is empty, and a full character
+     * time has passed since the last write.
+     */
+    boolean isTxReady() {
+        return txEmpty && !txBusy;
+    }
+
     /**
      * @return The simulated baud rate in bps.
      */
@@ -102,6 +166,79 @@ public abstract class Acia extends Device {
      */
     public abstract int statusReg(boolean cpuAccess);
 
+    @Override
+    public int getStateSize() {
+        return 9 + 4 * 3 + 8 * 2;
+    }
+
+    /*
+     * Character times in progress are saved as the cycles at which they
+     * end, and rescheduled on restore. The CPU's cycle counter must be
+     * restored first.
+     */
+    @Override
+    public synchronized void saveState(ByteBuffer out) {
+        out.put(flag(receiveIrqEnabled));
+        out.put(flag(transmitIrqEnabled));
+        out.put(flag(overrun));
+        out.put(flag(interrupt));
+        out.put(flag(rxFull));
+        out.put(flag(txEmpty));
+        out.put(flag(statusPolled));
+        out.put(flag(rxBusy));
+        out.put(flag(txBusy));
+        out.putInt(baudRate);
+        out.putInt(rxChar);
+        out.putInt(txChar);
+        out.putLong(scheduledCycle(rxDone));
+        out.putLong(scheduledCycle(txDone));
+    }
+
+    @Override
+    public synchronized void restoreState(ByteBuffer in) {
+        receiveIrqEnabled = in.get() != 0;
+        transmitIrqEnabled = in.get() != 0;
+        overrun = in.get() != 0;
+        interrupt = in.get() != 0;
+        rxFull = in.get() != 0;
+        txEmpty = in.get() != 0;
+        statusPolled = in.get() != 0;
+        rxBusy = in.get() != 0;
+        txBusy = in.get() != 0;
+        setBaudRate(in.getInt());
+        rxChar = in.getInt();
+        txChar = in.getInt();
+        reschedule(rxDone, in.getLong());
+        reschedule(txDone, in.getLong());
+    }
+
+    private static byte flag(boolean value) {
+        return (byte) (value ? 1 : 0);
+    }
+
+    private Scheduler getScheduler() {
+        Bus bus = getBus();
+        Cpu cpu = (bus == null) ? null : bus.getCpu();
+        return (cpu == null) ? null : cpu.getScheduler();
+    }
+
+    private long scheduledCycle(Scheduler.Event event) {
+        Scheduler scheduler = getScheduler();
+        return (scheduler == null) ? -1 : scheduler.getScheduledCycle(event);
+    }
+
+    private void reschedule(Scheduler.Event event, long cycle) {
+        Scheduler scheduler = getScheduler();
+        if (scheduler == null) {
+            return;
+        }
+        if (cycle < 0) {
+            scheduler.cancel(event);
+        } else {
+            scheduler.schedule(event, cycle);
+        }
+    }
+
     @Override
     public String toString() {
         return name + "@" + String.format("%04X", baseAddress);
@@ -109,7 +246,7 @@ public abstract class Acia extends Device {
 
     public synchronized int rxRead(boolean cpuAccess) {
         if (cpuAccess) {
-            lastRxRead = System.nanoTime();
+            rxBusy = startCharacterTime(rxDone);
             overrun = false;
             rxFull = false;
         }
@@ -122,6 +259,10 @@ public abstract class Acia extends Device {
         }
 
         rxFull = true;
+        statusPolled = false;
+        if (getBus() != null) {
+            getBus().deviceChanged();
+        }
 
         if (receiveIrqEnabled) {
             interrupt = true;
@@ -134,6 +275,10 @@ public abstract class Acia extends Device {
     public synchronized int txRead(boolean cpuAccess) {
         if (cpuAccess) {
             txEmpty = true;
+            // The host taking output may be what a loop is waiting for
+            if (getBus() != null) {
+                getBus().deviceChanged();
+            }
 
             if (transmitIrqEnabled) {
                 interrupt = true;
@@ -144,7 +289,7 @@ public abstract class Acia extends Device {
     }
 
     public synchronized void txWrite(int data) {
-        lastTxWrite = System.nanoTime();
+        txBusy = startCharacterTime(txDone);
         txChar = data;
         txEmpty = false;
     }
@@ -163,4 +308,12 @@ public abstract class Acia extends Device {
         return rxFull;
     }
 
+    /**
+     * @return true if the CPU has read the status register since the last
+     * character was received, i.e. the guest is ready for input.
+     */
+    public boolean isStatusPolled() {
+        return statusPolled;
+    }
+
 }
@@ -26,6 +26,8 @@ package com.loomcom.symon.devices;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.nio.ByteBuffer;
+
 /**
  * This is a simulation of the MOS 6551 ACIA, with limited
  * functionality.  Interrupts are not supported.
@@ -71,6 +73,13 @@ public class Acia6551 extends Acia {
         }
     }
 
+    @Override
+    public boolean isStableRead(int address) {
+        // The status register only changes when a character arrives or
+        // finishes, or the host takes one.
+        return address == STAT_REG;
+    }
+
     @Override
     public void write(int address, int data) throws MemoryAccessException {
         switch (address) {
@@ -92,6 +101,25 @@ public class Acia6551 extends Acia {
     }
 
 
+    @Override
+    public int getStateSize() {
+        return super.getStateSize() + 2;
+    }
+
+    @Override
+    public synchronized void saveState(ByteBuffer out) {
+        super.saveState(out);
+        out.put((byte) commandRegister);
+        out.put((byte) controlRegister);
+    }
+
+    @Override
+    public synchronized void restoreState(ByteBuffer in) {
+        super.restoreState(in);
+        commandRegister = in.get() & 0xff;
+        controlRegister = in.get() & 0xff;
+    }
+
     private void setCommandRegister(int data) {
         commandRegister = data;
 
@@ -181,10 +209,10 @@ public class Acia6551 extends Acia {
     public int statusReg(boolean cpuAccess) {
         // TODO: Parity Error, Framing Error, DTR, and DSR flags.
         int stat = 0;
-        if (rxFull && System.nanoTime() >= (lastRxRead + baudRateDelay)) {
+        if (isRxReady()) {
             stat |= 0x08;
         }
-        if (txEmpty && System.nanoTime() >= (lastTxWrite + baudRateDelay)) {
+        if (isTxReady()) {
             stat |= 0x10;
         }
         if (overrun) {
@@ -196,6 +224,7 @@ public class Acia6551 extends Acia {
 
         if (cpuAccess) {
             interrupt = false;
+            statusPolled = true;
         }
 
         return stat;
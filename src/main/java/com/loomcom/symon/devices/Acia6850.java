@@ -65,6 +65,13 @@ public class Acia6850 extends Acia {
         }
     }
 
+    @Override
+    public boolean isStableRead(int address) {
+        // The status register only changes when a character arrives or
+        // finishes, or the host takes one.
+        return address == STAT_REG;
+    }
+
     @Override
     public void write(int address, int data) throws MemoryAccessException {
         switch (address) {
@@ -100,10 +107,10 @@ public class Acia6850 extends Acia {
     public int statusReg(boolean cpuAccess) {
         // TODO: Parity Error, Framing Error, DTR, and DSR flags.
         int stat = 0;
-        if (rxFull && System.nanoTime() >= (lastRxRead + baudRateDelay)) {
+        if (isRxReady()) {
             stat |= 0x01;
         }
-        if (txEmpty && System.nanoTime() >= (lastTxWrite + baudRateDelay)) {
+        if (isTxReady()) {
             stat |= 0x02;
         }
         if (overrun) {
@@ -115,6 +122,7 @@ public class Acia6850 extends Acia {
 
         if (cpuAccess) {
             interrupt = false;
+            statusPolled = true;
         }
 
         return stat;
@@ -27,6 +27,7 @@ import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Simulation of a 6545 CRTC and virtual CRT output.
@@ -140,6 +141,48 @@ public class Crtc extends Device {
         return null;
     }
 
+    @Override
+    public int getStateSize() {
+        return 4 * 10 + 4;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.putInt(horizontalDisplayed);
+        out.putInt(verticalDisplayed);
+        out.putInt(scanLinesPerRow);
+        out.putInt(cursorStartLine);
+        out.putInt(cursorBlinkRate);
+        out.putInt(cursorStopLine);
+        out.putInt(startAddress);
+        out.putInt(cursorPosition);
+        out.putInt(pageSize);
+        out.putInt(currentRegister);
+        out.put((byte) (cursorEnabled ? 1 : 0));
+        out.put((byte) (rowColumnAddressing ? 1 : 0));
+        out.put((byte) (displayEnableSkew ? 1 : 0));
+        out.put((byte) (cursorSkew ? 1 : 0));
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        horizontalDisplayed = in.getInt();
+        verticalDisplayed = in.getInt();
+        scanLinesPerRow = in.getInt();
+        cursorStartLine = in.getInt();
+        cursorBlinkRate = in.getInt();
+        cursorStopLine = in.getInt();
+        startAddress = in.getInt();
+        cursorPosition = in.getInt();
+        pageSize = in.getInt();
+        currentRegister = in.getInt();
+        cursorEnabled = in.get() != 0;
+        rowColumnAddressing = in.get() != 0;
+        displayEnableSkew = in.get() != 0;
+        cursorSkew = in.get() != 0;
+        notifyListeners();
+    }
+
     public int getCharAtAddress(int address) throws MemoryAccessException {
         // TODO: Row/Column addressing
         return memory.read(address, false);
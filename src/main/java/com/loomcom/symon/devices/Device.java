@@ -27,7 +27,9 @@ import com.loomcom.symon.Bus;
 import com.loomcom.symon.MemoryRange;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
+import com.loomcom.symon.exceptions.SnapshotException;
 
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -76,6 +78,58 @@ public abstract class Device implements Comparable<Device> {
 
     public abstract String toString();
 
+    /**
+     * Say whether a CPU read of a register has no effect beyond the first,
+     * so that its value can only change through a scheduled device event
+     * or a call from the host. The CPU may skip ahead over a loop that
+     * does nothing but poll such registers. Devices must opt in.
+     *
+     * @param address Address relative to the device's start address
+     * @return True if polling the register is free of side effects
+     */
+    public boolean isStableRead(int address) {
+        return false;
+    }
+
+    /**
+     * @return The number of bytes that {@link #saveState(ByteBuffer)}
+     * writes, always the same. A snapshot holding any other amount for the
+     * device is not restored. Devices with no state of their own need not
+     * override this.
+     */
+    public int getStateSize() {
+        return 0;
+    }
+
+    /**
+     * Write the device's internal state, such as the contents of its
+     * registers, to a machine snapshot.
+     *
+     * @param out The buffer to write to, with at least getStateSize() bytes remaining
+     */
+    public void saveState(ByteBuffer out) {
+    }
+
+    /**
+     * Restore internal state written by {@link #saveState(ByteBuffer)}.
+     * The state has already been through {@link #checkState(ByteBuffer)}.
+     *
+     * @param in The buffer to read from
+     */
+    public void restoreState(ByteBuffer in) {
+    }
+
+    /**
+     * Check saved state before anything on the bus is restored, so that a
+     * bad snapshot leaves the machine as it was. Devices that save values
+     * not every number is valid for, such as enum ordinals, override this.
+     *
+     * @param in The buffer to read from, holding getStateSize() bytes
+     * @throws SnapshotException if the state could not be restored
+     */
+    public void checkState(ByteBuffer in) throws SnapshotException {
+    }
+
     public Bus getBus() {
         return this.bus;
     }
@@ -24,14 +24,38 @@
 package com.loomcom.symon.devices;
 
 import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
+import com.loomcom.symon.Bus;
 import com.loomcom.symon.exceptions.*;
 
+/**
+ * RAM or ROM, backed by one byte per address, held in pages of PAGE_SIZE
+ * bytes. Pages may be shared copy-on-write with other memories, see
+ * {@link #shareContents(Memory)}.
+ */
 public class Memory extends Device {
 
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_SIZE  = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // Every page starts out as this one, until it is first written
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
     protected boolean readOnly;
-    protected int[] mem;
+
+    // The contents of memory. A shared page may also belong to another
+    // Memory, so it is copied before it is written.
+    private final byte[][] pages;
+    private final boolean[] shared;
+
+    // False if a subclass overrides read() or write()
+    private final boolean plain;
 
     /* Initialize all locations to 0x00 (BRK) */
     private static final int DEFAULT_FILL = 0x00;
@@ -40,7 +64,9 @@ public class Memory extends Device {
             throws MemoryRangeException {
         super(startAddress, endAddress, (readOnly ? "RO Memory" : "RW Memory"));
         this.readOnly = readOnly;
-        this.mem = new int[this.size];
+        this.pages = new byte[(this.size + PAGE_MASK) >>> PAGE_SHIFT][];
+        this.shared = new boolean[pages.length];
+        this.plain = isPlain(getClass());
         this.fill(DEFAULT_FILL);
     }
 
@@ -62,8 +88,190 @@ public class Memory extends Device {
         if (readOnly) {
             throw new MemoryAccessException("Cannot write to read-only memory at address " + address);
         } else {
-            this.mem[address] = data;
+            writablePage(address >>> PAGE_SHIFT)[address & PAGE_MASK] = (byte) data;
+        }
+    }
+
+    /**
+     * Copy the remaining bytes of a buffer into memory, starting at the
+     * beginning of this device. The buffer's position is advanced past the
+     * bytes copied. This ignores the read-only flag, so it may be used to
+     * load ROM images.
+     *
+     * @throws MemoryRangeException if the buffer will not fit in memory.
+     */
+    public void load(ByteBuffer source) throws MemoryRangeException {
+        load(0, source);
+    }
+
+    /**
+     * Copy the remaining bytes of a buffer into memory, starting at the
+     * given offset from the beginning of this device.
+     *
+     * @throws MemoryRangeException if the buffer will not fit in memory.
+     */
+    public void load(int offset, ByteBuffer source) throws MemoryRangeException {
+        if (offset < 0 || source.remaining() > size - offset) {
+            throw new MemoryRangeException("Data will not fit in available memory.");
+        }
+        while (source.hasRemaining()) {
+            int length = Math.min(source.remaining(), PAGE_SIZE - (offset & PAGE_MASK));
+            source.get(writablePage(offset >>> PAGE_SHIFT), offset & PAGE_MASK, length);
+            pageWritten(offset >>> PAGE_SHIFT);
+            offset += length;
+        }
+    }
+
+    /**
+     * Copy the entire contents of memory into a buffer, advancing its
+     * position.
+     *
+     * @throws java.nio.BufferOverflowException if the buffer is too small.
+     */
+    public void dump(ByteBuffer destination) {
+        if (destination.remaining() < size) {
+            throw new BufferOverflowException();
         }
+        for (int i = 0; i < pages.length; i++) {
+            destination.put(pages[i], 0, pageLength(i));
+        }
+    }
+
+    /**
+     * @return A read-only view of one page of memory, from the start of
+     *         this device. The view is not a copy, so it reflects later
+     *         writes, until the page is next copied on write; take views
+     *         afresh rather than keeping them. The last page is shorter
+     *         than PAGE_SIZE if the memory doesn't fill it.
+     */
+    public ByteBuffer asReadOnlyBuffer(int index) {
+        return ByteBuffer.wrap(pages[index], 0, pageLength(index)).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return Read-only views of every page of memory, in order, for the UI
+     *         and other readers that don't need a copy. Each view is taken
+     *         as the iteration reaches it, see {@link #asReadOnlyBuffer(int)}.
+     */
+    public Iterable<ByteBuffer> readOnlyPages() {
+        return () -> new Iterator<ByteBuffer>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < pages.length;
+            }
+
+            @Override
+            public ByteBuffer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return asReadOnlyBuffer(index++);
+            }
+        };
+    }
+
+    /**
+     * Share the contents of another memory of the same size, rather than
+     * copying them. Each page is shared until either memory next writes to
+     * it, when the writer takes a copy of that page alone; so sharing is
+     * cheap however large the memory is, and costs only as much as the
+     * two memories come to differ.
+     *
+     * @throws IllegalArgumentException if the memories are different sizes.
+     */
+    public void shareContents(Memory source) {
+        if (source.size != size) {
+            throw new IllegalArgumentException("Cannot share contents of " + source + " with " + this);
+        }
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = source.pages[i];
+            shared[i] = true;
+            source.shared[i] = true;
+        }
+        pagesChanged();
+        source.pagesChanged();
+    }
+
+    /**
+     * Return the array holding one page of memory, so that the Bus can
+     * read it (and, unless it is read-only or shared, write it) without
+     * calling read() and write(). Returns null if a subclass overrides
+     * either method, since it must then see every access.
+     *
+     * @param index The page, counting from the start of this device
+     */
+    public byte[] getPage(int index) {
+        return plain ? pages[index] : null;
+    }
+
+    /**
+     * @return true if the page may also belong to another memory, and must
+     *         be written through write() so that it is copied first.
+     */
+    public boolean isPageShared(int index) {
+        return shared[index];
+    }
+
+    /**
+     * Return a page that may be written, copying it first if it is
+     * shared. Subclasses that fill memory directly must use this, and
+     * call {@link #pageWritten(int)} when done.
+     */
+    protected final byte[] writablePage(int index) {
+        if (shared[index]) {
+            pages[index] = pages[index].clone();
+            shared[index] = false;
+            Bus bus = getBus();
+            if (bus != null) {
+                bus.pageChanged(this, index);
+            }
+        }
+        return pages[index];
+    }
+
+    /**
+     * Tell the bus that a page has been written directly rather than
+     * through the bus, so that code decoded from it is dropped.
+     */
+    protected final void pageWritten(int index) {
+        Bus bus = getBus();
+        if (bus != null) {
+            bus.pageChanged(this, index);
+        }
+    }
+
+    protected final int getPageCount() {
+        return pages.length;
+    }
+
+    private int pageLength(int index) {
+        return Math.min(PAGE_SIZE, size - (index << PAGE_SHIFT));
+    }
+
+    private void pagesChanged() {
+        for (int i = 0; i < pages.length; i++) {
+            pageWritten(i);
+        }
+    }
+
+    @Override
+    public int getStateSize() {
+        return size;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        dump(out);
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        for (int i = 0; i < pages.length; i++) {
+            in.get(writablePage(i), 0, pageLength(i));
+        }
+        pagesChanged();
     }
 
     /**
@@ -75,32 +283,57 @@ public class Memory extends Device {
      */
     public void loadFromFile(File file) throws MemoryRangeException, IOException {
         if (file.canRead()) {
-            long fileSize = file.length();
-
-            if (fileSize > mem.length) {
-                throw new MemoryRangeException("File will not fit in available memory.");
-            } else {
-                int i = 0;
-                FileInputStream fis = new FileInputStream(file);
-                BufferedInputStream bis = new BufferedInputStream(fis);
-                DataInputStream dis = new DataInputStream(bis);
-                while (dis.available() != 0) {
-                    mem[i++] = dis.readUnsignedByte();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long fileSize = channel.size();
+
+                if (fileSize > size) {
+                    throw new MemoryRangeException("File will not fit in available memory.");
                 }
-                dis.close();
+                load(channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize));
             }
         } else {
             throw new IOException("Cannot open file " + file);
         }
-
     }
 
     public int read(int address, boolean cpuAccess) throws MemoryAccessException {
-        return this.mem[address];
+        return pages[address >>> PAGE_SHIFT][address & PAGE_MASK] & 0xff;
+    }
+
+    @Override
+    public boolean isStableRead(int address) {
+        // Subclasses that see every access may have side effects
+        return plain;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    private static boolean isPlain(Class<?> type) {
+        try {
+            Class<?> reader = type.getMethod("read", int.class, boolean.class).getDeclaringClass();
+            Class<?> writer = type.getMethod("write", int.class, int.class).getDeclaringClass();
+            return reader == Memory.class && writer == Memory.class;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
     }
 
     public void fill(int val) {
-        Arrays.fill(this.mem, val);
+        if ((byte) val == 0) {
+            // Cheaper than writing every page, and lets zeroed pages be shared
+            for (int i = 0; i < pages.length; i++) {
+                pages[i] = ZERO_PAGE;
+                shared[i] = true;
+            }
+            pagesChanged();
+        } else {
+            for (int i = 0; i < pages.length; i++) {
+                Arrays.fill(writablePage(i), (byte) val);
+            }
+            pagesChanged();
+        }
     }
     
     public void reset() {
@@ -12,14 +12,26 @@ public class RandomFillMemory extends Memory {
     
     public RandomFillMemory(int startAddress, int endAddress, boolean readOnly)
             throws MemoryRangeException {
+        this(startAddress, endAddress, readOnly, true);
+    }
+
+    /**
+     * @param fill If false, the memory starts out zeroed instead, e.g. to
+     *             have another memory's contents shared in.
+     */
+    public RandomFillMemory(int startAddress, int endAddress, boolean readOnly, boolean fill)
+            throws MemoryRangeException {
         super(startAddress, endAddress, readOnly);
-        randomFill();
+        if (fill) {
+            randomFill();
+        }
     }
 
 	public void randomFill() {
-    	Random r = new Random();
-    	for (int j=0; j< mem.length; j++) {
-    		mem[j] = r.nextInt();
+    	Random random = new Random();
+    	for (int i = 0; i < getPageCount(); i++) {
+    	    random.nextBytes(writablePage(i));
+    	    pageWritten(i);
     	}
     }
     
@@ -27,11 +27,13 @@ package com.loomcom.symon.devices;
 
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
+import com.loomcom.symon.exceptions.SnapshotException;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,6 +43,18 @@ import java.util.logging.Logger;
  */
 public class SdController extends Device {
 
+    /**
+     * Supplies the contents of each sector the guest reads. Normally the
+     * card image file, but may be replaced to record or replay the reads.
+     */
+    public interface SectorSource {
+        /**
+         * @param position The byte offset of the sector in the card image
+         * @param sector   The buffer to fill, SECTOR_SIZE bytes long
+         */
+        void readSector(int position, byte[] sector) throws IOException;
+    }
+
     private enum Status {
         IDLE,
         READ,
@@ -48,7 +62,7 @@ public class SdController extends Device {
     }
 
     public static final int CONTROLLER_SIZE = 8;
-    private final int SECTOR_SIZE = 512;
+    public static final int SECTOR_SIZE = 512;
     private final static Logger logger = Logger.getLogger(SdController.class.getName());
 
     private File sdImageFile;
@@ -61,6 +75,8 @@ public class SdController extends Device {
     private int readPosition = 0;
     private int writePosition = 0;
 
+    private SectorSource sectorSource = this::readFromImage;
+
 
     public SdController(int address) throws MemoryRangeException {
         super(address, address + CONTROLLER_SIZE - 1, "SDCONTROLLER");
@@ -116,21 +132,33 @@ public class SdController extends Device {
         this.readPosition = 0;
         computePosition();
 
+        try {
+            sectorSource.readSector(this.position, readBuffer);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "could not fill read buffer from SD image file", ex);
+        }
+    }
+
+    private void readFromImage(int position, byte[] sector) throws IOException {
         if (sdImageFile != null) {
-            try {
-                FileInputStream fis = new FileInputStream(sdImageFile);
-                fis.skip(this.position);
-                int read = fis.read(readBuffer);
+            try (FileInputStream fis = new FileInputStream(sdImageFile)) {
+                fis.skip(position);
+                int read = fis.read(sector);
                 if (read < SECTOR_SIZE) {
                     logger.log(Level.WARNING, "not enough data to fill read buffer from SD image file");
                 }
-                fis.close();
-            } catch (IOException ex) {
-                logger.log(Level.WARNING, "could not fill read buffer from SD image file", ex);
             }
         }
     }
 
+    public SectorSource getSectorSource() {
+        return sectorSource;
+    }
+
+    public void setSectorSource(SectorSource sectorSource) {
+        this.sectorSource = sectorSource;
+    }
+
     private void prepareWrite() {
         this.status = Status.WRITE;
         this.writePosition = 0;
@@ -202,6 +230,54 @@ public class SdController extends Device {
         }
     }
 
+    /*
+     * The card image itself is a file of its own, and is not part of
+     * the saved state.
+     */
+    @Override
+    public int getStateSize() {
+        return 4 * 7 + 2 * SECTOR_SIZE;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.putInt(lba0);
+        out.putInt(lba1);
+        out.putInt(lba2);
+        out.putInt(position);
+        out.putInt(status.ordinal());
+        out.putInt(readPosition);
+        out.putInt(writePosition);
+        out.put(readBuffer);
+        out.put(writeBuffer);
+    }
+
+    @Override
+    public void checkState(ByteBuffer in) throws SnapshotException {
+        int savedStatus = in.getInt(in.position() + 16);
+        if (savedStatus < 0 || savedStatus >= Status.values().length) {
+            throw new SnapshotException("Snapshot of " + this + " has unknown status " + savedStatus + ".");
+        }
+        int savedRead = in.getInt(in.position() + 20);
+        int savedWrite = in.getInt(in.position() + 24);
+        if (savedRead < 0 || savedRead >= SECTOR_SIZE || savedWrite < 0 || savedWrite >= SECTOR_SIZE) {
+            throw new SnapshotException("Snapshot of " + this + " has a position outside the sector buffers.");
+        }
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        lba0 = in.getInt();
+        lba1 = in.getInt();
+        lba2 = in.getInt();
+        position = in.getInt();
+        status = Status.values()[in.getInt()];
+        readPosition = in.getInt();
+        writePosition = in.getInt();
+        in.get(readBuffer);
+        in.get(writeBuffer);
+    }
+
     @Override
     public String toString() {
         return getName() + "@" + String.format("%04X", this.getMemoryRange().startAddress);
@@ -25,15 +25,16 @@ package com.loomcom.symon.devices;
 
 import org.joou.UByte;
 
-import com.loomcom.symon.StepListener;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.nio.ByteBuffer;
+
 /**
  * Very basic implementation of a MOS 6522 VIA.
  *
  */
-public class Via6522 extends Pia implements StepListener {
+public class Via6522 extends Pia {
     public static final int VIA_SIZE = 16;
     private final UByte[] registers = new UByte[VIA_SIZE];
     
@@ -51,6 +52,25 @@ public class Via6522 extends Pia implements StepListener {
         }
     }
 
+    @Override
+    public int getStateSize() {
+        return VIA_SIZE;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        for (UByte register : registers) {
+            out.put(register.byteValue());
+        }
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = UByte.valueOf(in.get() & 0xff);
+        }
+    }
+
     @Override
     public void write(int address, int data) throws MemoryAccessException {
 
@@ -115,10 +135,4 @@ public class Via6522 extends Pia implements StepListener {
 
         return registers[r.ordinal()].intValue();
     }
-
-	@Override
-	public void step() {
-		// TODO Auto-generated method stub
-		
-	}
 }
@@ -75,9 +75,17 @@ public class CNP1Machine implements Machine {
     private       Memory rom;
 
     public CNP1Machine() throws Exception {
+        this(true);
+    }
+
+    /*
+     * Without initializing, RAM is left unfilled and no ROM is loaded, for
+     * MachineFactory.fork to share a running machine's contents in.
+     */
+    CNP1Machine(boolean initialize) throws Exception {
         this.bus = new Bus(BUS_BOTTOM, BUS_TOP);
         this.cpu = new Cpu(CpuBehavior.CMOS_6502);
-        this.ram = new RandomFillMemory(MEMORY_BASE, MEMORY_BASE + MEMORY_SIZE - 1, false);
+        this.ram = new RandomFillMemory(MEMORY_BASE, MEMORY_BASE + MEMORY_SIZE - 1, false, initialize);
         this.via = new Via6522(VIA_BASE);
         this.acia = new Acia6551(ACIA_BASE);
         
@@ -86,17 +94,19 @@ public class CNP1Machine implements Machine {
         bus.addDevice(via);
         bus.addDevice(acia);
         
-        // TODO: Make this configurable, of course.
-        File romImage = new File("rom.bin");
-        if (romImage.canRead()) {
-            logger.info("Loading ROM image from file {}", romImage);
-            this.rom = Memory.makeROM(ROM_BASE, ROM_BASE + ROM_SIZE - 1, romImage);
-        } else {
-            logger.info("Default ROM file {} not found, loading empty R/W memory image.", romImage);
-            this.rom = Memory.makeRAM(ROM_BASE, ROM_BASE + ROM_SIZE - 1);
+        if (initialize) {
+            // TODO: Make this configurable, of course.
+            File romImage = new File("rom.bin");
+            if (romImage.canRead()) {
+                logger.info("Loading ROM image from file {}", romImage);
+                this.rom = Memory.makeROM(ROM_BASE, ROM_BASE + ROM_SIZE - 1, romImage);
+            } else {
+                logger.info("Default ROM file {} not found, loading empty R/W memory image.", romImage);
+                this.rom = Memory.makeRAM(ROM_BASE, ROM_BASE + ROM_SIZE - 1);
+            }
+
+            bus.addDevice(rom);
         }
-
-        bus.addDevice(rom);
     }
 
     @Override
@@ -89,10 +89,18 @@ public class CNP2Machine implements Machine {
     private       Memory rom;
 
     public CNP2Machine() throws Exception {
+        this(true);
+    }
+
+    /*
+     * Without initializing, RAM is left unfilled and no ROM is loaded, for
+     * MachineFactory.fork to share a running machine's contents in.
+     */
+    CNP2Machine(boolean initialize) throws Exception {
         this.bus = new Bus(BUS_BOTTOM, BUS_TOP);
         this.cpu = new Cpu(CpuBehavior.CMOS_6502);
-        this.ram1 = new RandomFillMemory(MEMORY1_BASE, MEMORY1_BASE + MEMORY1_SIZE - 1, false);
-        this.ram2 = new RandomFillMemory(MEMORY2_BASE, MEMORY2_BASE + MEMORY2_SIZE - 1, false);
+        this.ram1 = new RandomFillMemory(MEMORY1_BASE, MEMORY1_BASE + MEMORY1_SIZE - 1, false, initialize);
+        this.ram2 = new RandomFillMemory(MEMORY2_BASE, MEMORY2_BASE + MEMORY2_SIZE - 1, false, initialize);
         this.via1 = new Via6522(VIA1_BASE);
         this.via2 = new Via6522(VIA2_BASE);
         this.acia = new Acia6551(ACIA_BASE);
@@ -104,17 +112,19 @@ public class CNP2Machine implements Machine {
         bus.addDevice(via2);
         bus.addDevice(acia);
         
-        // TODO: Make this configurable, of course.
-        File romImage = new File("rom.bin");
-        if (romImage.canRead()) {
-            logger.info("Loading ROM image from file {}", romImage);
-            this.rom = Memory.makeROM(ROM_BASE, ROM_BASE + ROM_SIZE - 1, romImage);
-        } else {
-            logger.info("Default ROM file {} not found, loading empty R/W memory image.", romImage);
-            this.rom = Memory.makeRAM(ROM_BASE, ROM_BASE + ROM_SIZE - 1);
+        if (initialize) {
+            // TODO: Make this configurable, of course.
+            File romImage = new File("rom.bin");
+            if (romImage.canRead()) {
+                logger.info("Loading ROM image from file {}", romImage);
+                this.rom = Memory.makeROM(ROM_BASE, ROM_BASE + ROM_SIZE - 1, romImage);
+            } else {
+                logger.info("Default ROM file {} not found, loading empty R/W memory image.", romImage);
+                this.rom = Memory.makeRAM(ROM_BASE, ROM_BASE + ROM_SIZE - 1);
+            }
+
+            bus.addDevice(rom);
         }
-
-        bus.addDevice(rom);
     }
 
     @Override
@@ -1,5 +1,11 @@
 package com.loomcom.symon.machines;
 
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
+
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -15,31 +21,55 @@ public class MachineFactory {
 			public Machine create() throws Exception {
 				return new SymonMachine();
 			}
+
+			Machine createBlank() throws Exception {
+				return new SymonMachine(false);
+			}
 		},
 		MULTICOMP("Multicomp", "multicomp") {
 			public Machine create() throws Exception {
 				return new MulticompMachine();
 			}
+
+			Machine createBlank() throws Exception {
+				return new MulticompMachine(false);
+			}
 		},
 		SIMPLE("Simple", "simple") {
 			public Machine create() throws Exception {
 				return new SimpleMachine();
 			}
+
+			Machine createBlank() throws Exception {
+				return new SimpleMachine();
+			}
 		},
 		CNP1("CNP-1", "cnp1") {
 			public Machine create() throws Exception {
 				return new CNP1Machine();
 			}
+
+			Machine createBlank() throws Exception {
+				return new CNP1Machine(false);
+			}
 		},
 		CNP2("CNP-2", "cnp2") {
 			public Machine create() throws Exception {
 				return new CNP2Machine();
 			}
+
+			Machine createBlank() throws Exception {
+				return new CNP2Machine(false);
+			}
 		},
 		DODO("DoDo-6502", "dodo") {
 			public Machine create() throws Exception {
 				return new DodoMachine();
 			}
+
+			Machine createBlank() throws Exception {
+				return new DodoMachine(false);
+			}
 		};
 
 		private final String name;
@@ -47,6 +77,12 @@ public class MachineFactory {
 
 		public abstract Machine create() throws Exception;
 
+		/*
+		 * Create the machine without filling its RAM or loading its ROM,
+		 * for fork() to share the parent's contents in.
+		 */
+		abstract Machine createBlank() throws Exception;
+
 		private static final Map<String, MachineEnum> map = new HashMap<String, MachineEnum>();
 
 		static {
@@ -87,6 +123,82 @@ public class MachineFactory {
 		return mach.create();
 	}
 
+	/**
+	 * Create a copy of a running machine, which carries on from exactly
+	 * where the parent is now. The child shares the parent's RAM and ROM
+	 * copy-on-write, a page at a time, so forking is quick and a child
+	 * costs only the memory it goes on to write. The parent should be
+	 * stopped while this runs.
+	 */
+	public static Machine fork(Machine parent) throws Exception {
+		MachineEnum type = MachineEnum.fromString(parent.getName());
+		if (type == null) {
+			throw new IllegalArgumentException("Cannot fork unknown machine " + parent.getName());
+		}
+		Machine child = type.createBlank();
+
+		// The parent's ROM may have been replaced since it was created, so
+		// the child gets an empty one of the same shape
+		Memory rom = parent.getRom();
+		if (rom != null) {
+			child.setRom(new Memory(rom.startAddress(), rom.endAddress(), rom.isReadOnly()));
+		}
+
+		Bus from = parent.getBus();
+		Bus to = child.getBus();
+		List<Device> fromDevices = new ArrayList<Device>(from.getDevices());
+		List<Device> toDevices = new ArrayList<Device>(to.getDevices());
+		if (fromDevices.size() != toDevices.size()) {
+			throw new IllegalArgumentException("Cannot fork " + parent.getName() + " with devices added or removed");
+		}
+
+		// The CPU first, since devices schedule events against its cycle counter
+		Cpu cpu = from.getCpu();
+		ByteBuffer state = ByteBuffer.allocate(cpu.getStateSize());
+		cpu.saveState(state);
+		state.flip();
+		to.getCpu().restoreState(state);
+		to.getCpu().setCore(cpu.getCore());
+		to.getCpu().setUnthrottled(cpu.isUnthrottled());
+		to.getCpu().setClockPeriodInNs(cpu.getClockPeriodInNs());
+		to.getCpu().setSingleStepping(cpu.isSingleStepping());
+		to.getCpu().setIdleSkipping(cpu.isIdleSkipping());
+
+		for (int i = 0; i < fromDevices.size(); i++) {
+			Device source = fromDevices.get(i);
+			Device target = toDevices.get(i);
+			if (source.getClass() != target.getClass() ||
+			    source.startAddress() != target.startAddress() ||
+			    source.endAddress() != target.endAddress()) {
+				throw new IllegalArgumentException("Cannot fork " + parent.getName() + " with devices added or removed");
+			}
+
+			if (source instanceof Memory) {
+				((Memory) target).shareContents((Memory) source);
+			} else {
+				state = ByteBuffer.allocate(source.getStateSize());
+				source.saveState(state);
+				state.flip();
+				target.restoreState(state);
+			}
+		}
+
+		return child;
+	}
+
+	/**
+	 * Fork a running machine into a number of children.
+	 *
+	 * @see #fork(Machine)
+	 */
+	public static List<Machine> fork(Machine parent, int children) throws Exception {
+		List<Machine> machines = new ArrayList<Machine>(children);
+		for (int i = 0; i < children; i++) {
+			machines.add(fork(parent));
+		}
+		return machines;
+	}
+
 	public static String[] getFriendlyNames() {
 		List<String> names = new ArrayList<String>();
 		for (MachineEnum mach : MachineEnum.values())
@@ -71,6 +71,14 @@ public class MulticompMachine implements Machine {
 
 
     public MulticompMachine() throws Exception {
+        this(true);
+    }
+
+    /*
+     * Without initializing, RAM is left unfilled and no ROM is loaded, for
+     * MachineFactory.fork to share a running machine's contents in.
+     */
+    MulticompMachine(boolean initialize) throws Exception {
         this.bus = new Bus(BUS_BOTTOM, BUS_TOP);
         this.cpu = new Cpu();
         this.ram = new Memory(MEMORY_BASE, MEMORY_BASE + MEMORY_SIZE - 1, false);
@@ -82,18 +90,20 @@ public class MulticompMachine implements Machine {
         bus.addDevice(acia, 1);
         bus.addDevice(new SdController(SD_BASE), 1);
         
-        // TODO: Make this configurable, of course.
-        File romImage = new File("rom.bin");
-        if (romImage.canRead()) {
-            logger.info("Loading ROM image from file " + romImage);
-            this.rom = Memory.makeROM(ROM_BASE, ROM_BASE + ROM_SIZE - 1, romImage);
-        } else {
-            logger.info("Default ROM file " + romImage +
-                        " not found, loading empty R/W memory image.");
-            this.rom = Memory.makeRAM(ROM_BASE, ROM_BASE + ROM_SIZE - 1);
+        if (initialize) {
+            // TODO: Make this configurable, of course.
+            File romImage = new File("rom.bin");
+            if (romImage.canRead()) {
+                logger.info("Loading ROM image from file " + romImage);
+                this.rom = Memory.makeROM(ROM_BASE, ROM_BASE + ROM_SIZE - 1, romImage);
+            } else {
+                logger.info("Default ROM file " + romImage +
+                            " not found, loading empty R/W memory image.");
+                this.rom = Memory.makeRAM(ROM_BASE, ROM_BASE + ROM_SIZE - 1);
+            }
+
+            bus.addDevice(rom);
         }
-
-        bus.addDevice(rom);
         
     }
 
@@ -73,6 +73,14 @@ public class SymonMachine implements Machine {
 
 
     public SymonMachine() throws Exception {
+        this(true);
+    }
+
+    /*
+     * Without initializing, RAM is left unfilled and no ROM is loaded, for
+     * MachineFactory.fork to share a running machine's contents in.
+     */
+    SymonMachine(boolean initialize) throws Exception {
         this.bus = new Bus(BUS_BOTTOM, BUS_TOP);
         this.cpu = new Cpu();
         this.ram = new Memory(MEMORY_BASE, MEMORY_BASE + MEMORY_SIZE - 1, false);
@@ -86,17 +94,19 @@ public class SymonMachine implements Machine {
         bus.addDevice(acia);
         bus.addDevice(crtc);
         
-        // TODO: Make this configurable, of course.
-        File romImage = new File("rom.bin");
-        if (romImage.canRead()) {
-            logger.info("Loading ROM image from file {}", romImage);
-            this.rom = Memory.makeROM(ROM_BASE, ROM_BASE + ROM_SIZE - 1, romImage);
-        } else {
-            logger.info("Default ROM file {} not found, loading empty R/W memory image.", romImage);
-            this.rom = Memory.makeRAM(ROM_BASE, ROM_BASE + ROM_SIZE - 1);
+        if (initialize) {
+            // TODO: Make this configurable, of course.
+            File romImage = new File("rom.bin");
+            if (romImage.canRead()) {
+                logger.info("Loading ROM image from file {}", romImage);
+                this.rom = Memory.makeROM(ROM_BASE, ROM_BASE + ROM_SIZE - 1, romImage);
+            } else {
+                logger.info("Default ROM file {} not found, loading empty R/W memory image.", romImage);
+                this.rom = Memory.makeRAM(ROM_BASE, ROM_BASE + ROM_SIZE - 1);
+            }
+
+            bus.addDevice(rom);
         }
-
-        bus.addDevice(rom);
         
     }
 
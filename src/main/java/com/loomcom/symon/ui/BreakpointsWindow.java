@@ -45,7 +45,7 @@ public class BreakpointsWindow extends JFrame {
 
 	private static final Logger logger = LoggerFactory.getLogger(BreakpointsWindow.class);
 
-    private static final Dimension FRAME_SIZE = new Dimension(240, 280);
+    private static final Dimension FRAME_SIZE = new Dimension(320, 280);
     private static final String EMPTY_STRING = "";
 
     private JFrame mainWindow;
@@ -71,7 +71,9 @@ public class BreakpointsWindow extends JFrame {
         final JButton removeButton = new JButton("Del");
         removeButton.setEnabled(false);
 
-        final JTextField addTextField = new JTextField(4);
+        final JTextField addTextField = new JTextField(14);
+        addTextField.setToolTipText("<html>Address in hex, optionally followed by a condition,<br>" +
+                                    "e.g. <tt>C000 A == $0D &amp;&amp; HITS &gt;= 3</tt></html>");
 
         final JTable breakpointsTable = new JTable(breakpoints);
         breakpointsTable.setShowGrid(true);
@@ -105,8 +107,12 @@ public class BreakpointsWindow extends JFrame {
                     return;
                 }
 
+                // An address, optionally followed by a condition
+                String[] parts = newBreakpoint.trim().split("\\s+", 2);
+                String condition = parts.length > 1 ? parts[1] : null;
+
                 try {
-                    value = (Integer.parseInt(addTextField.getText(), 16) & 0xffff);
+                    value = (Integer.parseInt(parts[0], 16) & 0xffff);
                 } catch (NumberFormatException ex) {
                     logger.warn("Can't parse page number {}", newBreakpoint);
                     return;
@@ -116,7 +122,12 @@ public class BreakpointsWindow extends JFrame {
                     return;
                 }
 
-                breakpoints.addBreakpoint(value);
+                try {
+                    breakpoints.addBreakpoint(value, condition);
+                } catch (IllegalArgumentException ex) {
+                    logger.warn(ex.getMessage());
+                    return;
+                }
 
                 logger.debug("Added breakpoint ${}", Utils.wordToHex(value));
 
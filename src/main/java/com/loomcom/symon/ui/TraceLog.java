@@ -25,7 +25,7 @@
 package com.loomcom.symon.ui;
 
 import com.loomcom.symon.CpuState;
-import com.loomcom.symon.util.FifoRingBuffer;
+import com.loomcom.symon.util.TraceBuffer;
 
 import javax.swing.*;
 import java.awt.*;
@@ -40,15 +40,15 @@ public class TraceLog extends JFrame {
 	 * 
 	 */
 	private static final long serialVersionUID = -8957337082721666597L;
-	private final FifoRingBuffer<CpuState> traceLog;
-    private final JTextArea                    traceLogTextArea;
+	private final TraceBuffer traceLog;
+    private final JTextArea   traceLogTextArea;
 
     private static final Dimension MIN_SIZE       = new Dimension(320, 200);
     private static final Dimension PREFERRED_SIZE = new Dimension(640, 480);
     private static final int       MAX_LOG_LENGTH = 50000;
 
     public TraceLog() {
-        traceLog = new FifoRingBuffer<>(MAX_LOG_LENGTH);
+        traceLog = new TraceBuffer(MAX_LOG_LENGTH);
         setMinimumSize(MIN_SIZE);
         setPreferredSize(PREFERRED_SIZE);
         setResizable(true);
@@ -72,16 +72,10 @@ public class TraceLog extends JFrame {
      * call.
      */
     public void refresh() {
-        StringBuilder logString = new StringBuilder();        
-        
-        synchronized(traceLog) {
-            for (CpuState state : traceLog) {
-                logString.append(state.toTraceEvent());
-            }
-        }
+        String logString = traceLog.toTraceEvents();
 
         synchronized(traceLogTextArea) {
-            traceLogTextArea.setText(logString.toString());
+            traceLogTextArea.setText(logString);
         }
     }
 
@@ -89,9 +83,7 @@ public class TraceLog extends JFrame {
      * Reset the log area.
      */
     public void reset() {
-        synchronized(traceLog) {
-            traceLog.reset();
-        }
+        traceLog.reset();
         synchronized(traceLogTextArea) {
             traceLogTextArea.setText("");
             traceLogTextArea.setEnabled(true);
@@ -104,9 +96,7 @@ public class TraceLog extends JFrame {
      * @param state The CPU State to append.
      */
     public void append(CpuState state) {
-        synchronized(traceLog) {
-            traceLog.push(new CpuState(state));
-        }
+        traceLog.append(state);
     }
 
     public void simulatorDidStart() {
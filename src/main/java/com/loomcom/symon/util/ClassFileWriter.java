@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files, just capable enough to assemble
+ * small generated classes: fields, methods with straight-line code and
+ * forward or backward jumps, and the constant pool entries they need.
+ * <p>
+ * Classes are written as version 49 (Java 5) class files, which the JVM
+ * verifies by type inference, so no stack map frames need to be computed.
+ * Stack and local sizes are declared by the caller.
+ */
+public class ClassFileWriter {
+
+    private static final int MAGIC = 0xcafebabe;
+    private static final int VERSION_MAJOR = 49;
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_FINAL  = 0x0010;
+    public static final int ACC_SUPER  = 0x0020;
+
+    /* Opcodes */
+    public static final int ICONST_0      = 0x03;
+    public static final int BIPUSH        = 0x10;
+    public static final int SIPUSH        = 0x11;
+    public static final int LDC           = 0x12;
+    public static final int LDC_W         = 0x13;
+    public static final int ILOAD         = 0x15;
+    public static final int ALOAD         = 0x19;
+    public static final int AALOAD        = 0x32;
+    public static final int ISTORE        = 0x36;
+    public static final int ASTORE        = 0x3a;
+    public static final int POP           = 0x57;
+    public static final int DUP           = 0x59;
+    public static final int IADD          = 0x60;
+    public static final int LADD          = 0x61;
+    public static final int ISUB          = 0x64;
+    public static final int ISHL          = 0x78;
+    public static final int IUSHR         = 0x7c;
+    public static final int IAND          = 0x7e;
+    public static final int IOR           = 0x80;
+    public static final int IXOR          = 0x82;
+    public static final int I2L           = 0x85;
+    public static final int IFEQ          = 0x99;
+    public static final int IFNE          = 0x9a;
+    public static final int GOTO          = 0xa7;
+    public static final int IRETURN       = 0xac;
+    public static final int RETURN        = 0xb1;
+    public static final int GETFIELD      = 0xb4;
+    public static final int PUTFIELD      = 0xb5;
+    public static final int INVOKEVIRTUAL = 0xb6;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKEINTERFACE = 0xb9;
+
+    private static final int CONSTANT_UTF8               = 1;
+    private static final int CONSTANT_INTEGER            = 3;
+    private static final int CONSTANT_CLASS              = 7;
+    private static final int CONSTANT_FIELDREF           = 9;
+    private static final int CONSTANT_METHODREF          = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE      = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final int access;
+
+    private final List<byte[]> fields = new ArrayList<byte[]>();
+    private final List<Code> methods = new ArrayList<Code>();
+
+    /**
+     * @param access     Class access flags
+     * @param name       Internal name of the class, e.g. "com/example/Foo"
+     * @param superName  Internal name of the superclass
+     * @param interfaces Internal names of implemented interfaces
+     */
+    public ClassFileWriter(int access, String name, String superName, String... interfaces) {
+        this.access = access | ACC_SUPER;
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+        this.interfaces = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            this.interfaces[i] = classRef(interfaces[i]);
+        }
+    }
+
+    /**
+     * Declare a field.
+     */
+    public void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    /**
+     * Start a method. Its code is emitted through the returned object.
+     */
+    public Code addMethod(int access, String name, String descriptor, int maxStack, int maxLocals) {
+        Code code = new Code(access, utf8(name), utf8(descriptor), maxStack, maxLocals);
+        methods.add(code);
+        return code;
+    }
+
+    /**
+     * @return The finished class file.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            // Resolve the attribute name before the pool is written out
+            int codeAttribute = utf8("Code");
+
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(VERSION_MAJOR);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces) {
+                out.writeShort(i);
+            }
+
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+
+            out.writeShort(methods.size());
+            for (Code method : methods) {
+                method.writeTo(out, codeAttribute);
+            }
+
+            out.writeShort(0); // class attributes
+            out.flush();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /* Constant pool **************************************************************/
+
+    private int constant(String key, int tag, int a, int b, String text, int size) {
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(tag);
+            if (text != null) {
+                pool.writeUTF(text);
+            } else if (size == 4) {
+                pool.writeInt(a);
+            } else {
+                pool.writeShort(a);
+                if (size == 4 + 4) {
+                    pool.writeShort(b);
+                }
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        index = poolCount++;
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    public int utf8(String text) {
+        return constant("U" + text, CONSTANT_UTF8, 0, 0, text, 0);
+    }
+
+    public int integer(int value) {
+        return constant("I" + value, CONSTANT_INTEGER, value, 0, null, 4);
+    }
+
+    public int classRef(String name) {
+        return constant("C" + name, CONSTANT_CLASS, utf8(name), 0, null, 2);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return constant("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE,
+                        utf8(name), utf8(descriptor), null, 8);
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        return constant(tag + owner + "." + name + ":" + descriptor, tag,
+                        classRef(owner), nameAndType(name, descriptor), null, 8);
+    }
+
+    /* Code ***********************************************************************/
+
+    /**
+     * A position in a method's code that jumps can target.
+     */
+    public static class Label {
+        private int position = -1;
+        private final List<Integer> fixups = new ArrayList<Integer>();
+    }
+
+    /**
+     * The code of one method.
+     */
+    public class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final int maxStack;
+        private final int maxLocals;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<Label>();
+
+        private Code(int access, int name, int descriptor, int maxStack, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        public void op(int opcode) {
+            code.write(opcode);
+        }
+
+        private void u1(int value) {
+            code.write(value);
+        }
+
+        private void u2(int value) {
+            code.write(value >>> 8);
+            code.write(value);
+        }
+
+        /**
+         * Push an int constant, using the shortest form available.
+         */
+        public void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                u2(value);
+            } else {
+                int index = integer(value);
+                if (index < 256) {
+                    op(LDC);
+                    u1(index);
+                } else {
+                    op(LDC_W);
+                    u2(index);
+                }
+            }
+        }
+
+        public void iload(int local) {
+            op(ILOAD);
+            u1(local);
+        }
+
+        public void istore(int local) {
+            op(ISTORE);
+            u1(local);
+        }
+
+        public void aload(int local) {
+            op(ALOAD);
+            u1(local);
+        }
+
+        public void astore(int local) {
+            op(ASTORE);
+            u1(local);
+        }
+
+        public void getfield(String owner, String name, String descriptor) {
+            op(GETFIELD);
+            u2(member(CONSTANT_FIELDREF, owner, name, descriptor));
+        }
+
+        public void putfield(String owner, String name, String descriptor) {
+            op(PUTFIELD);
+            u2(member(CONSTANT_FIELDREF, owner, name, descriptor));
+        }
+
+        public void invokevirtual(String owner, String name, String descriptor) {
+            op(INVOKEVIRTUAL);
+            u2(member(CONSTANT_METHODREF, owner, name, descriptor));
+        }
+
+        public void invokespecial(String owner, String name, String descriptor) {
+            op(INVOKESPECIAL);
+            u2(member(CONSTANT_METHODREF, owner, name, descriptor));
+        }
+
+        /**
+         * @param argumentSlots Number of argument slots, including the receiver
+         */
+        public void invokeinterface(String owner, String name, String descriptor, int argumentSlots) {
+            op(INVOKEINTERFACE);
+            u2(member(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor));
+            u1(argumentSlots);
+            u1(0);
+        }
+
+        public Label newLabel() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        /**
+         * Bind a label to the current position.
+         */
+        public void mark(Label label) {
+            label.position = code.size();
+        }
+
+        /**
+         * Emit a jump instruction, e.g. GOTO or IFEQ, to a label.
+         */
+        public void jump(int opcode, Label label) {
+            label.fixups.add(code.size());
+            op(opcode);
+            u2(0);
+        }
+
+        private void writeTo(DataOutputStream out, int codeAttribute) throws IOException {
+            byte[] bytes = code.toByteArray();
+            for (Label label : labels) {
+                for (int at : label.fixups) {
+                    if (label.position < 0) {
+                        throw new IllegalStateException("Jump to unbound label");
+                    }
+                    int offset = label.position - at;
+                    bytes[at + 1] = (byte) (offset >> 8);
+                    bytes[at + 2] = (byte) offset;
+                }
+            }
+
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(2 + 2 + 4 + bytes.length + 2 + 2);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // code attributes
+        }
+    }
+}
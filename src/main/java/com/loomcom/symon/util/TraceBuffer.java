@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.util;
+
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.CpuState;
+import com.loomcom.symon.SymbolTable;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded buffer of the most recent CPU states, kept for the trace log.
+ * This is kept apart from the trace log window so it can be used and
+ * measured without a display.
+ * <p>
+ * The buffer is a ring of preallocated primitive arrays, one per traced
+ * register, so appending a state copies a few values into place and never
+ * allocates. It is safe for one thread to append while others read: the
+ * writer publishes each entry by advancing a counter, and readers discard
+ * any entry that was overwritten while they were copying it.
+ */
+public class TraceBuffer {
+
+    private final int capacity;
+
+    // One more slot than the capacity, so the writer never touches the
+    // oldest visible entry while filling in the next one.
+    private final int slots;
+
+    private final int[] lastPc;
+    private final int[] ir;
+    private final int[] args;       // args[0] | args[1] << 8
+    private final int[] a;
+    private final int[] x;
+    private final int[] y;
+    private final int[] sp;
+    private final int[] status;
+    private final long[] stepCounter;
+
+    // Shared by every entry, like the CpuState it is copied from
+    private volatile SymbolTable symbols;
+
+    // Next slot to write. Only touched by the writer (and reset()).
+    private int writeIndex;
+
+    // Total number of entries ever appended, published after each write.
+    private final AtomicLong count = new AtomicLong();
+
+    public TraceBuffer(int capacity) {
+        this.capacity = capacity;
+        this.slots = capacity + 1;
+        this.lastPc = new int[slots];
+        this.ir = new int[slots];
+        this.args = new int[slots];
+        this.a = new int[slots];
+        this.x = new int[slots];
+        this.y = new int[slots];
+        this.sp = new int[slots];
+        this.status = new int[slots];
+        this.stepCounter = new long[slots];
+    }
+
+    /**
+     * Append a CPU State to the buffer, overwriting the oldest entry if the
+     * buffer is full. Must only be called from one thread at a time.
+     *
+     * @param state The CPU State to append.
+     */
+    public void append(CpuState state) {
+        int i = writeIndex;
+        lastPc[i] = state.lastPc;
+        ir[i] = state.ir;
+        args[i] = state.args[0] | state.args[1] << 8;
+        a[i] = state.a;
+        x[i] = state.x;
+        y[i] = state.y;
+        sp[i] = state.sp;
+        status[i] = state.getStatusFlag();
+        stepCounter[i] = state.stepCounter;
+        if (symbols != state.symbols) {
+            symbols = state.symbols;
+        }
+
+        writeIndex = (i + 1 == slots) ? 0 : i + 1;
+        count.lazySet(count.get() + 1);
+    }
+
+    /**
+     * Discard all entries. Must not be called while another thread is
+     * appending.
+     */
+    public void reset() {
+        writeIndex = 0;
+        count.set(0);
+    }
+
+    public int length() {
+        return (int) Math.min(count.get(), capacity);
+    }
+
+    /**
+     * @return The buffered states as trace events, oldest first.
+     */
+    public String toTraceEvents() {
+        StringBuilder events = new StringBuilder();
+        CpuState state = new CpuState();
+        state.symbols = symbols;
+
+        long end = count.get();
+        for (long n = Math.max(0, end - capacity); n < end; n++) {
+            int i = (int) (n % slots);
+            state.lastPc = lastPc[i];
+            state.ir = ir[i];
+            state.args[0] = args[i] & 0xff;
+            state.args[1] = args[i] >>> 8;
+            state.a = a[i];
+            state.x = x[i];
+            state.y = y[i];
+            state.sp = sp[i];
+            setStatus(state, status[i]);
+            state.stepCounter = stepCounter[i];
+
+            // Skip the entry if the writer may have overwritten it while
+            // it was being copied.
+            VarHandle.loadLoadFence();
+            if (count.get() - n > capacity) {
+                continue;
+            }
+            events.append(state.toTraceEvent());
+        }
+        return events.toString();
+    }
+
+    private static void setStatus(CpuState state, int status) {
+        state.carryFlag = (status & Cpu.P_CARRY) != 0;
+        state.irqDisableFlag = (status & Cpu.P_IRQ_DISABLE) != 0;
+        state.decimalModeFlag = (status & Cpu.P_DECIMAL) != 0;
+        state.breakFlag = (status & Cpu.P_BREAK) != 0;
+        state.overflowFlag = (status & Cpu.P_OVERFLOW) != 0;
+        state.setNZFlags((status & Cpu.P_NEGATIVE) != 0, (status & Cpu.P_ZERO) != 0);
+    }
+}
@@ -2,6 +2,7 @@ package com.loomcom.symon;
 
 import com.loomcom.symon.devices.Acia;
 import com.loomcom.symon.devices.Acia6551;
+import com.loomcom.symon.devices.Memory;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
@@ -254,4 +255,38 @@ public class AciaTest {
 
         assertEquals(0x08, acia.read(0x0001, true));
     }
+
+    @Test
+    public void shouldTimeCharactersInCpuCycles() throws Exception {
+        Cpu cpu = new Cpu();
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0x7fff));
+
+        Acia acia = new Acia6551(0x8000);
+        bus.addDevice(acia);
+        cpu.setUnthrottled(true);
+
+        // 19200 baud, 8 bits per character at 1 MHz is 417 cycles
+        acia.write(3, 0x0f);
+        assertEquals(19200, acia.getBaudRate());
+
+        acia.write(0, 'a');
+        acia.txRead(true);
+
+        // Transmitter stays busy until a character time has passed
+        assertEquals(0x00, acia.read(0x0001, false) & 0x10);
+
+        cpu.setProgramCounter(0x0200);
+        for (int i = 0; i < 300; i++) {
+            bus.write(0x0200 + i, 0xea); // NOP
+        }
+
+        cpu.step(208);
+        assertEquals(416, cpu.getCycleCount());
+        assertEquals(0x00, acia.read(0x0001, false) & 0x10);
+
+        cpu.step();
+        assertEquals(0x10, acia.read(0x0001, false) & 0x10);
+    }
 }
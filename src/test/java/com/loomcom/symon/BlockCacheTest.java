@@ -0,0 +1,174 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BlockCacheTest {
+
+    private Cpu cpu;
+    private Bus bus;
+    private Memory memory;
+
+    @Before
+    public void createMachine() throws Exception {
+        cpu = new Cpu();
+        cpu.setCore(Cpu.Core.BLOCK);
+        cpu.setUnthrottled(true);
+        bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        memory = new Memory(0x0000, 0xffff);
+        bus.addDevice(memory);
+        cpu.setProgramCounter(0x0200);
+    }
+
+    private BlockCache cache() {
+        return new BlockCache(bus, DispatchTable.forBehavior(cpu.getBehavior()),
+                              InstructionTable.instructionClocksNmos);
+    }
+
+    @Test
+    public void blocksShouldEndAtTheFirstControlTransfer() throws Exception {
+        bus.loadProgram(0xa9, 0x01,        // LDA #$01
+                        0x8d, 0x00, 0x10,  // STA $1000
+                        0xe8,              // INX
+                        0xd0, 0xfa,        // BNE $0203
+                        0xea);             // NOP
+
+        BlockCache.Block block = cache().lookup(0x0200);
+
+        assertEquals(4, block.length);
+        assertEquals(0x0200, block.start);
+        assertEquals(0x0208, block.end);
+        assertArrayEquals(new int[] {0xa9, 0x8d, 0xe8, 0xd0}, block.opcodes);
+        assertArrayEquals(new int[] {0x0200, 0x0202, 0x0205, 0x0206}, block.pcs);
+        assertEquals(0x00, block.lo[1]);
+        assertEquals(0x10, block.hi[1]);
+        assertEquals(2 + 4 + 2 + 2, block.cycles);
+    }
+
+    @Test
+    public void blocksShouldNotBeDecodedFromDevices() throws Exception {
+        Bus ioBus = new Bus(0x0000, 0xffff);
+        ioBus.addCpu(new Cpu());
+        ioBus.addDevice(new Memory(0x0000, 0x7fff));
+        ioBus.addDevice(new Memory(0x8000, 0x80ff) {
+            @Override
+            public int read(int address, boolean cpuAccess) {
+                return 0xea;
+            }
+        });
+
+        BlockCache cache = new BlockCache(ioBus, DispatchTable.forBehavior(cpu.getBehavior()),
+                                          InstructionTable.instructionClocksNmos);
+        assertNull(cache.lookup(0x8000));
+    }
+
+    @Test
+    public void writesShouldInvalidateOnlyBlocksTheyTouch() throws Exception {
+        bus.loadProgram(0xe8,              // INX
+                        0x4c, 0x00, 0x02); // JMP $0200
+        bus.write(0x0210, 0xc8);           // INY
+        bus.write(0x0211, 0x60);           // RTS
+
+        BlockCache cache = cache();
+        bus.setCodeCache(cache);
+        BlockCache.Block loop = cache.lookup(0x0200);
+        BlockCache.Block sub = cache.lookup(0x0210);
+
+        bus.write(0x0208, 0x00);
+        assertTrue(loop.valid);
+        assertTrue(sub.valid);
+
+        bus.write(0x0202, 0x05);
+        assertFalse(loop.valid);
+        assertTrue(sub.valid);
+        assertEquals(1, cache.size());
+        assertNotSame(loop, cache.lookup(0x0200));
+    }
+
+    @Test
+    public void loadingOrFillingMemoryShouldInvalidateBlocks() throws Exception {
+        bus.loadProgram(0xe8,              // INX
+                        0x4c, 0x00, 0x02); // JMP $0200
+        BlockCache cache = cache();
+        bus.setCodeCache(cache);
+
+        BlockCache.Block block = cache.lookup(0x0200);
+        memory.load(0x0200, ByteBuffer.wrap(new byte[] {(byte) 0xc8}));   // INY
+        assertFalse(block.valid);
+        block = cache.lookup(0x0200);
+        assertEquals(0xc8, block.opcodes[0]);
+
+        memory.fill(0xea);
+        assertFalse(block.valid);
+        block = cache.lookup(0x0200);
+        assertEquals(0xea, block.opcodes[0]);
+
+        ByteBuffer state = ByteBuffer.allocate(memory.getStateSize());
+        memory.saveState(state);
+        state.flip();
+        memory.restoreState(state);
+        assertFalse(block.valid);
+    }
+
+    @Test
+    public void selfModifyingCodeShouldSeeItsOwnWrites() throws Exception {
+        bus.loadProgram(0xa9, 0x00,        // LDA #$00
+                        0xee, 0x01, 0x02,  // INC $0201 (the LDA operand)
+                        0x4c, 0x00, 0x02); // JMP $0200
+
+        for (int i = 0; i < 10; i++) {
+            cpu.step();
+            assertEquals(i, cpu.getAccumulator());
+            cpu.step(2);
+        }
+
+        bus.write(0x0201, 0x42);
+        cpu.step();
+        assertEquals(0x42, cpu.getAccumulator());
+    }
+
+    @Test
+    public void blockCoreShouldMatchSwitchCoreOnALoop() throws Exception {
+        int[] program = {0xa2, 0x00,        // LDX #$00
+                         0xbd, 0x00, 0x03,  // LDA $0300,X
+                         0x9d, 0x00, 0x04,  // STA $0400,X
+                         0xe8,              // INX
+                         0xd0, 0xf7,        // BNE $0202
+                         0x00};             // BRK
+        bus.loadProgram(program);
+        for (int i = 0; i < 256; i++) {
+            bus.write(0x0300 + i, i ^ 0x5a);
+        }
+
+        Cpu reference = new Cpu();
+        Bus referenceBus = new Bus(0x0000, 0xffff);
+        referenceBus.addCpu(reference);
+        referenceBus.addDevice(new Memory(0x0000, 0xffff));
+        reference.setCore(Cpu.Core.SWITCH);
+        reference.setUnthrottled(true);
+        reference.setProgramCounter(0x0200);
+        referenceBus.loadProgram(program);
+        for (int i = 0; i < 256; i++) {
+            referenceBus.write(0x0300 + i, i ^ 0x5a);
+        }
+
+        // LDX, 256 passes through the loop, and the BRK
+        for (int i = 0; i < 1 + 256 * 4 + 1; i++) {
+            cpu.step();
+            reference.step();
+            assertEquals(reference.getProgramCounter(), cpu.getProgramCounter());
+            assertEquals(reference.getAccumulator(), cpu.getAccumulator());
+            assertEquals(reference.getXRegister(), cpu.getXRegister());
+            assertEquals(reference.getCycleCount(), cpu.getCycleCount());
+        }
+        for (int i = 0; i < 256; i++) {
+            assertEquals(i ^ 0x5a, bus.read(0x0400 + i, false));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.loomcom.symon;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BreakpointsTest {
+
+    private Breakpoints breakpoints;
+    private CpuState state;
+
+    @Before
+    public void setUp() {
+        breakpoints = new Breakpoints(null);
+        state = new CpuState();
+    }
+
+    @Test
+    public void shouldStopOnlyAtBreakpointAddresses() {
+        breakpoints.addBreakpoint(0xc000);
+
+        state.pc = 0xc000;
+        assertTrue(breakpoints.isHit(state));
+        state.pc = 0xc001;
+        assertFalse(breakpoints.isHit(state));
+
+        breakpoints.removeBreakpoint(0xc000);
+        state.pc = 0xc000;
+        assertFalse(breakpoints.isHit(state));
+        assertFalse(breakpoints.contains(0xc000));
+    }
+
+    @Test
+    public void shouldListBreakpointsInAddressOrder() {
+        breakpoints.addBreakpoint(0xe000);
+        breakpoints.addBreakpoint(0x0300, "A == $0D");
+        breakpoints.addBreakpoint(0xc000);
+        breakpoints.addBreakpoint(0xe000, "HITS > 2");
+
+        assertEquals(3, breakpoints.getRowCount());
+        assertEquals("$0300", breakpoints.getValueAt(0, 0));
+        assertEquals("A == $0D", breakpoints.getValueAt(0, 2));
+        assertEquals("$C000", breakpoints.getValueAt(1, 0));
+        assertEquals("", breakpoints.getValueAt(1, 2));
+        assertEquals("$E000", breakpoints.getValueAt(2, 0));
+        assertEquals("HITS > 2", breakpoints.getValueAt(2, 2));
+
+        breakpoints.removeBreakpointAtIndex(1);
+        assertEquals(2, breakpoints.getRowCount());
+        assertFalse(breakpoints.contains(0xc000));
+        assertEquals("$E000", breakpoints.getValueAt(1, 0));
+    }
+
+    @Test
+    public void shouldStopWhenRegisterConditionHolds() {
+        breakpoints.addBreakpoint(0x0300, "a == $0d && X != 0");
+        state.pc = 0x0300;
+
+        state.a = 0x0d;
+        state.x = 0;
+        assertFalse(breakpoints.isHit(state));
+
+        state.x = 1;
+        assertTrue(breakpoints.isHit(state));
+
+        state.a = 13 + 1;
+        assertFalse(breakpoints.isHit(state));
+    }
+
+    @Test
+    public void shouldStopOnceHitCountIsReached() {
+        breakpoints.addBreakpoint(0x0300, "HITS >= 3");
+        state.pc = 0x0300;
+
+        assertFalse(breakpoints.isHit(state));
+        assertFalse(breakpoints.isHit(state));
+        assertTrue(breakpoints.isHit(state));
+        assertTrue(breakpoints.isHit(state));
+
+        breakpoints.resetHitCounts();
+        assertFalse(breakpoints.isHit(state));
+    }
+
+    @Test
+    public void shouldCompareStatusRegister() {
+        Breakpoints.Condition carrySet = Breakpoints.parseCondition("P == $21");
+        state.carryFlag = true;
+        assertTrue(carrySet.test(state, 1));
+        state.carryFlag = false;
+        assertFalse(carrySet.test(state, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownRegister() {
+        breakpoints.addBreakpoint(0x0300, "Q == 1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectBadNumber() {
+        Breakpoints.parseCondition("A == $zz");
+    }
+}
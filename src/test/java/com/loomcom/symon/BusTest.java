@@ -5,6 +5,10 @@ import junit.framework.*;
 import com.loomcom.symon.devices.*;
 import com.loomcom.symon.exceptions.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  *
  */
@@ -103,6 +107,68 @@ public class BusTest extends TestCase {
         assertTrue("Address space should have been complete!", b.isComplete());
     }
 
+    public void testReadsAndWritesThroughMemoryPages() throws Exception {
+        Memory ram = new Memory(0x0000, 0x7fff);
+        Memory rom = new Memory(0x8000, 0xffff, true);
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(ram);
+        b.addDevice(rom);
+
+        b.write(0x1234, 0x1a5);
+        assertEquals(0xa5, b.read(0x1234, true));
+        assertEquals(0xa5, ram.read(0x1234, true));
+
+        ram.write(0x7fff, 0x42);
+        assertEquals(0x42, b.read(0x7fff, true));
+
+        try {
+            b.write(0x8000, 0x01);
+            fail("Should not be able to write to ROM");
+        } catch (MemoryAccessException expected) {
+            // expected
+        }
+        assertEquals(0x00, b.read(0x8000, true));
+    }
+
+    public void testDevicesSharingAPageAreCalledDirectly() throws Exception {
+        final List<Integer> deviceWrites = new ArrayList<Integer>();
+        Memory ram = new Memory(0x0000, 0x80ff);
+        Device io = new Memory(0x8100, 0x8103) {
+            @Override
+            public void write(int address, int data) throws MemoryAccessException {
+                deviceWrites.add(address);
+                super.write(address, data);
+            }
+        };
+        Memory ramAboveIo = new Memory(0x8104, 0xffff);
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(ram);
+        b.addDevice(io);
+        b.addDevice(ramAboveIo);
+
+        b.write(0x8101, 0x10);
+        b.write(0x8104, 0x20);
+        b.write(0x8200, 0x30);
+
+        assertEquals(Arrays.asList(0x01), deviceWrites);
+        assertEquals(0x10, b.read(0x8101, true));
+        assertEquals(0x20, ramAboveIo.read(0x0000, true));
+        assertEquals(0x30, ramAboveIo.read(0x00fc, true));
+    }
+
+    public void testReplacingMemoryUpdatesPages() throws Exception {
+        Memory first = new Memory(0x0000, 0xffff);
+        Memory second = new Memory(0x0000, 0xffff);
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(first);
+        b.removeDevice(first);
+        b.addDevice(second);
+
+        b.write(0x0300, 0x55);
+        assertEquals(0x00, first.read(0x0300, true));
+        assertEquals(0x55, second.read(0x0300, true));
+    }
+
     public void testSetAndClearIrq() throws Exception {
         Bus b = new Bus(0x0000, 0xffff);
         Cpu c = new Cpu();
@@ -245,4 +245,111 @@ public class Cpu65C02ImpliedModeTest extends TestCase {
         assertFalse(cpu.getDecimalModeFlag());
     }
 
+    public void test_WAI() throws Exception {
+        makeCmosCpu();
+        cpu.setUnthrottled(true);
+        cpu.clearIrqDisableFlag();
+
+        // Set the IRQ vector
+        bus.write(0xffff, 0x12);
+        bus.write(0xfffe, 0x34);
+
+        bus.loadProgram(0xcb,  // WAI
+                        0xea); // NOP
+
+        cpu.step();
+        assertEquals(0x201, cpu.getProgramCounter());
+        assertTrue(cpu.isWaitingForInterrupt());
+
+        // Nothing runs until an interrupt arrives
+        cpu.step(10);
+        assertEquals(0x201, cpu.getProgramCounter());
+        assertEquals(1, cpu.getCpuState().stepCounter);
+        assertTrue(cpu.isIdle());
+
+        cpu.assertIrq();
+        cpu.step();
+        assertFalse(cpu.isWaitingForInterrupt());
+        assertEquals(0x02, bus.read(0x1ff, true)); // Return address high byte
+        assertEquals(0x01, bus.read(0x1fe, true)); // Return address low byte
+    }
+
+    public void test_WAIResumesOnMaskedIrq() throws Exception {
+        makeCmosCpu();
+        cpu.setUnthrottled(true);
+        cpu.setIrqDisableFlag();
+        bus.loadProgram(0xcb,        // WAI
+                        0xa9, 0x42); // LDA #$42
+
+        cpu.step(5);
+        assertTrue(cpu.isWaitingForInterrupt());
+
+        cpu.assertIrq();
+        cpu.step();
+        assertFalse(cpu.isWaitingForInterrupt());
+        assertEquals(0x42, cpu.getAccumulator());
+        assertEquals(0x203, cpu.getProgramCounter());
+    }
+
+    public void test_WAIPassesTimeToNextEvent() throws Exception {
+        makeCmosCpu();
+        cpu.setUnthrottled(true);
+        cpu.getScheduler().schedule(new Scheduler.Event() {
+            public void fire(long cycle) {
+                cpu.assertNmi();
+            }
+        }, 100000);
+
+        bus.loadProgram(0xcb); // WAI
+
+        cpu.step(2);
+        assertEquals(100000, cpu.getCycleCount());
+        assertEquals(0x201, cpu.getProgramCounter());
+        assertFalse(cpu.isIdle());
+
+        cpu.step();
+        assertFalse(cpu.isWaitingForInterrupt());
+        assertEquals(0x02, bus.read(0x1ff, true)); // Return address high byte
+        assertEquals(0x01, bus.read(0x1fe, true)); // Return address low byte
+    }
+
+    public void test_WAIRequiresCmosCpu() throws Exception {
+        makeNmosCpu();
+        bus.loadProgram(0xcb, 0xea);
+        cpu.step();
+        assertFalse(cpu.isWaitingForInterrupt());
+        assertTrue(cpu.getCpuState().opTrap);
+        cpu.step();
+        assertEquals(0x202, cpu.getProgramCounter());
+    }
+
+    public void test_STP() throws Exception {
+        makeCmosCpu();
+        cpu.setUnthrottled(true);
+        bus.loadProgram(0xdb,  // STP
+                        0xea); // NOP
+
+        cpu.step();
+        assertTrue(cpu.isStopped());
+
+        // Interrupts don't restart the clock
+        cpu.assertNmi();
+        cpu.assertIrq();
+        cpu.step(10);
+        assertEquals(0x201, cpu.getProgramCounter());
+        assertTrue(cpu.isStopped());
+
+        cpu.reset();
+        assertFalse(cpu.isStopped());
+        assertEquals(0x200, cpu.getProgramCounter());
+    }
+
+    public void test_STPRequiresCmosCpu() throws Exception {
+        makeNmosCpu();
+        bus.loadProgram(0xdb, 0xea);
+        cpu.step(2);
+        assertFalse(cpu.isStopped());
+        assertEquals(0x202, cpu.getProgramCounter());
+    }
+
 }
@@ -669,4 +669,273 @@ public class CpuTest extends TestCase {
         cpu.step();
         assertEquals(0x3E, cpu.getAccumulator());
     }
-}
\ No newline at end of file
+
+    public void testCycleCounter() throws Exception {
+        bus.loadProgram(0xa9, 0x01,        // LDA #$01  (2 cycles)
+                        0x8d, 0x00, 0x10,  // STA $1000 (4 cycles)
+                        0xea);             // NOP       (2 cycles)
+
+        assertEquals(0, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(2, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(6, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(8, cpu.getCycleCount());
+
+        cpu.reset();
+        assertEquals(0, cpu.getCycleCount());
+    }
+
+    public void testIndexedReadsCountPageCrossings() throws Exception {
+        cpu.setXRegister(0x10);
+        cpu.setYRegister(0x10);
+        bus.write(0x0010, 0xf8);  // ($10) points at $02f8
+        bus.write(0x0011, 0x02);
+        bus.loadProgram(0xbd, 0x00, 0x10,  // LDA $1000,X (4 cycles)
+                        0xbd, 0xf8, 0x10,  // LDA $10f8,X (4 + 1 cycles)
+                        0xb9, 0xe0, 0x10,  // LDA $10e0,Y (4 cycles)
+                        0xb9, 0xf0, 0x11,  // LDA $11f0,Y (4 + 1 cycles)
+                        0xb1, 0x10,        // LDA ($10),Y (5 + 1 cycles)
+                        0x9d, 0xf8, 0x10); // STA $10f8,X (5 cycles, no penalty)
+
+        cpu.step();
+        assertEquals(4, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(9, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(13, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(18, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(24, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(29, cpu.getCycleCount());
+    }
+
+    public void testIndirectYPageCrossingDoesNotReadPointerAgain() throws Exception {
+        final int[] pointerReads = {0};
+        Bus countingBus = new Bus(0x0000, 0xffff);
+        countingBus.addCpu(cpu);
+        countingBus.addDevice(new Memory(0x0000, 0xffff) {
+            @Override
+            public int read(int address, boolean cpuAccess) throws MemoryAccessException {
+                if (address == 0x10) {
+                    pointerReads[0]++;
+                }
+                return super.read(address, cpuAccess);
+            }
+        });
+        countingBus.write(0x0010, 0xf8);  // ($10) points at $02f8
+        countingBus.write(0x0011, 0x02);
+        countingBus.loadProgram(0xb1, 0x10,   // LDA ($10),Y (5 + 1 cycles)
+                                0x71, 0x10);  // ADC ($10),Y (5 + 1 cycles)
+
+        for (Cpu.Core core : Cpu.Core.values()) {
+            cpu.setCore(core);
+            cpu.setProgramCounter(0x0200);
+            cpu.setYRegister(0x10);
+            pointerReads[0] = 0;
+            long start = cpu.getCycleCount();
+
+            cpu.step(2);
+            assertEquals(core.toString(), 12, cpu.getCycleCount() - start);
+            assertEquals(core.toString(), 2, pointerReads[0]);
+        }
+    }
+
+    public void testBranchesCountTakenAndPageCrossingCycles() throws Exception {
+        bus.loadProgram(0x18,              // CLC          (2 cycles)
+                        0xb0, 0x10,        // BCS +$10     (2 cycles, not taken)
+                        0x90, 0x02,        // BCC +$02     (2 + 1 cycles, same page)
+                        0xea, 0xea,
+                        0x90, 0xf0);       // BCC -$10     (2 + 2 cycles, $0209 -> $01f9)
+
+        cpu.step();
+        assertEquals(2, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(4, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(0x0207, cpu.getProgramCounter());
+        assertEquals(7, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(0x01f9, cpu.getProgramCounter());
+        assertEquals(11, cpu.getCycleCount());
+    }
+
+    public void testCmosDecimalArithmeticTakesAnExtraCycle() throws Exception {
+        cpu.setBehavior(InstructionTable.CpuBehavior.CMOS_6502);
+        bus.loadProgram(0x69, 0x01,        // ADC #$01 (2 cycles)
+                        0xf8,              // SED      (2 cycles)
+                        0x69, 0x01);       // ADC #$01 (2 + 1 cycles)
+
+        cpu.step(2);
+        assertEquals(4, cpu.getCycleCount());
+        cpu.step();
+        assertEquals(7, cpu.getCycleCount());
+    }
+
+    public void testInterruptsCountEntryCycles() throws Exception {
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x03);
+        bus.write(0x0300, 0xea); // NOP
+        bus.loadProgram(0x58);   // CLI (2 cycles)
+
+        cpu.step();
+        cpu.assertIrq();
+        cpu.step();
+
+        assertEquals(0x0301, cpu.getProgramCounter());
+        assertEquals(2 + Cpu.INTERRUPT_CYCLES + 2, cpu.getCycleCount());
+    }
+
+    public void testUnthrottledCpuStillCountsCycles() throws Exception {
+        cpu.setUnthrottled(true);
+        assertTrue(cpu.isUnthrottled());
+
+        bus.loadProgram(0xe8,              // INX       (2 cycles)
+                        0x4c, 0x00, 0x02); // JMP $0200 (3 cycles)
+
+        cpu.step(1000);
+        assertEquals(2500, cpu.getCycleCount());
+        assertEquals(1000, cpu.getCpuState().stepCounter);
+    }
+
+    public void testThrottledCpuKeepsToClockRate() throws Exception {
+        cpu.setClockPeriodInNs(Cpu.DEFAULT_CLOCK_PERIOD_IN_NS);
+
+        bus.loadProgram(0xe8,              // INX       (2 cycles)
+                        0x4c, 0x00, 0x02); // JMP $0200 (3 cycles)
+
+        // 50,000 cycles at 1 MHz should take at least 50 ms, less the
+        // first throttling slice.
+        long start = System.nanoTime();
+        cpu.step(20000);
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(50000, cpu.getCycleCount());
+        assertTrue(elapsed >= 50000 * Cpu.DEFAULT_CLOCK_PERIOD_IN_NS - Cpu.THROTTLE_SLICE_NS);
+    }
+
+    public void testDebugSymbolsAreResolvedFromLastPc() throws Exception {
+        cpu.addDebugSymbol("0200", "start");
+        cpu.addDebugSymbol(0x0201, "next");
+
+        bus.loadProgram(0xea,   // NOP
+                        0xea);  // NOP
+
+        cpu.step();
+        assertEquals("start", cpu.getCpuState().getLastPcSymbol());
+        assertTrue(cpu.getCpuState().toTraceEvent().startsWith("start"));
+
+        cpu.step();
+        assertEquals("next", new CpuState(cpu.getCpuState()).getLastPcSymbol());
+
+        cpu.clearDebugSymbols();
+        assertEquals("", cpu.getCpuState().getLastPcSymbol());
+    }
+
+    public void testNextOpIsDisassembledFromCurrentMemory() throws Exception {
+        bus.loadProgram(0xa9, 0x12,        // LDA #$12
+                        0x8d, 0x34, 0x12); // STA $1234
+
+        assertEquals("LDA #$12", cpu.disassembleNextOp());
+        cpu.step();
+        assertEquals("STA $1234", cpu.disassembleNextOp());
+
+        // Memory changed after the step is seen, not a stale copy
+        bus.write(0x0203, 0x00);
+        assertEquals("STA $1200", cpu.disassembleNextOp());
+        assertEquals(1, cpu.getCpuState().stepCounter);
+    }
+
+    public void testNegativeAndZeroFlagsCanBeSetIndependently() throws Exception {
+        // Both at once can't come from a single result byte
+        cpu.setProcessorStatus(Cpu.P_NEGATIVE | Cpu.P_ZERO);
+        assertTrue(cpu.getNegativeFlag());
+        assertTrue(cpu.getZeroFlag());
+        assertEquals(0x20 | Cpu.P_NEGATIVE | Cpu.P_ZERO, cpu.getProcessorStatus());
+
+        cpu.clearNegativeFlag();
+        assertFalse(cpu.getNegativeFlag());
+        assertTrue(cpu.getZeroFlag());
+
+        // BIT takes N from memory and Z from A AND memory
+        bus.write(0x0010, 0x80);
+        bus.loadProgram(0xa9, 0x01,  // LDA #$01
+                        0x24, 0x10); // BIT $10
+        cpu.step(2);
+        assertTrue(cpu.getNegativeFlag());
+        assertTrue(cpu.getZeroFlag());
+        assertEquals(Cpu.P_NEGATIVE | Cpu.P_ZERO,
+                     cpu.getProcessorStatus() & (Cpu.P_NEGATIVE | Cpu.P_ZERO));
+    }
+
+    public void testIdleLoopIsSkippedToNextEvent() throws Exception {
+        final long[] fired = {-1};
+        cpu.setUnthrottled(true);
+        cpu.getScheduler().schedule(new Scheduler.Event() {
+            public void fire(long cycle) {
+                fired[0] = cycle;
+            }
+        }, 1000000);
+
+        bus.loadProgram(0xa5, 0x10,        // $0200 LDA $10  (3 cycles)
+                        0xf0, 0xfc);       // $0202 BEQ $0200 (3 cycles)
+
+        cpu.step(20);
+        assertTrue(cpu.getCycleCount() >= 1000000);
+        assertTrue(fired[0] >= 1000000);
+        assertEquals(0x0200, cpu.getProgramCounter() & 0xfffd);
+        // Skipped iterations still count as executed
+        assertEquals(cpu.getCycleCount() / 3, cpu.getCpuState().stepCounter);
+    }
+
+    public void testIdleLoopSkipDoesNotPassNextEvent() throws Exception {
+        final long[] fired = {-1};
+        cpu.setUnthrottled(true);
+        cpu.getScheduler().schedule(new Scheduler.Event() {
+            public void fire(long cycle) {
+                fired[0] = cycle;
+            }
+        }, 1000004);
+
+        bus.loadProgram(0xa5, 0x10,        // $0200 LDA $10  (3 cycles)
+                        0xf0, 0xfc);       // $0202 BEQ $0200 (3 cycles)
+
+        cpu.step(20);
+        // The end of the first instruction at or after the event, as
+        // without skipping, not the end of the iteration
+        assertEquals(1000005, fired[0]);
+    }
+
+    public void testIdleLoopWithNothingScheduledIsReported() throws Exception {
+        cpu.setUnthrottled(true);
+        bus.loadProgram(0x4c, 0x00, 0x02); // $0200 JMP $0200 (3 cycles)
+
+        cpu.step(10);
+        assertTrue(cpu.isIdle());
+        assertEquals(30, cpu.getCycleCount());
+
+        assertEquals(999, cpu.skipIdleCycles(1000));
+        assertEquals(1029, cpu.getCycleCount());
+        assertEquals(343, cpu.getCpuState().stepCounter);
+    }
+
+    public void testLoopThatChangesMemoryIsNotSkipped() throws Exception {
+        cpu.setUnthrottled(true);
+        cpu.getScheduler().schedule(new Scheduler.Event() {
+            public void fire(long cycle) {
+            }
+        }, 1000000);
+
+        bus.loadProgram(0xe6, 0x10,        // $0200 INC $10   (5 cycles)
+                        0xa9, 0x00,        // $0202 LDA #$00  (2 cycles)
+                        0x4c, 0x00, 0x02); // $0204 JMP $0200 (3 cycles)
+
+        cpu.step(30);
+        assertFalse(cpu.isIdle());
+        assertEquals(100, cpu.getCycleCount());
+        assertEquals(10, bus.read(0x10, false));
+    }
+}
@@ -0,0 +1,145 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.util.Utils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs every opcode through both the switch core and the table core from
+ * identical random states, and checks that they agree on the resulting
+ * registers, flags and memory writes.
+ */
+public class DispatchTableTest {
+
+    private static final int TRIALS_PER_OPCODE = 32;
+
+    /**
+     * Memory that records every write made to it, so that two machines can
+     * be compared without scanning the whole address space.
+     */
+    private static class RecordingMemory extends Memory {
+        final List<Integer> writes = new ArrayList<Integer>();
+
+        RecordingMemory() throws Exception {
+            super(0x0000, 0xffff);
+        }
+
+        @Override
+        public void write(int address, int data) throws MemoryAccessException {
+            super.write(address, data);
+            writes.add(address << 8 | data);
+        }
+    }
+
+    private static class Machine {
+        final Cpu cpu;
+        final Bus bus = new Bus(0x0000, 0xffff);
+        final RecordingMemory mem = new RecordingMemory();
+
+        Machine(InstructionTable.CpuBehavior behavior, Cpu.Core core) throws Exception {
+            cpu = new Cpu(behavior);
+            cpu.setCore(core);
+            bus.addCpu(cpu);
+            bus.addDevice(mem);
+        }
+
+        String step() {
+            mem.writes.clear();
+            try {
+                cpu.step();
+                return null;
+            } catch (MemoryAccessException ex) {
+                return ex.getMessage();
+            }
+        }
+    }
+
+    @Test
+    public void tableCoreShouldMatchSwitchCoreOnNmos() throws Exception {
+        compareCores(InstructionTable.CpuBehavior.NMOS_6502);
+    }
+
+    @Test
+    public void tableCoreShouldMatchSwitchCoreOnCmos() throws Exception {
+        compareCores(InstructionTable.CpuBehavior.CMOS_6502);
+    }
+
+    @Test
+    public void changingBehaviorShouldRebuildTheTable() throws Exception {
+        Machine m = new Machine(InstructionTable.CpuBehavior.NMOS_6502, Cpu.Core.TABLE);
+        m.cpu.setProgramCounter(Bus.DEFAULT_LOAD_ADDRESS);
+        m.bus.loadProgram(0xda); // 65C02 PHX
+        m.cpu.setStackPointer(0xff);
+        m.step();
+        assertEquals(0xff, m.cpu.getStackPointer());
+
+        m.cpu.setBehavior(InstructionTable.CpuBehavior.CMOS_6502);
+        m.cpu.setProgramCounter(Bus.DEFAULT_LOAD_ADDRESS);
+        m.step();
+        assertEquals(0xfe, m.cpu.getStackPointer());
+    }
+
+    private void compareCores(InstructionTable.CpuBehavior behavior) throws Exception {
+        Machine reference = new Machine(behavior, Cpu.Core.SWITCH);
+        Machine table = new Machine(behavior, Cpu.Core.TABLE);
+
+        Random random = new Random(6502);
+        for (int address = 0; address <= 0xffff; address++) {
+            int data = random.nextInt(256);
+            reference.mem.write(address, data);
+            table.mem.write(address, data);
+        }
+
+        for (int opcode = 0; opcode < 256; opcode++) {
+            for (int trial = 0; trial < TRIALS_PER_OPCODE; trial++) {
+                int pc = random.nextInt(0x10000);
+                int lo = random.nextInt(256);
+                int hi = random.nextInt(256);
+                int a = random.nextInt(256);
+                int x = random.nextInt(256);
+                int y = random.nextInt(256);
+                int sp = random.nextInt(256);
+                int status = random.nextInt(256);
+
+                for (Machine m : new Machine[] {reference, table}) {
+                    m.mem.write(pc, opcode);
+                    m.mem.write((pc + 1) & 0xffff, lo);
+                    m.mem.write((pc + 2) & 0xffff, hi);
+                    m.cpu.setAccumulator(a);
+                    m.cpu.setXRegister(x);
+                    m.cpu.setYRegister(y);
+                    m.cpu.setStackPointer(sp);
+                    m.cpu.setProcessorStatus(status);
+                    m.cpu.setProgramCounter(pc);
+                    // Restart the clock after WAI or STP
+                    m.cpu.getCpuState().waiting = false;
+                    m.cpu.getCpuState().stopped = false;
+                }
+
+                String message = behavior + " $" + Utils.byteToHex(opcode) + " at $" + Utils.wordToHex(pc);
+                assertEquals(message, reference.step(), table.step());
+                assertEquals(message, reference.mem.writes, table.mem.writes);
+
+                Cpu expected = reference.cpu;
+                Cpu actual = table.cpu;
+                assertEquals(message, expected.getAccumulator(), actual.getAccumulator());
+                assertEquals(message, expected.getXRegister(), actual.getXRegister());
+                assertEquals(message, expected.getYRegister(), actual.getYRegister());
+                assertEquals(message, expected.getStackPointer(), actual.getStackPointer());
+                assertEquals(message, expected.getProgramCounter(), actual.getProgramCounter());
+                assertEquals(message, expected.getProcessorStatus(), actual.getProcessorStatus());
+                assertEquals(message, expected.getCpuState().opTrap, actual.getCpuState().opTrap);
+                assertEquals(message, expected.isWaitingForInterrupt(), actual.isWaitingForInterrupt());
+                assertEquals(message, expected.isStopped(), actual.isStopped());
+                assertEquals(message, expected.getCycleCount(), actual.getCycleCount());
+            }
+        }
+    }
+}
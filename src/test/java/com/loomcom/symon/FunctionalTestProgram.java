@@ -0,0 +1,56 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.SimpleMachine;
+
+import java.io.File;
+
+/**
+ * Klaus Dormann's self-checking 6502 and 65C02 test programs shipped in
+ * samples/tests. Each is loaded at $0000, started at $0400, and traps in a
+ * self-loop when it finishes: at the success address if every test passed,
+ * or at the failing test otherwise.
+ */
+public enum FunctionalTestProgram {
+    FUNCTIONAL_6502("6502_functional_test.bin", 0x3399, InstructionTable.CpuBehavior.NMOS_6502),
+    EXTENDED_65C02("65C02_extended_opcodes_test.bin", 0x24a8, InstructionTable.CpuBehavior.CMOS_6502);
+
+    public static final int LOAD_ADDRESS = 0x0000;
+    public static final int START_ADDRESS = 0x0400;
+
+    private final File file;
+    private final int successAddress;
+    private final InstructionTable.CpuBehavior behavior;
+
+    FunctionalTestProgram(String fileName, int successAddress, InstructionTable.CpuBehavior behavior) {
+        this.file = new File("samples/tests", fileName);
+        this.successAddress = successAddress;
+        this.behavior = behavior;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSuccessAddress() {
+        return successAddress;
+    }
+
+    /**
+     * Load the program into a new SimpleMachine, ready to run until it traps.
+     */
+    public HeadlessRunner prepare(Cpu.Core core) throws Exception {
+        SimpleMachine machine = new SimpleMachine();
+        HeadlessRunner runner = new HeadlessRunner(machine);
+        runner.loadProgram(file, LOAD_ADDRESS);
+        runner.setHaltOnBreak(false);
+        runner.setStopOnTrap(true);
+
+        Cpu cpu = machine.getCpu();
+        cpu.setBehavior(behavior);
+        cpu.setCore(core);
+        cpu.setUnthrottled(true);
+        cpu.reset();
+        cpu.setProgramCounter(START_ADDRESS);
+        return runner;
+    }
+}
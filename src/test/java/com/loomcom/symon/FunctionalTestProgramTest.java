@@ -0,0 +1,67 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.Utils;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs Klaus Dormann's functional tests to completion on each execution
+ * core, and reports how long each took.
+ */
+public class FunctionalTestProgramTest {
+
+    private final static Logger logger = LoggerFactory.getLogger(FunctionalTestProgramTest.class.getName());
+
+    @Test
+    public void functionalTestShouldPassOnSwitchCore() throws Exception {
+        runToSuccess(FunctionalTestProgram.FUNCTIONAL_6502, Cpu.Core.SWITCH);
+    }
+
+    @Test
+    public void functionalTestShouldPassOnTableCore() throws Exception {
+        runToSuccess(FunctionalTestProgram.FUNCTIONAL_6502, Cpu.Core.TABLE);
+    }
+
+    @Test
+    public void functionalTestShouldPassOnBlockCore() throws Exception {
+        runToSuccess(FunctionalTestProgram.FUNCTIONAL_6502, Cpu.Core.BLOCK);
+    }
+
+    @Test
+    public void functionalTestShouldPassOnJitCore() throws Exception {
+        runToSuccess(FunctionalTestProgram.FUNCTIONAL_6502, Cpu.Core.JIT);
+    }
+
+    @Test
+    public void extendedOpcodesTestShouldPassOnSwitchCore() throws Exception {
+        runToSuccess(FunctionalTestProgram.EXTENDED_65C02, Cpu.Core.SWITCH);
+    }
+
+    @Test
+    public void extendedOpcodesTestShouldPassOnTableCore() throws Exception {
+        runToSuccess(FunctionalTestProgram.EXTENDED_65C02, Cpu.Core.TABLE);
+    }
+
+    @Test
+    public void extendedOpcodesTestShouldPassOnBlockCore() throws Exception {
+        runToSuccess(FunctionalTestProgram.EXTENDED_65C02, Cpu.Core.BLOCK);
+    }
+
+    @Test
+    public void extendedOpcodesTestShouldPassOnJitCore() throws Exception {
+        runToSuccess(FunctionalTestProgram.EXTENDED_65C02, Cpu.Core.JIT);
+    }
+
+    private void runToSuccess(FunctionalTestProgram program, Cpu.Core core) throws Exception {
+        HeadlessRunner runner = program.prepare(core);
+        HeadlessRunner.StopReason reason = runner.run();
+        logger.info("{} on {} core: {}", program, core, runner.getSummary(reason.toString()));
+
+        assertEquals(HeadlessRunner.StopReason.TRAP, reason);
+        assertEquals("Trapped at $" + Utils.wordToHex(runner.getMachine().getCpu().getProgramCounter()),
+                     program.getSuccessAddress(), runner.getMachine().getCpu().getProgramCounter());
+    }
+}
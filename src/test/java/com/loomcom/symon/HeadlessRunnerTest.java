@@ -0,0 +1,77 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.SimpleMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HeadlessRunnerTest {
+    private SimpleMachine  machine;
+    private HeadlessRunner runner;
+
+    @Before
+    public void setUp() throws Exception {
+        machine = new SimpleMachine();
+        runner = new HeadlessRunner(machine);
+
+        Bus bus = machine.getBus();
+        bus.write(0xfffc, Bus.DEFAULT_LOAD_ADDRESS & 0x00ff);
+        bus.write(0xfffd, (Bus.DEFAULT_LOAD_ADDRESS & 0xff00) >>> 8);
+
+        machine.getCpu().reset();
+        machine.getCpu().setUnthrottled(true);
+    }
+
+    @Test
+    public void shouldStopOnBreak() throws Exception {
+        machine.getBus().loadProgram(0xa9, 0x01,  // LDA #$01
+                                     0xea,        // NOP
+                                     0x00);       // BRK
+
+        assertEquals(HeadlessRunner.StopReason.BREAK, runner.run());
+        assertEquals(3, runner.getInstructionCount());
+        assertEquals(0x01, machine.getCpu().getAccumulator());
+    }
+
+    @Test
+    public void shouldStopAtStopAddress() throws Exception {
+        machine.getBus().loadProgram(0xe8,              // INX
+                                     0xe8,              // INX
+                                     0xe8,              // INX
+                                     0x4c, 0x00, 0x02); // JMP $0200
+
+        runner.setStopAddress(0x0203);
+
+        assertEquals(HeadlessRunner.StopReason.STOP_ADDRESS, runner.run());
+        assertEquals(0x0203, machine.getCpu().getProgramCounter());
+        assertEquals(3, machine.getCpu().getXRegister());
+    }
+
+    @Test
+    public void shouldStopAtStopAddressInCompiledBlock() throws Exception {
+        machine.getCpu().setCore(Cpu.Core.JIT);
+        machine.getBus().loadProgram(0xe8,              // INX
+                                     0xe8,              // INX
+                                     0x4c, 0x00, 0x02); // JMP $0200
+        runner.setMaxCycles(100000);
+        assertEquals(HeadlessRunner.StopReason.CYCLE_LIMIT, runner.run());
+
+        runner.setStopAddress(0x0201);
+        assertEquals(HeadlessRunner.StopReason.STOP_ADDRESS, runner.run());
+        assertEquals(0x0201, machine.getCpu().getProgramCounter());
+    }
+
+    @Test
+    public void shouldStopWhenCycleBudgetIsUsed() throws Exception {
+        machine.getBus().loadProgram(0xe8,              // INX (2 cycles)
+                                     0x4c, 0x00, 0x02); // JMP $0200 (3 cycles)
+
+        runner.setMaxCycles(50);
+
+        assertEquals(HeadlessRunner.StopReason.CYCLE_LIMIT, runner.run());
+        assertEquals(50, runner.getCycleCount());
+        assertEquals(20, runner.getInstructionCount());
+        assertEquals(10, machine.getCpu().getXRegister());
+    }
+}
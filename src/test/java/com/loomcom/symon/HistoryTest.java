@@ -0,0 +1,186 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.SymonMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HistoryTest {
+
+    private Bus bus;
+    private Cpu cpu;
+
+    @Before
+    public void setUp() throws Exception {
+        SymonMachine machine = new SymonMachine();
+        bus = machine.getBus();
+        cpu = machine.getCpu();
+
+        bus.write(0xfffc, Bus.DEFAULT_LOAD_ADDRESS & 0x00ff);
+        bus.write(0xfffd, (Bus.DEFAULT_LOAD_ADDRESS & 0xff00) >>> 8);
+        cpu.reset();
+        cpu.setUnthrottled(true);
+        // One instruction per step on every core, as the simulator runs
+        cpu.setSingleStepping(true);
+
+        bus.loadProgram(0xe8,              // $0200 INX
+                        0x8a,              // $0201 TXA
+                        0x99, 0x00, 0x10,  // $0202 STA $1000,Y
+                        0x48,              // $0205 PHA
+                        0x68,              // $0206 PLA
+                        0xc8,              // $0207 INY
+                        0x4c, 0x00, 0x02); // $0208 JMP $0200
+    }
+
+    @Test
+    public void shouldStepBackToEarlierState() throws Exception {
+        History history = new History(bus, 100, 1 << 12);
+        history.start();
+
+        List<CpuState> states = new ArrayList<>();
+        List<int[]> memory = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            states.add(new CpuState(cpu.getCpuState()));
+            memory.add(readMemory());
+            history.checkpoint();
+            cpu.step();
+        }
+
+        assertTrue(history.stepBack(1));
+        assertStateEquals(states.get(1999), memory.get(1999));
+
+        assertTrue(history.stepBack(333));
+        assertStateEquals(states.get(1666), memory.get(1666));
+
+        // And forward again, just as before
+        for (int i = 1666; i < 1900; i++) {
+            history.checkpoint();
+            cpu.step();
+        }
+        assertTrue(history.stepBack(900));
+        assertStateEquals(states.get(1000), memory.get(1000));
+    }
+
+    @Test
+    public void shouldStopAtStartOfHistory() throws Exception {
+        // Room for a few hundred steps of writes
+        History history = new History(bus, 100, 1 << 8);
+        history.start();
+
+        for (int i = 0; i < 2000; i++) {
+            history.checkpoint();
+            cpu.step();
+        }
+
+        long earliest = history.getEarliestStep();
+        assertTrue(earliest > 0);
+        assertFalse(history.stepBack(2000));
+        assertEquals(earliest, cpu.getCpuState().stepCounter);
+    }
+
+    @Test
+    public void shouldRunBackToLastMatch() throws Exception {
+        History history = new History(bus, 100, 1 << 12);
+        history.start();
+
+        for (int i = 0; i < 1000; i++) {
+            history.checkpoint();
+            cpu.step();
+        }
+
+        // The last STA to store $20
+        assertTrue(history.runBackUntil(s -> s.pc == 0x0202 && s.a == 0x20));
+        assertEquals(0x0202, cpu.getProgramCounter());
+        assertEquals(0x20, cpu.getAccumulator());
+        assertEquals(0x1f, cpu.getYRegister());
+        assertEquals(0x00, bus.read(0x1000 + 0x1f, false));
+
+        assertFalse(history.runBackUntil(s -> s.pc == 0x1234));
+        assertEquals(history.getEarliestStep(), cpu.getCpuState().stepCounter);
+    }
+
+    @Test
+    public void shouldReplayCompiledCodeOneInstructionAtATime() throws Exception {
+        cpu.setCore(Cpu.Core.JIT);
+        cpu.setSingleStepping(false);
+        History history = new History(bus, 100, 1 << 12);
+        history.start();
+
+        for (int i = 0; i < 1000; i++) {
+            history.checkpoint();
+            cpu.step();
+        }
+        long step = cpu.getCpuState().stepCounter;
+
+        assertTrue(history.stepBack(3));
+        assertEquals(step - 3, cpu.getCpuState().stepCounter);
+        assertEquals(Cpu.Core.JIT, cpu.getCore());
+    }
+
+    @Test
+    public void shouldStepBackExactlyIntoSkippedIdleLoop() throws Exception {
+        bus.loadProgram(0x4c, 0x00, 0x02); // $0200 JMP $0200 (3 cycles)
+        // A periodic event, so one is always pending for idle loops to skip to
+        cpu.getScheduler().schedule(new Scheduler.Event() {
+            public void fire(long cycle) {
+                cpu.getScheduler().schedule(this, cycle + 300000);
+            }
+        }, 300000);
+        History history = new History(bus, 100, 1 << 12);
+        history.start();
+
+        for (int i = 0; i < 10; i++) {
+            history.checkpoint();
+            cpu.step();
+        }
+        long step = cpu.getCpuState().stepCounter;
+        long cycles = cpu.getCycleCount();
+        // Most of the way to the event was skipped
+        assertTrue(step > 10000);
+
+        // Back into the skipped iterations
+        assertTrue(history.stepBack(5000));
+        assertEquals(step - 5000, cpu.getCpuState().stepCounter);
+        assertEquals(cycles - 5000 * 3, cpu.getCycleCount());
+        assertTrue(cpu.isIdleSkipping());
+    }
+
+    @Test
+    public void shouldNotRecordWhenStopped() throws Exception {
+        History history = new History(bus, 100, 1 << 12);
+        history.start();
+        history.checkpoint();
+        cpu.step(10);
+        history.stop();
+
+        assertFalse(history.isRecording());
+        assertEquals(-1, history.getEarliestStep());
+        assertFalse(history.stepBack(1));
+    }
+
+    private void assertStateEquals(CpuState expected, int[] expectedMemory) throws Exception {
+        CpuState actual = cpu.getCpuState();
+        assertEquals(expected.stepCounter, actual.stepCounter);
+        assertEquals(expected.cycleCounter, actual.cycleCounter);
+        assertEquals(expected.pc, actual.pc);
+        assertEquals(expected.a, actual.a);
+        assertEquals(expected.x, actual.x);
+        assertEquals(expected.y, actual.y);
+        assertEquals(expected.sp, actual.sp);
+        assertEquals(expected.getStatusFlag(), actual.getStatusFlag());
+        assertArrayEquals(expectedMemory, readMemory());
+    }
+
+    private int[] readMemory() throws Exception {
+        int[] values = new int[0x200];
+        for (int i = 0; i < 0x100; i++) {
+            values[i] = bus.read(0x1000 + i, false);
+            values[0x100 + i] = bus.read(0x0100 + i, false);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,275 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.SdController;
+import com.loomcom.symon.exceptions.SnapshotException;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.MulticompMachine;
+import com.loomcom.symon.machines.SymonMachine;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InputLogTest {
+
+    private static final int ACIA_CMND = 0x8802;
+    private static final int ACIA_CTRL = 0x8803;
+
+    @Test
+    public void shouldReplayAciaInputAndInterrupts() throws Exception {
+        Machine recorded = makeEchoMachine();
+        Cpu cpu = recorded.getCpu();
+        Acia acia = recorded.getAcia();
+
+        InputLog log = InputLog.record(recorded.getBus());
+        String input = "HELLO, WORLD";
+        int sent = 0;
+        for (int i = 0; i < 60000; i++) {
+            cpu.step();
+            if (acia.hasTxChar()) {
+                acia.txRead(true);
+            }
+            // Input arrives whenever the host gets round to it
+            if (i % 3001 == 7 && sent < input.length() && !acia.hasRxChar()) {
+                log.recordRx(input.charAt(sent));
+                acia.rxWrite(input.charAt(sent++));
+            }
+            if (i == 12345) {
+                log.recordNmi();
+                recorded.getBus().assertNmi();
+            }
+        }
+        log.stop();
+        assertEquals(input.length(), sent);
+        assertEquals(1, recorded.getBus().read(0x20, false));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.writeTo(Channels.newChannel(bytes));
+        InputLog copy = InputLog.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(log.getEndCycle(), copy.getEndCycle());
+
+        // A machine that has run something else entirely
+        Machine replayed = new SymonMachine();
+        replayed.getCpu().setUnthrottled(true);
+        copy.replay(replayed.getBus());
+        runTo(replayed, copy.getEndCycle());
+
+        assertCpuStateEquals(cpu.getCpuState(), replayed.getCpu().getCpuState());
+        for (int address = 0; address < 0x1100; address++) {
+            assertEquals(recorded.getBus().read(address, false), replayed.getBus().read(address, false));
+        }
+        assertEquals('H', replayed.getBus().read(0x1000, false));
+        assertEquals('D', replayed.getBus().read(0x1000 + input.length() - 1, false));
+    }
+
+    @Test
+    public void shouldReplayAtTheClockSpeedRecorded() throws Exception {
+        Machine recorded = makeEchoMachine();
+        Cpu cpu = recorded.getCpu();
+        Acia acia = recorded.getAcia();
+        cpu.setClockPeriodInNs(10);
+
+        // Each character keeps the receiver busy for a character time,
+        // so the clock speed sets when the program gets the next one
+        InputLog log = InputLog.record(recorded.getBus());
+        List<Long> recordedReads = new ArrayList<>();
+        String input = "FAST AND SLOW";
+        int sent = 0;
+        for (int i = 0; i < 60000; i++) {
+            if (sent == 6 && cpu.getClockPeriodInNs() != 2000) {
+                log.recordClockPeriod(2000);
+                cpu.setClockPeriodInNs(2000);
+            }
+            stepNotingReads(recorded, recordedReads);
+            if (sent < input.length() && !acia.hasRxChar()) {
+                log.recordRx(input.charAt(sent));
+                acia.rxWrite(input.charAt(sent++));
+            }
+        }
+        log.stop();
+        assertEquals(input.length(), sent);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.writeTo(Channels.newChannel(bytes));
+        InputLog copy = InputLog.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+
+        Machine replayed = makeEchoMachine();
+        copy.replay(replayed.getBus());
+        assertEquals(10, replayed.getCpu().getClockPeriodInNs());
+        List<Long> replayedReads = new ArrayList<>();
+        while (replayed.getCpu().getCycleCount() < copy.getEndCycle()) {
+            stepNotingReads(replayed, replayedReads);
+        }
+
+        assertEquals(2000, replayed.getCpu().getClockPeriodInNs());
+        assertEquals(recordedReads, replayedReads);
+        assertCpuStateEquals(cpu.getCpuState(), replayed.getCpu().getCpuState());
+    }
+
+    @Test
+    public void shouldReplaySectorsReadFromCard() throws Exception {
+        Machine recorded = makeSdMachine();
+        final int[] reads = {0};
+        sdController(recorded).setSectorSource((position, sector) -> {
+            // Different each time, as if the card were being written
+            sector[0] = (byte) ((position >> 9) + reads[0]++);
+        });
+
+        InputLog log = InputLog.record(recorded.getBus());
+        recorded.getCpu().step(1000);
+        log.stop();
+        assertTrue(reads[0] > 100);
+
+        Machine replayed = makeSdMachine();
+        sdController(replayed).setSectorSource((position, sector) -> {
+            throw new IOException("Read the card during replay");
+        });
+        log.replay(replayed.getBus());
+        runTo(replayed, log.getEndCycle());
+
+        assertCpuStateEquals(recorded.getCpu().getCpuState(), replayed.getCpu().getCpuState());
+        for (int address = 0x1000; address < 0x1100; address++) {
+            assertEquals(recorded.getBus().read(address, false), replayed.getBus().read(address, false));
+        }
+    }
+
+    @Test
+    public void shouldStopRecordingSectors() throws Exception {
+        Machine machine = makeSdMachine();
+        SdController sd = sdController(machine);
+        SdController.SectorSource source = sd.getSectorSource();
+
+        InputLog log = InputLog.record(machine.getBus());
+        assertTrue(log.isRecording());
+        assertNotSame(source, sd.getSectorSource());
+        log.stop();
+        assertFalse(log.isRecording());
+        assertSame(source, sd.getSectorSource());
+    }
+
+    @Test(expected = SnapshotException.class)
+    public void shouldRejectLogOfAnotherMachine() throws Exception {
+        InputLog log = InputLog.record(makeSdMachine().getBus());
+        log.stop();
+        log.replay(makeEchoMachine().getBus());
+    }
+
+    @Test(expected = SnapshotException.class)
+    public void shouldRejectDataThatIsNotALog() throws Exception {
+        byte[] garbage = "This is not an input log, not at all".getBytes("US-ASCII");
+        InputLog.readFrom(Channels.newChannel(new ByteArrayInputStream(garbage)));
+    }
+
+    /*
+     * Store each character received at $1000,Y, and count NMIs at $20.
+     */
+    private static Machine makeEchoMachine() throws Exception {
+        SymonMachine machine = new SymonMachine();
+        Bus bus = machine.getBus();
+        Cpu cpu = machine.getCpu();
+
+        bus.write(0xfffc, Bus.DEFAULT_LOAD_ADDRESS & 0x00ff);
+        bus.write(0xfffd, (Bus.DEFAULT_LOAD_ADDRESS & 0xff00) >>> 8);
+        bus.write(0xfffa, 0x00);
+        bus.write(0xfffb, 0x03);
+        cpu.reset();
+        cpu.setUnthrottled(true);
+
+        bus.loadProgram(0xad, 0x01, 0x88,  // $0200 LDA $8801
+                        0x29, 0x08,        // $0203 AND #$08
+                        0xf0, 0xf9,        // $0205 BEQ $0200
+                        0xad, 0x00, 0x88,  // $0207 LDA $8800
+                        0x99, 0x00, 0x10,  // $020A STA $1000,Y
+                        0x8d, 0x00, 0x88,  // $020D STA $8800
+                        0xc8,              // $0210 INY
+                        0x4c, 0x00, 0x02); // $0211 JMP $0200
+        bus.write(0x0300, 0xe6);           // $0300 INC $20
+        bus.write(0x0301, 0x20);
+        bus.write(0x0302, 0x40);           // $0302 RTI
+        bus.write(ACIA_CMND, 0x0b);        // No interrupts
+        bus.write(ACIA_CTRL, 0x1e);        // 9600 baud
+        return machine;
+    }
+
+    /*
+     * Read the first byte of sector X+1 into $1000,X, over and over.
+     */
+    private static Machine makeSdMachine() throws Exception {
+        MulticompMachine machine = new MulticompMachine();
+        Bus bus = machine.getBus();
+        Cpu cpu = machine.getCpu();
+        cpu.reset();
+        cpu.setUnthrottled(true);
+
+        int[] program = {0xe8,              // $0200 INX
+                         0x8e, 0xda, 0xff,  // $0201 STX $FFDA
+                         0xa9, 0x00,        // $0204 LDA #$00
+                         0x8d, 0xd9, 0xff,  // $0206 STA $FFD9
+                         0xad, 0xd8, 0xff,  // $0209 LDA $FFD8
+                         0x9d, 0x00, 0x10,  // $020C STA $1000,X
+                         0x4c, 0x00, 0x02}; // $020F JMP $0200
+        for (int i = 0; i < program.length; i++) {
+            bus.write(0x0200 + i, program[i]);
+        }
+        cpu.setProgramCounter(0x0200);
+        return machine;
+    }
+
+    private static SdController sdController(Machine machine) {
+        for (Device device : machine.getBus().getDevices()) {
+            if (device instanceof SdController) {
+                return (SdController) device;
+            }
+        }
+        throw new AssertionError("No SD controller");
+    }
+
+    /*
+     * Run as recorded, taking output as soon as it is offered.
+     */
+    private static void runTo(Machine machine, long endCycle) throws Exception {
+        Cpu cpu = machine.getCpu();
+        Acia acia = machine.getAcia();
+        while (cpu.getCycleCount() < endCycle) {
+            cpu.step();
+            if (acia != null && acia.hasTxChar()) {
+                acia.txRead(true);
+            }
+        }
+    }
+
+    /*
+     * Step the echo program, taking its output, and note the cycle at
+     * which it stores each character it receives.
+     */
+    private static void stepNotingReads(Machine machine, List<Long> reads) throws Exception {
+        Cpu cpu = machine.getCpu();
+        int y = cpu.getCpuState().y;
+        cpu.step();
+        if (machine.getAcia().hasTxChar()) {
+            machine.getAcia().txRead(true);
+        }
+        if (cpu.getCpuState().y != y) {
+            reads.add(cpu.getCycleCount());
+        }
+    }
+
+    private static void assertCpuStateEquals(CpuState expected, CpuState actual) {
+        assertEquals(expected.a, actual.a);
+        assertEquals(expected.x, actual.x);
+        assertEquals(expected.y, actual.y);
+        assertEquals(expected.sp, actual.sp);
+        assertEquals(expected.pc, actual.pc);
+        assertEquals(expected.getStatusFlag(), actual.getStatusFlag());
+        assertEquals(expected.stepCounter, actual.stepCounter);
+        assertEquals(expected.cycleCounter, actual.cycleCounter);
+    }
+}
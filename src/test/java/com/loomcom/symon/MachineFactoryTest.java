@@ -0,0 +1,128 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.CNP1Machine;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.MachineFactory;
+import com.loomcom.symon.machines.SymonMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MachineFactoryTest {
+
+    private static final int ACIA_CTRL = 0x8803;
+
+    private Machine parent;
+
+    @Before
+    public void setUp() throws Exception {
+        parent = new SymonMachine();
+        Bus bus = parent.getBus();
+        Cpu cpu = parent.getCpu();
+
+        bus.write(0xfffc, Bus.DEFAULT_LOAD_ADDRESS & 0x00ff);
+        bus.write(0xfffd, (Bus.DEFAULT_LOAD_ADDRESS & 0xff00) >>> 8);
+        cpu.reset();
+        cpu.setUnthrottled(true);
+
+        bus.loadProgram(0xe8,              // $0200 INX
+                        0x8a,              // $0201 TXA
+                        0x99, 0x00, 0x10,  // $0202 STA $1000,Y
+                        0xc8,              // $0205 INY
+                        0x4c, 0x00, 0x02); // $0206 JMP $0200
+        bus.write(ACIA_CTRL, 0x1a);
+        cpu.step(101);
+    }
+
+    @Test
+    public void childShouldCarryOnWhereParentIs() throws Exception {
+        Machine child = MachineFactory.fork(parent);
+        Cpu cpu = child.getCpu();
+
+        assertEquals(parent.getCpu().getProgramCounter(), cpu.getProgramCounter());
+        assertEquals(parent.getCpu().getAccumulator(), cpu.getAccumulator());
+        assertEquals(parent.getCpu().getCpuState().cycleCounter, cpu.getCpuState().cycleCounter);
+        assertEquals(0x1a, child.getBus().read(ACIA_CTRL, false));
+        assertEquals(2400, child.getAcia().getBaudRate());
+
+        parent.getCpu().step(500);
+        cpu.step(500);
+        assertEquals(parent.getCpu().getProgramCounter(), cpu.getProgramCounter());
+        assertEquals(parent.getCpu().getAccumulator(), cpu.getAccumulator());
+        for (int address = 0x1000; address < 0x1100; address++) {
+            assertEquals(parent.getBus().read(address, false), child.getBus().read(address, false));
+        }
+    }
+
+    @Test
+    public void childShouldRunAsParentIsSetToRun() throws Exception {
+        Cpu cpu = parent.getCpu();
+        cpu.setClockPeriodInNs(250);
+        cpu.setSingleStepping(true);
+        cpu.setIdleSkipping(false);
+
+        Cpu child = MachineFactory.fork(parent).getCpu();
+        assertEquals(250, child.getClockPeriodInNs());
+        assertTrue(child.isSingleStepping());
+        assertFalse(child.isIdleSkipping());
+        assertTrue(child.isUnthrottled());
+    }
+
+    @Test
+    public void childShouldShareRandomlyFilledRamAndRom() throws Exception {
+        Machine cnp1 = new CNP1Machine();
+        cnp1.getBus().write(0xfffc, 0x34);
+        Machine child = MachineFactory.fork(cnp1);
+
+        for (int address = 0; address < cnp1.getMemorySize(); address++) {
+            assertEquals(cnp1.getBus().read(address, false), child.getBus().read(address, false));
+        }
+        assertEquals(0x34, child.getBus().read(0xfffc, false));
+        assertSame(cnp1.getRam().get(0).getPage(0), child.getRam().get(0).getPage(0));
+        assertSame(cnp1.getRom().getPage(0), child.getRom().getPage(0));
+    }
+
+    @Test
+    public void childrenShouldNotSeeEachOthersWrites() throws Exception {
+        List<Machine> children = MachineFactory.fork(parent, 3);
+        int before = parent.getBus().read(0x1000, false);
+
+        children.get(0).getBus().write(0x1000, 0xaa);
+        children.get(1).getBus().write(0x1000, 0xbb);
+        parent.getBus().write(0x1000, 0xcc);
+
+        assertEquals(0xaa, children.get(0).getBus().read(0x1000, false));
+        assertEquals(0xbb, children.get(1).getBus().read(0x1000, false));
+        assertEquals(before, children.get(2).getBus().read(0x1000, false));
+        assertEquals(0xcc, parent.getBus().read(0x1000, false));
+    }
+
+    @Test
+    public void childShouldShareUnwrittenPages() throws Exception {
+        Machine child = MachineFactory.fork(parent);
+        child.getCpu().step(1000);
+
+        // The program only writes to page $10, and the stack is untouched
+        assertSame(parent.getRam().get(0).getPage(0x02), child.getRam().get(0).getPage(0x02));
+        assertNotSame(parent.getRam().get(0).getPage(0x10), child.getRam().get(0).getPage(0x10));
+    }
+
+    @Test
+    public void childShouldRunSelfModifiedCode() throws Exception {
+        Machine child = MachineFactory.fork(parent);
+        Cpu cpu = child.getCpu();
+        cpu.setProgramCounter(0x0200);
+
+        // The code was cached by the parent's image of this page
+        cpu.step(1);
+        child.getBus().write(0x0200, 0xca);   // DEX
+        int x = cpu.getXRegister();
+        cpu.setProgramCounter(0x0200);
+        cpu.step(1);
+        assertEquals((x - 1) & 0xff, cpu.getXRegister());
+        assertEquals(0xe8, parent.getBus().read(0x0200, false));
+    }
+}
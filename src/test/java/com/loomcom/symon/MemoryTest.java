@@ -0,0 +1,126 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryRangeException;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class MemoryTest {
+
+    @Test
+    public void shouldStoreBytes() throws Exception {
+        Memory memory = new Memory(0x0000, 0x00ff);
+        memory.write(0x10, 0xff);
+        memory.write(0x11, 0x80);
+        memory.write(0x12, 0x1ab);
+
+        assertEquals(0xff, memory.read(0x10, true));
+        assertEquals(0x80, memory.read(0x11, true));
+        assertEquals(0xab, memory.read(0x12, true));
+    }
+
+    @Test
+    public void shouldLoadAndDumpBuffers() throws Exception {
+        Memory memory = new Memory(0x1000, 0x10ff);
+        memory.load(0x80, ByteBuffer.wrap(new byte[] {(byte) 0xa9, 0x01, (byte) 0xea}));
+
+        assertEquals(0xa9, memory.read(0x80, true));
+        assertEquals(0x01, memory.read(0x81, true));
+        assertEquals(0xea, memory.read(0x82, true));
+
+        ByteBuffer dump = ByteBuffer.allocate(0x100);
+        memory.dump(dump);
+        assertFalse(dump.hasRemaining());
+        assertEquals((byte) 0xa9, dump.get(0x80));
+        assertEquals(0x00, dump.get(0x7f));
+    }
+
+    @Test(expected = MemoryRangeException.class)
+    public void shouldNotLoadMoreThanFits() throws Exception {
+        Memory memory = new Memory(0x0000, 0x00ff);
+        memory.load(0xff, ByteBuffer.allocate(2));
+    }
+
+    @Test
+    public void readOnlyPagesShouldReflectWrites() throws Exception {
+        Memory memory = new Memory(0x0000, 0x017f);
+        memory.write(0x120, 0x42);
+
+        int count = 0;
+        for (ByteBuffer page : memory.readOnlyPages()) {
+            assertEquals(count == 0 ? 0x100 : 0x80, page.capacity());
+            count++;
+        }
+        assertEquals(2, count);
+
+        ByteBuffer view = memory.asReadOnlyBuffer(1);
+        memory.write(0x121, 0x43);
+        assertEquals(0x42, view.get(0x20));
+        assertEquals(0x43, view.get(0x21));
+        try {
+            view.put(0x20, (byte) 0);
+            fail("View should be read-only");
+        } catch (ReadOnlyBufferException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void sharedContentsShouldBeCopiedOnWrite() throws Exception {
+        Memory parent = new Memory(0x0000, 0x02ff);
+        parent.write(0x010, 0x11);
+        parent.write(0x110, 0x22);
+
+        Memory child = new Memory(0x0000, 0x02ff);
+        child.shareContents(parent);
+        assertEquals(0x11, child.read(0x010, true));
+        assertEquals(0x22, child.read(0x110, true));
+        assertSame(parent.getPage(1), child.getPage(1));
+        assertTrue(parent.isPageShared(1));
+
+        child.write(0x110, 0x33);
+        assertEquals(0x33, child.read(0x110, true));
+        assertEquals(0x22, parent.read(0x110, true));
+        assertFalse(child.isPageShared(1));
+        assertNotSame(parent.getPage(1), child.getPage(1));
+
+        // Only the page written is copied
+        assertSame(parent.getPage(0), child.getPage(0));
+
+        parent.write(0x010, 0x44);
+        assertEquals(0x11, child.read(0x010, true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotShareContentsOfDifferentSize() throws Exception {
+        new Memory(0x0000, 0x00ff).shareContents(new Memory(0x0000, 0x01ff));
+    }
+
+    @Test
+    public void shouldLoadRomImageFromFile() throws Exception {
+        File image = File.createTempFile("symon", ".rom");
+        image.deleteOnExit();
+        Files.write(image.toPath(), new byte[] {0x4c, 0x00, (byte) 0xc0});
+
+        Memory rom = Memory.makeROM(0xc000, 0xc0ff, image);
+        assertEquals(0x4c, rom.read(0x00, true));
+        assertEquals(0x00, rom.read(0x01, true));
+        assertEquals(0xc0, rom.read(0x02, true));
+        assertEquals(0x00, rom.read(0x03, true));
+    }
+
+    @Test(expected = MemoryRangeException.class)
+    public void shouldRejectRomImageThatDoesNotFit() throws Exception {
+        File image = File.createTempFile("symon", ".rom");
+        image.deleteOnExit();
+        Files.write(image.toPath(), new byte[0x101]);
+
+        Memory.makeROM(0xc000, 0xc0ff, image);
+    }
+}
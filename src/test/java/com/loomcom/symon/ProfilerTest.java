@@ -0,0 +1,114 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.SymonMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class ProfilerTest {
+
+    private Bus bus;
+    private Cpu cpu;
+
+    @Before
+    public void setUp() throws Exception {
+        SymonMachine machine = new SymonMachine();
+        bus = machine.getBus();
+        cpu = machine.getCpu();
+
+        bus.write(0xfffc, Bus.DEFAULT_LOAD_ADDRESS & 0x00ff);
+        bus.write(0xfffd, (Bus.DEFAULT_LOAD_ADDRESS & 0xff00) >>> 8);
+        cpu.reset();
+        cpu.setUnthrottled(true);
+
+        bus.loadProgram(0xa2, 0x00,        // $0200 LDX #$00
+                        0xe8,              // $0202 INX
+                        0x8e, 0x00, 0x10,  // $0203 STX $1000
+                        0xad, 0x00, 0x10,  // $0206 LDA $1000
+                        0xe0, 0x0a,        // $0209 CPX #$0A
+                        0xd0, 0xf5,        // $020B BNE $0202
+                        0x4c, 0x0d, 0x02); // $020D JMP $020D
+    }
+
+    @Test
+    public void shouldCountEachInstructionAndAccess() throws Exception {
+        Profiler profiler = new Profiler();
+        cpu.setProfiler(profiler);
+        long start = cpu.getCycleCount();
+        cpu.step(1 + 10 * 5 + 3);
+
+        assertEquals(1, profiler.getInstructions(0x0200));
+        assertEquals(10, profiler.getInstructions(0x0202));
+        assertEquals(10, profiler.getInstructions(0x020b));
+        assertEquals(3, profiler.getInstructions(0x020d));
+        assertEquals(40, profiler.getCycles(0x0203));
+        assertEquals(9 * 3 + 2, profiler.getCycles(0x020b));
+
+        assertEquals(10, profiler.getWrites(0x1000));
+        assertEquals(10, profiler.getReads(0x1000));
+        assertEquals(0, profiler.getReads(0x1001));
+
+        assertEquals(1 + 10 * 5 + 3, profiler.getTotalInstructions());
+        assertEquals(cpu.getCycleCount() - start, profiler.getTotalCycles());
+    }
+
+    @Test
+    public void shouldCountEveryInstructionOnEveryCore() throws Exception {
+        for (Cpu.Core core : Cpu.Core.values()) {
+            cpu.setCore(core);
+            cpu.setProgramCounter(0x0200);
+            Profiler profiler = new Profiler();
+            cpu.setProfiler(profiler);
+            long start = cpu.getCycleCount();
+            cpu.step(1 + 10 * 5);
+
+            assertEquals(core.toString(), 10, profiler.getInstructions(0x0202));
+            assertEquals(core.toString(), 10, profiler.getWrites(0x1000));
+            assertEquals(core.toString(), cpu.getCycleCount() - start, profiler.getTotalCycles());
+            assertEquals(core, cpu.getCore());
+        }
+    }
+
+    @Test
+    public void shouldStopCountingWhenDetached() throws Exception {
+        Profiler profiler = new Profiler();
+        cpu.setProfiler(profiler);
+        cpu.step(10);
+        cpu.setProfiler(null);
+        long cycles = profiler.getTotalCycles();
+        long writes = profiler.getWrites(0x1000);
+
+        cpu.step(100);
+        assertEquals(cycles, profiler.getTotalCycles());
+        assertEquals(writes, profiler.getWrites(0x1000));
+        assertNull(cpu.getProfiler());
+    }
+
+    @Test
+    public void shouldNameRoutinesInReport() throws Exception {
+        SymbolTable symbols = cpu.getSymbolTable();
+        symbols.put(0x0200, "START");
+        symbols.put(0x0202, "LOOP");
+        symbols.put(0x020d, "DONE");
+
+        Profiler profiler = new Profiler();
+        cpu.setProfiler(profiler);
+        cpu.step(1 + 10 * 5 + 3);
+
+        long[] routines = profiler.getRoutineCycles(symbols);
+        assertEquals(2, routines[0x0200]);
+        assertEquals(profiler.getTotalCycles() - 2 - 3 * 3, routines[0x0202]);
+        assertEquals(3 * 3, routines[0x020d]);
+
+        StringWriter report = new StringWriter();
+        profiler.writeReport(new PrintWriter(report), symbols, 10);
+        String text = report.toString();
+        assertTrue(text, text.contains("$0202 LOOP"));
+        assertTrue(text, text.contains("$020B LOOP+9"));
+        assertTrue(text, text.contains("$1000"));
+    }
+}
@@ -0,0 +1,343 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia6850;
+import com.loomcom.symon.devices.Memory;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RecompilerTest {
+
+    private static class Machine {
+        final Cpu cpu;
+        final Bus bus = new Bus(0x0000, 0xffff);
+
+        Machine(Cpu.Core core, InstructionTable.CpuBehavior behavior) throws Exception {
+            cpu = new Cpu(behavior);
+            cpu.setCore(core);
+            cpu.setUnthrottled(true);
+            bus.addCpu(cpu);
+            bus.addDevice(new Memory(0x0000, 0xffff));
+        }
+
+        void load(int[] program, long seed) throws Exception {
+            Random random = new Random(seed);
+            for (int address = 0; address < 0x2000; address++) {
+                bus.write(address, random.nextInt(256));
+            }
+            cpu.setProgramCounter(0x0200);
+            bus.loadProgram(program);
+            cpu.setStackPointer(0xff);
+        }
+
+        /* Step until at least the given number of instructions have retired */
+        void run(long instructions) throws Exception {
+            long end = cpu.getCpuState().stepCounter + instructions;
+            while (cpu.getCpuState().stepCounter < end) {
+                cpu.step();
+            }
+        }
+    }
+
+    // Exercises directly translated instructions, handler calls, page
+    // crossings and all the conditional branches.
+    private static final int[] MIXED = {
+        0xa2, 0x00,        // $0200  LDX #$00
+        0xa0, 0x10,        // $0202  LDY #$10
+        0xbd, 0xf0, 0x10,  // $0204  LDA $10f0,X
+        0x79, 0x00, 0x11,  // $0207  ADC $1100,Y
+        0x9d, 0x00, 0x12,  // $020A  STA $1200,X
+        0x51, 0x80,        // $020D  EOR ($80),Y
+        0x91, 0x82,        // $020F  STA ($82),Y
+        0xd5, 0x40,        // $0211  CMP $40,X
+        0x2a,              // $0213  ROL A
+        0x48,              // $0214  PHA
+        0x68,              // $0215  PLA
+        0xaa,              // $0216  TAX
+        0xc8,              // $0217  INY
+        0x30, 0x02,        // $0218  BMI $021C
+        0x70, 0x02,        // $021A  BVS $021E
+        0x90, 0xe6,        // $021C  BCC $0204
+        0xca,              // $021E  DEX
+        0xd0, 0xe3,        // $021F  BNE $0204
+        0x20, 0x28, 0x02,  // $0221  JSR $0228
+        0x4c, 0x04, 0x02,  // $0224  JMP $0204
+        0x00,              // $0227  BRK
+        0xe6, 0x90,        // $0228  INC $90
+        0x60               // $022A  RTS
+    };
+
+    @Test
+    public void jitCoreShouldMatchSwitchCoreOnNmos() throws Exception {
+        compareWithSwitchCore(InstructionTable.CpuBehavior.NMOS_6502);
+    }
+
+    @Test
+    public void jitCoreShouldMatchSwitchCoreOnCmos() throws Exception {
+        compareWithSwitchCore(InstructionTable.CpuBehavior.CMOS_6502);
+    }
+
+    private void compareWithSwitchCore(InstructionTable.CpuBehavior behavior) throws Exception {
+        for (long seed = 0; seed < 4; seed++) {
+            Machine reference = new Machine(Cpu.Core.SWITCH, behavior);
+            Machine jit = new Machine(Cpu.Core.JIT, behavior);
+            reference.load(MIXED, seed);
+            jit.load(MIXED, seed);
+
+            for (int i = 0; i < 2000; i++) {
+                jit.run(1);
+                CpuState actual = jit.cpu.getCpuState();
+                reference.run(actual.stepCounter - reference.cpu.getCpuState().stepCounter);
+                CpuState expected = reference.cpu.getCpuState();
+
+                String message = "seed " + seed + " after " + expected.stepCounter + " instructions";
+                assertEquals(message, expected.stepCounter, actual.stepCounter);
+                assertEquals(message, expected.pc, actual.pc);
+                assertEquals(message, expected.lastPc, actual.lastPc);
+                assertEquals(message, expected.ir, actual.ir);
+                assertEquals(message, expected.a, actual.a);
+                assertEquals(message, expected.x, actual.x);
+                assertEquals(message, expected.y, actual.y);
+                assertEquals(message, expected.sp, actual.sp);
+                assertEquals(message, expected.getStatusFlag(), actual.getStatusFlag());
+                assertEquals(message, expected.cycleCounter, actual.cycleCounter);
+            }
+
+            for (int address = 0; address < 0x2000; address++) {
+                assertEquals(reference.bus.read(address, false), jit.bus.read(address, false));
+            }
+        }
+    }
+
+    @Test
+    public void hotBlocksShouldRunAsAWhole() throws Exception {
+        Machine m = new Machine(Cpu.Core.JIT, InstructionTable.CpuBehavior.NMOS_6502);
+        m.load(new int[] {0xe8,              // INX
+                          0xc8,              // INY
+                          0x4c, 0x00, 0x02}, // JMP $0200
+               0);
+
+        for (int i = 0; i < Recompiler.COMPILE_THRESHOLD * 3; i++) {
+            m.cpu.step();
+        }
+        long steps = m.cpu.getCpuState().stepCounter;
+        long cycles = m.cpu.getCycleCount();
+
+        m.cpu.step();
+        assertEquals(steps + 3, m.cpu.getCpuState().stepCounter);
+        assertEquals(cycles + 2 + 2 + 3, m.cpu.getCycleCount());
+        assertEquals(0x0202, m.cpu.getCpuState().lastPc);
+        assertEquals(0x4c, m.cpu.getInstruction());
+        assertEquals(0x0200, m.cpu.getProgramCounter());
+    }
+
+    @Test
+    public void singleSteppingShouldRunOneInstructionAtATime() throws Exception {
+        Machine m = hotLoop();
+        m.cpu.setSingleStepping(true);
+
+        m.cpu.step();
+        assertEquals(0x0201, m.cpu.getProgramCounter());
+        m.cpu.step();
+        assertEquals(0x0202, m.cpu.getProgramCounter());
+
+        m.cpu.setSingleStepping(false);
+        m.cpu.step();
+        assertEquals(0x0200, m.cpu.getProgramCounter());
+        long steps = m.cpu.getCpuState().stepCounter;
+        m.cpu.step();
+        assertEquals(steps + 3, m.cpu.getCpuState().stepCounter);
+    }
+
+    @Test
+    public void steppingANumberOfTimesShouldRunThatManyInstructions() throws Exception {
+        Machine m = hotLoop();
+        long steps = m.cpu.getCpuState().stepCounter;
+
+        m.cpu.step(2);
+        assertEquals(steps + 2, m.cpu.getCpuState().stepCounter);
+        assertEquals(0x0202, m.cpu.getProgramCounter());
+
+        m.cpu.step(7);
+        assertEquals(steps + 9, m.cpu.getCpuState().stepCounter);
+        assertEquals(0x0200, m.cpu.getProgramCounter());
+    }
+
+    @Test
+    public void stepsShouldEndAtStopAddresses() throws Exception {
+        Machine m = hotLoop();
+        boolean[] stops = new boolean[0x10000];
+        stops[0x0201] = true;
+        m.cpu.setStopAddresses(stops);
+
+        m.cpu.step();
+        assertEquals(0x0201, m.cpu.getProgramCounter());
+        m.cpu.step();
+        m.cpu.step();
+        assertEquals(0x0200, m.cpu.getProgramCounter());
+
+        stops[0x0201] = false;
+        long steps = m.cpu.getCpuState().stepCounter;
+        m.cpu.step();
+        assertEquals(steps + 3, m.cpu.getCpuState().stepCounter);
+    }
+
+    @Test
+    public void eventsShouldFireAfterTheSameInstructionAsInterpreted() throws Exception {
+        Machine m = hotLoop();
+        long start = m.cpu.getCycleCount();
+        final long[] fired = {-1};
+        m.cpu.getScheduler().schedule(new Scheduler.Event() {
+            public void fire(long cycle) {
+                fired[0] = cycle;
+            }
+        }, start + 3);
+
+        m.cpu.step();
+        m.cpu.step();
+        // After the INY, not after the whole block
+        assertEquals(start + 4, fired[0]);
+    }
+
+    @Test
+    public void compiledBlocksShouldLeaveWhenAnInterruptIsEnabled() throws Exception {
+        Machine m = new Machine(Cpu.Core.JIT, InstructionTable.CpuBehavior.NMOS_6502);
+        m.load(new int[] {0xea,              // $0200  NOP
+                          0x58,              // $0201  CLI
+                          0xea,              // $0202  NOP
+                          0x78,              // $0203  SEI
+                          0x4c, 0x00, 0x02}, // $0204  JMP $0200
+               0);
+        m.cpu.setIrqDisableFlag();
+        m.run(Recompiler.COMPILE_THRESHOLD * 4 * 3);
+        while (m.cpu.getProgramCounter() != 0x0200) {
+            m.cpu.step();
+        }
+
+        m.cpu.assertIrq();
+        long steps = m.cpu.getCpuState().stepCounter;
+        m.cpu.step();
+        // The interrupt is taken before the NOP after the CLI
+        assertEquals(steps + 2, m.cpu.getCpuState().stepCounter);
+        assertEquals(0x0202, m.cpu.getProgramCounter());
+    }
+
+    @Test
+    public void devicesShouldSeeTheSameCyclesAsInterpreted() throws Exception {
+        // The cycle at which the ACIA will finish sending, each time the
+        // loop starts
+        Map<Long, Long> switchEvents = aciaEvents(Cpu.Core.SWITCH);
+        Map<Long, Long> jitEvents = aciaEvents(Cpu.Core.JIT);
+
+        assertEquals(switchEvents.size(), jitEvents.size());
+        for (Map.Entry<Long, Long> event : jitEvents.entrySet()) {
+            assertEquals("Step " + event.getKey(), switchEvents.get(event.getKey()), event.getValue());
+        }
+    }
+
+    private Map<Long, Long> aciaEvents(Cpu.Core core) throws Exception {
+        Cpu cpu = new Cpu();
+        cpu.setCore(core);
+        cpu.setUnthrottled(true);
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0x7fff));
+        bus.addDevice(new Acia6850(0x8800));
+        cpu.setProgramCounter(0x0200);
+        bus.loadProgram(0xa9, 0x41,        // $0200  LDA #$41
+                        0xe8,              // $0202  INX
+                        0xe8,              // $0203  INX
+                        0x8d, 0x01, 0x88,  // $0204  STA $8801
+                        0x4c, 0x00, 0x02); // $0207  JMP $0200
+
+        Map<Long, Long> events = new HashMap<>();
+        int steps = 0;
+        while (cpu.getCpuState().stepCounter < Recompiler.COMPILE_THRESHOLD * 5 * 4) {
+            cpu.step();
+            steps++;
+            if (cpu.getProgramCounter() == 0x0200) {
+                events.put(cpu.getCpuState().stepCounter, cpu.getScheduler().getNextEventCycle());
+            }
+        }
+        // Most of the loop ran compiled on the JIT core
+        assertEquals(core == Cpu.Core.JIT, steps < cpu.getCpuState().stepCounter / 2);
+        return events;
+    }
+
+    @Test
+    public void compiledClassesShouldBeUnloadedWithTheirBlocks() throws Exception {
+        Machine m = new Machine(Cpu.Core.JIT, InstructionTable.CpuBehavior.NMOS_6502);
+        m.load(new int[] {0xe8,              // INX
+                          0x4c, 0x00, 0x02}, // JMP $0200
+               0);
+        BlockCache cache = new BlockCache(m.bus, DispatchTable.forBehavior(m.cpu.getBehavior()),
+                                          InstructionTable.instructionClocksNmos);
+        Recompiler.CompiledCode code = new Recompiler(new byte[256]).compile(cache.lookup(0x0200));
+        assertNotNull(code);
+        WeakReference<Class<?>> compiled = new WeakReference<>(code.getClass());
+
+        code = null;
+        cache = null;
+        for (int i = 0; i < 100 && compiled.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(compiled.get());
+    }
+
+    /* A JIT machine that has compiled the block at $0200 */
+    private Machine hotLoop() throws Exception {
+        Machine m = new Machine(Cpu.Core.JIT, InstructionTable.CpuBehavior.NMOS_6502);
+        m.load(new int[] {0xe8,              // $0200  INX  (2 cycles)
+                          0xc8,              // $0201  INY  (2 cycles)
+                          0x4c, 0x00, 0x02}, // $0202  JMP $0200  (3 cycles)
+               0);
+        for (int i = 0; i < Recompiler.COMPILE_THRESHOLD * 3; i++) {
+            m.cpu.step();
+        }
+        assertEquals(0x0200, m.cpu.getProgramCounter());
+        return m;
+    }
+
+    @Test
+    public void compiledBlocksShouldLeaveWhenTheyOverwriteThemselves() throws Exception {
+        Machine m = new Machine(Cpu.Core.JIT, InstructionTable.CpuBehavior.NMOS_6502);
+        m.load(new int[] {0xe8,              // $0200  INX
+                          0x8a,              // $0201  TXA
+                          0x91, 0x80,        // $0202  STA ($80),Y
+                          0xa0, 0x00,        // $0204  LDY #$00
+                          0x84, 0x10,        // $0206  STY $10
+                          0xa0, 0x00,        // $0208  LDY #$00
+                          0x4c, 0x00, 0x02}, // $020A  JMP $0200
+               0);
+        m.bus.write(0x80, 0x00);
+        m.bus.write(0x81, 0x10);
+        m.cpu.setXRegister(0);
+        m.cpu.setYRegister(0);
+
+        while (m.cpu.getCpuState().stepCounter < Recompiler.COMPILE_THRESHOLD * 14) {
+            m.cpu.step();
+        }
+        while (m.cpu.getProgramCounter() != 0x0200) {
+            m.cpu.step();
+        }
+
+        // Point the store at the operand of the LDY that follows it
+        m.bus.write(0x80, 0x05);
+        m.bus.write(0x81, 0x02);
+        for (int i = 0; i < 4; i++) {
+            do {
+                m.cpu.step();
+            } while (m.cpu.getProgramCounter() != 0x0200);
+
+            int x = m.cpu.getXRegister();
+            assertEquals(x, m.bus.read(0x0205, false));
+            assertEquals(x, m.bus.read(0x0010, false));
+        }
+    }
+}
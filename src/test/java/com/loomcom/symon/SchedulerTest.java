@@ -0,0 +1,195 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SchedulerTest {
+
+    private Scheduler scheduler;
+    private List<String> fired;
+
+    private class NamedEvent extends Scheduler.Event {
+        private final String name;
+
+        NamedEvent(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void fire(long cycle) {
+            fired.add(name + "@" + cycle);
+        }
+    }
+
+    @Before
+    public void createScheduler() {
+        scheduler = new Scheduler();
+        fired = new ArrayList<String>();
+    }
+
+    @Test
+    public void shouldReportNothingDueWhenEmpty() {
+        assertEquals(Long.MAX_VALUE, scheduler.getNextEventCycle());
+        scheduler.runDue(1000);
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    public void shouldFireEventsInCycleOrder() {
+        scheduler.schedule(new NamedEvent("c"), 30);
+        scheduler.schedule(new NamedEvent("a"), 10);
+        scheduler.schedule(new NamedEvent("b"), 20);
+
+        assertEquals(10, scheduler.getNextEventCycle());
+
+        scheduler.runDue(9);
+        assertTrue(fired.isEmpty());
+
+        scheduler.runDue(25);
+        assertEquals(List.of("a@25", "b@25"), fired);
+        assertEquals(30, scheduler.getNextEventCycle());
+
+        scheduler.runDue(30);
+        assertEquals(List.of("a@25", "b@25", "c@30"), fired);
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void shouldFireSimultaneousEventsInScheduleOrder() {
+        for (int i = 0; i < 20; i++) {
+            scheduler.schedule(new NamedEvent(Integer.toString(i)), 100);
+        }
+        scheduler.runDue(100);
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i + "@100", fired.get(i));
+        }
+    }
+
+    @Test
+    public void shouldMoveAnEventThatIsScheduledAgain() {
+        NamedEvent event = new NamedEvent("a");
+        scheduler.schedule(event, 10);
+        scheduler.schedule(event, 50);
+
+        assertEquals(1, scheduler.size());
+        assertEquals(50, scheduler.getScheduledCycle(event));
+
+        scheduler.runDue(10);
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    public void shouldKeepOrderWhileEventsAreMovedAndCancelled() {
+        NamedEvent[] events = new NamedEvent[50];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = new NamedEvent(Integer.toString(i));
+            scheduler.schedule(events[i], (i * 37) % 101);
+        }
+        // Reverse the order of every other event, and drop every fifth
+        for (int i = 0; i < events.length; i += 2) {
+            scheduler.schedule(events[i], 1000 - i);
+        }
+        for (int i = 0; i < events.length; i += 5) {
+            scheduler.cancel(events[i]);
+        }
+        assertEquals(40, scheduler.size());
+
+        long last = -1;
+        while (scheduler.size() > 0) {
+            long next = scheduler.getNextEventCycle();
+            assertTrue(next >= last);
+            scheduler.runDue(next);
+            last = next;
+        }
+        assertEquals(40, fired.size());
+        assertEquals("48@952", fired.get(20));
+        assertEquals("2@998", fired.get(39));
+    }
+
+    @Test
+    public void shouldCancelEvents() {
+        NamedEvent a = new NamedEvent("a");
+        NamedEvent b = new NamedEvent("b");
+        scheduler.schedule(a, 10);
+        scheduler.schedule(b, 20);
+
+        assertTrue(scheduler.cancel(a));
+        assertFalse(scheduler.cancel(a));
+        assertFalse(scheduler.isScheduled(a));
+        assertEquals(20, scheduler.getNextEventCycle());
+
+        scheduler.runDue(100);
+        assertEquals(List.of("b@100"), fired);
+    }
+
+    @Test
+    public void shouldFireEventsScheduledByEventsIfAlreadyDue() {
+        final NamedEvent second = new NamedEvent("second");
+        scheduler.schedule(new Scheduler.Event() {
+            @Override
+            public void fire(long cycle) {
+                fired.add("first@" + cycle);
+                scheduler.schedule(second, cycle);
+            }
+        }, 5);
+
+        scheduler.runDue(5);
+        assertEquals(List.of("first@5", "second@5"), fired);
+    }
+
+    @Test
+    public void shouldRebasePendingEvents() {
+        NamedEvent event = new NamedEvent("a");
+        scheduler.schedule(event, 1000);
+        scheduler.rebase(-900);
+
+        assertEquals(100, scheduler.getNextEventCycle());
+        assertEquals(100, scheduler.getScheduledCycle(event));
+    }
+
+    @Test
+    public void cpuShouldRunEventsOnceTheirCycleIsReached() throws Exception {
+        Cpu cpu = new Cpu();
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+        cpu.setUnthrottled(true);
+        cpu.setProgramCounter(0x0200);
+        bus.loadProgram(0xea, 0xea, 0xea, 0xea); // NOP x 4, 2 cycles each
+
+        cpu.getScheduler().schedule(new NamedEvent("a"), cpu.getCycleCount() + 5);
+
+        cpu.step(2);
+        assertTrue(fired.isEmpty());
+        cpu.step();
+        assertEquals(1, fired.size());
+        assertEquals(0, cpu.getScheduler().size());
+    }
+
+    @Test
+    public void cpuResetShouldKeepPendingEventsTheSameDistanceAway() throws Exception {
+        Cpu cpu = new Cpu();
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+        cpu.setUnthrottled(true);
+        cpu.setProgramCounter(0x0200);
+        bus.loadProgram(0xea, 0xea, 0xea, 0xea);
+        cpu.step(4);
+
+        long cycles = cpu.getCycleCount();
+        NamedEvent event = new NamedEvent("a");
+        cpu.getScheduler().schedule(event, cycles + 100);
+        cpu.reset();
+
+        assertEquals(0, cpu.getCycleCount());
+        assertEquals(100, cpu.getScheduler().getScheduledCycle(event));
+    }
+}
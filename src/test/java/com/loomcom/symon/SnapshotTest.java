@@ -0,0 +1,236 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.devices.Crtc;
+import com.loomcom.symon.exceptions.SnapshotException;
+import com.loomcom.symon.devices.SdController;
+import com.loomcom.symon.machines.MulticompMachine;
+import com.loomcom.symon.machines.SimpleMachine;
+import com.loomcom.symon.machines.SymonMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SnapshotTest {
+
+    private static final int ACIA_DATA = 0x8800;
+    private static final int ACIA_CMND = 0x8802;
+    private static final int ACIA_CTRL = 0x8803;
+    private static final int VIA_DDRA  = 0x8003;
+    private static final int CRTC_SELECT = 0x9000;
+    private static final int CRTC_VALUE  = 0x9001;
+
+    private SymonMachine machine;
+    private Bus bus;
+    private Cpu cpu;
+
+    @Before
+    public void setUp() throws Exception {
+        machine = new SymonMachine();
+        bus = machine.getBus();
+        cpu = machine.getCpu();
+
+        bus.write(0xfffc, Bus.DEFAULT_LOAD_ADDRESS & 0x00ff);
+        bus.write(0xfffd, (Bus.DEFAULT_LOAD_ADDRESS & 0xff00) >>> 8);
+        cpu.reset();
+        cpu.setUnthrottled(true);
+
+        bus.loadProgram(0xe8,              // $0200 INX
+                        0x8a,              // $0201 TXA
+                        0x99, 0x00, 0x10,  // $0202 STA $1000,Y
+                        0xc8,              // $0205 INY
+                        0x4c, 0x00, 0x02); // $0206 JMP $0200
+    }
+
+    @Test
+    public void shouldRestoreCpuAndMemory() throws Exception {
+        cpu.step(100);
+        Snapshot snapshot = Snapshot.take(bus);
+        CpuState before = new CpuState(cpu.getCpuState());
+        int[] memoryBefore = readMemory(0x1000, 0x100);
+
+        cpu.step(201);
+        cpu.setCarryFlag();
+        bus.write(0x1000, 0xaa);
+        assertNotEquals(before.pc, cpu.getProgramCounter());
+
+        snapshot.restore(bus);
+        assertCpuStateEquals(before, cpu.getCpuState());
+        assertArrayEquals(memoryBefore, readMemory(0x1000, 0x100));
+
+        // Execution carries on exactly as it did the first time
+        cpu.step(200);
+        CpuState first = new CpuState(cpu.getCpuState());
+        snapshot.restore(bus);
+        cpu.step(200);
+        assertCpuStateEquals(first, cpu.getCpuState());
+    }
+
+    @Test
+    public void shouldRestoreDeviceRegisters() throws Exception {
+        bus.write(ACIA_CMND, 0x0b);
+        bus.write(ACIA_CTRL, 0x1a);     // 2400 baud
+        bus.write(VIA_DDRA, 0x5a);
+        bus.write(CRTC_SELECT, Crtc.CURSOR_POSITION_LOW);
+        bus.write(CRTC_VALUE, 0x34);
+        bus.write(ACIA_DATA, 'A');      // Busy for one character time
+
+        Acia acia = machine.getAcia();
+        Snapshot snapshot = Snapshot.take(bus);
+        long txDone = cpu.getScheduler().getNextEventCycle();
+        assertNotEquals(Long.MAX_VALUE, txDone);
+
+        acia.txRead(true);
+        bus.write(ACIA_CTRL, 0x00);     // Reset
+        bus.write(VIA_DDRA, 0x00);
+        bus.write(CRTC_VALUE, 0x00);
+        cpu.step(5000);
+        assertEquals(Long.MAX_VALUE, cpu.getScheduler().getNextEventCycle());
+
+        snapshot.restore(bus);
+        assertTrue(acia.hasTxChar());
+        assertEquals('A', acia.txRead(false));
+        assertEquals(2400, acia.getBaudRate());
+        assertEquals(0x0b, bus.read(ACIA_CMND, false));
+        assertEquals(0x1a, bus.read(ACIA_CTRL, false));
+        assertEquals(0x5a, bus.read(VIA_DDRA, false));
+        assertEquals(0x34, machine.getCrtc().getCursorPosition() & 0xff);
+        assertEquals(txDone, cpu.getScheduler().getNextEventCycle());
+    }
+
+    @Test
+    public void shouldRoundTripThroughChannel() throws Exception {
+        cpu.step(100);
+        Snapshot snapshot = Snapshot.take(bus);
+        CpuState before = new CpuState(cpu.getCpuState());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        snapshot.writeTo(Channels.newChannel(bytes));
+        assertEquals(snapshot.size(), bytes.size());
+
+        cpu.step(100);
+        Snapshot copy = Snapshot.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+        copy.restore(bus);
+        assertCpuStateEquals(before, cpu.getCpuState());
+    }
+
+    @Test
+    public void shouldRejectSnapshotOfAnotherMachine() throws Exception {
+        SimpleMachine other = new SimpleMachine();
+        Snapshot snapshot = Snapshot.take(other.getBus());
+        int pc = cpu.getProgramCounter();
+
+        try {
+            snapshot.restore(bus);
+            fail("Restored a snapshot of a different machine");
+        } catch (SnapshotException expected) {
+            // Nothing should have changed
+            assertEquals(pc, cpu.getProgramCounter());
+        }
+    }
+
+    @Test
+    public void shouldRejectUnknownCpuBehavior() throws Exception {
+        byte[] bytes = snapshotBytes(bus);
+        bytes[8] = 99;
+        int pc = cpu.getProgramCounter();
+
+        try {
+            Snapshot.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes))).restore(bus);
+            fail("Restored a CPU with an unknown behavior");
+        } catch (SnapshotException expected) {
+            assertEquals(pc, cpu.getProgramCounter());
+        }
+    }
+
+    @Test
+    public void shouldRejectUnknownSdStatusBeforeRestoringAnything() throws Exception {
+        MulticompMachine multicomp = new MulticompMachine();
+        Bus multicompBus = multicomp.getBus();
+        byte[] bytes = snapshotBytes(multicompBus);
+
+        // The status follows the three LBA bytes and the position
+        byte[] name = SdController.class.getName().getBytes(StandardCharsets.UTF_8);
+        int state = indexOf(bytes, name) + name.length + 4 + 4 + 4;
+        bytes[state + 16 + 3] = 42;
+
+        multicomp.getCpu().step(10);
+        multicompBus.write(0x1234, 0x56);
+        CpuState before = new CpuState(multicomp.getCpu().getCpuState());
+        try {
+            Snapshot.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes))).restore(multicompBus);
+            fail("Restored an SD controller with an unknown status");
+        } catch (SnapshotException expected) {
+            assertCpuStateEquals(before, multicomp.getCpu().getCpuState());
+            assertEquals(0x56, multicompBus.read(0x1234, false));
+        }
+    }
+
+    @Test(expected = SnapshotException.class)
+    public void shouldRejectDataThatIsNotASnapshot() throws Exception {
+        byte[] garbage = "This is not a snapshot".getBytes("US-ASCII");
+        Snapshot.readFrom(Channels.newChannel(new ByteArrayInputStream(garbage)));
+    }
+
+    @Test
+    public void shouldRestore64KQuickly() throws Exception {
+        SimpleMachine simple = new SimpleMachine();
+        Snapshot snapshot = Snapshot.take(simple.getBus());
+
+        // Warm up, then time
+        for (int i = 0; i < 1000; i++) {
+            snapshot.restore(simple.getBus());
+        }
+        int restores = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < restores; i++) {
+            snapshot.restore(simple.getBus());
+        }
+        long nanosPerRestore = (System.nanoTime() - start) / restores;
+        assertTrue("Restore took " + nanosPerRestore + " ns", nanosPerRestore < 1000000);
+    }
+
+    private int[] readMemory(int start, int length) throws Exception {
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = bus.read(start + i, false);
+        }
+        return values;
+    }
+
+    private static byte[] snapshotBytes(Bus bus) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Snapshot.take(bus).writeTo(Channels.newChannel(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        search:
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (bytes[i + j] != part[j]) {
+                    continue search;
+                }
+            }
+            return i;
+        }
+        throw new AssertionError("Not found");
+    }
+
+    private static void assertCpuStateEquals(CpuState expected, CpuState actual) {
+        assertEquals(expected.a, actual.a);
+        assertEquals(expected.x, actual.x);
+        assertEquals(expected.y, actual.y);
+        assertEquals(expected.sp, actual.sp);
+        assertEquals(expected.pc, actual.pc);
+        assertEquals(expected.getStatusFlag(), actual.getStatusFlag());
+        assertEquals(expected.stepCounter, actual.stepCounter);
+        assertEquals(expected.cycleCounter, actual.cycleCounter);
+    }
+}
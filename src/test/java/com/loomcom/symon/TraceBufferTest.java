@@ -0,0 +1,89 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.TraceBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TraceBufferTest {
+
+    private CpuState makeState(int n) {
+        CpuState state = new CpuState();
+        state.lastPc = 0x0200 + n;
+        state.ir = 0xad;
+        state.args[0] = n & 0xff;
+        state.args[1] = 0x10;
+        state.a = n & 0xff;
+        state.x = 0x01;
+        state.y = 0x02;
+        state.sp = 0xfd;
+        state.carryFlag = (n & 1) != 0;
+        state.setNegativeFlag(true);
+        state.stepCounter = n;
+        return state;
+    }
+
+    @Test
+    public void shouldRenderEntriesOldestFirst() {
+        TraceBuffer buffer = new TraceBuffer(10);
+        StringBuilder expected = new StringBuilder();
+        for (int n = 0; n < 3; n++) {
+            CpuState state = makeState(n);
+            buffer.append(state);
+            expected.append(state.toTraceEvent());
+        }
+
+        assertEquals(3, buffer.length());
+        assertEquals(expected.toString(), buffer.toTraceEvents());
+    }
+
+    @Test
+    public void shouldKeepOnlyTheMostRecentEntries() {
+        TraceBuffer buffer = new TraceBuffer(4);
+        StringBuilder expected = new StringBuilder();
+        for (int n = 0; n < 10; n++) {
+            CpuState state = makeState(n);
+            buffer.append(state);
+            if (n >= 6) {
+                expected.append(state.toTraceEvent());
+            }
+        }
+
+        assertEquals(4, buffer.length());
+        assertEquals(expected.toString(), buffer.toTraceEvents());
+    }
+
+    @Test
+    public void shouldReuseTheCallersStateWithoutSharingIt() {
+        TraceBuffer buffer = new TraceBuffer(4);
+        CpuState state = makeState(1);
+        String first = state.toTraceEvent();
+        buffer.append(state);
+        state.a = 0x99;
+        state.lastPc = 0x1234;
+
+        assertEquals(first, buffer.toTraceEvents());
+    }
+
+    @Test
+    public void shouldResolveSymbols() {
+        SymbolTable symbols = new SymbolTable();
+        symbols.put(0x0201, "LOOP");
+        CpuState state = makeState(1);
+        state.symbols = symbols;
+
+        TraceBuffer buffer = new TraceBuffer(4);
+        buffer.append(state);
+        assertEquals(state.toTraceEvent(), buffer.toTraceEvents());
+    }
+
+    @Test
+    public void resetShouldDiscardEntries() {
+        TraceBuffer buffer = new TraceBuffer(4);
+        buffer.append(makeState(1));
+        buffer.reset();
+
+        assertEquals(0, buffer.length());
+        assertEquals("", buffer.toTraceEvents());
+    }
+}